@@ -23,9 +23,9 @@ import net.minecraftforge.common.config.Property;
 import net.minecraftforge.oredict.RecipeSorter;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -68,6 +68,17 @@ public class CommonProxy
     public AchievementPage achievementPage;
     String commandBalance, commandRebalance, commandGive, commandSend;
     public String commandReceivePackets;
+    public boolean snapshotTransactions;
+
+    /**
+     * The time in milliseconds between the searches for transactions older than the retention
+     */
+    private static final long ARCHIVE_INTERVAL = 3600000L;
+
+    /**
+     * The time in milliseconds that the reconciliation waits after reaching the end of the ledger
+     */
+    private static final long RECONCILIATION_INTERVAL = 60000L;
 
     class ConfigLoader
     {
@@ -89,8 +100,50 @@ public class CommonProxy
         String sqlUrl;
         String sqlUser;
         String sqlPasswd;
+        int sqlPoolSize;
+        boolean sqlSchemaMigration;
+        int sqlJournalMode;
+        int sqlJournalBatchSize;
+        int sqlJournalFlushInterval;
+        String sqlJournalDir;
+        boolean sqlPreloadBlockOperators;
+        int sqlFetchSize;
+        int sqlImportChunkSize;
+        int sqlAccountCacheSize;
+        int accountCacheSize;
+        int accountCacheExpiration;
+        int asyncThreads;
+        int asyncTickBudget;
+        int playerLookupLimit;
         int conversionFromType;
         String propertiesDir;
+        boolean propertiesInMemory;
+        int propertiesFlushInterval;
+        boolean propertiesTransactionLog;
+        int propertiesTransactionLogSegmentSize;
+        boolean propertiesTransactionLogSync;
+        boolean propertiesConvertTransactions;
+        String ledgerDir;
+        boolean ledgerSync;
+        int ledgerTransactionLogSegmentSize;
+        String embeddedFile;
+        int embeddedPoolSize;
+        int embeddedCacheSize;
+        boolean embeddedFullSync;
+        String snapshotDir;
+        String snapshotRestoreFile;
+        boolean salesRollups;
+        int salesRollupsFlushInterval;
+        int salesRollupsHourRetention;
+        int salesRollupsDayRetention;
+        int transactionRetention;
+        boolean transactionArchiveMonthly;
+        int transactionArchiveChunkSize;
+        int transactionArchivePause;
+        boolean reconciliation;
+        int reconciliationChunkSize;
+        int reconciliationBudget;
+        String reconciliationFile;
 
         ConfigLoader(Configuration source){ this.source = source; }
 
@@ -329,9 +382,11 @@ public class CommonProxy
             prop = source.get(category, "Database Type", 1);
             prop.comment = "Defines how the bank accounts and transactions will be stored\n\n1: properties - A simple file-based implementation that " +
                     "saves the data as raw text. Simple but not reliable.\n" +
-                    "2: sql - Uses an external database software like MySQL or an SQL library like SQLite. (IMPORTANT: The tables aren't created automatically on this version)\n" +
-                    "3: nbt - Stores data using NBT Keys on world data. This type has limited functionality and is not recommended, use it for compatibility with data from the original mod";
-            databaseType = Math.max(1, Math.min(prop.getInt(1), 3));
+                    "2: sql - Uses an external database software like MySQL or an SQL library like SQLite. The tables are created automatically when SQL Schema Migration is enabled\n" +
+                    "3: nbt - Stores data using NBT Keys on world data. This type has limited functionality and is not recommended, use it for compatibility with data from the original mod\n" +
+                    "4: ledger - Keeps the accounts on a memory-mapped file with fixed-size records and the transactions on a segmented log. Fast and crash-safe, but package deliveries are not supported\n" +
+                    "5: embedded - Uses the same tables as the sql type on a local SQLite file, no database server is needed. Requires the SQLite JDBC driver (org.xerial:sqlite-jdbc) on the classpath";
+            databaseType = Math.max(1, Math.min(prop.getInt(1), 5));
 
             prop = source.get(category, "SQL URL", "jdbc:mysql://localhost:3306/database_name?autoReconnect=true");
             prop.comment = "The URL for the SQL server";
@@ -345,16 +400,212 @@ public class CommonProxy
             prop.comment="The password used to connect to the SQL Server.";
             sqlPasswd = prop.getString();
 
+            prop = source.get(category, "SQL Pool Size", 8);
+            prop.comment = "The maximum amount of connections that will be opened to the SQL Server at the same time. Default: 8";
+            sqlPoolSize = Math.max(1, Math.min(prop.getInt(8), 64));
+
+            prop = source.get(category, "SQL Schema Migration", true);
+            prop.comment = "Creates the missing tables and indexes when the server starts and upgrades them when the mod is updated. " +
+                    "Disable it only if the database user is not allowed to change the schema";
+            sqlSchemaMigration = prop.getBoolean(true);
+
+            prop = source.get(category, "SQL Transaction Journal", 0);
+            prop.comment = "Defines when the transaction logs are written to the SQL Server. Balances are always written immediately.\n\n" +
+                    "0: disabled - Each transaction is written immediately by the thread that executes it.\n" +
+                    "1: memory - Transactions are queued in memory and written in batches by a background thread. Queued transactions are lost if the server crashes.\n" +
+                    "2: file - Same as memory but the queued transactions are also appended to a local file, they will be written on the next start if the server crashes";
+            sqlJournalMode = Math.max(0, Math.min(prop.getInt(0), 2));
+
+            prop = source.get(category, "SQL Transaction Journal Batch Size", 200);
+            prop.comment = "The queued transactions are written when this amount is reached. Default: 200";
+            sqlJournalBatchSize = Math.max(1, Math.min(prop.getInt(200), 5000));
+
+            prop = source.get(category, "SQL Transaction Journal Flush Interval", 2000);
+            prop.comment = "The maximum time in milliseconds that a transaction stays queued. Default: 2000";
+            sqlJournalFlushInterval = Math.max(50, Math.min(prop.getInt(2000), 300000));
+
+            prop = source.get(category, "SQL Transaction Journal Directory", new File(source.getConfigFile().getParent(), "UniversalCoins-journal").getPath());
+            prop.comment = "Directory where the transaction journal files will be saved when the journal type is 2";
+            sqlJournalDir = prop.getString();
+
+            prop = source.get(category, "SQL Preload Block Operators", false);
+            prop.comment = "Loads all block operators when the server starts instead of loading them when they are used for the first time";
+            sqlPreloadBlockOperators = prop.getBoolean(false);
+
+            prop = source.get(category, "SQL Fetch Size", 500);
+            prop.comment = "The amount of rows fetched at once when all players or accounts are read, like on data conversions. Default: 500";
+            sqlFetchSize = Math.max(1, Math.min(prop.getInt(500), 100000));
+
+            prop = source.get(category, "SQL Import Chunk Size", 500);
+            prop.comment = "The amount of players imported on each transaction when data is converted to a SQL database. " +
+                    "The progress is saved after each chunk. Default: 500";
+            sqlImportChunkSize = Math.max(1, Math.min(prop.getInt(500), 10000));
+
+            prop = source.get(category, "SQL Account Cache Size", 0);
+            prop.comment = "Same as Account Cache Size but used by the sql type. Disabled by default because the cached balances " +
+                    "are not updated when other servers share the same database. Default: 0";
+            sqlAccountCacheSize = Math.max(0, Math.min(prop.getInt(0), 1000000));
+
+            prop = source.get(category, "Account Cache Size", 1024);
+            prop.comment = "The maximum amount of accounts kept in memory to avoid reading the same account repeatedly. " +
+                    "Used by the nbt and embedded types, 0 disables the cache. Default: 1024";
+            accountCacheSize = Math.max(0, Math.min(prop.getInt(1024), 1000000));
+
+            prop = source.get(category, "Account Cache Expiration", 60);
+            prop.comment = "The time in seconds that a cached account is kept before being read again, " +
+                    "keep it low if other servers share the same SQL database. 0 never expires. Default: 60";
+            accountCacheExpiration = Math.max(0, prop.getInt(60));
+
+            prop = source.get(category, "Async Database Threads", 2);
+            prop.comment = "The amount of threads used by the asynchronous database operations. Operations on the same account always run in order. Default: 2";
+            asyncThreads = Math.max(1, Math.min(prop.getInt(2), 32));
+
+            prop = source.get(category, "Async Callback Tick Budget", 5);
+            prop.comment = "The maximum time in milliseconds per tick used to process the results of asynchronous database operations. Default: 5";
+            asyncTickBudget = Math.max(1, Math.min(prop.getInt(5), 50));
+
+            prop = source.get(category, "Player Lookup Limit", 50);
+            prop.comment = "The maximum amount of player names suggested while a name is typed. Default: 50";
+            playerLookupLimit = Math.max(1, Math.min(prop.getInt(50), 1000));
+
             prop = source.get(category, "Convert from Database Type", 0);
             prop.comment = "Loads data from a different database type and adds to the database defined in this category.\n" +
-                    "This will be automatically set to zero after the data conversion is completed";
-            conversionFromType = Math.max(0, Math.min(prop.getInt(0), 3));
+                    "This will be automatically set to zero after the data conversion is completed.\n" +
+                    "If a conversion to a SQL database is interrupted it can be set again, the players that were already imported are skipped.\n" +
+                    "6: restores the snapshot defined by Restore Snapshot File";
+            conversionFromType = Math.max(0, Math.min(prop.getInt(0), 6));
             prop.set(0);
 
             prop = source.get(category, "Properties Directory", new File(source.getConfigFile().getParent(), "UniversalCoins-database").getPath());
             prop.comment = "Directory where the properties database will be saved";
             propertiesDir = prop.getString();
 
+            prop = source.get(category, "Properties In Memory", false);
+            prop.comment = "Loads all properties accounts and players to memory when the server starts. Changes are applied in memory and " +
+                    "written by a background thread, they are lost if the server crashes before they are written";
+            propertiesInMemory = prop.getBoolean(false);
+
+            prop = source.get(category, "Properties Flush Interval", 1000);
+            prop.comment = "The time in milliseconds that a change waits in memory before being written when Properties In Memory is enabled. " +
+                    "Many changes to the same file in this period are written once. Default: 1000";
+            propertiesFlushInterval = Math.max(50, Math.min(prop.getInt(1000), 300000));
+
+            prop = source.get(category, "Properties Transaction Log", false);
+            prop.comment = "Appends the transactions to large segment files on logs/segments instead of creating one file per transaction";
+            propertiesTransactionLog = prop.getBoolean(false);
+
+            prop = source.get(category, "Properties Transaction Log Segment Size", 16);
+            prop.comment = "The size in megabytes that makes the transaction log start a new segment file. Default: 16";
+            propertiesTransactionLogSegmentSize = Math.max(1, Math.min(prop.getInt(16), 1024));
+
+            prop = source.get(category, "Properties Transaction Log Sync", true);
+            prop.comment = "Waits for each transaction to be written to the disk. Transactions executed at the same time share the same disk write";
+            propertiesTransactionLogSync = prop.getBoolean(true);
+
+            prop = source.get(category, "Properties Convert Transaction Logs", false);
+            prop.comment = "Moves the transactions saved as one file per transaction to the transaction log and deletes the files.\n" +
+                    "Requires Properties Transaction Log. This will be automatically set to false after the conversion is completed";
+            propertiesConvertTransactions = prop.getBoolean(false);
+            prop.set(false);
+
+            prop = source.get(category, "Ledger Directory", new File(source.getConfigFile().getParent(), "UniversalCoins-ledger").getPath());
+            prop.comment = "Directory where the ledger database will be saved";
+            ledgerDir = prop.getString();
+
+            prop = source.get(category, "Ledger Sync", true);
+            prop.comment = "Waits for each change to the ledger to be written to the disk. When disabled a crash of the operating system " +
+                    "may lose the last changes, a crash of the server alone doesn't lose anything";
+            ledgerSync = prop.getBoolean(true);
+
+            prop = source.get(category, "Ledger Transaction Log Segment Size", 16);
+            prop.comment = "The size in megabytes that makes the ledger transaction log start a new segment file. Default: 16";
+            ledgerTransactionLogSegmentSize = Math.max(1, Math.min(prop.getInt(16), 1024));
+
+            prop = source.get(category, "Embedded Database File", new File(source.getConfigFile().getParent(), "UniversalCoins.db").getPath());
+            prop.comment = "The SQLite file used by the embedded database type, the tables are created automatically";
+            embeddedFile = prop.getString();
+
+            prop = source.get(category, "Embedded Pool Size", 2);
+            prop.comment = "The amount of connections opened to the embedded database. SQLite writes one transaction at a time, " +
+                    "more connections only allow more reads while a write is running. Default: 2";
+            embeddedPoolSize = Math.max(1, Math.min(prop.getInt(2), 16));
+
+            prop = source.get(category, "Embedded Page Cache", 16);
+            prop.comment = "The size in megabytes of the page cache of each embedded database connection. Default: 16";
+            embeddedCacheSize = Math.max(1, Math.min(prop.getInt(16), 1024));
+
+            prop = source.get(category, "Embedded Full Sync", false);
+            prop.comment = "Waits for each transaction to reach the disk. When disabled the write-ahead log is synchronized on checkpoints, " +
+                    "a crash of the server doesn't lose anything but a crash of the operating system may lose the last transactions";
+            embeddedFullSync = prop.getBoolean(false);
+
+            prop = source.get(category, "Snapshot Directory", new File(source.getConfigFile().getParent(), "UniversalCoins-snapshots").getPath());
+            prop.comment = "Directory where the snapshots exported while the server runs will be saved";
+            snapshotDir = prop.getString();
+
+            prop = source.get(category, "Snapshot Transactions", false);
+            prop.comment = "Includes the stored transactions on the snapshots, they may be much larger than the accounts";
+            snapshotTransactions = prop.getBoolean(false);
+
+            prop = source.get(category, "Restore Snapshot File", "");
+            prop.comment = "The snapshot file that is imported when Convert from Database Type is 6. " +
+                    "The accounts, players, player names and pending deliveries are imported, the transactions are not";
+            snapshotRestoreFile = prop.getString();
+
+            prop = source.get(category, "Sales Rollups", false);
+            prop.comment = "Counts the trades, coins and items of each machine and owner by hour, by day and in total while the transactions are stored. " +
+                    "Used by the properties, sql, ledger and embedded types. Default: false";
+            salesRollups = prop.getBoolean(false);
+
+            prop = source.get(category, "Sales Rollups Flush Interval", 60);
+            prop.comment = "The time in seconds that the sales counters are changed in memory before being written together. Default: 60";
+            salesRollupsFlushInterval = Math.max(1, Math.min(prop.getInt(60), 3600));
+
+            prop = source.get(category, "Sales Rollups Hourly Retention", 48);
+            prop.comment = "The amount of hours that the hourly sales counters are kept in memory. Default: 48";
+            salesRollupsHourRetention = Math.max(1, Math.min(prop.getInt(48), 24 * 90));
+
+            prop = source.get(category, "Sales Rollups Daily Retention", 90);
+            prop.comment = "The amount of days that the daily sales counters are kept in memory. Default: 90";
+            salesRollupsDayRetention = Math.max(1, Math.min(prop.getInt(90), 3650));
+
+            prop = source.get(category, "Transaction Retention", 0);
+            prop.comment = "The amount of days that the transactions are kept in the database before being moved to the archive by a background thread. " +
+                    "The sql and embedded types move them to archive tables, the properties and ledger types compress them to the archive directory. " +
+                    "The sales rollups are kept. 0 keeps the transactions forever. Default: 0";
+            transactionRetention = Math.max(0, prop.getInt(0));
+
+            prop = source.get(category, "Transaction Archive Monthly Tables", false);
+            prop.comment = "Archives the transactions of each month to their own tables, like transactions_archive_201601, " +
+                    "so old months can be dropped or exported separately. Used by the sql and embedded types";
+            transactionArchiveMonthly = prop.getBoolean(false);
+
+            prop = source.get(category, "Transaction Archive Chunk Size", 250);
+            prop.comment = "The maximum amount of transactions moved to the archive tables at once. Default: 250";
+            transactionArchiveChunkSize = Math.max(1, Math.min(prop.getInt(250), 400));
+
+            prop = source.get(category, "Transaction Archive Pause", 500);
+            prop.comment = "The time in milliseconds that the archive waits after each chunk, limiting the load on the database. Default: 500";
+            transactionArchivePause = Math.max(0, Math.min(prop.getInt(500), 60000));
+
+            prop = source.get(category, "Ledger Reconciliation", false);
+            prop.comment = "Verifies on a background thread that the balance of the accounts matches the stored transactions, " +
+                    "the differences are reported in the log with the transaction ids. " +
+                    "Used by the sql, ledger and embedded types and by the properties type with the transaction log. Default: false";
+            reconciliation = prop.getBoolean(false);
+
+            prop = source.get(category, "Ledger Reconciliation Chunk Size", 200);
+            prop.comment = "The amount of account changes verified at once. Default: 200";
+            reconciliationChunkSize = Math.max(10, Math.min(prop.getInt(200), 5000));
+
+            prop = source.get(category, "Ledger Reconciliation Budget", 1000);
+            prop.comment = "The maximum time in milliseconds of each minute used by the reconciliation. Default: 1000";
+            reconciliationBudget = Math.max(1, Math.min(prop.getInt(1000), 30000));
+
+            prop = source.get(category, "Ledger Reconciliation File", new File(source.getConfigFile().getParent(), "UniversalCoins-reconciliation.dat").getPath());
+            prop.comment = "Where the reconciliation of the sql and embedded types saves its progress";
+            reconciliationFile = prop.getString();
+
             category = "Commands";
             prop = source.get(category, "balance", "");
             prop.comment = "Changes the command name. Leaves empty for the default value. Add comma for aliases";
@@ -385,16 +636,125 @@ public class CommonProxy
             this.source.save();
         }
 
+        private SqlDB createSqlDB(ConnectionPool pool) throws IOException, DataStoreException
+        {
+            SqlDB sqlDB = new SqlDB(pool);
+            sqlDB.setFetchSize(sqlFetchSize);
+            sqlDB.setImportChunkSize(sqlImportChunkSize);
+            if(sqlJournalMode > 0)
+                sqlDB.enableJournal(sqlJournalBatchSize, sqlJournalFlushInterval, sqlJournalMode == 2? new File(sqlJournalDir) : null);
+            if(sqlPreloadBlockOperators)
+                UniversalCoinsServer.logger.info("Preloaded "+sqlDB.preloadBlockOperators()+" block operators");
+            if(salesRollups)
+                UniversalCoinsServer.salesRollups = sqlDB.enableSalesRollups(salesRollupsFlushInterval * 1000L,
+                        salesRollupsHourRetention * 3600000L, salesRollupsDayRetention * 86400000L);
+            if(reconciliation)
+                sqlDB.enableReconciliation(new File(reconciliationFile), reconciliationChunkSize, reconciliationBudget, RECONCILIATION_INTERVAL);
+            if(transactionRetention > 0)
+                sqlDB.enableTransactionArchive(transactionRetention * 86400000L, transactionArchiveChunkSize,
+                        transactionArchivePause, ARCHIVE_INTERVAL, transactionArchiveMonthly);
+            return sqlDB;
+        }
+
+        /**
+         * A pool of connections to the SQLite file of the embedded database type, the database uses write-ahead
+         * logging so reads are not blocked by the writes
+         */
+        private ConnectionPool createEmbeddedPool() throws ClassNotFoundException, IOException
+        {
+            Class.forName("org.sqlite.JDBC");
+
+            File file = new File(embeddedFile).getAbsoluteFile();
+            File dir = file.getParentFile();
+            if(!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Failed to create dir: "+dir);
+
+            // Immediate transactions take the write lock when they begin, so two connections can't both read and then
+            // fail to upgrade to a write
+            ConnectionPool pool = new ConnectionPool("jdbc:sqlite:"+file.getPath()+"?transaction_mode=IMMEDIATE", null, null, embeddedPoolSize);
+            pool.setSetupStatements(
+                    "PRAGMA journal_mode=WAL",
+                    "PRAGMA synchronous="+(embeddedFullSync? "FULL" : "NORMAL"),
+                    "PRAGMA busy_timeout=30000",
+                    "PRAGMA cache_size=-"+(embeddedCacheSize * 1024)
+            );
+            return pool;
+        }
+
         public void initConnection() throws ClassNotFoundException, SQLException, IOException, DataBaseException
         {
             switch (databaseType)
             {
-                case 1: UniversalCoinsServer.cardDb = new PropertiesDB(new File(propertiesDir)); break;
-                case 2: UniversalCoinsServer.cardDb = new SqlDB(DriverManager.getConnection(sqlUrl, sqlUser, sqlPasswd)); break;
+                case 1:
+                {
+                    PropertiesDB propertiesDB;
+                    if(propertiesInMemory)
+                        propertiesDB = new PropertiesDB(new File(propertiesDir), propertiesFlushInterval);
+                    else
+                        propertiesDB = new PropertiesDB(new File(propertiesDir));
+
+                    if(propertiesTransactionLog)
+                    {
+                        propertiesDB.enableTransactionLog(propertiesTransactionLogSegmentSize * 1024L * 1024L, propertiesTransactionLogSync);
+                        if(propertiesConvertTransactions)
+                            UniversalCoinsServer.logger.info("Converted "+propertiesDB.convertLegacyTransactions()+" transactions to the transaction log");
+                    }
+                    if(salesRollups)
+                        UniversalCoinsServer.salesRollups = propertiesDB.enableSalesRollups(salesRollupsFlushInterval * 1000L,
+                                salesRollupsHourRetention * 3600000L, salesRollupsDayRetention * 86400000L);
+                    if(reconciliation && propertiesTransactionLog)
+                        propertiesDB.enableReconciliation(reconciliationChunkSize, reconciliationBudget, RECONCILIATION_INTERVAL);
+                    if(transactionRetention > 0)
+                        propertiesDB.enableTransactionArchive(transactionRetention * 86400000L, transactionArchiveChunkSize,
+                                transactionArchivePause, ARCHIVE_INTERVAL);
+                    UniversalCoinsServer.cardDb = propertiesDB;
+                    break;
+                }
+                case 2:
+                {
+                    ConnectionPool pool = new ConnectionPool(sqlUrl, sqlUser, sqlPasswd, sqlPoolSize);
+                    if(sqlSchemaMigration)
+                        new SqlSchema(pool).migrate();
+                    UniversalCoinsServer.cardDb = createSqlDB(pool);
+                    break;
+                }
                 case 3: UniversalCoinsServer.cardDb = new NbtDB(); break;
+                case 4:
+                {
+                    LedgerDB ledgerDB = new LedgerDB(new File(ledgerDir), ledgerSync, ledgerTransactionLogSegmentSize * 1024L * 1024L);
+                    if(salesRollups)
+                        UniversalCoinsServer.salesRollups = ledgerDB.enableSalesRollups(salesRollupsFlushInterval * 1000L,
+                                salesRollupsHourRetention * 3600000L, salesRollupsDayRetention * 86400000L);
+                    if(reconciliation)
+                        ledgerDB.enableReconciliation(reconciliationChunkSize, reconciliationBudget, RECONCILIATION_INTERVAL);
+                    if(transactionRetention > 0)
+                        ledgerDB.enableTransactionArchive(transactionRetention * 86400000L, transactionArchiveChunkSize,
+                                transactionArchivePause, ARCHIVE_INTERVAL);
+                    UniversalCoinsServer.cardDb = ledgerDB;
+                    break;
+                }
+                case 5:
+                {
+                    ConnectionPool pool = createEmbeddedPool();
+                    new SqlSchema(pool).migrate();
+                    UniversalCoinsServer.cardDb = createSqlDB(pool);
+                    break;
+                }
                 default: throw new IllegalArgumentException("Database Type: "+databaseType);
             }
 
+            // The ledger reads the balances from memory, a cache would only duplicate them
+            int cacheSize = databaseType == 2? sqlAccountCacheSize : accountCacheSize;
+            if(cacheSize > 0 && UniversalCoinsServer.cardDb instanceof AbstractDB && !(UniversalCoinsServer.cardDb instanceof LedgerDB))
+                ((AbstractDB<?>) UniversalCoinsServer.cardDb).enableAccountCache(cacheSize, accountCacheExpiration * 1000L);
+
+            UniversalCoinsServer.asyncDb = new AsyncCardDataBase(UniversalCoinsServer.cardDb, asyncThreads, asyncTickBudget * 1000000L);
+
+            UniversalCoinsServer.playerDirectory = new PlayerDirectory(UniversalCoinsServer.cardDb);
+            UniversalCoinsServer.logger.info("Loaded "+UniversalCoinsServer.playerDirectory.load()+" player names");
+
+            UniversalCoinsServer.snapshotExporter = new SnapshotExporter(UniversalCoinsServer.cardDb, new File(snapshotDir));
+
             if(conversionFromType == databaseType)
                 throw new IllegalArgumentException("Attempted to import data from the same database type");
 
@@ -409,15 +769,27 @@ public class CommonProxy
                         switch (conversionFromType)
                         {
                             case 1: original = new PropertiesDB(new File(propertiesDir)); break;
-                            case 2: original = new SqlDB(DriverManager.getConnection(sqlUrl, sqlUser, sqlPasswd)); break;
+                            case 2: original = new SqlDB(new ConnectionPool(sqlUrl, sqlUser, sqlPasswd, sqlPoolSize)); break;
                             case 3: original = new NbtDB(); break;
+                            case 4: original = new LedgerDB(new File(ledgerDir), ledgerSync, ledgerTransactionLogSegmentSize * 1024L * 1024L); break;
+                            case 5: original = new SqlDB(createEmbeddedPool()); break;
+                            case 6: original = new SnapshotDB(new File(snapshotRestoreFile)); break;
                             default: throw new IllegalArgumentException("Convert From Database Type: "+databaseType);
                         }
 
                         Logger logger = UniversalCoinsServer.logger;
                         logger.info("Importing data from database-type "+conversionFromType+" to "+databaseType);
 
-                        UniversalCoinsServer.cardDb.importData(original);
+                        try
+                        {
+                            UniversalCoinsServer.cardDb.importData(original);
+                            UniversalCoinsServer.playerDirectory.load();
+                        }
+                        finally
+                        {
+                            if(original instanceof Closeable)
+                                ((Closeable) original).close();
+                        }
                         return null;
                     }
                 };
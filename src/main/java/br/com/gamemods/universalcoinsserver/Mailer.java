@@ -1,6 +1,7 @@
 package br.com.gamemods.universalcoinsserver;
 
 import br.com.gamemods.universalcoinsserver.datastore.DataStoreException;
+import br.com.gamemods.universalcoinsserver.datastore.PlayerDirectory;
 import br.com.gamemods.universalcoinsserver.event.PlayerLookupEvent;
 import br.com.gamemods.universalcoinsserver.event.PlayerSendPackage;
 import cpw.mods.fml.common.FMLCommonHandler;
@@ -24,9 +25,14 @@ import java.util.UUID;
 public class Mailer
 {
     private Queue<Runnable> scheduledTasks = new LinkedList<>();
+    private final int lookupLimit;
 
-    public Mailer()
+    /**
+     * @param lookupLimit The maximum amount of names suggested by a player lookup
+     */
+    public Mailer(int lookupLimit)
     {
+        this.lookupLimit = lookupLimit;
         FMLCommonHandler.instance().bus().register(this);
         MinecraftForge.EVENT_BUS.register(this);
     }
@@ -44,7 +50,7 @@ public class Mailer
     {
         try
         {
-            UniversalCoinsServer.cardDb.updatePlayerName(event.player.getPersistentID(), event.player.getCommandSenderName());
+            UniversalCoinsServer.playerDirectory.updatePlayerName(event.player.getPersistentID(), event.player.getCommandSenderName());
 
             new Thread()
             {
@@ -138,31 +144,21 @@ public class Mailer
     @SubscribeEvent
     public void onPlayerLookup(PlayerLookupEvent event)
     {
-        try
+        PlayerDirectory directory = UniversalCoinsServer.playerDirectory;
+        UUID exact = directory.getPlayerIdByName(event.searchedName);
+        if(exact != null)
         {
-            UUID exact = UniversalCoinsServer.cardDb.getPlayerIdByName(event.searchedName);
-            if(exact != null)
-            {
-                event.exactResultId = exact;
-                event.exactResultName = event.searchedName;
-            }
-
-            Map<UUID, String> result = UniversalCoinsServer.cardDb.findPlayerByName(event.searchedName);
-            if(result == null)
-                return;
-
+            event.exactResultId = exact;
+            event.exactResultName = directory.getPlayerName(exact);
+        }
 
-            for(Map.Entry<UUID, String> entry: result.entrySet())
+        for(Map.Entry<UUID, String> entry: directory.findPlayerByName(event.searchedName, lookupLimit).entrySet())
+        {
+            if(!event.matchedNames.contains(entry.getValue()))
             {
-                if(!event.matchedNames.contains(entry.getValue()))
-                {
-                    event.matchedNames.add(entry.getValue());
-                    event.uuidMap.put(entry.getValue(), entry.getKey());
-                }
+                event.matchedNames.add(entry.getValue());
+                event.uuidMap.put(entry.getValue(), entry.getKey());
             }
-        } catch (DataStoreException e)
-        {
-            e.printStackTrace();
         }
     }
 }
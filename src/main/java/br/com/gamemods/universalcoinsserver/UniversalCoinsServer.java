@@ -1,8 +1,12 @@
 package br.com.gamemods.universalcoinsserver;
 
 import br.com.gamemods.universalcoinsserver.command.*;
+import br.com.gamemods.universalcoinsserver.datastore.AsyncCardDataBase;
 import br.com.gamemods.universalcoinsserver.datastore.CardDataBase;
 import br.com.gamemods.universalcoinsserver.datastore.DataBaseException;
+import br.com.gamemods.universalcoinsserver.datastore.PlayerDirectory;
+import br.com.gamemods.universalcoinsserver.datastore.SalesRollups;
+import br.com.gamemods.universalcoinsserver.datastore.SnapshotExporter;
 import br.com.gamemods.universalcoinsserver.net.*;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.SidedProxy;
@@ -10,6 +14,7 @@ import cpw.mods.fml.common.event.FMLInitializationEvent;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
 import cpw.mods.fml.common.event.FMLServerStartedEvent;
 import cpw.mods.fml.common.event.FMLServerStartingEvent;
+import cpw.mods.fml.common.event.FMLServerStoppedEvent;
 import cpw.mods.fml.common.network.NetworkRegistry;
 import cpw.mods.fml.common.network.simpleimpl.SimpleNetworkWrapper;
 import cpw.mods.fml.relauncher.Side;
@@ -19,8 +24,10 @@ import net.minecraft.util.WeightedRandomChestContent;
 import net.minecraftforge.common.ChestGenHooks;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.common.config.Configuration;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.concurrent.Callable;
@@ -31,13 +38,17 @@ public class UniversalCoinsServer
 {
     @SidedProxy(serverSide = "br.com.gamemods.universalcoinsserver.CommonProxy")
     public static CommonProxy proxy = new CommonProxy();
-    public static Logger logger;
+    public static Logger logger = LogManager.getLogger("universalcoins");
 
     @Mod.Instance("universalcoins")
     public static UniversalCoinsServer instance;
 
     public static SimpleNetworkWrapper network;
     public static CardDataBase cardDb;
+    public static AsyncCardDataBase asyncDb;
+    public static PlayerDirectory playerDirectory;
+    public static SalesRollups salesRollups;
+    public static SnapshotExporter snapshotExporter;
     public CommandReceivePackets commandReceivePackets;
 
     Callable<Void> hook;
@@ -86,7 +97,7 @@ public class UniversalCoinsServer
             ChestGenHooks.getInfo(ChestGenHooks.DUNGEON_CHEST).addItem(
                     new WeightedRandomChestContent(new ItemStack(proxy.coins[proxy.configs.chestCoin]), proxy.configs.chestMinStack, proxy.configs.chestMaxStack, proxy.configs.dungeonCoinChance));
 
-        new Mailer();
+        new Mailer(proxy.configs.playerLookupLimit);
 
         proxy.configs = null;
     }
@@ -100,6 +111,8 @@ public class UniversalCoinsServer
         event.registerServerCommand(new CommandRebalance(proxy.commandRebalance));
         event.registerServerCommand(new CommandSend(proxy.commandSend));
         event.registerServerCommand(new CommandPackInventory());
+        event.registerServerCommand(new CommandSnapshot(proxy.snapshotTransactions));
+        event.registerServerCommand(new CommandHistory());
         event.registerServerCommand(commandReceivePackets = new CommandReceivePackets(proxy.commandReceivePackets));
     }
 
@@ -109,4 +122,14 @@ public class UniversalCoinsServer
         if(hook != null)
             hook.call();
     }
+
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent event) throws IOException
+    {
+        if(asyncDb != null)
+            asyncDb.close();
+
+        if(cardDb instanceof Closeable)
+            ((Closeable) cardDb).close();
+    }
 }
@@ -0,0 +1,171 @@
+package br.com.gamemods.universalcoinsserver.command;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import br.com.gamemods.universalcoinsserver.datastore.HistoryEntry;
+import br.com.gamemods.universalcoinsserver.datastore.HistoryPage;
+import br.com.gamemods.universalcoinsserver.datastore.HistoryQuery;
+import com.google.common.util.concurrent.FutureCallback;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.ChatComponentTranslation;
+import net.minecraft.util.ChatStyle;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.IChatComponent;
+import net.minecraft.util.StatCollector;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Shows the stored transactions of an account, a machine or a player, page by page
+ */
+public class CommandHistory extends CommandBase
+{
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * The query of the next page of each sender, only used on the main thread
+     */
+    private final Map<String, HistoryQuery> nextPages = new HashMap<>();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    @Override
+    public String getCommandName()
+    {
+        return "uchistory";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender sender)
+    {
+        return StatCollector.translateToLocal("command.uchistory.help");
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, String[] args)
+    {
+        HistoryQuery query;
+        try
+        {
+            query = parse(sender, args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            error(sender, new ChatComponentTranslation("command.uchistory.help"));
+            return;
+        }
+
+        if(query == null)
+            return;
+
+        final String senderName = sender.getCommandSenderName();
+        nextPages.remove(senderName);
+        final HistoryQuery current = query;
+        UniversalCoinsServer.asyncDb.onMainThread(UniversalCoinsServer.asyncDb.getTransactionHistory(query), new FutureCallback<HistoryPage>()
+        {
+            @Override
+            public void onSuccess(HistoryPage result)
+            {
+                if(result.getEntries().isEmpty())
+                {
+                    sender.addChatMessage(new ChatComponentTranslation("command.uchistory.result.empty"));
+                    return;
+                }
+
+                for(HistoryEntry entry: result.getEntries())
+                    sender.addChatMessage(describe(entry));
+
+                if(result.getNextCursor() != null)
+                {
+                    nextPages.put(senderName, current.after(result.getNextCursor()));
+                    sender.addChatMessage(new ChatComponentTranslation("command.uchistory.result.next")
+                            .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.GRAY)));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                error(sender, new ChatComponentTranslation("command.uchistory.error.failed", t.toString()));
+            }
+        });
+    }
+
+    private HistoryQuery parse(ICommandSender sender, String[] args)
+    {
+        if(args.length == 1 && args[0].equalsIgnoreCase("next"))
+        {
+            HistoryQuery next = nextPages.get(sender.getCommandSenderName());
+            if(next == null)
+                error(sender, new ChatComponentTranslation("command.uchistory.error.nomore"));
+            return next;
+        }
+
+        if(args.length != 2)
+            throw new IllegalArgumentException();
+
+        String type = args[0].toLowerCase();
+        switch (type)
+        {
+            case "account":
+                return HistoryQuery.byAccount(args[1]).limit(PAGE_SIZE);
+            case "machine":
+            {
+                UUID machineId;
+                try
+                {
+                    machineId = UUID.fromString(args[1]);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    error(sender, new ChatComponentTranslation("command.uchistory.error.badmachine", args[1]));
+                    return null;
+                }
+                return HistoryQuery.byMachine(machineId).limit(PAGE_SIZE);
+            }
+            case "player":
+            {
+                UUID playerId = UniversalCoinsServer.playerDirectory.getPlayerIdByName(args[1]);
+                if(playerId == null)
+                {
+                    error(sender, new ChatComponentTranslation("command.uchistory.error.notfound", args[1]));
+                    return null;
+                }
+                return HistoryQuery.byPlayer(playerId).limit(PAGE_SIZE);
+            }
+            case "recent":
+            {
+                int hours = parseIntBounded(sender, args[1], 1, 24 * 365);
+                long now = System.currentTimeMillis();
+                return HistoryQuery.between(now - hours * 3600000L, Long.MAX_VALUE).limit(PAGE_SIZE);
+            }
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private IChatComponent describe(HistoryEntry entry)
+    {
+        StringBuilder sb = new StringBuilder(dateFormat.format(new Date(entry.getTime())))
+                .append(' ').append(entry.getOperation());
+        if(entry.getProduct() != null)
+            sb.append(' ').append(entry.getQuantity()).append("x ").append(entry.getProduct());
+
+        IChatComponent line = new ChatComponentText(sb.append(' ').toString())
+                .appendSibling(new ChatComponentTranslation("command.uchistory.result.price", entry.getTotalPrice()));
+        if(entry.getUserCoins() != null)
+            line.appendText(" ").appendSibling(new ChatComponentTranslation("command.uchistory.result.user", entry.getUserCoins().toString()));
+        if(entry.getOwnerCoins() != null)
+            line.appendText(" ").appendSibling(new ChatComponentTranslation("command.uchistory.result.owner", entry.getOwnerCoins().toString()));
+        return line;
+    }
+
+    private static void error(ICommandSender sender, IChatComponent message)
+    {
+        sender.addChatMessage(message.setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
+    }
+}
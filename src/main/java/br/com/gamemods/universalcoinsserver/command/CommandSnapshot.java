@@ -0,0 +1,84 @@
+package br.com.gamemods.universalcoinsserver.command;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import br.com.gamemods.universalcoinsserver.datastore.SnapshotExporter;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.ChatStyle;
+import net.minecraft.util.EnumChatFormatting;
+
+import java.io.File;
+
+/**
+ * Exports a snapshot of the database while the server runs, the sender is notified when it finishes
+ */
+public class CommandSnapshot extends CommandBase
+{
+    private final boolean transactions;
+
+    /**
+     * @param transactions If the transactions are exported when the command doesn't say it
+     */
+    public CommandSnapshot(boolean transactions)
+    {
+        this.transactions = transactions;
+    }
+
+    @Override
+    public String getCommandName()
+    {
+        return "ucsnapshot";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender sender)
+    {
+        return "ucsnapshot [transactions|accounts]";
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, String[] args)
+    {
+        boolean transactions = this.transactions;
+        if(args.length == 1 && args[0].equalsIgnoreCase("transactions"))
+            transactions = true;
+        else if(args.length == 1 && args[0].equalsIgnoreCase("accounts"))
+            transactions = false;
+        else if(args.length > 0)
+        {
+            sender.addChatMessage(new ChatComponentText("Usage: /"+getCommandUsage(sender))
+                    .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
+            return;
+        }
+
+        SnapshotExporter exporter = UniversalCoinsServer.snapshotExporter;
+        ListenableFuture<File> future = exporter.exportAsync(transactions);
+        if(future == null)
+        {
+            sender.addChatMessage(new ChatComponentText("A snapshot is already being exported")
+                    .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
+            return;
+        }
+
+        sender.addChatMessage(new ChatComponentText("Exporting a snapshot to "+exporter.getDirectory()));
+        UniversalCoinsServer.asyncDb.onMainThread(future, new FutureCallback<File>()
+        {
+            @Override
+            public void onSuccess(File result)
+            {
+                sender.addChatMessage(new ChatComponentText("The snapshot was exported to "+result.getName())
+                        .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.GREEN)));
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                sender.addChatMessage(new ChatComponentText("Failed to export the snapshot: "+t)
+                        .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
+            }
+        });
+    }
+}
@@ -8,17 +8,22 @@ import net.minecraft.item.ItemStack;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
 public abstract class AbstractDB<Acc extends AbstractDB.Account> implements CardDataBase
 {
     protected int maxAccountValue = Integer.MAX_VALUE;
+    @Nullable
+    private AccountCache accountCache;
+    @Nullable
+    private AccountLocks accountLocks;
 
     class Account
     {
         final String id;
         final UUID owner;
-        int balance;
+        volatile int balance;
 
         public Account(String id, UUID owner, int balance)
         {
@@ -32,10 +37,20 @@ public abstract class AbstractDB<Acc extends AbstractDB.Account> implements Card
             return balance;
         }
 
+        /**
+         * Changes the balance of this instance and caches it, must be called while holding the account lock
+         */
         public void incrementBalance(int increment, @Nonnull Transaction transaction) throws DataStoreException
         {
             balance += increment;
-            saveTransaction(transaction);
+            try
+            {
+                saveTransaction(transaction);
+            }
+            finally
+            {
+                updateCachedAccount(this);
+            }
         }
     }
 
@@ -45,8 +60,93 @@ public abstract class AbstractDB<Acc extends AbstractDB.Account> implements Card
         return str.substring(0,3)+"."+str.substring(3,6)+"."+str.substring(6,9)+"-"+str.substring(9,11);
     }
 
+    /**
+     * Keeps up to {@code maxSize} accounts in memory so repeated lookups of the same account don't hit the storage.
+     * @param expireAfter Milliseconds that a loaded account is kept, zero or negative keeps it until it's evicted
+     */
+    public void enableAccountCache(int maxSize, long expireAfter)
+    {
+        accountCache = new AccountCache(maxSize, expireAfter);
+    }
+
+    @Nullable
+    public AccountCache getAccountCache()
+    {
+        return accountCache;
+    }
+
+    /**
+     * Makes the balance changes done by this class hold a lock per account, for storages that don't do it by themselves
+     * @param stripes The amount of locks shared by all accounts
+     */
+    protected void enableAccountLocks(int stripes)
+    {
+        accountLocks = new AccountLocks(stripes);
+    }
+
+    /**
+     * Locks the account until the hold is closed, does nothing if the locks are not enabled
+     */
+    @Nonnull
+    AccountLocks.Hold lockAccount(@Nullable Object account)
+    {
+        AccountLocks locks = accountLocks;
+        return locks == null? AccountLocks.Hold.NONE : locks.lock(getAccountNumber(account));
+    }
+
+    @Nonnull
+    AccountLocks.Hold lockAccounts(@Nullable String number, @Nullable String other)
+    {
+        AccountLocks locks = accountLocks;
+        return locks == null? AccountLocks.Hold.NONE : locks.lock(number, other);
+    }
+
+    /**
+     * Caches an account that was changed in place, for storages that have no other writer
+     */
+    protected void updateCachedAccount(@Nonnull Account account)
+    {
+        AccountCache cache = accountCache;
+        if(cache != null)
+            cache.update(account.id, account);
+    }
+
+    /**
+     * Removes the account from the cache, must be called when the account is changed without using
+     * {@link Account#incrementBalance(int, Transaction)}
+     */
+    protected void invalidateAccount(@Nonnull String number)
+    {
+        AccountCache cache = accountCache;
+        if(cache != null)
+            cache.invalidate(number);
+    }
+
+    /**
+     * Loads an active account from the storage, bypassing the cache
+     */
     @Nullable
-    protected abstract Acc getAccount(@Nonnull String number) throws DataStoreException;
+    protected abstract Acc loadAccount(@Nonnull String number) throws DataStoreException;
+
+    @Nullable
+    protected Acc getAccount(@Nonnull String number) throws DataStoreException
+    {
+        AccountCache cache = accountCache;
+        if(cache == null)
+            return loadAccount(number);
+
+        @SuppressWarnings("unchecked")
+        Acc account = (Acc) cache.get(number);
+        if(account != null)
+            return account;
+
+        // Cached by the number that was loaded, the storage may have resolved an other kind of reference
+        long generation = cache.generation();
+        account = loadAccount(number);
+        if(account != null)
+            cache.put(account.id, account, generation);
+        return account;
+    }
 
     protected Acc getAccount(@Nullable Object account) throws DataStoreException
     {
@@ -103,94 +203,103 @@ public abstract class AbstractDB<Acc extends AbstractDB.Account> implements Card
     @Override
     public int canDeposit(@Nonnull Object account, int coins) throws DataStoreException, AccountNotFoundException
     {
-        Acc acc = getAccount(account);
-        if(acc == null) throw new AccountNotFoundException(account);
-        return (int)(maxAccountValue - (acc.getBalance() + (long)coins));
+        try(AccountLocks.Hold hold = lockAccount(account))
+        {
+            Acc acc = getAccount(account);
+            if(acc == null) throw new AccountNotFoundException(account);
+            return (int)(maxAccountValue - (acc.getBalance() + (long)coins));
+        }
     }
 
     @Override
     public int depositToAccount(@Nonnull Object account, @Nullable Collection<ItemStack> coins, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException
     {
-        Acc acc = getAccount(account);
-        if(acc == null) throw new AccountNotFoundException(account);
-
-        if(coins == null || coins.isEmpty())
-            return 0;
-
-        long balance = acc.getBalance();
-        int ret = 0;
-        int deposit = 0;
-        Object[][] decrements = new Object[coins.size()][2];
-
-        int i = 0;
-        for(ItemStack stack: coins)
+        try(AccountLocks.Hold hold = lockAccount(account))
         {
-            Item item;
-            if(stack == null || !((item = stack.getItem()) instanceof ItemCoin) || stack.stackSize <= 0)
+            Acc acc = getAccount(account);
+            if(acc == null) throw new AccountNotFoundException(account);
+
+            if(coins == null || coins.isEmpty())
                 return 0;
 
-            int amountToDeposit = stack.stackSize;
-            int itemValue = ((ItemCoin) item).getValue();
-            int stackValue = amountToDeposit * itemValue;
-            int stackDeposit = deposit + stackValue;
+            long balance = acc.getBalance();
+            int ret = 0;
+            int deposit = 0;
+            Object[][] decrements = new Object[coins.size()][2];
 
-            long valueAboveInverted = maxAccountValue - (balance + stackValue + deposit);
-            if(valueAboveInverted < 0)
+            int i = 0;
+            for(ItemStack stack: coins)
             {
-                amountToDeposit -= -valueAboveInverted / itemValue;
-                stackDeposit = amountToDeposit * itemValue;
-            }
+                Item item;
+                if(stack == null || !((item = stack.getItem()) instanceof ItemCoin) || stack.stackSize <= 0)
+                    return 0;
 
-            if(amountToDeposit <= 0)
-                continue;
+                int amountToDeposit = stack.stackSize;
+                int itemValue = ((ItemCoin) item).getValue();
+                int stackValue = amountToDeposit * itemValue;
+                int stackDeposit = deposit + stackValue;
 
-            deposit += stackDeposit;
-            decrements[i++] = new Object[]{stack, amountToDeposit};
+                long valueAboveInverted = maxAccountValue - (balance + stackValue + deposit);
+                if(valueAboveInverted < 0)
+                {
+                    amountToDeposit -= -valueAboveInverted / itemValue;
+                    stackDeposit = amountToDeposit * itemValue;
+                }
 
-            ret += stackValue - deposit;
-        }
+                if(amountToDeposit <= 0)
+                    continue;
 
-        if(deposit <= 0)
-            return 0;
+                deposit += stackDeposit;
+                decrements[i++] = new Object[]{stack, amountToDeposit};
 
-        acc.incrementBalance(deposit, transaction);
+                ret += stackValue - deposit;
+            }
 
-        for(Object[] decrement: decrements)
-            ((ItemStack)decrement[0]).stackSize -= (int)decrement[1];
+            if(deposit <= 0)
+                return 0;
 
-        return ret;
+            acc.incrementBalance(deposit, transaction);
+
+            for(Object[] decrement: decrements)
+                ((ItemStack)decrement[0]).stackSize -= (int)decrement[1];
+
+            return ret;
+        }
     }
 
     @Override
     public int depositToAccount(@Nonnull Object account, @Nullable ItemStack stack, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException
     {
-        Acc acc = getAccount(account);
-        if(acc == null) throw new AccountNotFoundException(account);
+        try(AccountLocks.Hold hold = lockAccount(account))
+        {
+            Acc acc = getAccount(account);
+            if(acc == null) throw new AccountNotFoundException(account);
 
-        Item item;
-        if(stack == null || !((item = stack.getItem()) instanceof ItemCoin) || stack.stackSize <= 0)
-            return 0;
+            Item item;
+            if(stack == null || !((item = stack.getItem()) instanceof ItemCoin) || stack.stackSize <= 0)
+                return 0;
 
-        int amountToDeposit = stack.stackSize;
-        int itemValue = ((ItemCoin) item).getValue();
-        int stackValue = amountToDeposit * itemValue;
-        int deposit = stackValue;
+            int amountToDeposit = stack.stackSize;
+            int itemValue = ((ItemCoin) item).getValue();
+            int stackValue = amountToDeposit * itemValue;
+            int deposit = stackValue;
 
-        long valueAboveInverted = maxAccountValue - (acc.getBalance() + (long)stackValue);
-        if(valueAboveInverted < 0)
-        {
-            amountToDeposit -= -valueAboveInverted / itemValue;
-            deposit = amountToDeposit * itemValue;
-        }
+            long valueAboveInverted = maxAccountValue - (acc.getBalance() + (long)stackValue);
+            if(valueAboveInverted < 0)
+            {
+                amountToDeposit -= -valueAboveInverted / itemValue;
+                deposit = amountToDeposit * itemValue;
+            }
 
-        if(amountToDeposit <= 0)
-            return 0;
+            if(amountToDeposit <= 0)
+                return 0;
 
-        acc.incrementBalance(deposit, transaction);
+            acc.incrementBalance(deposit, transaction);
 
-        stack.stackSize -= amountToDeposit;
+            stack.stackSize -= amountToDeposit;
 
-        return stackValue - deposit;
+            return stackValue - deposit;
+        }
     }
 
     @Override
@@ -199,35 +308,41 @@ public abstract class AbstractDB<Acc extends AbstractDB.Account> implements Card
         if(coins < 0)
             throw new IllegalArgumentException("coins: "+coins);
 
-        Acc acc = getAccount(account);
-        if(acc == null) throw new AccountNotFoundException(account);
-        // Will be negative if the final account balance bypasses the maximum value
-        long valueAboveInverted = maxAccountValue - (acc.getBalance() + (long)coins);
+        try(AccountLocks.Hold hold = lockAccount(account))
+        {
+            Acc acc = getAccount(account);
+            if(acc == null) throw new AccountNotFoundException(account);
+            // Will be negative if the final account balance bypasses the maximum value
+            long valueAboveInverted = maxAccountValue - (acc.getBalance() + (long)coins);
 
-        // The value that will be deposited
-        int deposit = valueAboveInverted >= 0? coins : (int)(coins + valueAboveInverted);
+            // The value that will be deposited
+            int deposit = valueAboveInverted >= 0? coins : (int)(coins + valueAboveInverted);
 
-        if(deposit <= 0)
-            return coins;
+            if(deposit <= 0)
+                return coins;
 
-        acc.incrementBalance(deposit, transaction);
+            acc.incrementBalance(deposit, transaction);
 
-        return coins - deposit;
+            return coins - deposit;
+        }
     }
 
     @Override
     public int takeFromAccount(@Nonnull Object account, int amount, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException, OutOfCoinsException
     {
-        Acc acc = getAccount(account);
-        if(acc == null) throw new AccountNotFoundException(account);
+        try(AccountLocks.Hold hold = lockAccount(account))
+        {
+            Acc acc = getAccount(account);
+            if(acc == null) throw new AccountNotFoundException(account);
 
-        int afterIncrement = acc.balance - amount;
-        if(afterIncrement < 0)
-            throw new OutOfCoinsException(-afterIncrement);
+            int afterIncrement = acc.getBalance() - amount;
+            if(afterIncrement < 0)
+                throw new OutOfCoinsException(-afterIncrement);
 
-        acc.incrementBalance(-amount, transaction);
+            acc.incrementBalance(-amount, transaction);
 
-        return acc.getBalance();
+            return afterIncrement;
+        }
     }
 
     @Override
@@ -235,35 +350,65 @@ public abstract class AbstractDB<Acc extends AbstractDB.Account> implements Card
     {
         Transaction.CoinSource ownerCoinSource = transaction.getOwnerCoinSource();
         Transaction.CoinSource userCoinSource = transaction.getUserCoinSource();
-        Acc ownerAccount = null, userAccount = null;
-        long ownerIncrement = 0, userIncrement = 0;
+        String ownerNumber = ownerCoinSource instanceof Transaction.CardCoinSource?
+                getAccountNumber(((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress()) : null;
+        String userNumber = userCoinSource instanceof Transaction.CardCoinSource?
+                getAccountNumber(((Transaction.CardCoinSource) userCoinSource).getAccountAddress()) : null;
 
-        if(ownerCoinSource instanceof Transaction.CardCoinSource)
+        try(AccountLocks.Hold hold = lockAccounts(ownerNumber, userNumber))
         {
-            Object number = ((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress().getNumber();
-            ownerAccount = getAccount(number);
-            if(ownerAccount == null) throw new AccountNotFoundException(number);
-            ownerIncrement = ownerCoinSource.getBalanceAfter() - ownerCoinSource.getBalanceBefore();
-            int balance = ownerAccount.getBalance();
-            long result = balance + ownerIncrement;
-            if(result < 0) throw new OutOfCoinsException((int)-result);
-            if(result > maxAccountValue) throw new DataStoreException("Final balance above the limit. Balance: "+balance+" Increment:"+ownerIncrement+" Limit:"+maxAccountValue);
-        }
+            Acc ownerAccount = null, userAccount = null;
+            long ownerIncrement = 0, userIncrement = 0;
 
-        if(userCoinSource instanceof Transaction.CardCoinSource)
-        {
-            Object number = ((Transaction.CardCoinSource) userCoinSource).getAccountAddress().getNumber();
-            userAccount = getAccount(number);
-            if(userAccount == null) throw new AccountNotFoundException(number);
-
-            userIncrement = userCoinSource.getBalanceAfter() - userCoinSource.getBalanceBefore();
-            int balance = userAccount.getBalance();
-            long result = balance + userIncrement;
-            if(result < 0) throw new OutOfCoinsException((int)-result);
-            if(result > maxAccountValue) throw new DataStoreException("Final balance above the limit. Balance: "+balance+" Increment:"+userIncrement+" Limit:"+maxAccountValue);
+            if(ownerCoinSource instanceof Transaction.CardCoinSource)
+            {
+                Object number = ((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress().getNumber();
+                ownerAccount = getAccount(number);
+                if(ownerAccount == null) throw new AccountNotFoundException(number);
+                ownerIncrement = ownerCoinSource.getBalanceAfter() - ownerCoinSource.getBalanceBefore();
+                int balance = ownerAccount.getBalance();
+                long result = balance + ownerIncrement;
+                if(result < 0) throw new OutOfCoinsException((int)-result);
+                if(result > maxAccountValue) throw new DataStoreException("Final balance above the limit. Balance: "+balance+" Increment:"+ownerIncrement+" Limit:"+maxAccountValue);
+            }
+
+            if(userCoinSource instanceof Transaction.CardCoinSource)
+            {
+                Object number = ((Transaction.CardCoinSource) userCoinSource).getAccountAddress().getNumber();
+                userAccount = getAccount(number);
+                if(userAccount == null) throw new AccountNotFoundException(number);
+
+                userIncrement = userCoinSource.getBalanceAfter() - userCoinSource.getBalanceBefore();
+                int balance = userAccount.getBalance();
+                long result = balance + userIncrement;
+                if(result < 0) throw new OutOfCoinsException((int)-result);
+                if(result > maxAccountValue) throw new DataStoreException("Final balance above the limit. Balance: "+balance+" Increment:"+userIncrement+" Limit:"+maxAccountValue);
+            }
+
+            storeTrade(transaction, ownerAccount, (int)ownerIncrement, userAccount, (int)userIncrement);
         }
+    }
 
-        storeTrade(transaction, ownerAccount, (int)ownerIncrement, userAccount, (int)userIncrement);
+    /**
+     * Visits the result of {@link #getAllPlayerData()}, implementations that can read the players one by one should override it
+     */
+    @Override
+    public void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException
+    {
+        for(PlayerData playerData: getAllPlayerData())
+            if(!visitor.visit(playerData))
+                return;
+    }
+
+    /**
+     * Visits the result of {@link #getAllAccountsBalance()}, implementations that can read the accounts one by one should override it
+     */
+    @Override
+    public void visitAllAccountsBalance(@Nonnull Visitor<Map.Entry<AccountAddress, Integer>> visitor) throws DataStoreException
+    {
+        for(Map.Entry<AccountAddress, Integer> entry: getAllAccountsBalance().entrySet())
+            if(!visitor.visit(entry))
+                return;
     }
 
     protected abstract void storeTrade(@Nonnull Transaction transaction, @Nullable Acc ownerAccount, int ownerIncrement, @Nullable Acc userAccount, int userIncrement)
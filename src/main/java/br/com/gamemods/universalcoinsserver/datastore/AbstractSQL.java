@@ -1,18 +1,191 @@
 package br.com.gamemods.universalcoinsserver.datastore;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.Closeable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
-public abstract class AbstractSQL<A extends AbstractSQL.SqlAccount> extends AbstractDB<A>
+public abstract class AbstractSQL<A extends AbstractSQL.SqlAccount> extends AbstractDB<A> implements Closeable
 {
-    protected Connection connection;
+    protected final ConnectionPool pool;
+    private final ThreadLocal<Lease> leases = new ThreadLocal<>();
 
-    public AbstractSQL(Connection connection)
+    public AbstractSQL(@Nonnull ConnectionPool pool)
     {
-        this.connection = connection;
+        this.pool = pool;
+    }
+
+    /**
+     * A connection borrowed from the pool and confined to the current thread.
+     * <p>
+     * Nested operations executed by the same thread while the lease is open will share the same connection,
+     * so they can join the transaction started by the outermost operation.
+     */
+    protected final class Lease implements AutoCloseable
+    {
+        final Connection connection;
+        private int depth = 1;
+        private List<Runnable> afterCommit;
+        private List<Runnable> afterRollback;
+
+        private Lease(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public void close()
+        {
+            if(--depth > 0)
+                return;
+
+            leases.remove();
+            afterCommit = null;
+            afterRollback = null;
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Borrows a connection for the current thread or reuses the one that is already leased by it.
+     * The lease must be closed by the same thread, preferably with a try-with-resources block.
+     */
+    @Nonnull
+    protected Lease lease() throws DataStoreException
+    {
+        Lease lease = leases.get();
+        if(lease != null)
+        {
+            lease.depth++;
+            return lease;
+        }
+
+        try
+        {
+            lease = new Lease(pool.borrow());
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        leases.set(lease);
+        return lease;
+    }
+
+    /**
+     * Prepares the SQL using the statement cache of the pool. The statement must be closed, preferably with a
+     * try-with-resources block, closing it makes it available to be reused by the connection.
+     */
+    @Nonnull
+    protected PreparedStatement prepare(@Nonnull Connection connection, @Nonnull String sql) throws SQLException
+    {
+        return pool.getStatementCache().prepare(connection, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * @see #prepare(Connection, String)
+     */
+    @Nonnull
+    protected PreparedStatement prepare(@Nonnull Connection connection, @Nonnull String sql, int autoGeneratedKeys) throws SQLException
+    {
+        return pool.getStatementCache().prepare(connection, sql, autoGeneratedKeys);
+    }
+
+    /**
+     * Runs the task after the transaction that is open on the connection commits, it's discarded if the transaction is
+     * rolled back. The task runs immediately when the connection is in auto-commit mode.
+     */
+    protected void afterCommit(@Nonnull Connection connection, @Nonnull Runnable task) throws SQLException
+    {
+        Lease lease = leases.get();
+        if(connection.getAutoCommit() || lease == null || lease.connection != connection)
+        {
+            task.run();
+            return;
+        }
+
+        if(lease.afterCommit == null)
+            lease.afterCommit = new ArrayList<>(2);
+        lease.afterCommit.add(task);
+    }
+
+    /**
+     * Runs the task if the transaction that is open on the connection is rolled back, it's discarded when the transaction
+     * commits. Nothing is registered when the connection is in auto-commit mode.
+     */
+    protected void afterRollback(@Nonnull Connection connection, @Nonnull Runnable task) throws SQLException
+    {
+        Lease lease = leases.get();
+        if(connection.getAutoCommit() || lease == null || lease.connection != connection)
+            return;
+
+        if(lease.afterRollback == null)
+            lease.afterRollback = new ArrayList<>(2);
+        lease.afterRollback.add(task);
+    }
+
+    /**
+     * Commits the connection and runs the tasks registered with {@link #afterCommit(Connection, Runnable)}
+     */
+    protected void commit(@Nonnull Connection connection) throws SQLException
+    {
+        connection.commit();
+
+        Lease lease = leases.get();
+        if(lease == null || lease.connection != connection)
+            return;
+
+        lease.afterRollback = null;
+        if(lease.afterCommit == null)
+            return;
+
+        List<Runnable> tasks = lease.afterCommit;
+        lease.afterCommit = null;
+        for(Runnable task: tasks)
+            task.run();
+    }
+
+    /**
+     * Rolls back the connection, discarding the tasks registered with {@link #afterCommit(Connection, Runnable)} and
+     * running the ones registered with {@link #afterRollback(Connection, Runnable)}.
+     * Failures are only printed because this is always called while handling a previous failure.
+     */
+    protected void rollback(@Nonnull Connection connection)
+    {
+        List<Runnable> tasks = null;
+        Lease lease = leases.get();
+        if(lease != null && lease.connection == connection)
+        {
+            lease.afterCommit = null;
+            tasks = lease.afterRollback;
+            lease.afterRollback = null;
+        }
+
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+
+        if(tasks != null)
+            for(Runnable task: tasks)
+                task.run();
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
     }
 
     class SqlAccount extends Account
@@ -27,61 +200,75 @@ public abstract class AbstractSQL<A extends AbstractSQL.SqlAccount> extends Abst
         @Override
         public void incrementBalance(int increment, @Nullable Transaction transaction) throws DataStoreException
         {
-            boolean inTransaction;
-            try
-            {
-                inTransaction = !connection.getAutoCommit();
-            }
-            catch (SQLException e)
-            {
-                throw new DataStoreException(e);
-            }
-
-            try
+            try(Lease lease = lease())
             {
-                if(!inTransaction)
-                    connection.setAutoCommit(false);
-
-                try (PreparedStatement pst = connection.prepareStatement("UPDATE `accounts` SET `balance`=`balance`+? WHERE `number`=?"))
+                Connection connection = lease.connection;
+                boolean inTransaction;
+                try
                 {
-                    pst.setInt(1, increment);
-                    pst.setString(2, id);
-                    pst.executeUpdate();
+                    inTransaction = !connection.getAutoCommit();
+                }
+                catch (SQLException e)
+                {
+                    throw new DataStoreException(e);
                 }
 
-                if(transaction != null)
-                    saveTransaction(transaction);
-
-                if(!inTransaction)
-                    connection.commit();
+                try
+                {
+                    if(!inTransaction)
+                        connection.setAutoCommit(false);
 
-                balance += increment;
-            }
-            catch (Throwable e)
-            {
-                if(!inTransaction)
-                    try
+                    // The caller may have checked a cached balance, the update is refused if it would overdraw the account
+                    try (PreparedStatement pst = prepare(connection, "UPDATE `accounts` SET `balance`=`balance`+? WHERE `number`=? AND `terminated` IS NULL AND `balance`+? >= 0"))
                     {
-                        connection.rollback();
-                    }
-                    catch (SQLException e2)
-                    {
-                        e2.printStackTrace();
+                        pst.setInt(1, increment);
+                        pst.setString(2, id);
+                        pst.setInt(3, increment);
+                        if(pst.executeUpdate() == 0 && increment != 0)
+                        {
+                            invalidateAccount(id);
+                            throw new DataStoreException("The account "+id+" was changed by another server and can't receive the increment "+increment);
+                        }
                     }
 
-                throw new DataStoreException(e);
-            }
-            finally
-            {
-                if(!inTransaction)
-                    try
-                    {
-                        connection.setAutoCommit(true);
-                    }
-                    catch (SQLException e)
+                    if(transaction != null)
+                        saveTransaction(transaction);
+
+                    // The shared cached instance is dropped instead of changed, so it's never ahead of the committed balance
+                    if(!inTransaction)
                     {
-                        e.printStackTrace();
+                        commit(connection);
+                        invalidateAccount(id);
                     }
+                    else
+                        afterCommit(connection, new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                invalidateAccount(id);
+                            }
+                        });
+                }
+                catch (Throwable e)
+                {
+                    if(!inTransaction)
+                        rollback(connection);
+
+                    throw new DataStoreException(e);
+                }
+                finally
+                {
+                    if(!inTransaction)
+                        try
+                        {
+                            connection.setAutoCommit(true);
+                        }
+                        catch (SQLException e)
+                        {
+                            e.printStackTrace();
+                        }
+                }
             }
         }
     }
@@ -0,0 +1,159 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the accounts loaded by an {@link AbstractDB}.
+ * <p>
+ * The least recently used account is evicted when the cache is full and entries older than {@code expireAfter}
+ * milliseconds are loaded again, so changes made by other servers sharing the same database are eventually seen.
+ * <p>
+ * The cached instances are the same ones returned to the callers. A backend that is the only writer of its storage
+ * changes the cached instance while holding the account lock and stores it again with {@link #update(String, AbstractDB.Account)},
+ * a backend shared with other servers drops the entry with {@link #invalidate(String)} after the change is committed.
+ * Both bump a generation that is taken before an account is loaded, a load that started before a change is not cached
+ * so it can't bring back the balance that the change replaced.
+ */
+public class AccountCache
+{
+    private final int maxSize;
+    private final long expireAfter;
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits, misses, evictions;
+    private long generation;
+
+    private static final class Entry
+    {
+        final AbstractDB.Account account;
+        final long loaded;
+
+        Entry(AbstractDB.Account account, long loaded)
+        {
+            this.account = account;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * @param expireAfter Milliseconds that an account stays cached after being loaded, zero or negative never expires
+     */
+    public AccountCache(int maxSize, long expireAfter)
+    {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("maxSize: "+maxSize);
+
+        this.maxSize = maxSize;
+        this.expireAfter = expireAfter;
+        this.entries = new LinkedHashMap<>(Math.min(maxSize, 1024) * 4 / 3 + 1, 0.75f, true);
+    }
+
+    @Nullable
+    synchronized AbstractDB.Account get(@Nonnull String number)
+    {
+        Entry entry = entries.get(number);
+        if(entry == null)
+        {
+            misses++;
+            return null;
+        }
+
+        if(expireAfter > 0 && System.currentTimeMillis() - entry.loaded > expireAfter)
+        {
+            entries.remove(number);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.account;
+    }
+
+    /**
+     * @return The value to give to {@link #put(String, AbstractDB.Account, long)}, must be taken before the account is loaded
+     */
+    synchronized long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * Caches a loaded account, unless an account was changed after the load started
+     */
+    synchronized void put(@Nonnull String number, @Nonnull AbstractDB.Account account, long loadGeneration)
+    {
+        if(loadGeneration != generation)
+            return;
+
+        store(number, account);
+    }
+
+    /**
+     * Caches an account that was just changed, replacing the instance that was cached for its number
+     */
+    synchronized void update(@Nonnull String number, @Nonnull AbstractDB.Account account)
+    {
+        generation++;
+        store(number, account);
+    }
+
+    private void store(String number, AbstractDB.Account account)
+    {
+        entries.put(number, new Entry(account, System.currentTimeMillis()));
+        if(entries.size() <= maxSize)
+            return;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxSize && iterator.hasNext())
+        {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate(@Nonnull String number)
+    {
+        generation++;
+        entries.remove(number);
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "AccountCache{size="+entries.size()+"/"+maxSize+", hits="+hits+", misses="+misses+", evictions="+evictions+"}";
+    }
+}
@@ -0,0 +1,115 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the read-modify-write operations done on the same account by backends that can't rely on the storage
+ * to do it, like the files of {@link PropertiesDB} and the world data of {@link NbtDB}.
+ * <p>
+ * The account numbers are bound to a fixed amount of stripes, different accounts may share a stripe. Operations
+ * that touch two accounts acquire both stripes in the index order, so two trades between the same accounts in
+ * opposite directions can't wait for each other. A thread holding a stripe must not acquire another one, the
+ * operations must take all stripes they need at once.
+ */
+class AccountLocks
+{
+    private final ReentrantLock[] stripes;
+
+    /**
+     * A set of acquired stripes, closing it releases them
+     */
+    static final class Hold implements AutoCloseable
+    {
+        static final Hold NONE = new Hold(null, null);
+
+        private final ReentrantLock first;
+        private final ReentrantLock second;
+
+        private Hold(ReentrantLock first, ReentrantLock second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void close()
+        {
+            if(second != null)
+                second.unlock();
+            if(first != null)
+                first.unlock();
+        }
+    }
+
+    /**
+     * @param stripes The amount of locks shared by the accounts, rounded up to a power of two
+     */
+    AccountLocks(int stripes)
+    {
+        if(stripes < 1)
+            throw new IllegalArgumentException("stripes: "+stripes);
+
+        int size = Integer.highestOneBit(stripes);
+        if(size < stripes)
+            size <<= 1;
+
+        this.stripes = new ReentrantLock[size];
+        for(int i = 0; i < size; i++)
+            this.stripes[i] = new ReentrantLock();
+    }
+
+    private int stripe(String number)
+    {
+        int hash = number.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (stripes.length - 1);
+    }
+
+    /**
+     * Blocks until the account can be changed by the current thread
+     * @param number The account number, nothing is locked if it's {@code null}
+     */
+    @Nonnull
+    Hold lock(@Nullable String number)
+    {
+        if(number == null)
+            return Hold.NONE;
+
+        ReentrantLock lock = stripes[stripe(number)];
+        lock.lock();
+        return new Hold(lock, null);
+    }
+
+    /**
+     * Blocks until both accounts can be changed by the current thread, the numbers may be equal or {@code null}
+     */
+    @Nonnull
+    Hold lock(@Nullable String number, @Nullable String other)
+    {
+        if(number == null)
+            return lock(other);
+        if(other == null)
+            return lock(number);
+
+        int a = stripe(number);
+        int b = stripe(other);
+        if(a == b)
+            return lock(number);
+
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        first.lock();
+        try
+        {
+            second.lock();
+        }
+        catch (RuntimeException|Error e)
+        {
+            first.unlock();
+            throw e;
+        }
+        return new Hold(first, second);
+    }
+}
@@ -0,0 +1,228 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Gives account numbers that are never repeated without looking for a free number on each account creation.
+ * <p>
+ * Blocks of positions are reserved from a persisted counter and kept in memory. Each position is mapped to a number
+ * by a keyed Feistel permutation over the {@code XXX.XXX.XXX-XX} space, so the numbers still look random but two
+ * positions never give the same number. The numbers of a block that were already taken by the older random
+ * generator are discarded when the block is reserved, with a single check for the whole block.
+ */
+public final class AccountNumberAllocator
+{
+    /**
+     * The amount of numbers in the {@code XXX.XXX.XXX-XX} format
+     */
+    static final long SPACE = 100000000000L;
+    private static final int HALF_BITS = 19;
+    private static final long HALF_MASK = (1L << HALF_BITS) - 1;
+    private static final int ROUNDS = 4;
+    private static final int MAGIC = 0x5543414E;
+
+    /**
+     * The persisted counter
+     */
+    interface Sequence
+    {
+        /**
+         * Advances the counter by the amount, other servers sharing the counter never receive the same positions
+         * @return The seed of the permutation and the first reserved position
+         */
+        @Nonnull
+        long[] reserve(int count) throws DataStoreException;
+    }
+
+    /**
+     * Finds the numbers that were already used by accounts created before the allocator
+     */
+    interface UsageCheck
+    {
+        @Nonnull
+        List<String> findUsed(@Nonnull List<String> numbers) throws DataStoreException;
+    }
+
+    private final Sequence sequence;
+    private final UsageCheck check;
+    private final int blockSize;
+    private final Deque<String> available = new ArrayDeque<>();
+
+    /**
+     * @param blockSize The amount of positions reserved at once, the unused ones are lost when the server stops
+     */
+    AccountNumberAllocator(@Nonnull Sequence sequence, @Nonnull UsageCheck check, int blockSize)
+    {
+        if(blockSize < 1)
+            throw new IllegalArgumentException("blockSize: "+blockSize);
+
+        this.sequence = sequence;
+        this.check = check;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return A number that was never given before
+     */
+    @Nonnull
+    public synchronized String next() throws DataStoreException
+    {
+        while (available.isEmpty())
+            reserve();
+        return available.poll();
+    }
+
+    /**
+     * Drops the numbers kept in memory, the next call reserves a new block
+     */
+    public synchronized void clear()
+    {
+        available.clear();
+    }
+
+    private void reserve() throws DataStoreException
+    {
+        long[] block = sequence.reserve(blockSize);
+        long seed = block[0], first = block[1];
+        if(first < 0 || first + blockSize > SPACE)
+            throw new DataStoreException("All account numbers were used");
+
+        List<String> numbers = new ArrayList<>(blockSize);
+        for(long position = first; position < first + blockSize; position++)
+            numbers.add(format(permute(position, seed)));
+
+        numbers.removeAll(check.findUsed(numbers));
+        available.addAll(numbers);
+    }
+
+    /**
+     * Maps a position to a value lower than {@link #SPACE}, the values that fall outside of the space are permuted again
+     * until they fall inside, so the mapping stays one to one
+     */
+    static long permute(long position, long seed)
+    {
+        long value = position;
+        do
+        {
+            long left = value >>> HALF_BITS, right = value & HALF_MASK;
+            for(int round = 0; round < ROUNDS; round++)
+            {
+                long next = left ^ (mix(right ^ (seed + round * 0x9E3779B97F4A7C15L)) & HALF_MASK);
+                left = right;
+                right = next;
+            }
+            value = left << HALF_BITS | right;
+        }
+        while (value >= SPACE);
+        return value;
+    }
+
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE53A87CDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Formats the value as {@code XXX.XXX.XXX-XX}
+     */
+    @Nonnull
+    static String format(long value)
+    {
+        char[] chars = {'0','0','0','.','0','0','0','.','0','0','0','-','0','0'};
+        for(int i = chars.length - 1; i >= 0 && value > 0; i--)
+        {
+            if(chars[i] == '.' || chars[i] == '-')
+                continue;
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return A random seed for a new counter
+     */
+    static long newSeed()
+    {
+        return new SecureRandom().nextLong();
+    }
+
+    /**
+     * A counter saved in a file, for storages used by a single server
+     */
+    @Nonnull
+    static Sequence fileSequence(@Nonnull final File file)
+    {
+        return new Sequence()
+        {
+            private long seed;
+            private long next = -1;
+
+            @Nonnull
+            @Override
+            public long[] reserve(int count) throws DataStoreException
+            {
+                try
+                {
+                    if(next < 0)
+                        load();
+
+                    long first = next;
+                    save(first + count);
+                    next = first + count;
+                    return new long[]{seed, first};
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+
+            private void load() throws IOException
+            {
+                if(!file.isFile())
+                {
+                    seed = newSeed();
+                    next = 0;
+                    return;
+                }
+
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+                {
+                    if(in.readInt() != MAGIC)
+                        throw new IOException("Not an account number sequence file: "+file);
+                    seed = in.readLong();
+                    next = in.readLong();
+                }
+            }
+
+            private void save(long next) throws IOException
+            {
+                File temp = new File(file.getParentFile(), file.getName()+".tmp");
+                try(FileOutputStream fileOut = new FileOutputStream(temp))
+                {
+                    DataOutputStream out = new DataOutputStream(fileOut);
+                    out.writeInt(MAGIC);
+                    out.writeLong(seed);
+                    out.writeLong(next);
+                    out.flush();
+                    fileOut.getFD().sync();
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        };
+    }
+}
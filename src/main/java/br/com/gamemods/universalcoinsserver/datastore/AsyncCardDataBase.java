@@ -0,0 +1,716 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import br.com.gamemods.universalcoinsserver.api.UniversalCoinsServerAPI;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.item.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the {@link CardDataBase} operations outside the server thread.
+ * <p>
+ * Every operation returns a future that is completed by a database thread. Operations touching the same account
+ * (or the same player when no account is involved) are executed in the order that they were requested.
+ * Callbacks registered with {@link #onMainThread(ListenableFuture, FutureCallback)} run on the server thread at the
+ * end of a tick, using at most {@code tickBudget} nanoseconds per tick, the remaining callbacks run on the next ticks.
+ * <p>
+ * Item stacks passed to the operations are read and changed by the database thread, the caller must not touch them
+ * until the future completes.
+ */
+public class AsyncCardDataBase implements Closeable
+{
+    private static final List<Object> ALL_KEYS = Collections.unmodifiableList(new ArrayList<>(0));
+
+    private final CardDataBase db;
+    private final OrderedExecutor executor;
+    private final long tickBudget;
+    private final Queue<Runnable> mainThreadTasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Packages that were claimed but not given yet, returned to the pending deliveries if the server stops first
+     */
+    private final Set<ClaimedPackages> undelivered = Collections.newSetFromMap(new ConcurrentHashMap<ClaimedPackages, Boolean>());
+    private final Executor mainThread = new Executor()
+    {
+        @Override
+        public void execute(@Nonnull Runnable command)
+        {
+            mainThreadTasks.add(command);
+        }
+    };
+
+    private interface Call<T>
+    {
+        T call() throws DataBaseException;
+    }
+
+    /**
+     * @param tickBudget Nanoseconds per tick that can be used to run the callbacks on the server thread
+     */
+    public AsyncCardDataBase(@Nonnull CardDataBase db, int threads, long tickBudget)
+    {
+        this.db = db;
+        this.executor = new OrderedExecutor(threads, "UniversalCoins Database");
+        this.tickBudget = tickBudget;
+        FMLCommonHandler.instance().bus().register(this);
+    }
+
+    @Nonnull
+    public CardDataBase getDataBase()
+    {
+        return db;
+    }
+
+    /**
+     * An executor that runs the tasks on the server thread, respecting the tick budget
+     */
+    @Nonnull
+    public Executor getMainThreadExecutor()
+    {
+        return mainThread;
+    }
+
+    /**
+     * Runs the callback on the server thread when the future completes
+     */
+    public <T> void onMainThread(@Nonnull ListenableFuture<T> future, @Nonnull FutureCallback<? super T> callback)
+    {
+        Futures.addCallback(future, callback, mainThread);
+    }
+
+    public int getPendingCallbacks()
+    {
+        return mainThreadTasks.size();
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event)
+    {
+        if(event.phase != TickEvent.Phase.END)
+            return;
+
+        long deadline = System.nanoTime() + tickBudget;
+        Runnable task;
+        while ((task = mainThreadTasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (Exception e)
+            {
+                UniversalCoinsServer.logger.error("Failed to run a database callback", e);
+            }
+
+            if(System.nanoTime() >= deadline)
+                break;
+        }
+    }
+
+    private <T> ListenableFuture<T> submit(@Nonnull Collection<?> keys, @Nonnull final Call<T> call)
+    {
+        final SettableFuture<T> future = SettableFuture.create();
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(future.isCancelled())
+                    return;
+
+                try
+                {
+                    future.set(call.call());
+                }
+                catch (Throwable e)
+                {
+                    future.setException(e);
+                }
+            }
+        };
+
+        try
+        {
+            if(keys == ALL_KEYS)
+                executor.executeAll(task);
+            else
+                executor.execute(keys, task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.setException(e);
+        }
+
+        return future;
+    }
+
+    private static List<Object> keys(Object... keys)
+    {
+        return Arrays.asList(keys);
+    }
+
+    @Nullable
+    private static Object accountKey(@Nullable Object account)
+    {
+        Object number = UniversalCoinsServerAPI.getAccountNumber(account);
+        return number == null? null : number.toString();
+    }
+
+    private static List<Object> transactionKeys(@Nonnull Transaction transaction)
+    {
+        List<Object> keys = new ArrayList<>(2);
+        for(Transaction.CoinSource coinSource: new Transaction.CoinSource[]{transaction.getOwnerCoinSource(), transaction.getUserCoinSource()})
+            if(coinSource instanceof Transaction.CardCoinSource)
+                keys.add(accountKey(((Transaction.CardCoinSource) coinSource).getAccountAddress()));
+
+        if(keys.isEmpty())
+        {
+            Machine machine = transaction.getMachine();
+            keys.add(machine != null? machine.getMachineId() : transaction.getId());
+        }
+        return keys;
+    }
+
+    public ListenableFuture<UUID> getAccountOwner(@Nonnull final Object account)
+    {
+        return submit(keys(accountKey(account)), new Call<UUID>()
+        {
+            @Override
+            public UUID call() throws DataBaseException
+            {
+                return db.getAccountOwner(account);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> getAccountBalance(@Nonnull final Object account)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.getAccountBalance(account);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> canDeposit(@Nonnull final Object account, @Nullable final Collection<ItemStack> coins)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.canDeposit(account, coins);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> canDeposit(@Nonnull final Object account, @Nullable final ItemStack coins)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.canDeposit(account, coins);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> canDeposit(@Nonnull final Object account, final int coins)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.canDeposit(account, coins);
+            }
+        });
+    }
+
+    /**
+     * @see CardDataBase#depositToAccount(Object, Collection, Transaction)
+     */
+    public ListenableFuture<Integer> depositToAccount(@Nonnull final Object account, @Nullable final Collection<ItemStack> coins, @Nonnull final Transaction transaction)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.depositToAccount(account, coins, transaction);
+            }
+        });
+    }
+
+    /**
+     * @see CardDataBase#depositToAccount(Object, ItemStack, Transaction)
+     */
+    public ListenableFuture<Integer> depositToAccount(@Nonnull final Object account, @Nullable final ItemStack coins, @Nonnull final Transaction transaction)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.depositToAccount(account, coins, transaction);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> depositToAccount(@Nonnull final Object account, final int coins, @Nonnull final Transaction transaction)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.depositToAccount(account, coins, transaction);
+            }
+        });
+    }
+
+    public ListenableFuture<Void> saveNewMachine(@Nonnull final Machine machine)
+    {
+        return submit(keys(machine.getMachineId()), new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.saveNewMachine(machine);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<Void> saveTransaction(@Nonnull final Transaction transaction)
+    {
+        return submit(transactionKeys(transaction), new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.saveTransaction(transaction);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<HistoryPage> getTransactionHistory(@Nonnull final HistoryQuery query)
+    {
+        // An account history is read after the operations that are already queued on the same account
+        return submit(keys(query.getKey() != null? query.getKey() : query), new Call<HistoryPage>()
+        {
+            @Override
+            public HistoryPage call() throws DataBaseException
+            {
+                return db.getTransactionHistory(query);
+            }
+        });
+    }
+
+    public ListenableFuture<PlayerData> getPlayerData(@Nonnull final UUID playerUID)
+    {
+        return submit(keys(playerUID), new Call<PlayerData>()
+        {
+            @Override
+            public PlayerData call() throws DataBaseException
+            {
+                return db.getPlayerData(playerUID);
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> createPrimaryAccount(@Nonnull final UUID playerUID, @Nonnull final String name)
+    {
+        return submit(keys(playerUID), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.createPrimaryAccount(playerUID, name);
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> takeFromAccount(@Nonnull final Object account, final int amount, @Nonnull final Transaction transaction)
+    {
+        return submit(keys(accountKey(account)), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.takeFromAccount(account, amount, transaction);
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> getCustomAccountByName(@Nonnull final String customAccountName)
+    {
+        return submit(keys(customAccountName), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.getCustomAccountByName(customAccountName);
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> createCustomAccount(@Nonnull final UUID playerUID, @Nonnull final String customAccountName)
+    {
+        return submit(keys(playerUID, customAccountName), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.createCustomAccount(playerUID, customAccountName);
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> transferAccount(@Nonnull final AccountAddress origin, @Nonnull final String destiny, @Nullable final Machine machine, @Nullable final Operator operator)
+    {
+        return submit(keys(accountKey(origin), origin.getOwner(), origin.getName(), destiny), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.transferAccount(origin, destiny, machine, operator);
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> transferPrimaryAccount(@Nonnull final AccountAddress primaryAccount, @Nonnull final String newName, @Nullable final Machine machine, @Nullable final Operator operator)
+    {
+        return submit(keys(accountKey(primaryAccount), primaryAccount.getOwner()), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.transferPrimaryAccount(primaryAccount, newName, machine, operator);
+            }
+        });
+    }
+
+    public ListenableFuture<Void> processTrade(@Nonnull final Transaction transaction)
+    {
+        return submit(transactionKeys(transaction), new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.processTrade(transaction);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs after every operation requested before it
+     */
+    public ListenableFuture<Collection<PlayerData>> getAllPlayerData()
+    {
+        return submit(ALL_KEYS, new Call<Collection<PlayerData>>()
+        {
+            @Override
+            public Collection<PlayerData> call() throws DataBaseException
+            {
+                return db.getAllPlayerData();
+            }
+        });
+    }
+
+    /**
+     * Runs after every operation requested before it, the visitor is called by the database thread
+     */
+    public ListenableFuture<Void> visitAllPlayerData(@Nonnull final CardDataBase.Visitor<PlayerData> visitor)
+    {
+        return submit(ALL_KEYS, new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.visitAllPlayerData(visitor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs after every operation requested before it
+     */
+    public ListenableFuture<Map<AccountAddress, Integer>> getAllAccountsBalance()
+    {
+        return submit(ALL_KEYS, new Call<Map<AccountAddress, Integer>>()
+        {
+            @Override
+            public Map<AccountAddress, Integer> call() throws DataBaseException
+            {
+                return db.getAllAccountsBalance();
+            }
+        });
+    }
+
+    /**
+     * Runs after every operation requested before it, the visitor is called by the database thread
+     */
+    public ListenableFuture<Void> visitAllAccountsBalance(@Nonnull final CardDataBase.Visitor<Map.Entry<AccountAddress, Integer>> visitor)
+    {
+        return submit(ALL_KEYS, new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.visitAllAccountsBalance(visitor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Holds every other operation while the data is imported
+     */
+    public ListenableFuture<Void> importData(@Nonnull final CardDataBase original)
+    {
+        return submit(ALL_KEYS, new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.importData(original);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<AccountAddress> renamePrimaryAccount(@Nonnull final AccountAddress primaryAccount, @Nonnull final String playerName)
+    {
+        return submit(keys(accountKey(primaryAccount), primaryAccount.getOwner()), new Call<AccountAddress>()
+        {
+            @Override
+            public AccountAddress call() throws DataBaseException
+            {
+                return db.renamePrimaryAccount(primaryAccount, playerName);
+            }
+        });
+    }
+
+    public ListenableFuture<Void> updatePlayerName(@Nonnull final UUID persistentID, @Nonnull final String commandSenderName)
+    {
+        return submit(keys(persistentID), new Call<Void>()
+        {
+            @Override
+            public Void call() throws DataBaseException
+            {
+                db.updatePlayerName(persistentID, commandSenderName);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<UUID> getPlayerIdByName(@Nonnull final String name)
+    {
+        return submit(keys(name.toLowerCase()), new Call<UUID>()
+        {
+            @Override
+            public UUID call() throws DataBaseException
+            {
+                return db.getPlayerIdByName(name);
+            }
+        });
+    }
+
+    public ListenableFuture<Map<UUID, String>> findPlayerByName(@Nonnull final String searchedName)
+    {
+        return submit(keys(searchedName.toLowerCase()), new Call<Map<UUID, String>>()
+        {
+            @Override
+            public Map<UUID, String> call() throws DataBaseException
+            {
+                return db.findPlayerByName(searchedName);
+            }
+        });
+    }
+
+    /**
+     * @param packageStack Must not be changed until the future completes, pass a copy if the stack is still in use
+     */
+    public ListenableFuture<Boolean> storePackage(@Nonnull final ItemStack packageStack, final ICommandSender sender, @Nonnull final UUID targetId)
+    {
+        return submit(keys(targetId), new Call<Boolean>()
+        {
+            @Override
+            public Boolean call() throws DataBaseException
+            {
+                return db.storePackage(packageStack, sender, targetId);
+            }
+        });
+    }
+
+    /**
+     * The packages claimed by {@link #deliveryPackages(EntityPlayer)} and how many are still pending
+     */
+    private static final class ClaimedPackages
+    {
+        final UUID playerId;
+        final List<ItemStack> packages;
+        final int remaining;
+
+        ClaimedPackages(UUID playerId, List<ItemStack> packages, int remaining)
+        {
+            this.playerId = playerId;
+            this.packages = packages;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * Must be called by the server thread. The packages that fit on the inventory are claimed in the background after
+     * the operations requested before it for the same player, only the inventory is changed on the server thread.
+     * The claimed packages go back to the pending deliveries if the player is gone when they are given or if the
+     * server stops before that.
+     */
+    public ListenableFuture<Void> deliveryPackages(@Nonnull final EntityPlayer player)
+    {
+        final UUID playerId = player.getPersistentID();
+        final int emptySlots = PackageDeliveries.countEmptySlots(player);
+        final SettableFuture<Void> future = SettableFuture.create();
+        ListenableFuture<ClaimedPackages> claim = submit(keys(playerId), new Call<ClaimedPackages>()
+        {
+            @Override
+            public ClaimedPackages call() throws DataBaseException
+            {
+                List<ItemStack> packages = emptySlots == 0? Collections.<ItemStack>emptyList() : db.claimPackages(playerId, emptySlots);
+                int remaining;
+                try
+                {
+                    remaining = db.getPendingDeliveries(playerId);
+                }
+                catch (DataStoreException e)
+                {
+                    // The claimed packages must still be given, only the inventory full warning is lost
+                    UniversalCoinsServer.logger.error("Failed to count the pending deliveries of "+playerId, e);
+                    remaining = 0;
+                }
+
+                ClaimedPackages claimed = new ClaimedPackages(playerId, packages, remaining);
+                if(!packages.isEmpty())
+                    undelivered.add(claimed);
+                return claimed;
+            }
+        });
+
+        onMainThread(claim, new FutureCallback<ClaimedPackages>()
+        {
+            @Override
+            public void onSuccess(@Nullable ClaimedPackages result)
+            {
+                assert result != null;
+                // Already returned by close()
+                if(!result.packages.isEmpty() && !undelivered.remove(result))
+                {
+                    future.set(null);
+                    return;
+                }
+
+                // The player logged out while the packages were claimed
+                if(player.isDead)
+                {
+                    requeue(result);
+                    future.set(null);
+                    return;
+                }
+
+                try
+                {
+                    PackageDeliveries.give(player, result.packages, result.remaining);
+                    future.set(null);
+                }
+                catch (Throwable e)
+                {
+                    future.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(@Nonnull Throwable t)
+            {
+                future.setException(t);
+            }
+        });
+
+        return future;
+    }
+
+    private void requeue(@Nonnull final ClaimedPackages claimed)
+    {
+        submit(keys(claimed.playerId), new Call<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                PackageDeliveries.requeue(db, claimed.playerId, claimed.packages);
+                return null;
+            }
+        });
+    }
+
+    public ListenableFuture<Integer> getPendingDeliveries(@Nonnull final UUID persistentID)
+    {
+        return submit(keys(persistentID), new Call<Integer>()
+        {
+            @Override
+            public Integer call() throws DataBaseException
+            {
+                return db.getPendingDeliveries(persistentID);
+            }
+        });
+    }
+
+    /**
+     * Waits for the requested operations to finish, the callbacks that didn't run yet are discarded and the packages
+     * that they would give are returned to the pending deliveries
+     */
+    @Override
+    public void close()
+    {
+        FMLCommonHandler.instance().bus().unregister(this);
+        try
+        {
+            if(!executor.close(30, TimeUnit.SECONDS))
+                UniversalCoinsServer.logger.warn("Some database operations didn't finish in 30 seconds");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        mainThreadTasks.clear();
+
+        for(Iterator<ClaimedPackages> iterator = undelivered.iterator(); iterator.hasNext();)
+        {
+            ClaimedPackages claimed = iterator.next();
+            iterator.remove();
+            PackageDeliveries.requeue(db, claimed.playerId, claimed.packages);
+        }
+    }
+}
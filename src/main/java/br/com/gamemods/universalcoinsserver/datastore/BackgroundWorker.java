@@ -0,0 +1,86 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+
+/**
+ * A daemon thread with the minimum priority that works in small steps and pauses between them, so it doesn't compete
+ * with the server thread. Closing it wakes the thread up and waits for the step that is running.
+ */
+abstract class BackgroundWorker implements Closeable
+{
+    private final Object lock = new Object();
+    private final Thread thread;
+    private boolean closed;
+
+    BackgroundWorker(@Nonnull String name)
+    {
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                work();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Starts the thread, the subclasses call it after their fields are set
+     */
+    final void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * The loop of the thread, it must return when {@link #pause(long)} returns {@code false}
+     */
+    abstract void work();
+
+    /**
+     * @return {@code false} if the worker was closed
+     */
+    final boolean pause(long millis)
+    {
+        synchronized (lock)
+        {
+            try
+            {
+                if(!closed && millis > 0)
+                    lock.wait(millis);
+            }
+            catch (InterruptedException e)
+            {
+                closed = true;
+            }
+            return !closed;
+        }
+    }
+
+    /**
+     * Stops the background thread after the step that is running, waiting up to a minute for it
+     */
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            thread.join(60000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import net.minecraft.item.ItemStack;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -26,6 +27,20 @@ import java.util.UUID;
  */
 public interface CardDataBase
 {
+    /**
+     * Receives the results of a bulk read one by one, so they don't need to be loaded at once
+     * @see #visitAllPlayerData(Visitor)
+     * @see #visitAllAccountsBalance(Visitor)
+     * @see #visitPlayerNames(Visitor)
+     */
+    interface Visitor<T>
+    {
+        /**
+         * @return {@code false} to stop the iteration
+         */
+        boolean visit(@Nonnull T value) throws DataStoreException;
+    }
+
     @Nullable
     UUID getAccountOwner(@Nonnull Object account) throws DataStoreException;
 
@@ -70,6 +85,14 @@ public interface CardDataBase
 
     void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException;
 
+    /**
+     * Reads a page of the stored transactions, from the newest to the oldest
+     * @return An empty page if the database doesn't store transactions
+     * @throws IllegalArgumentException If the cursor wasn't created by this database
+     */
+    @Nonnull
+    HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException;
+
     @Nonnull
     PlayerData getPlayerData(@Nonnull UUID playerUID) throws DataStoreException;
 
@@ -114,14 +137,30 @@ public interface CardDataBase
 
     Collection<PlayerData> getAllPlayerData() throws DataStoreException;
 
+    /**
+     * Same as {@link #getAllPlayerData()} but the players are given to the visitor as they are read, in no specific order
+     */
+    void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException;
+
     Map<AccountAddress,Integer> getAllAccountsBalance() throws DataStoreException;
 
+    /**
+     * Same as {@link #getAllAccountsBalance()} but the accounts are given to the visitor as they are read, in no specific order
+     */
+    void visitAllAccountsBalance(@Nonnull Visitor<Map.Entry<AccountAddress,Integer>> visitor) throws DataStoreException;
+
     void importData(CardDataBase original) throws DataStoreException;
 
     AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException;
 
     void updatePlayerName(@Nonnull UUID persistentID, @Nonnull String commandSenderName) throws DataStoreException;
 
+    /**
+     * Gives the current name of all players that had their names stored by {@link #updatePlayerName(UUID, String)}, in no specific order
+     * @see PlayerDirectory
+     */
+    void visitPlayerNames(@Nonnull Visitor<Map.Entry<UUID,String>> visitor) throws DataStoreException;
+
     @Nullable
     UUID getPlayerIdByName(@Nonnull String name) throws DataStoreException;
 
@@ -132,5 +171,12 @@ public interface CardDataBase
 
     void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException;
 
+    /**
+     * Marks up to {@code limit} pending packages of the player as delivered and returns them without touching the player,
+     * so it can run outside of the server thread. The caller must give the returned packages to the player.
+     */
+    @Nonnull
+    List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException;
+
     int getPendingDeliveries(@Nonnull UUID persistentID) throws DataStoreException;
 }
@@ -0,0 +1,220 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections.
+ * <p>
+ * At most {@code maxSize} connections are open at the same time, callers that can't get a connection will wait up to
+ * {@code borrowTimeout} milliseconds before failing. Idle connections are validated before being handed out and
+ * are replaced transparently when the server closed them.
+ */
+public class ConnectionPool implements Closeable
+{
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int validationTimeout;
+    private final long borrowTimeout;
+    private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final StatementCache statements = new StatementCache();
+    private volatile String[] setupStatements = new String[0];
+    private volatile boolean closed;
+
+    public ConnectionPool(@Nonnull String url, String user, String password, int maxSize)
+    {
+        this(url, user, password, maxSize, 5, 30000);
+    }
+
+    /**
+     * @param validationTimeout Seconds to wait for {@link Connection#isValid(int)} when borrowing an idle connection
+     * @param borrowTimeout Milliseconds to wait for a free connection when the pool is exhausted
+     */
+    public ConnectionPool(@Nonnull String url, String user, String password, int maxSize, int validationTimeout, long borrowTimeout)
+    {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("maxSize: "+maxSize);
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.validationTimeout = validationTimeout;
+        this.borrowTimeout = borrowTimeout;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Takes a connection from the pool, it must be given back with {@link #release(Connection)} by the same caller.
+     * @throws SQLException If the pool is closed, exhausted for too long or a new connection couldn't be opened
+     */
+    @Nonnull
+    public Connection borrow() throws SQLException
+    {
+        if(closed)
+            throw new SQLException("The connection pool is closed");
+
+        try
+        {
+            if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+                throw new SQLException("Timed out waiting for a database connection, all "+maxSize+" connections are in use");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try
+        {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null)
+            {
+                if(isValid(connection))
+                    return connection;
+
+                closeQuietly(connection);
+            }
+
+            return open();
+        }
+        catch (SQLException|RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Connection open() throws SQLException
+    {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        String[] setup = setupStatements;
+        if(setup.length == 0)
+            return connection;
+
+        try(Statement stm = connection.createStatement())
+        {
+            for(String sql: setup)
+                stm.execute(sql);
+        }
+        catch (SQLException|RuntimeException e)
+        {
+            closeQuietly(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Defines statements that are executed on every connection opened after this call, like the PRAGMAs of an
+     * embedded database that are not persisted on the database file
+     */
+    public void setSetupStatements(@Nonnull String... statements)
+    {
+        setupStatements = statements.clone();
+    }
+
+    private boolean isValid(Connection connection)
+    {
+        try
+        {
+            return !connection.isClosed() && connection.isValid(validationTimeout);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. Uncommitted changes are rolled back and the auto-commit mode is restored.
+     */
+    public void release(@Nonnull Connection connection)
+    {
+        try
+        {
+            if(closed)
+            {
+                closeQuietly(connection);
+                return;
+            }
+
+            try
+            {
+                if(!connection.getAutoCommit())
+                {
+                    UniversalCoinsServer.logger.warn("A database connection was released in the middle of a transaction, rolling back");
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                idle.offerFirst(connection);
+            }
+            catch (SQLException e)
+            {
+                closeQuietly(connection);
+            }
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    private void closeQuietly(Connection connection)
+    {
+        statements.discard(connection);
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The prepared statements kept open for the pooled connections
+     */
+    @Nonnull
+    public StatementCache getStatementCache()
+    {
+        return statements;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    public int getActiveCount()
+    {
+        return maxSize - permits.availablePermits();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null)
+            closeQuietly(connection);
+    }
+}
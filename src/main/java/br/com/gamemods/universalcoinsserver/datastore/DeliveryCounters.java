@@ -0,0 +1,112 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The amount of packages waiting to be delivered to each player, kept in memory and saved to a small binary file
+ * on every change so the pending deliveries can be known without listing the delivery directories.
+ * <p>
+ * Only the players with pending deliveries are saved. The file format is a magic number, the amount of players
+ * and the player UUID followed by the amount of packages for each player.
+ */
+class DeliveryCounters
+{
+    private static final int MAGIC = 0x55434443;
+
+    private final File file;
+    private final Map<UUID, Integer> counters = new HashMap<>();
+
+    DeliveryCounters(@Nonnull File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Reads the saved counters
+     * @return {@code false} if the file is missing or invalid, the counters must be rebuilt with {@link #replaceAll(Map)}
+     */
+    synchronized boolean load()
+    {
+        counters.clear();
+        if(!file.isFile())
+            return false;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if(in.readInt() != MAGIC)
+                return false;
+
+            int size = in.readInt();
+            for(int i = 0; i < size; i++)
+            {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                int pending = in.readInt();
+                if(pending > 0)
+                    counters.put(id, pending);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            counters.clear();
+            return false;
+        }
+    }
+
+    synchronized int get(@Nonnull UUID persistentID)
+    {
+        Integer pending = counters.get(persistentID);
+        return pending == null? 0 : pending;
+    }
+
+    synchronized void increment(@Nonnull UUID persistentID, int increment) throws IOException
+    {
+        set(persistentID, get(persistentID) + increment);
+    }
+
+    synchronized void set(@Nonnull UUID persistentID, int pending) throws IOException
+    {
+        if(pending == get(persistentID))
+            return;
+
+        if(pending > 0)
+            counters.put(persistentID, pending);
+        else
+            counters.remove(persistentID);
+        save();
+    }
+
+    synchronized void replaceAll(@Nonnull Map<UUID, Integer> pending) throws IOException
+    {
+        counters.clear();
+        for(Map.Entry<UUID, Integer> entry: pending.entrySet())
+            if(entry.getValue() > 0)
+                counters.put(entry.getKey(), entry.getValue());
+        save();
+    }
+
+    private void save() throws IOException
+    {
+        File temp = new File(file.getParentFile(), file.getName()+".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(counters.size());
+            for(Map.Entry<UUID, Integer> entry: counters.entrySet())
+            {
+                UUID id = entry.getKey();
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+                out.writeInt(entry.getValue());
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
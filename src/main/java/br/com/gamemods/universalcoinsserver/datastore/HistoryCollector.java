@@ -0,0 +1,105 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Keeps the newest transactions that match a query while the transactions are visited in any order, so the
+ * databases that can only scan their transactions return the same pages as the indexed ones.
+ * <p>
+ * The transactions are ordered by time and id, the cursor is the time and the id of the last transaction of a page.
+ */
+final class HistoryCollector implements CardDataBase.Visitor<TransactionRecord>
+{
+    private static final Comparator<TransactionRecord> OLDEST_FIRST = new Comparator<TransactionRecord>()
+    {
+        @Override
+        public int compare(TransactionRecord o1, TransactionRecord o2)
+        {
+            int result = Long.compare(o1.time, o2.time);
+            return result != 0? result : o1.id.compareTo(o2.id);
+        }
+    };
+
+    private final HistoryQuery query;
+    private final PriorityQueue<TransactionRecord> newest;
+    private final long beforeTime;
+    @Nullable
+    private final String beforeId;
+
+    HistoryCollector(@Nonnull HistoryQuery query)
+    {
+        this.query = query;
+        this.newest = new PriorityQueue<>(query.getLimit() + 2, OLDEST_FIRST);
+        String cursor = query.getCursor();
+        if(cursor == null)
+        {
+            beforeTime = Long.MAX_VALUE;
+            beforeId = null;
+        }
+        else
+        {
+            int separator = cursor.indexOf(':');
+            if(separator < 0)
+                throw new IllegalArgumentException("Invalid cursor: "+cursor);
+            beforeTime = Long.parseLong(cursor.substring(0, separator));
+            beforeId = cursor.substring(separator + 1);
+        }
+    }
+
+    /**
+     * @return The cursor that continues after the given transaction
+     */
+    @Nonnull
+    static String cursor(long time, @Nonnull String id)
+    {
+        return time+":"+id;
+    }
+
+    long getBeforeTime()
+    {
+        return beforeTime;
+    }
+
+    @Nullable
+    String getBeforeId()
+    {
+        return beforeId;
+    }
+
+    @Override
+    public boolean visit(@Nonnull TransactionRecord record)
+    {
+        if(!query.matches(record))
+            return true;
+
+        if(beforeId != null && (record.time > beforeTime || record.time == beforeTime && record.id.compareTo(beforeId) >= 0))
+            return true;
+
+        newest.add(record);
+        if(newest.size() > query.getLimit() + 1)
+            newest.poll();
+        return true;
+    }
+
+    @Nonnull
+    HistoryPage page()
+    {
+        List<TransactionRecord> records = new ArrayList<>(newest);
+        Collections.sort(records, Collections.reverseOrder(OLDEST_FIRST));
+
+        String next = null;
+        if(records.size() > query.getLimit())
+        {
+            records = records.subList(0, query.getLimit());
+            TransactionRecord last = records.get(records.size() - 1);
+            next = cursor(last.time, last.id);
+        }
+
+        List<HistoryEntry> entries = new ArrayList<>(records.size());
+        for(TransactionRecord record: records)
+            entries.add(HistoryEntry.of(record));
+        return new HistoryPage(entries, next);
+    }
+}
@@ -0,0 +1,206 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * A stored transaction as it's returned by the history queries, the tile entities and the item stacks that took part
+ * in it are described by their ids because they may not exist anymore
+ */
+public final class HistoryEntry
+{
+    /**
+     * The coins that moved on one side of the transaction
+     */
+    public static final class Coins
+    {
+        @Nullable
+        private final String type;
+        @Nullable
+        private final String account;
+        private final int before;
+        private final int after;
+
+        private Coins(@Nullable String type, @Nullable String account, int before, int after)
+        {
+            this.type = type;
+            this.account = account;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Nullable
+        private static Coins of(@Nullable TransactionRecord.CoinSourceRow row)
+        {
+            return row == null? null : new Coins(row.type, row.account, row.before, row.after);
+        }
+
+        /**
+         * @return {@code card}, {@code machine} or {@code inventory}
+         */
+        @Nullable
+        public String getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return The account number when the coins came from a card
+         */
+        @Nullable
+        public String getAccount()
+        {
+            return account;
+        }
+
+        public int getBefore()
+        {
+            return before;
+        }
+
+        public int getAfter()
+        {
+            return after;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (account != null? account : type) + ": " + before + " -> " + after;
+        }
+    }
+
+    @Nonnull
+    private final UUID id;
+    private final long time;
+    @Nullable
+    private final UUID machineId;
+    @Nullable
+    private final UUID playerOperator;
+    @Nonnull
+    private final String operation;
+    @Nullable
+    private final String product;
+    private final int productAmount;
+    private final boolean infinite;
+    private final int quantity;
+    private final int price;
+    private final int totalPrice;
+    @Nullable
+    private final Coins userCoins;
+    @Nullable
+    private final Coins ownerCoins;
+
+    private HistoryEntry(TransactionRecord record)
+    {
+        id = UUID.fromString(record.id);
+        time = record.time;
+        machineId = record.machine == null? null : UUID.fromString(record.machine.machineId);
+        playerOperator = record.playerOperator == null? null : UUID.fromString(record.playerOperator);
+        operation = record.operation;
+        product = record.product == null? null : record.product.item;
+        productAmount = record.product == null? 0 : record.product.amount;
+        infinite = record.infinite;
+        quantity = record.quantity;
+        price = record.price;
+        totalPrice = record.totalPrice;
+        userCoins = Coins.of(record.userCoinSource);
+        ownerCoins = Coins.of(record.ownerCoinSource);
+    }
+
+    @Nonnull
+    static HistoryEntry of(@Nonnull TransactionRecord record)
+    {
+        return new HistoryEntry(record);
+    }
+
+    @Nonnull
+    public UUID getId()
+    {
+        return id;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    @Nullable
+    public UUID getMachineId()
+    {
+        return machineId;
+    }
+
+    @Nullable
+    public UUID getPlayerOperator()
+    {
+        return playerOperator;
+    }
+
+    /**
+     * @return The name of the {@link Transaction.Operation}
+     */
+    @Nonnull
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    /**
+     * @return The registry name of the product item
+     */
+    @Nullable
+    public String getProduct()
+    {
+        return product;
+    }
+
+    public int getProductAmount()
+    {
+        return productAmount;
+    }
+
+    public boolean isInfinite()
+    {
+        return infinite;
+    }
+
+    public int getQuantity()
+    {
+        return quantity;
+    }
+
+    public int getPrice()
+    {
+        return price;
+    }
+
+    public int getTotalPrice()
+    {
+        return totalPrice;
+    }
+
+    @Nullable
+    public Coins getUserCoins()
+    {
+        return userCoins;
+    }
+
+    @Nullable
+    public Coins getOwnerCoins()
+    {
+        return ownerCoins;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistoryEntry{" +
+                "id=" + id +
+                ", time=" + time +
+                ", operation='" + operation + '\'' +
+                ", totalPrice=" + totalPrice +
+                '}';
+    }
+}
@@ -0,0 +1,53 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of transactions returned by {@link CardDataBase#getTransactionHistory(HistoryQuery)}
+ */
+public final class HistoryPage
+{
+    public static final HistoryPage EMPTY = new HistoryPage(Collections.<HistoryEntry>emptyList(), null);
+
+    @Nonnull
+    private final List<HistoryEntry> entries;
+    @Nullable
+    private final String nextCursor;
+
+    public HistoryPage(@Nonnull List<HistoryEntry> entries, @Nullable String nextCursor)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return The transactions from the newest to the oldest
+     */
+    @Nonnull
+    public List<HistoryEntry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return The cursor of the next page or {@code null} if this is the last page
+     * @see HistoryQuery#after(String)
+     */
+    @Nullable
+    public String getNextCursor()
+    {
+        return nextCursor;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistoryPage{" +
+                "entries=" + entries.size() +
+                ", nextCursor='" + nextCursor + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,190 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * Selects a page of the stored transactions for {@link CardDataBase#getTransactionHistory(HistoryQuery)}.
+ * <p>
+ * The transactions are returned from the newest to the oldest. The next page is requested with the cursor returned
+ * by the previous page, the cursor points to the last returned transaction so the pages don't skip nor repeat
+ * transactions that were stored while they were read. The cursors are opaque and can only be used with the same
+ * database and filter that created them.
+ */
+public final class HistoryQuery
+{
+    public static final int MAX_LIMIT = 500;
+
+    public enum Filter
+    {
+        /**
+         * The transactions that moved coins from or to a card account
+         */
+        ACCOUNT,
+        /**
+         * The transactions done on a machine
+         */
+        MACHINE,
+        /**
+         * The transactions operated by a player
+         */
+        PLAYER,
+        /**
+         * All transactions, restricted only by the time range
+         */
+        TIME
+    }
+
+    @Nonnull
+    private final Filter filter;
+    @Nullable
+    private final String key;
+    private final long from;
+    private final long to;
+    private final int limit;
+    @Nullable
+    private final String cursor;
+
+    private HistoryQuery(@Nonnull Filter filter, @Nullable String key, long from, long to, int limit, @Nullable String cursor)
+    {
+        this.filter = filter;
+        this.key = key;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    @Nonnull
+    public static HistoryQuery byAccount(@Nonnull String accountNumber)
+    {
+        return new HistoryQuery(Filter.ACCOUNT, accountNumber, 0, Long.MAX_VALUE, 50, null);
+    }
+
+    @Nonnull
+    public static HistoryQuery byMachine(@Nonnull UUID machineId)
+    {
+        return new HistoryQuery(Filter.MACHINE, machineId.toString(), 0, Long.MAX_VALUE, 50, null);
+    }
+
+    @Nonnull
+    public static HistoryQuery byPlayer(@Nonnull UUID playerId)
+    {
+        return new HistoryQuery(Filter.PLAYER, playerId.toString(), 0, Long.MAX_VALUE, 50, null);
+    }
+
+    /**
+     * @param from The first millisecond included
+     * @param to The first millisecond excluded
+     */
+    @Nonnull
+    public static HistoryQuery between(long from, long to)
+    {
+        return new HistoryQuery(Filter.TIME, null, from, to, 50, null);
+    }
+
+    /**
+     * Restricts the query to a time range
+     * @param from The first millisecond included
+     * @param to The first millisecond excluded
+     */
+    @Nonnull
+    public HistoryQuery during(long from, long to)
+    {
+        if(from > to)
+            throw new IllegalArgumentException("from "+from+" > to "+to);
+        return new HistoryQuery(filter, key, from, to, limit, cursor);
+    }
+
+    /**
+     * @param limit The maximum amount of transactions in the page, up to {@link #MAX_LIMIT}
+     */
+    @Nonnull
+    public HistoryQuery limit(int limit)
+    {
+        if(limit < 1 || limit > MAX_LIMIT)
+            throw new IllegalArgumentException("limit: "+limit);
+        return new HistoryQuery(filter, key, from, to, limit, cursor);
+    }
+
+    /**
+     * @param cursor The cursor returned by {@link HistoryPage#getNextCursor()}, {@code null} for the first page
+     */
+    @Nonnull
+    public HistoryQuery after(@Nullable String cursor)
+    {
+        return new HistoryQuery(filter, key, from, to, limit, cursor);
+    }
+
+    @Nonnull
+    public Filter getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @return The account number, machine id or player id, {@code null} for {@link Filter#TIME}
+     */
+    @Nullable
+    public String getKey()
+    {
+        return key;
+    }
+
+    public long getFrom()
+    {
+        return from;
+    }
+
+    public long getTo()
+    {
+        return to;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    @Nullable
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * Checks a transaction against the filter and the time range, used by the databases that can't select them with an index
+     */
+    boolean matches(@Nonnull TransactionRecord record)
+    {
+        if(record.time < from || record.time >= to)
+            return false;
+
+        switch (filter)
+        {
+            case ACCOUNT:
+                return record.userCoinSource != null && key.equals(record.userCoinSource.account)
+                        || record.ownerCoinSource != null && key.equals(record.ownerCoinSource.account);
+            case MACHINE:
+                return record.machine != null && key.equals(record.machine.machineId);
+            case PLAYER:
+                return key.equals(record.playerOperator);
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistoryQuery{" +
+                "filter=" + filter +
+                ", key='" + key + '\'' +
+                ", from=" + from +
+                ", to=" + to +
+                ", limit=" + limit +
+                ", cursor='" + cursor + '\'' +
+                '}';
+    }
+}
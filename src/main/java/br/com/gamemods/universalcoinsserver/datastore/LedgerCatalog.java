@@ -0,0 +1,381 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The data of {@link LedgerDB} that doesn't fit on the fixed-size records of {@link LedgerFile}: the account names,
+ * the primary and custom accounts of each player and the player names.
+ * <p>
+ * Everything is kept in memory and each change is appended to a log as {@code [length][crc32][entry]}, an entry that
+ * was partially written by a crash is discarded when the log is loaded. The log is rewritten with only the current
+ * values when most of its entries were replaced by later ones.
+ */
+class LedgerCatalog implements Closeable
+{
+    private static final byte ACCOUNT_NAME = 1;
+    private static final byte PRIMARY = 2;
+    private static final byte CUSTOM = 3;
+    private static final byte PLAYER_NAME = 4;
+
+    private final File file;
+    private final boolean sync;
+    private final Map<String, String> accountNames = new HashMap<>();
+    private final Map<UUID, String> primaries = new HashMap<>();
+    private final Map<String, String> customs = new HashMap<>();
+    private final Map<UUID, Map<String, String>> playerCustoms = new HashMap<>();
+    private final Map<UUID, String> playerNames = new HashMap<>();
+    private final Map<String, UUID> playerIds = new HashMap<>();
+    private FileChannel channel;
+
+    LedgerCatalog(@Nonnull File file, boolean sync) throws IOException
+    {
+        this.file = file;
+        this.sync = sync;
+
+        int entries = load();
+        int live = accountNames.size() + primaries.size() + customs.size() + playerNames.size();
+        if(entries > 1024 && entries > live * 2)
+        {
+            compact();
+            UniversalCoinsServer.logger.info("Compacted the ledger catalog from "+entries+" to "+live+" entries");
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.position(channel.size());
+    }
+
+    /**
+     * Reads the log and discards a partial entry at the end of it
+     * @return The amount of entries that were read
+     */
+    private int load() throws IOException
+    {
+        if(!file.isFile())
+            return 0;
+
+        int entries = 0;
+        long valid = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (true)
+            {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if(length <= 0 || length > file.length())
+                    break;
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                if(crc(bytes) != crc)
+                    break;
+
+                apply(new DataInputStream(new ByteArrayInputStream(bytes)));
+                valid += 8 + length;
+                entries++;
+            }
+        }
+        catch (EOFException ignored)
+        {
+        }
+
+        if(valid < file.length())
+        {
+            UniversalCoinsServer.logger.warn("Discarding "+(file.length() - valid)+" invalid bytes from the end of "+file);
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.setLength(valid);
+            }
+        }
+
+        return entries;
+    }
+
+    private void apply(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case ACCOUNT_NAME:
+                accountNames.put(in.readUTF(), in.readUTF());
+                break;
+            case PRIMARY:
+                primaries.put(new UUID(in.readLong(), in.readLong()), in.readUTF());
+                break;
+            case CUSTOM:
+                putCustom(new UUID(in.readLong(), in.readLong()), in.readUTF(), in.readUTF());
+                break;
+            case PLAYER_NAME:
+                putPlayerName(new UUID(in.readLong(), in.readLong()), in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown catalog entry: "+type);
+        }
+    }
+
+    private void putCustom(UUID owner, String name, String number)
+    {
+        Map<String, String> accounts = playerCustoms.get(owner);
+        if(number.isEmpty())
+        {
+            customs.remove(name);
+            if(accounts != null)
+            {
+                accounts.remove(name);
+                if(accounts.isEmpty())
+                    playerCustoms.remove(owner);
+            }
+            return;
+        }
+
+        customs.put(name, number);
+        if(accounts == null)
+            playerCustoms.put(owner, accounts = new LinkedHashMap<>(2));
+        accounts.put(name, number);
+    }
+
+    private void putPlayerName(UUID playerId, String name)
+    {
+        String previous = playerNames.put(playerId, name);
+        if(previous != null && playerId.equals(playerIds.get(previous.toLowerCase())))
+            playerIds.remove(previous.toLowerCase());
+        playerIds.put(name.toLowerCase(), playerId);
+    }
+
+    private static int crc(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Rewrites the log with one entry per current value
+     */
+    private void compact() throws IOException
+    {
+        File temp = new File(file.getParentFile(), file.getName()+".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            for(Map.Entry<String, String> entry: accountNames.entrySet())
+                writeFrame(out, encode(ACCOUNT_NAME, null, entry.getKey(), entry.getValue()));
+            for(Map.Entry<UUID, String> entry: primaries.entrySet())
+                writeFrame(out, encode(PRIMARY, entry.getKey(), entry.getValue(), null));
+            for(Map.Entry<UUID, Map<String, String>> owner: playerCustoms.entrySet())
+                for(Map.Entry<String, String> entry: owner.getValue().entrySet())
+                    writeFrame(out, encode(CUSTOM, owner.getKey(), entry.getKey(), entry.getValue()));
+            for(Map.Entry<UUID, String> entry: playerNames.entrySet())
+                writeFrame(out, encode(PLAYER_NAME, entry.getKey(), entry.getValue(), null));
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] entry) throws IOException
+    {
+        out.writeInt(entry.length);
+        out.writeInt(crc(entry));
+        out.write(entry);
+    }
+
+    private static byte[] encode(byte type, @Nullable UUID id, @Nonnull String first, @Nullable String second)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            if(id != null)
+            {
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+            }
+            out.writeUTF(first);
+            if(second != null)
+                out.writeUTF(second);
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void append(byte[]... entries) throws IOException
+    {
+        int size = 0;
+        for(byte[] entry: entries)
+            size += 8 + entry.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for(byte[] entry: entries)
+        {
+            buffer.putInt(entry.length);
+            buffer.putInt(crc(entry));
+            buffer.put(entry);
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        if(sync)
+            channel.force(false);
+    }
+
+    /**
+     * A copy of all values of the catalog, taken at once
+     */
+    static final class View
+    {
+        final Map<String, String> accountNames;
+        final Map<UUID, String> primaries;
+        final Map<UUID, Map<String, String>> playerCustoms;
+        final Map<UUID, String> playerNames;
+
+        private View(LedgerCatalog catalog)
+        {
+            accountNames = new HashMap<>(catalog.accountNames);
+            primaries = new HashMap<>(catalog.primaries);
+            playerCustoms = new HashMap<>(catalog.playerCustoms.size());
+            for(Map.Entry<UUID, Map<String, String>> entry: catalog.playerCustoms.entrySet())
+                playerCustoms.put(entry.getKey(), new LinkedHashMap<>(entry.getValue()));
+            playerNames = new HashMap<>(catalog.playerNames);
+        }
+    }
+
+    @Nonnull
+    synchronized View view()
+    {
+        return new View(this);
+    }
+
+    @Nullable
+    synchronized String getAccountName(@Nonnull String number)
+    {
+        return accountNames.get(number);
+    }
+
+    @Nullable
+    synchronized String getPrimary(@Nonnull UUID playerId)
+    {
+        return primaries.get(playerId);
+    }
+
+    @Nullable
+    synchronized String getCustom(@Nonnull String name)
+    {
+        return customs.get(name);
+    }
+
+    /**
+     * @return The custom account names of the player mapped to the account numbers
+     */
+    @Nonnull
+    synchronized Map<String, String> getPlayerCustoms(@Nonnull UUID playerId)
+    {
+        Map<String, String> accounts = playerCustoms.get(playerId);
+        return accounts == null? Collections.<String, String>emptyMap() : new LinkedHashMap<>(accounts);
+    }
+
+    @Nonnull
+    synchronized Set<UUID> getPlayers()
+    {
+        Set<UUID> players = new HashSet<>(primaries.keySet());
+        players.addAll(playerCustoms.keySet());
+        return players;
+    }
+
+    synchronized void setAccountName(@Nonnull String number, @Nonnull String name) throws IOException
+    {
+        append(encode(ACCOUNT_NAME, null, number, name));
+        accountNames.put(number, name);
+    }
+
+    /**
+     * Sets the name of the account and makes it the primary account of the player
+     */
+    synchronized void setPrimary(@Nonnull UUID playerId, @Nonnull String number, @Nonnull String name) throws IOException
+    {
+        append(encode(ACCOUNT_NAME, null, number, name), encode(PRIMARY, playerId, number, null));
+        accountNames.put(number, name);
+        primaries.put(playerId, number);
+    }
+
+    /**
+     * Sets the name of the account and registers it as a custom account of the player
+     * @param replaced The custom account name that is removed from the player at the same time, may be {@code null}
+     */
+    synchronized void setCustom(@Nonnull UUID playerId, @Nonnull String number, @Nonnull String name, @Nullable String replaced) throws IOException
+    {
+        if(replaced != null)
+            append(encode(CUSTOM, playerId, replaced, ""), encode(ACCOUNT_NAME, null, number, name), encode(CUSTOM, playerId, name, number));
+        else
+            append(encode(ACCOUNT_NAME, null, number, name), encode(CUSTOM, playerId, name, number));
+
+        if(replaced != null)
+            putCustom(playerId, replaced, "");
+        accountNames.put(number, name);
+        putCustom(playerId, name, number);
+    }
+
+    synchronized boolean setPlayerName(@Nonnull UUID playerId, @Nonnull String name) throws IOException
+    {
+        if(name.equals(playerNames.get(playerId)))
+            return false;
+
+        append(encode(PLAYER_NAME, playerId, name, null));
+        putPlayerName(playerId, name);
+        return true;
+    }
+
+    @Nullable
+    synchronized UUID getPlayerIdByName(@Nonnull String name)
+    {
+        return playerIds.get(name.toLowerCase());
+    }
+
+    /**
+     * @return The players with names starting with the prefix, ignoring the case
+     */
+    @Nonnull
+    synchronized Map<UUID, String> findPlayersByName(@Nonnull String prefix)
+    {
+        prefix = prefix.toLowerCase();
+        Map<UUID, String> matches = new HashMap<>();
+        for(Map.Entry<String, UUID> entry: playerIds.entrySet())
+            if(entry.getKey().startsWith(prefix))
+                matches.put(entry.getValue(), playerNames.get(entry.getValue()));
+        return matches;
+    }
+
+    @Nonnull
+    synchronized List<Map.Entry<UUID, String>> getPlayerNames()
+    {
+        List<Map.Entry<UUID, String>> names = new ArrayList<>(playerNames.size());
+        for(Map.Entry<UUID, String> entry: playerNames.entrySet())
+            names.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        return names;
+    }
+
+    synchronized void flush() throws IOException
+    {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        channel.force(false);
+        channel.close();
+    }
+}
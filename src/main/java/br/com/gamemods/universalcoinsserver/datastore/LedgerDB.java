@@ -0,0 +1,835 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import br.com.gamemods.universalcoinsserver.api.UniversalCoinsServerAPI;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.item.ItemStack;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Stores the accounts as fixed-size records on a memory-mapped file, so the balances are read and changed without
+ * opening files or running queries.
+ * <p>
+ * The account names and the players are kept in memory by {@link LedgerCatalog} and the transactions are appended
+ * to a {@link TransactionLog}, the machines are stored with the transactions so {@link #saveNewMachine(Machine)}
+ * does nothing. Package deliveries are not supported.
+ */
+public class LedgerDB extends AbstractDB<LedgerDB.LedgerAccount> implements Closeable, SnapshotSource
+{
+    private final LedgerFile ledger;
+    private final LedgerCatalog catalog;
+    private final TransactionLog transactionLog;
+    private final File directory;
+    @Nullable
+    private SalesRollups salesRollups;
+    @Nullable
+    private TransactionArchiver archiver;
+    @Nullable
+    private volatile LedgerReconciler reconciler;
+    private final Object creationLock = new Object();
+    private final AccountNumberAllocator accountNumbers;
+
+    class LedgerAccount extends Account
+    {
+        final boolean primary;
+
+        LedgerAccount(LedgerFile.Record record)
+        {
+            super(record.number, record.owner, record.balance);
+            this.primary = record.isPrimary();
+        }
+
+        @Override
+        public void incrementBalance(int increment, @Nullable Transaction transaction) throws DataStoreException
+        {
+            LedgerFile.Record record = findActive(id);
+            record.balance += increment;
+            write(record);
+            balance = record.balance;
+
+            if(transaction != null)
+                saveTransaction(transaction);
+        }
+    }
+
+    /**
+     * @param directory Where the ledger, the catalog and the transactions are stored
+     * @param sync If each change must reach the disk before the operation completes
+     * @param segmentSize The size in bytes of each transaction log segment
+     */
+    public LedgerDB(@Nonnull File directory, boolean sync, long segmentSize) throws IOException
+    {
+        enableAccountLocks(64);
+        this.directory = directory;
+        ledger = new LedgerFile(directory, "accounts", sync);
+        try
+        {
+            catalog = new LedgerCatalog(new File(directory, "catalog.log"), sync);
+            transactionLog = new TransactionLog(new File(directory, "transactions"), segmentSize, sync);
+        }
+        catch (IOException|RuntimeException e)
+        {
+            ledger.close();
+            throw e;
+        }
+
+        accountNumbers = new AccountNumberAllocator(AccountNumberAllocator.fileSequence(new File(directory, "account-sequence.dat")),
+                new AccountNumberAllocator.UsageCheck()
+                {
+                    @Nonnull
+                    @Override
+                    public List<String> findUsed(@Nonnull List<String> numbers)
+                    {
+                        List<String> used = new ArrayList<>();
+                        for(String number: numbers)
+                            if(ledger.find(number) != null)
+                                used.add(number);
+                        return used;
+                    }
+                }, 100);
+
+        UniversalCoinsServer.logger.info("Ledger loaded with "+ledger.size()+" account records");
+    }
+
+    @Nonnull
+    public TransactionLog getTransactionLog()
+    {
+        return transactionLog;
+    }
+
+    /**
+     * Counts the sales of the machines and their owners in memory and saves them to {@code sales-rollups.dat}
+     * @param hourRetention Milliseconds that the hourly counters are kept
+     * @param dayRetention Milliseconds that the daily counters are kept
+     */
+    @Nonnull
+    public SalesRollups enableSalesRollups(long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        if(salesRollups != null)
+            throw new IllegalStateException("The sales rollups are already enabled");
+
+        salesRollups = new SalesRollups(new File(directory, "sales-rollups.dat"), flushInterval, hourRetention, dayRetention);
+        return salesRollups;
+    }
+
+    @Nullable
+    public SalesRollups getSalesRollups()
+    {
+        return salesRollups;
+    }
+
+    /**
+     * Compresses the segments of the transaction log older than the retention to the {@code archive} directory on a
+     * background thread, one segment at a time
+     * @see TransactionArchiver
+     */
+    @Nonnull
+    public TransactionArchiver enableTransactionArchive(long retention, int chunkSize, long chunkPause, long interval)
+    {
+        if(archiver != null)
+            throw new IllegalStateException("The transaction archive is already enabled");
+
+        final File archive = new File(directory, "archive");
+        archiver = new TransactionArchiver(new TransactionArchiver.Target()
+        {
+            @Override
+            public int archiveTransactions(long before, int limit) throws DataStoreException
+            {
+                try
+                {
+                    // The segments that the reconciler didn't read yet are kept
+                    LedgerReconciler reconciler = LedgerDB.this.reconciler;
+                    return transactionLog.archiveOldest(before, reconciler == null? null : reconciler.getSavedCheckpoint(), archive);
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        }, retention, chunkSize, chunkPause, interval);
+        return archiver;
+    }
+
+    /**
+     * Verifies the balance of the accounts against the transaction log on a background thread, the checkpoint is
+     * saved to {@code reconciliation.dat}
+     * @see LedgerReconciler
+     */
+    @Nonnull
+    public LedgerReconciler enableReconciliation(int chunkSize, int budget, long interval) throws IOException
+    {
+        if(reconciler != null)
+            throw new IllegalStateException("The ledger reconciliation is already enabled");
+
+        reconciler = new LedgerReconciler(LedgerReconciler.of(transactionLog), this, new File(directory, "reconciliation.dat"),
+                chunkSize, budget, interval);
+        return reconciler;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if(reconciler != null)
+                reconciler.close();
+            if(archiver != null)
+                archiver.close();
+            if(salesRollups != null)
+                salesRollups.close();
+            transactionLog.close();
+            catalog.close();
+        }
+        finally
+        {
+            ledger.close();
+        }
+    }
+
+    private void write(LedgerFile.Record... records) throws DataStoreException
+    {
+        try
+        {
+            ledger.write(records);
+        }
+        catch (IOException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Nonnull
+    private LedgerFile.Record findActive(@Nonnull String number) throws DataStoreException
+    {
+        LedgerFile.Record record = ledger.find(number);
+        if(record == null || record.isTerminated())
+            throw new DataStoreException(new AccountNotFoundException(number));
+        return record;
+    }
+
+    /**
+     * Gives a number that was never used by an account
+     */
+    @Nonnull
+    private String newAccountNumber() throws DataStoreException
+    {
+        return accountNumbers.next();
+    }
+
+    @Nonnull
+    private String accountName(@Nonnull String number)
+    {
+        String name = catalog.getAccountName(number);
+        return name == null? number : name;
+    }
+
+    @Nullable
+    @Override
+    protected LedgerAccount loadAccount(@Nonnull String number) throws DataStoreException
+    {
+        LedgerFile.Record record = ledger.find(number);
+        if(record == null || record.isTerminated())
+            return null;
+        return new LedgerAccount(record);
+    }
+
+    @Nullable
+    @Override
+    protected LedgerAccount getCustomAccount(@Nonnull String name) throws DataStoreException
+    {
+        String number = catalog.getCustom(name);
+        return number == null? null : getAccount(number);
+    }
+
+    @Override
+    protected void storeTrade(@Nonnull Transaction transaction, @Nullable LedgerAccount ownerAccount, int ownerIncrement, @Nullable LedgerAccount userAccount, int userIncrement) throws DataStoreException
+    {
+        List<LedgerFile.Record> records = new ArrayList<>(2);
+        if(ownerAccount != null)
+        {
+            LedgerFile.Record record = findActive(ownerAccount.id);
+            record.balance += ownerIncrement;
+            records.add(record);
+        }
+
+        if(userAccount != null)
+        {
+            if(ownerAccount != null && ownerAccount.id.equals(userAccount.id))
+                records.get(0).balance += userIncrement;
+            else
+            {
+                LedgerFile.Record record = findActive(userAccount.id);
+                record.balance += userIncrement;
+                records.add(record);
+            }
+        }
+
+        if(!records.isEmpty())
+            write(records.toArray(new LedgerFile.Record[records.size()]));
+
+        saveTransaction(transaction);
+    }
+
+    @Override
+    public void saveNewMachine(@Nonnull Machine machine) throws DataStoreException
+    {
+        // The machines are stored with the transactions
+    }
+
+    @Override
+    public void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException
+    {
+        try
+        {
+            TransactionRecord record = TransactionRecord.capture(transaction);
+            transactionLog.append(record);
+            if(salesRollups != null)
+                salesRollups.record(record);
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException
+    {
+        try
+        {
+            return transactionLog.history(query);
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public PlayerData getPlayerData(@Nonnull UUID playerUID) throws DataStoreException
+    {
+        String primary = catalog.getPrimary(playerUID);
+        Map<String, String> customs = catalog.getPlayerCustoms(playerUID);
+        List<AccountAddress> alternatives = new ArrayList<>(customs.size());
+        for(Map.Entry<String, String> entry: customs.entrySet())
+            alternatives.add(new AccountAddress(entry.getValue(), entry.getKey(), playerUID));
+
+        return new PlayerData(Integer.MIN_VALUE, playerUID,
+                primary == null? null : new AccountAddress(primary, accountName(primary), playerUID),
+                alternatives
+        );
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
+    {
+        synchronized (creationLock)
+        {
+            String current = catalog.getPrimary(playerUID);
+            if(current != null)
+                throw new DuplicatedKeyException("Player "+playerUID+" already have a primary account: "+current);
+
+            String number = newAccountNumber();
+            write(new LedgerFile.Record(number, playerUID, 0, LedgerFile.PRIMARY));
+            try
+            {
+                catalog.setPrimary(playerUID, number, name);
+            }
+            catch (IOException e)
+            {
+                throw new DataStoreException(e);
+            }
+
+            return new AccountAddress(number, name, playerUID);
+        }
+    }
+
+    @Nullable
+    @Override
+    public AccountAddress getCustomAccountByName(@Nonnull String customAccountName) throws DataStoreException
+    {
+        String number = catalog.getCustom(customAccountName);
+        if(number == null)
+            return null;
+
+        LedgerFile.Record record = ledger.find(number);
+        if(record == null || record.isTerminated())
+            return null;
+
+        return new AccountAddress(number, customAccountName, record.owner);
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress createCustomAccount(@Nonnull UUID playerUID, @Nonnull String customAccountName) throws DataStoreException, DuplicatedKeyException
+    {
+        synchronized (creationLock)
+        {
+            String existing = catalog.getCustom(customAccountName);
+            if(existing != null)
+                throw new DuplicatedKeyException("Account name "+customAccountName+" already exists: "+existing);
+
+            String number = newAccountNumber();
+            write(new LedgerFile.Record(number, playerUID, 0, 0));
+            try
+            {
+                catalog.setCustom(playerUID, number, customAccountName, null);
+            }
+            catch (IOException e)
+            {
+                throw new DataStoreException(e);
+            }
+
+            return new AccountAddress(number, customAccountName, playerUID);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferAccount(@Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
+    {
+        String number = catalog.getCustom(origin.getName());
+        if(number == null) throw new AccountNotFoundException(origin.getNumber());
+        return transferAccount(number, destiny, machine, operator, false);
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferPrimaryAccount(@Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException
+    {
+        try
+        {
+            return transferAccount(primaryAccount.getNumber().toString(), newName, machine, operator, true);
+        }
+        catch (DuplicatedKeyException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    /**
+     * Terminates the account and moves the balance to a new one, both records are written at once
+     */
+    private AccountAddress transferAccount(String number, String destiny, Machine machine, Operator operator, boolean primary)
+            throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
+    {
+        try(AccountLocks.Hold hold = lockAccount(number))
+        {
+            synchronized (creationLock)
+            {
+                LedgerFile.Record old = ledger.find(number);
+                if(old == null || old.isTerminated())
+                    throw new AccountNotFoundException(number);
+
+                String oldName = accountName(number);
+                if(!primary && !destiny.equals(oldName) && catalog.getCustom(destiny) != null)
+                    throw new DuplicatedKeyException("Account name "+destiny+" already exists: "+catalog.getCustom(destiny));
+
+                int balance = old.balance;
+                LedgerFile.Record created = new LedgerFile.Record(newAccountNumber(), old.owner, balance, old.flags & LedgerFile.PRIMARY);
+                old.balance = 0;
+                old.flags |= LedgerFile.TERMINATED;
+                write(old, created);
+
+                try
+                {
+                    if(primary)
+                        catalog.setPrimary(old.owner, created.number, destiny);
+                    else
+                        catalog.setCustom(old.owner, created.number, destiny, oldName);
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+
+                AccountAddress origin = new AccountAddress(number, oldName, old.owner);
+                AccountAddress address = new AccountAddress(created.number, destiny, old.owner);
+                ItemStack oldCard = UniversalCoinsServerAPI.createCard(origin, !primary);
+                ItemStack newCard = UniversalCoinsServerAPI.createCard(address, !primary);
+                Transaction transaction = new Transaction(machine, Transaction.Operation.TRANSFER_ACCOUNT, operator,
+                        new Transaction.CardCoinSource(oldCard, origin, balance, 0),
+                        new Transaction.CardCoinSource(newCard, address, 0, balance),
+                        null);
+                saveTransaction(transaction);
+
+                return address;
+            }
+        }
+    }
+
+    @Override
+    public Collection<PlayerData> getAllPlayerData() throws DataStoreException
+    {
+        final List<PlayerData> list = new ArrayList<>();
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                list.add(value);
+                return true;
+            }
+        });
+        return list;
+    }
+
+    @Override
+    public void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException
+    {
+        for(UUID playerId: catalog.getPlayers())
+            if(!visitor.visit(getPlayerData(playerId)))
+                return;
+    }
+
+    @Override
+    public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
+    {
+        final Map<AccountAddress, Integer> map = new HashMap<>();
+        visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+            {
+                map.put(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+        return map;
+    }
+
+    @Override
+    public void visitAllAccountsBalance(@Nonnull final Visitor<Map.Entry<AccountAddress, Integer>> visitor) throws DataStoreException
+    {
+        ledger.visit(new Visitor<LedgerFile.Record>()
+        {
+            @Override
+            public boolean visit(@Nonnull LedgerFile.Record record) throws DataStoreException
+            {
+                if(record.isTerminated())
+                    return true;
+
+                AccountAddress address = new AccountAddress(record.number, accountName(record.number), record.owner);
+                return visitor.visit(new AbstractMap.SimpleImmutableEntry<>(address, record.balance));
+            }
+        });
+    }
+
+    /**
+     * The ledger table is copied to the heap with a single read lock while the account creations and transfers are
+     * held, so every trade is either entirely in the copy or not in it and the catalog agrees with the copied accounts.
+     * Only the creations and transfers wait for the copy, the snapshot is written after the locks are released.
+     * <p>
+     * The transactions are read from the log after the copy, a trade that was being applied while the copy was taken
+     * may have its transaction included without its balance change or the opposite.
+     */
+    @Override
+    public void writeSnapshot(@Nonnull final SnapshotWriter writer, boolean transactions) throws DataStoreException
+    {
+        ByteBuffer records;
+        final LedgerCatalog.View view;
+        synchronized (creationLock)
+        {
+            records = ledger.copy();
+            view = catalog.view();
+        }
+
+        try
+        {
+            LedgerFile.visitCopy(records, new Visitor<LedgerFile.Record>()
+            {
+                @Override
+                public boolean visit(@Nonnull LedgerFile.Record record) throws DataStoreException
+                {
+                    if(record.isTerminated())
+                        return true;
+
+                    String name = view.accountNames.get(record.number);
+                    try
+                    {
+                        writer.writeAccount(new AccountAddress(record.number, name == null? record.number : name, record.owner), record.balance);
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+            });
+
+            Set<UUID> players = new HashSet<>(view.primaries.keySet());
+            players.addAll(view.playerCustoms.keySet());
+            for(UUID playerId: players)
+            {
+                String primary = view.primaries.get(playerId);
+                String primaryName = primary == null? null : view.accountNames.get(primary);
+                Map<String, String> customs = view.playerCustoms.get(playerId);
+                List<AccountAddress> alternatives = new ArrayList<>(customs == null? 0 : customs.size());
+                if(customs != null)
+                    for(Map.Entry<String, String> entry: customs.entrySet())
+                        alternatives.add(new AccountAddress(entry.getValue(), entry.getKey(), playerId));
+
+                writer.writePlayer(new PlayerData(Integer.MIN_VALUE, playerId,
+                        primary == null? null : new AccountAddress(primary, primaryName == null? primary : primaryName, playerId),
+                        alternatives
+                ));
+            }
+
+            for(Map.Entry<UUID, String> entry: view.playerNames.entrySet())
+                writer.writePlayerName(entry.getKey(), entry.getValue());
+
+            if(transactions)
+            {
+                transactionLog.visitAll(new Visitor<TransactionRecord>()
+                {
+                    @Override
+                    public boolean visit(@Nonnull TransactionRecord value) throws DataStoreException
+                    {
+                        try
+                        {
+                            writer.writeTransaction(value);
+                            return true;
+                        }
+                        catch (IOException e)
+                        {
+                            throw new DataStoreException(e);
+                        }
+                    }
+                });
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Override
+    public AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException
+    {
+        String number = primaryAccount.getNumber().toString();
+        try(AccountLocks.Hold hold = lockAccount(number))
+        {
+            if(loadAccount(number) == null)
+                throw new AccountNotFoundException(primaryAccount);
+
+            catalog.setAccountName(number, playerName);
+            return new AccountAddress(primaryAccount.getNumber(), playerName, primaryAccount.getOwner());
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Override
+    public void importData(CardDataBase original) throws DataStoreException
+    {
+        // Only the balances are kept in memory, the players are read one by one
+        final Map<String, Integer> balances = new HashMap<>();
+        original.visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+            {
+                balances.put(value.getKey().getNumber().toString(), value.getValue());
+                return true;
+            }
+        });
+
+        original.visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value) throws DataStoreException
+            {
+                importPlayer(value, balances);
+                return true;
+            }
+        });
+
+        original.visitPlayerNames(new Visitor<Map.Entry<UUID, String>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<UUID, String> value) throws DataStoreException
+            {
+                updatePlayerName(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+
+        try
+        {
+            ledger.checkpoint();
+            catalog.flush();
+            transactionLog.sync();
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        UniversalCoinsServer.logger.info("");
+        UniversalCoinsServer.logger.info("Import finished");
+    }
+
+    private void importPlayer(PlayerData otherPlayerData, Map<String, Integer> balances) throws DataStoreException
+    {
+        Logger logger = UniversalCoinsServer.logger;
+        UUID playerId = otherPlayerData.getPlayerId();
+        logger.info("");
+        logger.info("Processing player "+playerId);
+
+        AccountAddress otherPrimaryAccount = otherPlayerData.getPrimaryAccount();
+        if(otherPrimaryAccount != null)
+        {
+            Integer balance = balances.get(otherPrimaryAccount.getNumber().toString());
+            if(balance != null && balance > 0)
+            {
+                String localPrimary = catalog.getPrimary(playerId);
+                if(localPrimary == null)
+                {
+                    String number = importAccount(playerId, otherPrimaryAccount, balance, LedgerFile.PRIMARY);
+                    try
+                    {
+                        catalog.setPrimary(playerId, number, otherPrimaryAccount.getName());
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+                else
+                {
+                    logger.info("Adding "+balance+" to the account "+localPrimary);
+                    findAccount(localPrimary).incrementBalance(balance, null);
+                }
+            }
+        }
+
+        for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
+        {
+            Integer balance = balances.get(otherAccountAddress.getNumber().toString());
+            if(balance == null || balance <= 0) continue;
+
+            String localNumber = catalog.getCustom(otherAccountAddress.getName());
+            if(localNumber != null)
+            {
+                logger.info("Adding "+balance+" to the balance that came from "+otherAccountAddress);
+                findAccount(localNumber).incrementBalance(balance, null);
+            }
+            else
+            {
+                String number = importAccount(playerId, otherAccountAddress, balance, 0);
+                try
+                {
+                    catalog.setCustom(playerId, number, otherAccountAddress.getName(), null);
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private LedgerAccount findAccount(String number) throws DataStoreException
+    {
+        LedgerAccount account = loadAccount(number);
+        if(account == null)
+            throw new DataStoreException(new AccountNotFoundException(number));
+        return account;
+    }
+
+    /**
+     * Creates the account keeping the original number when it's not used by this ledger
+     */
+    private String importAccount(UUID owner, AccountAddress other, int balance, int flags) throws DataStoreException
+    {
+        String number = other.getNumber().toString();
+        if(!LedgerFile.fits(number) || ledger.find(number) != null)
+            number = newAccountNumber();
+
+        UniversalCoinsServer.logger.info("Creating account "+other.getName()+" with number "+number+" and balance "+balance);
+        write(new LedgerFile.Record(number, owner, balance, flags));
+        return number;
+    }
+
+    @Override
+    public void updatePlayerName(@Nonnull UUID persistentID, @Nonnull String commandSenderName) throws DataStoreException
+    {
+        try
+        {
+            catalog.setPlayerName(persistentID, commandSenderName);
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Override
+    public void visitPlayerNames(@Nonnull Visitor<Map.Entry<UUID, String>> visitor) throws DataStoreException
+    {
+        for(Map.Entry<UUID, String> entry: catalog.getPlayerNames())
+            if(!visitor.visit(entry))
+                return;
+    }
+
+    @Nullable
+    @Override
+    public UUID getPlayerIdByName(@Nonnull String name) throws DataStoreException
+    {
+        return catalog.getPlayerIdByName(name);
+    }
+
+    @Nullable
+    @Override
+    public Map<UUID, String> findPlayerByName(@Nonnull String searchedName) throws DataStoreException
+    {
+        if(searchedName.length() < 2)
+            return null;
+
+        return catalog.findPlayersByName(searchedName);
+    }
+
+    @Override
+    public boolean storePackage(@Nonnull ItemStack packageStack, ICommandSender sender, @Nonnull UUID targetId) throws DataStoreException
+    {
+        // Unsupported
+        return false;
+    }
+
+    @Override
+    public void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException
+    {
+        // Unsupported
+    }
+
+    @Nonnull
+    @Override
+    public List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException
+    {
+        // Unsupported
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int getPendingDeliveries(@Nonnull UUID persistentID) throws DataStoreException
+    {
+        // Unsupported
+        return 0;
+    }
+}
@@ -0,0 +1,591 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * The accounts of {@link LedgerDB}, stored as fixed-size records on a memory-mapped hash table.
+ * <p>
+ * The table uses open addressing with linear probing on the account number, accounts are never removed so the
+ * probing never needs tombstones. Every change is first appended to a redo log and then applied to the mapped file.
+ * The mapped file is forced and the redo log is emptied on checkpoints, after a crash the redo log is applied
+ * again so the changes that the OS didn't write to the mapped file are not lost.
+ * <p>
+ * The table is rebuilt with the double of the capacity when it gets half full. The new table is written to a file
+ * with the next generation number and marked as complete, the older generations are deleted after that. An
+ * incomplete generation is ignored when the ledger is opened.
+ * <p>
+ * Record layout: flags (1), number length (1), number (24), owner (16), balance (4) and padding (2)
+ */
+class LedgerFile implements Closeable
+{
+    private static final int MAGIC = 0x55434C47;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 48;
+    private static final int MAX_NUMBER_LENGTH = 24;
+    private static final int MIN_CAPACITY = 1024;
+    private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+    static final int USED = 1;
+    static final int PRIMARY = 2;
+    static final int TERMINATED = 4;
+
+    private final File directory;
+    private final String name;
+    private final boolean sync;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final FileChannel redo;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long generation;
+    private int capacity;
+    private int size;
+
+    /**
+     * A copy of an account record, changes are only stored by {@link #write(Record...)}
+     */
+    static final class Record
+    {
+        @Nonnull
+        final String number;
+        @Nonnull
+        final UUID owner;
+        int balance;
+        int flags;
+        int slot = -1;
+
+        Record(@Nonnull String number, @Nonnull UUID owner, int balance, int flags)
+        {
+            this.number = number;
+            this.owner = owner;
+            this.balance = balance;
+            this.flags = flags | USED;
+        }
+
+        boolean isPrimary()
+        {
+            return (flags & PRIMARY) != 0;
+        }
+
+        boolean isTerminated()
+        {
+            return (flags & TERMINATED) != 0;
+        }
+    }
+
+    /**
+     * @param name The prefix of the files
+     * @param sync If each change must reach the disk before {@link #write(Record...)} returns
+     */
+    LedgerFile(@Nonnull File directory, @Nonnull String name, boolean sync) throws IOException
+    {
+        this.directory = directory;
+        this.name = name;
+        this.sync = sync;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create dir: "+directory.getAbsolutePath());
+
+        File current = null;
+        for(Map.Entry<Long, File> entry: listGenerations().entrySet())
+        {
+            if(current == null && isComplete(entry.getValue()))
+            {
+                generation = entry.getKey();
+                current = entry.getValue();
+            }
+            else if(!entry.getValue().delete())
+                UniversalCoinsServer.logger.warn("Failed to delete the old ledger file "+entry.getValue());
+        }
+
+        if(current == null)
+        {
+            generation = 1;
+            current = generationFile(generation);
+            create(current, generation, MIN_CAPACITY, Collections.<Record>emptyList());
+        }
+
+        map(current);
+
+        redo = new RandomAccessFile(new File(directory, name+".redo"), "rw").getChannel();
+        int replayed = replay();
+        if(replayed > 0)
+            UniversalCoinsServer.logger.info("Applied "+replayed+" changes from the ledger redo log");
+        checkpoint();
+    }
+
+    /**
+     * The generations found on the directory, from the newest to the oldest
+     */
+    private SortedMap<Long, File> listGenerations() throws IOException
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            throw new IOException("Failed to list files on "+directory.getAbsolutePath());
+
+        SortedMap<Long, File> generations = new TreeMap<>(Collections.reverseOrder());
+        String prefix = name+".";
+        for(File file: files)
+        {
+            String fileName = file.getName();
+            if(!fileName.startsWith(prefix) || !fileName.endsWith(".dat"))
+                continue;
+
+            try
+            {
+                generations.put(Long.parseLong(fileName.substring(prefix.length(), fileName.length() - 4)), file);
+            }
+            catch (NumberFormatException ignored)
+            {
+            }
+        }
+        return generations;
+    }
+
+    private File generationFile(long generation)
+    {
+        return new File(directory, String.format("%s.%06d.dat", name, generation));
+    }
+
+    private static boolean isComplete(File file) throws IOException
+    {
+        if(file.length() < HEADER_SIZE)
+            return false;
+
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT || in.readInt() != RECORD_SIZE)
+                return false;
+            int capacity = in.readInt();
+            in.readLong();
+            return in.readBoolean() && file.length() >= HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Writes a new table with the records and marks it as complete after everything reaches the disk
+     */
+    private static void create(File file, long generation, int capacity, Collection<Record> records) throws IOException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            map.putInt(0, MAGIC);
+            map.putInt(4, FORMAT);
+            map.putInt(8, RECORD_SIZE);
+            map.putInt(12, capacity);
+            map.putLong(16, generation);
+
+            for(Record record: records)
+            {
+                record.slot = findSlot(map, capacity, record.number);
+                writeRecord(map, record);
+            }
+
+            map.force();
+            map.put(24, (byte) 1);
+            map.force();
+        }
+    }
+
+    private void map(File file) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "rw");
+        buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.file.length());
+        capacity = buffer.getInt(12);
+
+        size = 0;
+        for(int slot = 0; slot < capacity; slot++)
+            if(buffer.get(offset(slot)) != 0)
+                size++;
+    }
+
+    private static int offset(int slot)
+    {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * @return If the number can be stored on a record
+     */
+    static boolean fits(@Nonnull String number)
+    {
+        int length = number.getBytes(StandardCharsets.UTF_8).length;
+        return length > 0 && length <= MAX_NUMBER_LENGTH;
+    }
+
+    private static byte[] encode(String number)
+    {
+        byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MAX_NUMBER_LENGTH)
+            throw new IllegalArgumentException("The account number is too long for the ledger: "+number);
+        return bytes;
+    }
+
+    /**
+     * @return The slot that contains the number or the empty slot where it would be inserted
+     */
+    private static int findSlot(ByteBuffer map, int capacity, String number)
+    {
+        byte[] bytes = encode(number);
+        int hash = number.hashCode();
+        hash ^= (hash >>> 16);
+        int mask = capacity - 1;
+        for(int slot = hash & mask;; slot = (slot + 1) & mask)
+        {
+            int offset = offset(slot);
+            if(map.get(offset) == 0)
+                return slot;
+
+            if(map.get(offset + 1) != bytes.length)
+                continue;
+
+            boolean equal = true;
+            for(int i = 0; i < bytes.length && equal; i++)
+                equal = map.get(offset + 2 + i) == bytes[i];
+            if(equal)
+                return slot;
+        }
+    }
+
+    private static void writeRecord(ByteBuffer map, Record record)
+    {
+        byte[] bytes = encode(record.number);
+        int offset = offset(record.slot);
+        map.put(offset + 1, (byte) bytes.length);
+        for(int i = 0; i < MAX_NUMBER_LENGTH; i++)
+            map.put(offset + 2 + i, i < bytes.length? bytes[i] : 0);
+        map.putLong(offset + 26, record.owner.getMostSignificantBits());
+        map.putLong(offset + 34, record.owner.getLeastSignificantBits());
+        map.putInt(offset + 42, record.balance);
+        map.put(offset, (byte) record.flags);
+    }
+
+    private static Record readRecord(ByteBuffer map, int slot)
+    {
+        int offset = offset(slot);
+        byte[] bytes = new byte[map.get(offset + 1)];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = map.get(offset + 2 + i);
+
+        Record record = new Record(new String(bytes, StandardCharsets.UTF_8),
+                new UUID(map.getLong(offset + 26), map.getLong(offset + 34)),
+                map.getInt(offset + 42), map.get(offset));
+        record.slot = slot;
+        return record;
+    }
+
+    /**
+     * @return A copy of the account or {@code null} if the number was never used
+     */
+    @Nullable
+    Record find(@Nonnull String number)
+    {
+        if(!fits(number))
+            return null;
+
+        lock.readLock().lock();
+        try
+        {
+            int slot = findSlot(buffer, capacity, number);
+            return buffer.get(offset(slot)) == 0? null : readRecord(buffer, slot);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the records at once, the records that were not found yet are inserted.
+     * Either all of them are applied or none of them, even if the server crashes in the middle of the write.
+     * @throws IllegalArgumentException If a new record has a number that is already used or is too long
+     */
+    void write(@Nonnull Record... records) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int inserted = 0;
+            for(Record record: records)
+            {
+                encode(record.number);
+                if(record.slot < 0)
+                {
+                    if(find(record.number) != null)
+                        throw new IllegalArgumentException("The account number is already used: "+record.number);
+                    inserted++;
+                }
+            }
+
+            if((size + inserted) * 2 > capacity)
+                grow(size + inserted);
+
+            // The slot of a record found earlier is stale if the table grew since then, by this write or by another one
+            for(Record record: records)
+                record.slot = findSlot(buffer, capacity, record.number);
+
+            appendRedo(records);
+
+            for(Record record: records)
+            {
+                if(buffer.get(offset(record.slot)) == 0)
+                    size++;
+                writeRecord(buffer, record);
+            }
+
+            if(redo.size() > CHECKPOINT_SIZE)
+                checkpoint();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Redo entry: length, crc, generation, amount of records and the slot and the bytes of each record
+     */
+    private void appendRedo(Record[] records) throws IOException
+    {
+        ByteBuffer entry = ByteBuffer.allocate(8 + 12 + records.length * (4 + RECORD_SIZE));
+        entry.position(8);
+        entry.putLong(generation);
+        entry.putInt(records.length);
+        ByteBuffer image = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+        for(Record record: records)
+        {
+            int slot = record.slot;
+            record.slot = 0;
+            writeRecord(image, record);
+            record.slot = slot;
+
+            entry.putInt(slot);
+            image.position(HEADER_SIZE);
+            entry.put(image);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 8, entry.capacity() - 8);
+        entry.putInt(0, entry.capacity() - 8);
+        entry.putInt(4, (int) crc.getValue());
+        entry.flip();
+        entry.limit(entry.capacity());
+
+        redo.position(redo.size());
+        while (entry.hasRemaining())
+            redo.write(entry);
+
+        if(sync)
+            redo.force(false);
+    }
+
+    /**
+     * Applies the complete entries of the redo log to the mapped file
+     */
+    private int replay() throws IOException
+    {
+        long length = redo.size();
+        if(length == 0)
+            return 0;
+
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        redo.position(0);
+        while (data.hasRemaining() && redo.read(data) >= 0)
+        {
+        }
+        data.flip();
+
+        int applied = 0;
+        while (data.remaining() >= 8)
+        {
+            int entryLength = data.getInt();
+            int checksum = data.getInt();
+            if(entryLength < 12 || entryLength > data.remaining())
+                break;
+
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), data.position(), entryLength);
+            if((int) crc.getValue() != checksum)
+                break;
+
+            long entryGeneration = data.getLong();
+            int count = data.getInt();
+            for(int i = 0; i < count; i++)
+            {
+                int slot = data.getInt();
+                int offset = offset(slot);
+                for(int j = 0; j < RECORD_SIZE; j++)
+                {
+                    byte b = data.get();
+                    if(entryGeneration == generation && slot < capacity)
+                        buffer.put(offset + j, b);
+                }
+            }
+            applied++;
+        }
+
+        size = 0;
+        for(int slot = 0; slot < capacity; slot++)
+            if(buffer.get(offset(slot)) != 0)
+                size++;
+
+        return applied;
+    }
+
+    /**
+     * Writes the mapped file to the disk and empties the redo log
+     */
+    void checkpoint() throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            buffer.force();
+            redo.truncate(0);
+            redo.force(true);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void grow(int required) throws IOException
+    {
+        int newCapacity = capacity;
+        while (required * 2 > newCapacity)
+            newCapacity <<= 1;
+
+        List<Record> records = new ArrayList<>(size);
+        for(int slot = 0; slot < capacity; slot++)
+            if(buffer.get(offset(slot)) != 0)
+                records.add(readRecord(buffer, slot));
+
+        checkpoint();
+
+        File old = generationFile(generation);
+        long newGeneration = generation + 1;
+        File newFile = generationFile(newGeneration);
+        create(newFile, newGeneration, newCapacity, records);
+
+        file.close();
+        generation = newGeneration;
+        map(newFile);
+
+        // The old mapping is only released by the garbage collector, some systems can't delete it until then
+        if(!old.delete())
+            UniversalCoinsServer.logger.info("The old ledger file "+old.getName()+" will be deleted on the next start");
+
+        UniversalCoinsServer.logger.info("The ledger capacity was increased to "+newCapacity+" accounts");
+    }
+
+    /**
+     * Visits a copy of all records, including the terminated accounts
+     */
+    void visit(@Nonnull CardDataBase.Visitor<Record> visitor) throws DataStoreException
+    {
+        int slot = 0;
+        while (true)
+        {
+            // Copies a block of records at a time so the visitor doesn't run with the lock held
+            List<Record> block = new ArrayList<>(256);
+            lock.readLock().lock();
+            try
+            {
+                if(slot >= capacity)
+                    return;
+
+                int end = Math.min(capacity, slot + 256);
+                for(; slot < end; slot++)
+                    if(buffer.get(offset(slot)) != 0)
+                        block.add(readRecord(buffer, slot));
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            for(Record record: block)
+                if(!visitor.visit(record))
+                    return;
+        }
+    }
+
+    /**
+     * Copies the whole table to the heap with a single read lock, a write of many records is never seen half applied
+     * by the copy. The copy is read with {@link #visitCopy(ByteBuffer, CardDataBase.Visitor)}.
+     */
+    @Nonnull
+    ByteBuffer copy()
+    {
+        lock.readLock().lock();
+        try
+        {
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.limit(offset(capacity));
+            ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+            copy.put(source);
+            copy.flip();
+            return copy;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the records of a copy made by {@link #copy()}, including the terminated accounts
+     */
+    static void visitCopy(@Nonnull ByteBuffer copy, @Nonnull CardDataBase.Visitor<Record> visitor) throws DataStoreException
+    {
+        int capacity = (copy.limit() - HEADER_SIZE) / RECORD_SIZE;
+        for(int slot = 0; slot < capacity; slot++)
+            if(copy.get(offset(slot)) != 0 && !visitor.visit(readRecord(copy, slot)))
+                return;
+    }
+
+    int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            checkpoint();
+            redo.close();
+            file.close();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+}
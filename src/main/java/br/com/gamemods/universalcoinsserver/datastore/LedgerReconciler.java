@@ -0,0 +1,439 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Verifies on a background thread that the balance of the accounts matches the coin sources of the stored transactions.
+ * <p>
+ * The ledger is read in the order the transactions were stored, a small chunk at a time, continuing from the checkpoint
+ * saved in a file. Every account coin source must start from the balance left by the previous transaction of the same
+ * account, a gap means that the balance was changed without storing a transaction, like a crash between the balance
+ * update and the transaction. When the reader reaches the end of the ledger the balance of the accounts that were
+ * changed is compared with the balance left by their last transaction, a difference is reported only if it's seen
+ * twice in a row, so the trades that were being stored during the check are not reported.
+ * <p>
+ * Only the accounts waiting for a verification are always kept. The accounts that were verified are kept only while
+ * they are among the {@value #CLEAN_TRACKS} most recently changed, so the gaps of the accounts that trade often are
+ * still detected without keeping every account that was ever changed.
+ * <p>
+ * After each chunk the thread waits proportionally to the time that the chunk took, so the reconciler uses at most
+ * {@code budget} milliseconds of each minute.
+ */
+public class LedgerReconciler extends BackgroundWorker
+{
+    private static final int MAGIC = 0x55434C52;
+    private static final int SAVE_INTERVAL = 30000;
+    private static final int CLEAN_TRACKS = 4096;
+
+    /**
+     * The stored transactions of a database
+     */
+    interface Source
+    {
+        /**
+         * Reads the account coin sources stored after the checkpoint, in the order they were applied to the accounts.
+         * The coin sources of the same transaction are consecutive.
+         * @param checkpoint The value returned by the previous call, empty to start from the oldest transaction
+         * @param limit The amount of coin sources that ends the call, fewer are read only at the end of the ledger
+         * @return The checkpoint after the coin sources that were read, the same checkpoint when there's nothing new
+         */
+        @Nonnull
+        String read(@Nonnull String checkpoint, int limit, @Nonnull List<Movement> movements) throws DataStoreException;
+    }
+
+    /**
+     * Reads the records of a transaction log, the checkpoint is the cursor of the log
+     */
+    @Nonnull
+    static Source of(@Nonnull final TransactionLog log)
+    {
+        return new Source()
+        {
+            @Nonnull
+            @Override
+            public String read(@Nonnull String checkpoint, final int limit, @Nonnull final List<Movement> movements)
+                    throws DataStoreException
+            {
+                try
+                {
+                    return log.readAfter(checkpoint, new CardDataBase.Visitor<TransactionRecord>()
+                    {
+                        @Override
+                        public boolean visit(@Nonnull TransactionRecord record)
+                        {
+                            Movement.addAll(record, movements);
+                            return movements.size() < limit;
+                        }
+                    });
+                }
+                catch (IOException|IllegalArgumentException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A change of the balance of an account by a stored transaction
+     */
+    static final class Movement
+    {
+        @Nonnull
+        final String transactionId;
+        @Nonnull
+        final String account;
+        final int before;
+        final int after;
+
+        Movement(@Nonnull String transactionId, @Nonnull String account, int before, int after)
+        {
+            this.transactionId = transactionId;
+            this.account = account;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Adds the account coin sources of the record
+         */
+        static void addAll(@Nonnull TransactionRecord record, @Nonnull List<Movement> movements)
+        {
+            if(record.userCoinSource != null && record.userCoinSource.account != null)
+                movements.add(new Movement(record.id, record.userCoinSource.account, record.userCoinSource.before, record.userCoinSource.after));
+            if(record.ownerCoinSource != null && record.ownerCoinSource.account != null)
+                movements.add(new Movement(record.id, record.ownerCoinSource.account, record.ownerCoinSource.before, record.ownerCoinSource.after));
+        }
+    }
+
+    /**
+     * What the ledger says about an account
+     */
+    private static final class Track
+    {
+        /**
+         * The balance left by the last transaction, unknown when the last transaction changed the account twice
+         */
+        boolean known;
+        int balance;
+        @Nonnull
+        String transactionId = "";
+        /**
+         * The balance of the account when a difference was seen for the first time
+         */
+        boolean suspect;
+        int suspectBalance;
+    }
+
+    private final Source source;
+    private final CardDataBase balances;
+    private final File file;
+    private final int chunkSize;
+    private final int budget;
+    private final long interval;
+    /**
+     * The accounts changed since their last verification
+     */
+    private final Map<String, Track> accounts = new HashMap<>();
+    /**
+     * The verified accounts, the least recently changed are dropped
+     */
+    private final Map<String, Track> clean = new LinkedHashMap<String, Track>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Track> eldest)
+        {
+            return size() > CLEAN_TRACKS;
+        }
+    };
+    private String checkpoint = "";
+    private volatile String savedCheckpoint = "";
+    /**
+     * The last transaction applied and the accounts that it changed, a transaction may be split between two chunks
+     */
+    private String lastTransaction;
+    private final Set<String> lastChanged = new HashSet<>(2);
+    private volatile long verified;
+    private volatile long drifts;
+
+    /**
+     * @param balances The database that gives the current balance of the accounts
+     * @param file Where the checkpoint is saved
+     * @param chunkSize The maximum amount of transactions read or accounts verified at once
+     * @param budget Milliseconds of each minute that the reconciler may use, from 1 to 60000
+     * @param interval Milliseconds waited after reaching the end of the ledger
+     */
+    LedgerReconciler(@Nonnull Source source, @Nonnull CardDataBase balances, @Nonnull File file, int chunkSize, int budget, long interval)
+            throws IOException
+    {
+        super("UniversalCoins Ledger Reconciler");
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize: "+chunkSize);
+        if(budget < 1 || budget > 60000)
+            throw new IllegalArgumentException("budget: "+budget);
+
+        this.source = source;
+        this.balances = balances;
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.budget = budget;
+        this.interval = interval;
+
+        load();
+
+        start();
+    }
+
+    /**
+     * @return The amount of account coin sources verified since the server started
+     */
+    public long getVerifiedCount()
+    {
+        return verified;
+    }
+
+    /**
+     * The checkpoint that is saved in the file. The transactions before it were already read and won't be read again
+     * after a restart, so they can be archived, the transactions after it must be kept.
+     * @return The value given by the {@link Source}, empty when nothing was read yet
+     */
+    @Nonnull
+    public String getSavedCheckpoint()
+    {
+        return savedCheckpoint;
+    }
+
+    /**
+     * @return The amount of differences reported since the server started
+     */
+    public long getDriftCount()
+    {
+        return drifts;
+    }
+
+    @Override
+    void work()
+    {
+        long saved = System.currentTimeMillis();
+        boolean dirty = false;
+        while (true)
+        {
+            boolean end = false;
+            try
+            {
+                long start = System.currentTimeMillis();
+                List<Movement> movements = new ArrayList<>(chunkSize + 1);
+                String next = source.read(checkpoint, chunkSize, movements);
+                apply(movements);
+                dirty |= !next.equals(checkpoint);
+                checkpoint = next;
+                end = movements.size() < chunkSize;
+                if(!throttle(start))
+                    break;
+
+                if(end)
+                    dirty |= verifyAccounts();
+            }
+            catch (DataStoreException|RuntimeException e)
+            {
+                UniversalCoinsServer.logger.error("Failed to reconcile the ledger, trying again later", e);
+                end = true;
+            }
+
+            if(dirty && (end || System.currentTimeMillis() - saved >= SAVE_INTERVAL))
+            {
+                save();
+                saved = System.currentTimeMillis();
+                dirty = false;
+            }
+
+            if(end && !pause(interval))
+                break;
+        }
+
+        if(dirty)
+            save();
+    }
+
+    private void apply(List<Movement> movements)
+    {
+        for(Movement movement: movements)
+        {
+            if(!movement.transactionId.equals(lastTransaction))
+            {
+                lastTransaction = movement.transactionId;
+                lastChanged.clear();
+            }
+
+            Track track = accounts.get(movement.account);
+            if(track == null && (track = clean.remove(movement.account)) != null)
+                accounts.put(movement.account, track);
+
+            if(track == null)
+            {
+                track = new Track();
+                accounts.put(movement.account, track);
+            }
+            else if(!lastChanged.add(movement.account))
+            {
+                // Both coin sources were read before the transaction changed the account
+                track.known = false;
+                track.transactionId = movement.transactionId;
+                continue;
+            }
+            else if(track.known && track.balance != movement.before)
+            {
+                drifts++;
+                UniversalCoinsServer.logger.warn("Ledger drift on the account "+movement.account+": the transaction "+
+                        track.transactionId+" left "+track.balance+" coins but the transaction "+movement.transactionId+
+                        " started from "+movement.before+" coins, "+(movement.before - track.balance)+" coins were not logged");
+            }
+
+            lastChanged.add(movement.account);
+            track.known = true;
+            track.balance = movement.after;
+            track.transactionId = movement.transactionId;
+            track.suspect = false;
+        }
+        verified += movements.size();
+    }
+
+    /**
+     * Compares the balance of the accounts changed since the last verification
+     * @return If any account changed its state
+     */
+    private boolean verifyAccounts() throws DataStoreException
+    {
+        List<String> pending = new ArrayList<>(accounts.keySet());
+
+        boolean changed = false;
+        for(int i = 0; i < pending.size(); i += chunkSize)
+        {
+            long start = System.currentTimeMillis();
+            for(String account: pending.subList(i, Math.min(i + chunkSize, pending.size())))
+            {
+                Track track = accounts.get(account);
+                int balance;
+                try
+                {
+                    balance = balances.getAccountBalance(account);
+                }
+                catch (AccountNotFoundException e)
+                {
+                    balance = -1;
+                }
+
+                changed = true;
+                if(balance < 0)
+                {
+                    // Terminated or transferred, the final balance is in its last transaction
+                    accounts.remove(account);
+                }
+                else if(!track.known || balance == track.balance)
+                {
+                    track.suspect = false;
+                    clean.put(account, accounts.remove(account));
+                }
+                else if(track.suspect && track.suspectBalance == balance)
+                {
+                    drifts++;
+                    track.suspect = false;
+                    clean.put(account, accounts.remove(account));
+                    UniversalCoinsServer.logger.warn("Ledger drift on the account "+account+": the transaction "+
+                            track.transactionId+" left "+track.balance+" coins but the account has "+balance+" coins, "+
+                            (balance - track.balance)+" coins were not logged");
+                }
+                else
+                {
+                    track.suspect = true;
+                    track.suspectBalance = balance;
+                }
+            }
+
+            if(!throttle(start))
+                break;
+        }
+        return changed;
+    }
+
+    /**
+     * Waits after some work to keep the reconciler inside its budget
+     * @return {@code false} if the reconciler was closed
+     */
+    private boolean throttle(long start)
+    {
+        long spent = System.currentTimeMillis() - start;
+        return pause(spent * (60000 - budget) / budget);
+    }
+
+    private void load() throws IOException
+    {
+        if(!file.isFile())
+            return;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a ledger checkpoint file: "+file);
+
+            checkpoint = savedCheckpoint = in.readUTF();
+            int size = in.readInt();
+            for(int i = 0; i < size; i++)
+            {
+                String account = in.readUTF();
+                Track track = new Track();
+                track.known = in.readBoolean();
+                track.balance = in.readInt();
+                track.transactionId = in.readUTF();
+                boolean verified = in.readBoolean();
+                track.suspect = in.readBoolean();
+                track.suspectBalance = in.readInt();
+                (verified? clean : accounts).put(account, track);
+            }
+        }
+    }
+
+    private void save()
+    {
+        File temp = new File(file.getParentFile(), file.getName()+".tmp");
+        try
+        {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeUTF(checkpoint);
+                out.writeInt(accounts.size() + clean.size());
+                writeTracks(out, accounts, false);
+                writeTracks(out, clean, true);
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            savedCheckpoint = checkpoint;
+        }
+        catch (IOException e)
+        {
+            UniversalCoinsServer.logger.error("Failed to save the ledger checkpoint "+file, e);
+        }
+    }
+
+    private static void writeTracks(DataOutputStream out, Map<String, Track> tracks, boolean verified) throws IOException
+    {
+        for(Map.Entry<String, Track> entry: tracks.entrySet())
+        {
+            Track track = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(track.known);
+            out.writeInt(track.balance);
+            out.writeUTF(track.transactionId);
+            out.writeBoolean(verified);
+            out.writeBoolean(track.suspect);
+            out.writeInt(track.suspectBalance);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.google.common.collect.HashBiMap;
 import net.minecraft.command.ICommandSender;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTBase;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagInt;
 import net.minecraft.nbt.NBTTagString;
@@ -16,12 +17,28 @@ import net.minecraft.world.storage.MapStorage;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
-public class NbtDB extends AbstractDB<AbstractDB.Account>
+public class NbtDB extends AbstractDB<AbstractDB.Account> implements SnapshotSource
 {
+    private static final Pattern NUMBER = Pattern.compile("^[0-9]+$");
     private UUID undefinedOwner = UUID.nameUUIDFromBytes("Undefined".getBytes());
+    @Nullable
+    private volatile Binding binding;
+    /**
+     * The operations that change more than one entry of the world data hold the read lock while changing them, the
+     * snapshot holds the write lock while copying the world data so it never sees half of an operation
+     */
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    public NbtDB()
+    {
+        enableAccountLocks(64);
+    }
 
     private class Account extends AbstractDB.Account
     {
@@ -40,9 +57,34 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         }
     }
 
+    /**
+     * The world data that was loaded for a world, so it's not searched on the map storage on every operation
+     */
+    private static final class Binding
+    {
+        private final World world;
+        private final WorldData data;
+
+        private Binding(World world, WorldData data)
+        {
+            this.world = world;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The accessors are synchronized because the operations may run outside of the server thread.
+     * <p>
+     * All values are stored as keys of the same compound, the indexes classify the keys when the data is loaded and
+     * are kept up to date by the setters so the accounts and the players can be listed without scanning all keys.
+     */
     public static class WorldData extends WorldSavedData
     {
         private NBTTagCompound data = new NBTTagCompound();
+        private final Map<String, Integer> balances = new HashMap<>();
+        private final BiMap<UUID, String> primaries = HashBiMap.create();
+        private final BiMap<UUID, String> playerCustoms = HashBiMap.create();
+        private final BiMap<String, String> customAccounts = HashBiMap.create();
 
         public WorldData(String tagName)
         {
@@ -50,62 +92,163 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         }
 
         @Override
-        public void readFromNBT(NBTTagCompound compound)
+        public synchronized void readFromNBT(NBTTagCompound compound)
         {
             data = compound.getCompoundTag("universalcoins");
+
+            balances.clear();
+            primaries.clear();
+            playerCustoms.clear();
+            customAccounts.clear();
+            //noinspection unchecked
+            for(String key: (Set<String>) data.func_150296_c())
+                index(key);
+        }
+
+        private void index(String key)
+        {
+            NBTBase tag = data.getTag(key);
+            int length = key.length();
+            if(tag instanceof NBTTagInt)
+            {
+                if(length >= 8 && length < 36 && NUMBER.matcher(key).matches())
+                    balances.put(key, data.getInteger(key));
+            }
+            else if(tag instanceof NBTTagString)
+            {
+                String value = data.getString(key);
+                UUID playerId = length >= 36 && key.contains("-")? parsePlayerId(key) : null;
+                if(playerId == null)
+                    customAccounts.forcePut(key, value);
+                else if(length == 36)
+                    primaries.forcePut(playerId, value);
+                else
+                    playerCustoms.forcePut(playerId, value);
+            }
+        }
+
+        private void unindex(String key)
+        {
+            balances.remove(key);
+            customAccounts.remove(key);
+            UUID playerId = key.length() >= 36 && key.contains("-")? parsePlayerId(key) : null;
+            if(playerId != null)
+            {
+                if(key.length() == 36)
+                    primaries.remove(playerId);
+                else
+                    playerCustoms.remove(playerId);
+            }
+        }
+
+        @Nullable
+        private static UUID parsePlayerId(String key)
+        {
+            try
+            {
+                return UUID.fromString(key.substring(key.length() - 36));
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+
+        @Nullable
+        private synchronized Integer getBalance(String number)
+        {
+            return balances.get(number);
+        }
+
+        /**
+         * @return The number of the custom account with the given name or {@code null}
+         */
+        @Nullable
+        private synchronized String getCustomNumber(String name)
+        {
+            return customAccounts.get(name);
+        }
+
+        @Nullable
+        private synchronized UUID getOwner(String number)
+        {
+            UUID owner = primaries.inverse().get(number);
+            if(owner != null)
+                return owner;
+
+            String customName = customAccounts.inverse().get(number);
+            return customName == null? null : playerCustoms.inverse().get(customName);
         }
 
         @Override
-        public void writeToNBT(NBTTagCompound compound)
+        public synchronized void writeToNBT(NBTTagCompound compound)
         {
-            compound.setTag("universalcoins", data);
+            // The compound is written to the disk after this method returns, a copy keeps it stable
+            compound.setTag("universalcoins", data.copy());
         }
 
-        private int getWorldInt(String tag)
+        private synchronized int getWorldInt(String tag)
         {
             return data.getInteger(tag);
         }
 
-        private String getWorldString(String tag)
+        private synchronized String getWorldString(String tag)
         {
             return data.getString(tag);
         }
 
-        private boolean hasKey(String tag)
+        private synchronized boolean hasKey(String tag)
         {
             return data.hasKey(tag);
         }
 
-        private void setWorldData(String tag, String data)
+        private synchronized void setWorldData(String tag, String data)
         {
             this.data.setString(tag, data);
+            unindex(tag);
+            index(tag);
             markDirty();
         }
 
-        private void setWorldData(String tag, int data)
+        private synchronized void setWorldData(String tag, int data)
         {
             this.data.setInteger(tag, data);
+            unindex(tag);
+            index(tag);
             markDirty();
         }
 
-        private void delWorldData(String tag)
+        private synchronized void delWorldData(String tag)
         {
             data.removeTag(tag);
+            unindex(tag);
             markDirty();
         }
     }
 
     private WorldData sync(World world)
     {
-        MapStorage storage = world.mapStorage;
-        WorldData result = (WorldData) storage.loadData(WorldData.class, "universalcoins");
-        if (result == null)
+        Binding current = binding;
+        if(current != null && current.world == world)
+            return current.data;
+
+        synchronized (this)
         {
-            result = new WorldData("universalcoins");
-            storage.setData("universalcoins", result);
-        }
+            current = binding;
+            if(current != null && current.world == world)
+                return current.data;
+
+            MapStorage storage = world.mapStorage;
+            WorldData result = (WorldData) storage.loadData(WorldData.class, "universalcoins");
+            if (result == null)
+            {
+                result = new WorldData("universalcoins");
+                storage.setData("universalcoins", result);
+            }
 
-        return result;
+            binding = new Binding(world, result);
+            return result;
+        }
     }
 
     @Override
@@ -121,30 +264,69 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
 
     @Nullable
     @Override
-    protected AbstractDB.Account getAccount(@Nonnull String number) throws DataStoreException
+    protected AbstractDB.Account loadAccount(@Nonnull String number) throws DataStoreException
     {
         WorldData data = sync(getWorld());
-        if(data.hasKey(number))
-            return new Account(number, null, data.getWorldInt(number));
+        Integer balance = data.getBalance(number);
+        if(balance == null)
+        {
+            // The custom accounts used to be given with the name as number
+            String customNumber = data.getCustomNumber(number);
+            if(customNumber == null || (balance = data.getBalance(customNumber)) == null)
+                return null;
+            number = customNumber;
+        }
 
-        return null;
+        return new Account(number, data.getOwner(number), balance);
     }
 
     @Nullable
     @Override
     protected AbstractDB.Account getCustomAccount(@Nonnull String name) throws DataStoreException
     {
-        return getAccount(name);
+        return getAccount(resolveNumber(name));
+    }
+
+    /**
+     * Old cards of custom accounts carry the name as number, it's resolved so the account is cached and locked
+     * by a single key
+     */
+    @Nullable
+    @Override
+    protected String getAccountNumber(@Nullable Object account)
+    {
+        String number = super.getAccountNumber(account);
+        return number == null? null : resolveNumber(number);
+    }
+
+    @Nonnull
+    private String resolveNumber(@Nonnull String number)
+    {
+        WorldData data = sync(getWorld());
+        if(data.getBalance(number) != null)
+            return number;
+
+        String customNumber = data.getCustomNumber(number);
+        return customNumber == null? number : customNumber;
     }
 
     @Override
     protected void storeTrade(@Nonnull Transaction transaction, @Nullable AbstractDB.Account ownerAccount, int ownerIncrement, @Nullable AbstractDB.Account userAccount, int userIncrement) throws DataStoreException
     {
-        if(ownerAccount != null)
-            ownerAccount.incrementBalance(ownerIncrement, transaction);
+        // The accounts are already locked, a snapshot waits until both sides are applied
+        snapshotLock.readLock().lock();
+        try
+        {
+            if(ownerAccount != null)
+                ownerAccount.incrementBalance(ownerIncrement, transaction);
 
-        if(userAccount != null)
-            userAccount.incrementBalance(userIncrement, transaction);
+            if(userAccount != null)
+                userAccount.incrementBalance(userIncrement, transaction);
+        }
+        finally
+        {
+            snapshotLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -159,6 +341,13 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         // Unsupported
     }
 
+    @Nonnull
+    @Override
+    public HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException
+    {
+        return HistoryPage.EMPTY;
+    }
+
     @Nonnull
     @Override
     public PlayerData getPlayerData(@Nonnull UUID playerUID) throws DataStoreException
@@ -167,9 +356,10 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         String playerId = playerUID.toString();
         String primary = worldData.getWorldString(playerId);
         String custom  = worldData.getWorldString("\uFFFD"+playerId);
+        String customNumber = custom.isEmpty()? null : worldData.getCustomNumber(custom);
         return new PlayerData(Integer.MIN_VALUE, playerUID,
                 primary.isEmpty()? null : new AccountAddress(primary, primary, playerUID),
-                custom.isEmpty()? null : Collections.singleton(new AccountAddress(custom, custom, playerUID))
+                custom.isEmpty()? null : Collections.singleton(new AccountAddress(customNumber != null? customNumber : custom, custom, playerUID))
         );
     }
 
@@ -178,24 +368,27 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
     public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
     {
         WorldData worldData = sync(getWorld());
-        String playerId = playerUID.toString();
-        String accountNumber = worldData.getWorldString(playerId);
-        if (!accountNumber.isEmpty())
-            throw new DuplicatedKeyException("Player "+playerId+" already have a primary account: "+accountNumber);
-
-        while (!worldData.hasKey(playerId))
+        synchronized (worldData)
         {
-            accountNumber = generateAccountNumber();
-            if (worldData.getWorldString(accountNumber).isEmpty())
+            String playerId = playerUID.toString();
+            String accountNumber = worldData.getWorldString(playerId);
+            if (!accountNumber.isEmpty())
+                throw new DuplicatedKeyException("Player "+playerId+" already have a primary account: "+accountNumber);
+
+            while (!worldData.hasKey(playerId))
             {
-                worldData.setWorldData(playerId, accountNumber);
-                worldData.setWorldData(accountNumber, 0);
+                accountNumber = generateAccountNumber();
+                if (worldData.getWorldString(accountNumber).isEmpty())
+                {
+                    worldData.setWorldData(playerId, accountNumber);
+                    worldData.setWorldData(accountNumber, 0);
 
-                return new AccountAddress(accountNumber, name, playerUID);
+                    return new AccountAddress(accountNumber, name, playerUID);
+                }
             }
-        }
 
-        throw new DataStoreException("Failed to create account for player "+playerId);
+            throw new DataStoreException("Failed to create account for player "+playerId);
+        }
     }
 
     @Nullable
@@ -215,135 +408,160 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
     public AccountAddress createCustomAccount(@Nonnull UUID playerUID, @Nonnull String customAccountName) throws DataStoreException, DuplicatedKeyException
     {
         WorldData worldData = sync(getWorld());
-        String playerId = playerUID.toString();
-        String currentPlayerCustom = worldData.getWorldString("\uFFFD"+playerId);
-        String existingCustom = worldData.getWorldString(customAccountName);
-        if(!currentPlayerCustom.isEmpty())
-            throw new DuplicatedKeyException("Player "+playerId+" already have a custom account "+currentPlayerCustom);
+        synchronized (worldData)
+        {
+            String playerId = playerUID.toString();
+            String currentPlayerCustom = worldData.getWorldString("\uFFFD"+playerId);
+            String existingCustom = worldData.getWorldString(customAccountName);
+            if(!currentPlayerCustom.isEmpty())
+                throw new DuplicatedKeyException("Player "+playerId+" already have a custom account "+currentPlayerCustom);
 
-        if(!existingCustom.isEmpty())
-            throw new DuplicatedKeyException("Account name "+customAccountName+" already exists: "+existingCustom);
+            if(!existingCustom.isEmpty())
+                throw new DuplicatedKeyException("Account name "+customAccountName+" already exists: "+existingCustom);
 
-        while (worldData.getWorldString(customAccountName).isEmpty())
-        {
-            String number = generateAccountNumber();
-            if(worldData.getWorldString(number).isEmpty())
+            while (worldData.getWorldString(customAccountName).isEmpty())
             {
-                worldData.setWorldData("\uFFFD"+playerId, customAccountName);
-                worldData.setWorldData(customAccountName, number);
-                worldData.setWorldData(number, 0);
-                return new AccountAddress(number, customAccountName, playerUID);
+                String number = generateAccountNumber();
+                if(worldData.getWorldString(number).isEmpty())
+                {
+                    worldData.setWorldData("\uFFFD"+playerId, customAccountName);
+                    worldData.setWorldData(customAccountName, number);
+                    worldData.setWorldData(number, 0);
+                    return new AccountAddress(number, customAccountName, playerUID);
+                }
             }
-        }
 
-        throw new DataStoreException("Failed to create custom account "+customAccountName+" for player "+playerId);
+            throw new DataStoreException("Failed to create custom account "+customAccountName+" for player "+playerId);
+        }
     }
 
     @Nonnull
     @Override
     public AccountAddress transferAccount(@Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
     {
-        char code = '\uFFFD';
-        WorldData worldData = sync(getWorld());
+        try(AccountLocks.Hold hold = lockAccount(origin))
+        {
+            char code = '\uFFFD';
+            WorldData worldData = sync(getWorld());
 
-        UUID owner = origin.getOwner();
-        if(owner.equals(undefinedOwner))
-            throw new DataStoreException(new UnsupportedOperationException("The owner of the account is unknown: "+origin));
-        String ownerId = owner.toString();
-
-        String oldName = worldData.getWorldString(code + ownerId);
-        String oldAccount = worldData.getWorldString(oldName);
-        int oldBalance = worldData.hasKey(oldAccount)? worldData.getWorldInt(oldAccount) : -1;
-        worldData.delWorldData(code + ownerId);
-        worldData.delWorldData(oldName);
-        worldData.delWorldData(oldAccount);
-        if (worldData.getWorldString(code + ownerId).isEmpty())
-        {
-            String customAccountNumber;
-            do
+            // Taken after the account like the trades, so a waiting snapshot can't make both wait for each other
+            snapshotLock.readLock().lock();
+            try
             {
-                customAccountNumber = generateAccountNumber();
-                if (worldData.getWorldString(customAccountNumber).isEmpty())
-                {
-                    worldData.setWorldData(code + ownerId, destiny);
-                    worldData.setWorldData(destiny, customAccountNumber);
-                    worldData.setWorldData(customAccountNumber, oldBalance);
-                }
-
-                if (!worldData.getWorldString(oldAccount).isEmpty())
+                synchronized (worldData)
                 {
-                    worldData.delWorldData(oldAccount);
+                    UUID owner = origin.getOwner();
+                    if(owner.equals(undefinedOwner))
+                        throw new DataStoreException(new UnsupportedOperationException("The owner of the account is unknown: "+origin));
+                    String ownerId = owner.toString();
+
+                    String oldName = worldData.getWorldString(code + ownerId);
+                    String oldAccount = worldData.getWorldString(oldName);
+                    int oldBalance = worldData.hasKey(oldAccount)? worldData.getWorldInt(oldAccount) : -1;
+                    worldData.delWorldData(code + ownerId);
                     worldData.delWorldData(oldName);
-                }
-            } while (worldData.getWorldString(customAccountNumber).isEmpty());
+                    worldData.delWorldData(oldAccount);
+                    invalidateAccount(oldAccount);
+                    if (worldData.getWorldString(code + ownerId).isEmpty())
+                    {
+                        String customAccountNumber;
+                        do
+                        {
+                            customAccountNumber = generateAccountNumber();
+                            if (worldData.getWorldString(customAccountNumber).isEmpty())
+                            {
+                                worldData.setWorldData(code + ownerId, destiny);
+                                worldData.setWorldData(destiny, customAccountNumber);
+                                worldData.setWorldData(customAccountNumber, oldBalance);
+                            }
+
+                            if (!worldData.getWorldString(oldAccount).isEmpty())
+                            {
+                                worldData.delWorldData(oldAccount);
+                                worldData.delWorldData(oldName);
+                            }
+                        } while (worldData.getWorldString(customAccountNumber).isEmpty());
+
+                        return new AccountAddress(customAccountNumber, destiny, owner);
+                    }
 
-            return new AccountAddress(customAccountNumber, destiny, owner);
+                    throw new DataStoreException("Failed to transfer custom account from "+origin+" to "+destiny);
+                }
+            }
+            finally
+            {
+                snapshotLock.readLock().unlock();
+            }
         }
-
-        throw new DataStoreException("Failed to transfer custom account from "+origin+" to "+destiny);
     }
 
     @Nonnull
     @Override
     public AccountAddress transferPrimaryAccount(@Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException
     {
-        UUID owner = primaryAccount.getOwner();
-        if(owner.equals(undefinedOwner))
-            throw new DataStoreException(new UnsupportedOperationException("The owner of the account is unknown: "+primaryAccount));
+        try(AccountLocks.Hold hold = lockAccount(primaryAccount))
+        {
+            UUID owner = primaryAccount.getOwner();
+            if(owner.equals(undefinedOwner))
+                throw new DataStoreException(new UnsupportedOperationException("The owner of the account is unknown: "+primaryAccount));
 
-        String playerUID = owner.toString();
-        WorldData worldData = sync(getWorld());
+            String playerUID = owner.toString();
+            WorldData worldData = sync(getWorld());
 
-        String oldAccount = worldData.getWorldString(playerUID);
-        int oldBalance = worldData.hasKey(oldAccount)? worldData.getWorldInt(oldAccount) : -1;
-        worldData.delWorldData(playerUID);
-        String accountNumber = null;
-        if (worldData.getWorldString(playerUID).isEmpty())
-        {
-            do{
-                accountNumber = generateAccountNumber();
-                if (worldData.getWorldString(accountNumber).isEmpty())
+            // Taken after the account like the trades, so a waiting snapshot can't make both wait for each other
+            snapshotLock.readLock().lock();
+            try
+            {
+                synchronized (worldData)
                 {
-                    worldData.setWorldData(playerUID, accountNumber);
-                    worldData.setWorldData(accountNumber, oldBalance);
-                }
-            } while (worldData.getWorldString(accountNumber).isEmpty());
-        }
-        worldData.delWorldData(oldAccount);
+                    String oldAccount = worldData.getWorldString(playerUID);
+                    int oldBalance = worldData.hasKey(oldAccount)? worldData.getWorldInt(oldAccount) : -1;
+                    worldData.delWorldData(playerUID);
+                    String accountNumber = null;
+                    if (worldData.getWorldString(playerUID).isEmpty())
+                    {
+                        do{
+                            accountNumber = generateAccountNumber();
+                            if (worldData.getWorldString(accountNumber).isEmpty())
+                            {
+                                worldData.setWorldData(playerUID, accountNumber);
+                                worldData.setWorldData(accountNumber, oldBalance);
+                            }
+                        } while (worldData.getWorldString(accountNumber).isEmpty());
+                    }
+                    worldData.delWorldData(oldAccount);
+                    invalidateAccount(oldAccount);
 
-        if(accountNumber != null)
-            return new AccountAddress(accountNumber, newName, owner);
+                    if(accountNumber != null)
+                        return new AccountAddress(accountNumber, newName, owner);
 
-        throw new UnsupportedOperationException("Failed to create primary account "+primaryAccount);
+                    throw new UnsupportedOperationException("Failed to create primary account "+primaryAccount);
+                }
+            }
+            finally
+            {
+                snapshotLock.readLock().unlock();
+            }
+        }
     }
 
     @Override
     public Collection<PlayerData> getAllPlayerData() throws DataStoreException
     {
         WorldData worldData = sync(getWorld());
-        //noinspection unchecked
-        Set<String> keySet = worldData.data.func_150296_c();
-
         ArrayList<PlayerData> list = new ArrayList<>();
 
-        for(String key: keySet)
+        synchronized (worldData)
         {
-            if(key.length() == 36 && key.contains("-"))
+            for(Map.Entry<UUID, String> entry: worldData.primaries.entrySet())
             {
-                UUID playerId = UUID.fromString(key);
-                String primaryNumber = worldData.data.getString(key);
-                String customName = "";
-                for(String key2: keySet)
-                {
-                    if(!key2.equals(key) && key2.endsWith(key))
-                    {
-                        customName = worldData.data.getString(key2);
-                        break;
-                    }
-                }
-                String customNumber = !customName.isEmpty()? worldData.data.getString(customName) : "";
+                UUID playerId = entry.getKey();
+                String primaryNumber = entry.getValue();
+                String customName = worldData.playerCustoms.get(playerId);
+                String customNumber = customName != null? worldData.customAccounts.get(customName) : null;
                 list.add(new PlayerData(Integer.MIN_VALUE, playerId, new AccountAddress(primaryNumber, primaryNumber, playerId),
-                        customName.isEmpty()? null : Collections.singleton(new AccountAddress(customNumber, customName, playerId))
+                        customName == null || customName.isEmpty()? null :
+                                Collections.singleton(new AccountAddress(customNumber != null? customNumber : "", customName, playerId))
                 ));
             }
         }
@@ -354,69 +572,75 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
     public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
     {
         WorldData worldData = sync(getWorld());
-        //noinspection unchecked
-        Set<String> keySet = worldData.data.func_150296_c();
-
-        Pattern pattern = Pattern.compile("^[0-9]+$");
-
-        Map<String, Integer> balances = new HashMap<>();
-        BiMap<UUID, String> playerPrimaries = HashBiMap.create();
-        BiMap<UUID, String> playerCustoms = HashBiMap.create();
-        BiMap<String, String> customAccounts = HashBiMap.create();
+        Map<AccountAddress, Integer> map;
 
-
-        for(String key: keySet)
+        synchronized (worldData)
         {
-            int length = key.length();
-            if(length >= 8 && length < 36 && pattern.matcher(key).matches() && (worldData.data.getTag(key) instanceof NBTTagInt))
-                balances.put(key, worldData.data.getInteger(key));
-            else if(length == 36 && key.contains("-"))
-                playerPrimaries.put(UUID.fromString(key), worldData.data.getString(key));
-            else if(length > 36 && key.contains("-") && (worldData.data.getTag(key) instanceof NBTTagString))
+            map = new HashMap<>(worldData.balances.size());
+            for(Map.Entry<String, Integer> entry: worldData.balances.entrySet())
             {
-                try
+                String number = entry.getKey();
+                int balance = entry.getValue();
+                UUID primaryOwner = worldData.primaries.inverse().get(number);
+                String customName = worldData.customAccounts.inverse().get(number);
+                UUID customOwner = customName != null? worldData.playerCustoms.inverse().get(customName) : null;
+
+                if(primaryOwner == null && customOwner == null)
                 {
-                    UUID playerId = UUID.fromString(key.substring(key.length()-36));
-                    playerCustoms.put(playerId, worldData.data.getString(key));
+                    if(balance > 0)
+                        UniversalCoinsServer.logger.warn("Skipping account "+number+" with balance "+balance+" because the owner is unknown!");
+                    continue;
                 }
-                catch (Exception e){e.printStackTrace();}
+
+                AccountAddress address = new AccountAddress(
+                        number,
+                        customName != null? customName : number,
+                        customOwner != null? customOwner : primaryOwner
+                );
+
+                map.put(address, balance);
             }
-            else if(worldData.data.getTag(key) instanceof NBTTagString)
-                customAccounts.put(key, worldData.data.getString(key));
         }
 
-        Map<AccountAddress, Integer> map = new HashMap<>(balances.size());
+        return map;
+    }
 
-        for(Map.Entry<String, Integer> entry: balances.entrySet())
+    /**
+     * The indexes are copied while holding the snapshot write lock, the trades and the account transfers wait only for
+     * the copy and the snapshot is written from it. The world data doesn't store deliveries nor transactions.
+     */
+    @Override
+    public void writeSnapshot(@Nonnull SnapshotWriter writer, boolean transactions) throws DataStoreException
+    {
+        WorldData worldData = sync(getWorld());
+        Map<AccountAddress, Integer> balances;
+        Collection<PlayerData> players;
+        snapshotLock.writeLock().lock();
+        try
         {
-            String number = entry.getKey();
-            int balance = entry.getValue();
-            UUID primaryOwner = playerPrimaries.inverse().get(number);
-            String customName = customAccounts.inverse().get(number);
-            UUID customOwner = playerCustoms.inverse().get(customName);
-
-            if(primaryOwner == null && customOwner == null)
+            synchronized (worldData)
             {
-                if(balance <= 0)
-                    continue;
-                else
-                {
-                    UniversalCoinsServer.logger.warn("Skipping account "+number+" with balance "+balance+" because the owner is unknown!");
-                    continue;
-                }
+                balances = getAllAccountsBalance();
+                players = getAllPlayerData();
             }
+        }
+        finally
+        {
+            snapshotLock.writeLock().unlock();
+        }
 
+        try
+        {
+            for(Map.Entry<AccountAddress, Integer> entry: balances.entrySet())
+                writer.writeAccount(entry.getKey(), entry.getValue());
 
-            AccountAddress address = new AccountAddress(
-                    number,
-                    customName != null? customName : number,
-                    customOwner != null? customOwner : primaryOwner
-            );
-
-            map.put(address, balance);
+            for(PlayerData playerData: players)
+                writer.writePlayer(playerData);
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
         }
-
-        return map;
     }
 
     @Override
@@ -442,6 +666,12 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         // Unsupported
     }
 
+    @Override
+    public void visitPlayerNames(@Nonnull Visitor<Map.Entry<UUID, String>> visitor) throws DataStoreException
+    {
+        // Unsupported
+    }
+
     @Nullable
     @Override
     public UUID getPlayerIdByName(@Nonnull String name) throws DataStoreException
@@ -471,6 +701,14 @@ public class NbtDB extends AbstractDB<AbstractDB.Account>
         // Unsupported
     }
 
+    @Nonnull
+    @Override
+    public List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException
+    {
+        // Unsupported
+        return Collections.emptyList();
+    }
+
     @Override
     public int getPendingDeliveries(@Nonnull UUID persistentID) throws DataStoreException
     {
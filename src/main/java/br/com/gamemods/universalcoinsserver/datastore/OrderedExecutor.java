@@ -0,0 +1,186 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed amount of single threaded lanes, every key is bound to a lane so the tasks submitted with
+ * the same key run in the submission order.
+ * <p>
+ * A task with keys bound to multiple lanes waits until all of its lanes reach it and holds them while it runs.
+ * The submission to multiple lanes is atomic so those tasks are always queued in the same relative order and
+ * can't wait for each other.
+ */
+class OrderedExecutor implements Closeable
+{
+    private final ExecutorService[] lanes;
+    private final Object submitLock = new Object();
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    OrderedExecutor(int threads, @Nonnull final String name)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("threads: "+threads);
+
+        lanes = new ExecutorService[threads];
+        for(int i = 0; i < threads; i++)
+        {
+            final String threadName = name+" #"+(i+1);
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(@Nonnull Runnable r)
+                {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private int lane(Object key)
+    {
+        return (key.hashCode() & 0x7FFFFFFF) % lanes.length;
+    }
+
+    /**
+     * @param keys The keys that the task touches, any lane is used when it's empty
+     * @throws RejectedExecutionException If the executor was closed
+     */
+    void execute(@Nonnull Collection<?> keys, @Nonnull Runnable task) throws RejectedExecutionException
+    {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for(Object key: keys)
+            if(key != null)
+                indexes.add(lane(key));
+
+        if(indexes.isEmpty())
+            indexes.add((nextLane.getAndIncrement() & 0x7FFFFFFF) % lanes.length);
+
+        if(indexes.size() == 1)
+        {
+            lanes[indexes.first()].execute(task);
+            return;
+        }
+
+        execute(indexes, task);
+    }
+
+    /**
+     * Runs the task after every task that was submitted before it and before any task submitted after it
+     */
+    void executeAll(@Nonnull Runnable task) throws RejectedExecutionException
+    {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for(int i = 0; i < lanes.length; i++)
+            indexes.add(i);
+
+        if(indexes.size() == 1)
+            lanes[0].execute(task);
+        else
+            execute(indexes, task);
+    }
+
+    private void execute(final TreeSet<Integer> indexes, final Runnable task)
+    {
+        final CountDownLatch arrived = new CountDownLatch(indexes.size() - 1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Runnable barrier = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                arrived.countDown();
+                awaitUninterruptibly(done);
+            }
+        };
+
+        Runnable main = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    awaitUninterruptibly(arrived);
+                    task.run();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }
+        };
+
+        synchronized (submitLock)
+        {
+            Integer first = indexes.first();
+            for(Integer index: indexes)
+                if(!index.equals(first))
+                    lanes[index].execute(barrier);
+            lanes[first].execute(main);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued ones to finish
+     */
+    boolean close(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        synchronized (submitLock)
+        {
+            for(ExecutorService lane: lanes)
+                lane.shutdown();
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(ExecutorService lane: lanes)
+            if(!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                return false;
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            close(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
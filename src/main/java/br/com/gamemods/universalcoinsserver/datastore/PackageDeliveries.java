@@ -0,0 +1,156 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.ChatComponentTranslation;
+import net.minecraft.util.ChatStyle;
+import net.minecraft.util.ChunkCoordinates;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.IChatComponent;
+import net.minecraft.world.World;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The inventory side of the package deliveries, the packages are claimed by {@link CardDataBase#claimPackages(UUID, int)}
+ * and then given by the server thread
+ */
+final class PackageDeliveries
+{
+    private PackageDeliveries()
+    {
+    }
+
+    /**
+     * Claims and gives the packages on the current thread, must be the server thread
+     */
+    static void deliver(@Nonnull CardDataBase db, @Nonnull EntityPlayer player) throws DataStoreException
+    {
+        UUID playerId = player.getPersistentID();
+        int emptySlots = countEmptySlots(player);
+        List<ItemStack> packages = emptySlots == 0? Collections.<ItemStack>emptyList() : db.claimPackages(playerId, emptySlots);
+        give(player, packages, db.getPendingDeliveries(playerId));
+    }
+
+    /**
+     * @return How many packages fit on the main inventory of the player
+     */
+    static int countEmptySlots(@Nonnull EntityPlayer player)
+    {
+        int count = 0;
+        for(ItemStack stack: player.inventory.mainInventory)
+            if(stack == null)
+                count++;
+        return count;
+    }
+
+    /**
+     * Gives the claimed packages to the player, the ones that don't fit anymore because the inventory changed after
+     * they were claimed are dropped at the player
+     * @param remaining The amount of packages that are still pending, the player is told that the inventory is full
+     *                  when it's not zero
+     */
+    static void give(@Nonnull EntityPlayer player, @Nonnull List<ItemStack> packages, int remaining)
+    {
+        for(ItemStack stack: packages)
+        {
+            int slot = player.inventory.getFirstEmptyStack();
+            if(slot == -1)
+                player.entityDropItem(stack, 0.0F);
+            else
+                player.inventory.setInventorySlotContents(slot, stack);
+
+            player.addChatComponentMessage(
+                    new ChatComponentText(stack.stackTagCompound.getString("sender"))
+                            .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.GREEN))
+                            .appendSibling(new ChatComponentTranslation("packager.message.sent"))
+            );
+        }
+
+        if(remaining > 0)
+            player.addChatComponentMessage(new ChatComponentTranslation("sign.warning.inventoryfull").setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
+
+        if(!packages.isEmpty())
+            player.inventoryContainer.detectAndSendChanges();
+    }
+
+    /**
+     * Stores again the claimed packages that could not be given, because the player left or the server stopped
+     * before the server thread could give them. The tags added by the claim are removed so the package is stored
+     * as it was sent.
+     */
+    static void requeue(@Nonnull CardDataBase db, @Nonnull UUID playerId, @Nonnull List<ItemStack> packages)
+    {
+        for(ItemStack stack: packages)
+        {
+            String sender = stack.stackTagCompound.getString("sender");
+            stack.stackTagCompound.removeTag("sender");
+            stack.stackTagCompound.removeTag("sent");
+            stack.stackTagCompound.removeTag("received");
+            try
+            {
+                db.storePackage(stack, new Sender(sender), playerId);
+            }
+            catch (Exception e)
+            {
+                UniversalCoinsServer.logger.error("Failed to return the package "+stack.writeToNBT(new NBTTagCompound())+" sent by "+sender+" to the pending deliveries of "+playerId, e);
+            }
+        }
+    }
+
+    /**
+     * The sender of a package that is stored again, only the name is kept
+     */
+    private static final class Sender implements ICommandSender
+    {
+        private final String name;
+
+        Sender(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String getCommandSenderName()
+        {
+            return name;
+        }
+
+        @Override
+        public IChatComponent func_145748_c_()
+        {
+            return new ChatComponentText(name);
+        }
+
+        @Override
+        public void addChatMessage(IChatComponent message)
+        {
+        }
+
+        @Override
+        public boolean canCommandSenderUseCommand(int level, String command)
+        {
+            return false;
+        }
+
+        @Override
+        public ChunkCoordinates getPlayerCoordinates()
+        {
+            return new ChunkCoordinates(0, 0, 0);
+        }
+
+        @Override
+        public World getEntityWorld()
+        {
+            return MinecraftServer.getServer().getEntityWorld();
+        }
+    }
+}
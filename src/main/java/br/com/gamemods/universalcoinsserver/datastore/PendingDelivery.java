@@ -0,0 +1,76 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * A package that was stored by {@link CardDataBase#storePackage(net.minecraft.item.ItemStack, net.minecraft.command.ICommandSender, UUID)}
+ * and was not delivered yet, as it's exported to a snapshot
+ */
+public final class PendingDelivery
+{
+    @Nonnull
+    private final UUID targetId;
+    @Nonnull
+    private final String sender;
+    @Nullable
+    private final UUID senderId;
+    private final long sent;
+    @Nonnull
+    private final String item;
+
+    /**
+     * @param item The package item stack written as a NBT string
+     */
+    public PendingDelivery(@Nonnull UUID targetId, @Nonnull String sender, @Nullable UUID senderId, long sent, @Nonnull String item)
+    {
+        this.targetId = targetId;
+        this.sender = sender;
+        this.senderId = senderId;
+        this.sent = sent;
+        this.item = item;
+    }
+
+    @Nonnull
+    public UUID getTargetId()
+    {
+        return targetId;
+    }
+
+    @Nonnull
+    public String getSender()
+    {
+        return sender;
+    }
+
+    @Nullable
+    public UUID getSenderId()
+    {
+        return senderId;
+    }
+
+    public long getSent()
+    {
+        return sent;
+    }
+
+    /**
+     * @return The package item stack written as a NBT string
+     */
+    @Nonnull
+    public String getItem()
+    {
+        return item;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PendingDelivery{" +
+                "targetId=" + targetId +
+                ", sender='" + sender + '\'' +
+                ", sent=" + sent +
+                '}';
+    }
+}
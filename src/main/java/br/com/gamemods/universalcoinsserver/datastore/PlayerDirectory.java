@@ -0,0 +1,254 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Keeps the names of all known players in memory so the name lookups done while typing don't reach the database.
+ * <p>
+ * The names are loaded once from {@link CardDataBase#visitPlayerNames(CardDataBase.Visitor)} and kept current by
+ * {@link #updatePlayerName(UUID, String)}, which only writes to the database when the name really changed.
+ * The names are case-insensitive, exact searches use a map and prefix searches use a trie of the lower-cased names.
+ * If two players used the same name, the last one that was registered with it is the one found.
+ */
+public class PlayerDirectory
+{
+    /**
+     * a-z, 0-9 and _, the characters allowed on player names
+     */
+    private static final int ALPHABET = 37;
+
+    private final CardDataBase db;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<UUID, Entry> byId = new HashMap<>();
+    private final Node root = new Node();
+
+    private static final class Entry
+    {
+        final UUID id;
+        final String name;
+        final String key;
+
+        Entry(UUID id, String name)
+        {
+            this.id = id;
+            this.name = name;
+            this.key = name.toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static final class Node
+    {
+        Node[] children;
+        Entry entry;
+        int size;
+    }
+
+    public PlayerDirectory(@Nonnull CardDataBase db)
+    {
+        this.db = db;
+    }
+
+    /**
+     * Replaces the directory contents with the names stored in the database
+     * @return The amount of names loaded
+     */
+    public int load() throws DataStoreException
+    {
+        final Map<UUID, String> names = new HashMap<>();
+        db.visitPlayerNames(new CardDataBase.Visitor<Map.Entry<UUID, String>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<UUID, String> value)
+            {
+                names.put(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+
+        synchronized (this)
+        {
+            byName.clear();
+            byId.clear();
+            root.children = null;
+            root.entry = null;
+            root.size = 0;
+            for(Map.Entry<UUID, String> entry: names.entrySet())
+                put(entry.getKey(), entry.getValue());
+            return byId.size();
+        }
+    }
+
+    /**
+     * Registers the current name of a player, the database is only updated if the name is different from the known one
+     * @return {@code true} if the name changed
+     */
+    public boolean updatePlayerName(@Nonnull UUID persistentID, @Nonnull String name) throws DataStoreException
+    {
+        synchronized (this)
+        {
+            Entry current = byId.get(persistentID);
+            if(current != null && current.name.equals(name))
+                return false;
+        }
+
+        db.updatePlayerName(persistentID, name);
+
+        synchronized (this)
+        {
+            put(persistentID, name);
+        }
+        return true;
+    }
+
+    @Nullable
+    public synchronized UUID getPlayerIdByName(@Nonnull String name)
+    {
+        Entry entry = byName.get(name.toLowerCase(Locale.ENGLISH));
+        return entry == null? null : entry.id;
+    }
+
+    @Nullable
+    public synchronized String getPlayerName(@Nonnull UUID persistentID)
+    {
+        Entry entry = byId.get(persistentID);
+        return entry == null? null : entry.name;
+    }
+
+    /**
+     * Finds the players which the name starts with the searched text, ignoring the case
+     * @param limit The maximum amount of players returned
+     * @return The players found sorted by name, empty if the searched text can't be a player name
+     */
+    @Nonnull
+    public synchronized Map<UUID, String> findPlayerByName(@Nonnull String prefix, int limit)
+    {
+        Map<UUID, String> matches = new LinkedHashMap<>();
+        if(prefix.isEmpty() || limit < 1)
+            return matches;
+
+        Node node = root;
+        String key = prefix.toLowerCase(Locale.ENGLISH);
+        for(int i = 0; i < key.length() && node != null; i++)
+        {
+            int index = index(key.charAt(i));
+            if(index < 0 || node.children == null)
+                return matches;
+            node = node.children[index];
+        }
+
+        if(node != null)
+            collect(node, matches, limit);
+        return matches;
+    }
+
+    public synchronized int size()
+    {
+        return byId.size();
+    }
+
+    private static void collect(Node node, Map<UUID, String> matches, int limit)
+    {
+        if(node.entry != null)
+            matches.put(node.entry.id, node.entry.name);
+
+        if(node.children == null)
+            return;
+
+        for(Node child: node.children)
+        {
+            if(matches.size() >= limit)
+                return;
+            if(child != null)
+                collect(child, matches, limit);
+        }
+    }
+
+    private void put(UUID id, String name)
+    {
+        Entry previous = byId.get(id);
+        if(previous != null && byName.get(previous.key) == previous)
+        {
+            byName.remove(previous.key);
+            remove(previous);
+        }
+
+        Entry entry = new Entry(id, name);
+        byId.put(id, entry);
+
+        Entry replaced = byName.put(entry.key, entry);
+        if(replaced != null)
+            remove(replaced);
+        insert(entry);
+    }
+
+    private void insert(Entry entry)
+    {
+        String key = entry.key;
+        for(int i = 0; i < key.length(); i++)
+            if(index(key.charAt(i)) < 0)
+                return;
+
+        Node node = root;
+        node.size++;
+        for(int i = 0; i < key.length(); i++)
+        {
+            if(node.children == null)
+                node.children = new Node[ALPHABET];
+
+            int index = index(key.charAt(i));
+            Node child = node.children[index];
+            if(child == null)
+                node.children[index] = child = new Node();
+            node = child;
+            node.size++;
+        }
+        node.entry = entry;
+    }
+
+    /**
+     * Removes the entry from the trie and drops the nodes that became empty
+     */
+    private void remove(Entry entry)
+    {
+        String key = entry.key;
+        Node node = root;
+        for(int i = 0; i < key.length(); i++)
+        {
+            int index = index(key.charAt(i));
+            if(index < 0 || node.children == null || node.children[index] == null)
+                return;
+            node = node.children[index];
+        }
+
+        if(node.entry != entry)
+            return;
+        node.entry = null;
+
+        node = root;
+        node.size--;
+        for(int i = 0; i < key.length(); i++)
+        {
+            int index = index(key.charAt(i));
+            Node child = node.children[index];
+            if(--child.size == 0)
+            {
+                node.children[index] = null;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private static int index(char c)
+    {
+        if(c >= 'a' && c <= 'z')
+            return c - 'a';
+        if(c >= '0' && c <= '9')
+            return 26 + c - '0';
+        if(c == '_')
+            return 36;
+        return -1;
+    }
+}
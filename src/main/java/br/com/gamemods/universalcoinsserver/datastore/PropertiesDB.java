@@ -12,66 +12,333 @@ import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.JsonToNBT;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.tileentity.TileEntity;
-import net.minecraft.util.ChatComponentText;
-import net.minecraft.util.ChatComponentTranslation;
-import net.minecraft.util.ChatStyle;
-import net.minecraft.util.EnumChatFormatting;
 import net.minecraft.world.World;
+import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
-public class PropertiesDB implements CardDataBase
+public class PropertiesDB implements CardDataBase, Closeable
 {
     private final File baseDir, accounts, players, logs;
+    private final PropertiesStore store;
+    private final DeliveryCounters deliveryCounters;
+    @Nullable
+    private TransactionLog transactionLog;
+    @Nullable
+    private SalesRollups salesRollups;
+    @Nullable
+    private TransactionArchiver archiver;
+    @Nullable
+    private volatile LedgerReconciler reconciler;
+    private final AccountLocks locks = new AccountLocks(64);
+    private final AccountNumberAllocator accountNumbers;
+    private final Object machineLock = new Object();
     private SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss Z: ");
     private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd-HH");
 
     public PropertiesDB(File baseDir) throws IOException
+    {
+        this(baseDir, new PropertiesStore());
+    }
+
+    /**
+     * Loads all accounts, players, custom accounts and machines to memory. The changes are applied in memory and
+     * written by a background thread after {@code flushInterval} milliseconds, the pending changes are written
+     * when the database is closed.
+     */
+    public PropertiesDB(File baseDir, long flushInterval) throws IOException, DataStoreException
+    {
+        this(baseDir, new PropertiesStore(flushInterval));
+
+        int loaded = store.preload(accounts);
+        store.preload(createDir(accounts, "custom"));
+        loaded += store.preload(players);
+        store.preload(createDir(baseDir, "machines"));
+        UniversalCoinsServer.logger.info("Loaded "+loaded+" accounts and players to memory");
+    }
+
+    private PropertiesDB(File baseDir, PropertiesStore store) throws IOException
     {
         this.baseDir = baseDir;
+        this.store = store;
         if(!baseDir.isDirectory() && !baseDir.mkdirs())
             throw new IOException(baseDir.getAbsolutePath()+" is not a directory");
 
         accounts = createDir(baseDir, "accounts");
         players = createDir(baseDir, "players");
         logs = createDir(baseDir, "logs");
+
+        accountNumbers = new AccountNumberAllocator(AccountNumberAllocator.fileSequence(new File(baseDir, "account-sequence.dat")),
+                new AccountNumberAllocator.UsageCheck()
+                {
+                    @Nonnull
+                    @Override
+                    public List<String> findUsed(@Nonnull List<String> numbers)
+                    {
+                        List<String> used = new ArrayList<>();
+                        for(String number: numbers)
+                            if(store.exists(new File(accounts, number+".properties")))
+                                used.add(number);
+                        return used;
+                    }
+                }, 100);
+
+        File deliveries = createDir(players, "deliveries");
+        deliveryCounters = new DeliveryCounters(new File(deliveries, "pending.dat"));
+        if(!deliveryCounters.load())
+        {
+            Map<UUID, Integer> pending = countDeliveries(deliveries);
+            deliveryCounters.replaceAll(pending);
+            UniversalCoinsServer.logger.info("Rebuilt the pending delivery counters of "+pending.size()+" players");
+        }
     }
 
-    private File createDir(File base, String name) throws IOException
+    /**
+     * Lists all delivery directories, used only when the counters file is missing
+     */
+    private static Map<UUID, Integer> countDeliveries(File deliveries)
     {
-        File dir = new File(base, name);
-        if(!dir.isDirectory() && !dir.mkdirs())
-            throw new IOException("Failed to create dir: "+dir.getAbsolutePath());
-        return dir;
+        Map<UUID, Integer> pending = new HashMap<>();
+        File[] dirs = deliveries.listFiles();
+        if(dirs == null)
+            return pending;
+
+        for(File dir: dirs)
+        {
+            UUID playerId;
+            try
+            {
+                playerId = UUID.fromString(dir.getName());
+            }
+            catch (IllegalArgumentException e)
+            {
+                continue;
+            }
+
+            int count = countDeliveryFiles(dir.listFiles());
+            if(count > 0)
+                pending.put(playerId, count);
+        }
+        return pending;
     }
 
-    private Properties loadProperties(File file) throws DataStoreException
+    private static boolean isDeliveryFile(File file)
     {
-        if(!file.isFile())
-            return null;
+        String name = file.getName().toLowerCase();
+        return name.startsWith("delivery_") && name.endsWith(".properties");
+    }
+
+    private static int countDeliveryFiles(File[] files)
+    {
+        if(files == null)
+            return 0;
+
+        int count = 0;
+        for(File file: files)
+            if(isDeliveryFile(file))
+                count++;
+        return count;
+    }
+
+    /**
+     * Writes the changes that are still in memory
+     */
+    public void flush()
+    {
+        store.flush();
+    }
+
+    /**
+     * Makes the transactions be appended to a segmented log on {@code logs/segments} instead of being saved as one
+     * file per transaction and one line on the machine log
+     * @param segmentSize The size in bytes of each segment
+     * @param sync If each transaction must reach the disk before the operation completes
+     */
+    public void enableTransactionLog(long segmentSize, boolean sync) throws IOException
+    {
+        if(transactionLog != null)
+            throw new IllegalStateException("The transaction log is already enabled");
+
+        transactionLog = new TransactionLog(new File(logs, "segments"), segmentSize, sync);
+    }
+
+    @Nullable
+    public TransactionLog getTransactionLog()
+    {
+        return transactionLog;
+    }
+
+    /**
+     * Counts the sales of the machines and their owners in memory and saves them to {@code logs/sales-rollups.dat}.
+     * The machine properties files stop receiving the transaction counter, which rewrote the whole file on every trade.
+     * @param hourRetention Milliseconds that the hourly counters are kept
+     * @param dayRetention Milliseconds that the daily counters are kept
+     */
+    @Nonnull
+    public SalesRollups enableSalesRollups(long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        if(salesRollups != null)
+            throw new IllegalStateException("The sales rollups are already enabled");
+
+        salesRollups = new SalesRollups(new File(logs, "sales-rollups.dat"), flushInterval, hourRetention, dayRetention);
+        return salesRollups;
+    }
+
+    @Nullable
+    public SalesRollups getSalesRollups()
+    {
+        return salesRollups;
+    }
+
+    /**
+     * Moves the transactions older than the retention to {@code logs/archive} on a background thread. The oldest
+     * segments of the transaction log are compressed one at a time, without the transaction log each hour directory
+     * is compressed to a zip file.
+     * @see TransactionArchiver
+     */
+    @Nonnull
+    public TransactionArchiver enableTransactionArchive(long retention, int chunkSize, long chunkPause, long interval)
+    {
+        if(archiver != null)
+            throw new IllegalStateException("The transaction archive is already enabled");
+
+        archiver = new TransactionArchiver(new TransactionArchiver.Target()
+        {
+            @Override
+            public int archiveTransactions(long before, int limit) throws DataStoreException
+            {
+                return PropertiesDB.this.archiveTransactions(before);
+            }
+        }, retention, chunkSize, chunkPause, interval);
+        return archiver;
+    }
+
+    /**
+     * Verifies the balance of the accounts against the transaction log on a background thread, the checkpoint is
+     * saved to {@code logs/reconciliation.dat}. The hour directories don't keep the order of the transactions, so they can't be verified.
+     * @see LedgerReconciler
+     */
+    @Nonnull
+    public LedgerReconciler enableReconciliation(int chunkSize, int budget, long interval) throws IOException
+    {
+        if(reconciler != null)
+            throw new IllegalStateException("The ledger reconciliation is already enabled");
+        if(transactionLog == null)
+            throw new IllegalStateException("The ledger reconciliation requires the transaction log");
+
+        reconciler = new LedgerReconciler(LedgerReconciler.of(transactionLog), this, new File(logs, "reconciliation.dat"),
+                chunkSize, budget, interval);
+        return reconciler;
+    }
 
-        Properties properties = new SortedProperties();
-        try(FileReader reader = new FileReader(file))
+    private int archiveTransactions(long before) throws DataStoreException
+    {
+        File archive = new File(logs, "archive");
+        try
         {
-            properties.load(reader);
+            TransactionLog log = transactionLog;
+            if(log != null)
+            {
+                // The segments that the reconciler didn't read yet are kept
+                LedgerReconciler reconciler = this.reconciler;
+                return log.archiveOldest(before, reconciler == null? null : reconciler.getSavedCheckpoint(), archive);
+            }
+
+            File[] hours = new File(logs, "transactions").listFiles();
+            if(hours == null)
+                return 0;
+
+            Arrays.sort(hours);
+            SimpleDateFormat hourFormat = new SimpleDateFormat("yyyy.MM.dd-HH");
+            for(File hour: hours)
+            {
+                Date start = hourFormat.parse(hour.getName(), new ParsePosition(0));
+                if(!hour.isDirectory() || hour.getName().endsWith(".converted") || start == null)
+                    continue;
+
+                if(start.getTime() + 3600000L > before)
+                    return 0;
+
+                return archiveHour(hour, archive);
+            }
+            return 0;
         }
-        catch (Exception e)
+        catch (IOException e)
         {
             throw new DataStoreException(e);
         }
+    }
+
+    /**
+     * Compresses the transaction files of an hour directory to a zip file and deletes the directory
+     * @return The amount of transactions archived, at least one so the next directory is archived
+     */
+    private int archiveHour(File hour, File archive) throws IOException
+    {
+        File[] files = hour.listFiles();
+        if(files == null)
+            throw new IOException("Failed to list files on "+hour.getAbsolutePath());
+
+        createDir(logs, "archive");
+        File zip = new File(archive, hour.getName()+".zip");
+        File temp = new File(archive, zip.getName()+".tmp");
+        try(FileOutputStream out = new FileOutputStream(temp))
+        {
+            ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(out, 65536));
+            for(File file: files)
+            {
+                zipOut.putNextEntry(new ZipEntry(file.getName()));
+                Files.copy(file.toPath(), zipOut);
+                zipOut.closeEntry();
+            }
+            zipOut.finish();
+            zipOut.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), zip.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        for(File file: files)
+            Files.delete(file.toPath());
+        Files.delete(hour.toPath());
+        return Math.max(files.length, 1);
+    }
+
+    @Override
+    public void close()
+    {
+        if(reconciler != null)
+            reconciler.close();
+        if(archiver != null)
+            archiver.close();
+        store.close();
+        if(transactionLog != null)
+            transactionLog.close();
+        if(salesRollups != null)
+            salesRollups.close();
+    }
+
+    private File createDir(File base, String name) throws IOException
+    {
+        File dir = new File(base, name);
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create dir: "+dir.getAbsolutePath());
+        return dir;
+    }
 
-        return properties;
+    private Properties loadProperties(File file) throws DataStoreException
+    {
+        return store.load(file);
     }
 
     @Nonnull
@@ -82,7 +349,7 @@ public class PropertiesDB implements CardDataBase
 
         File playerFile = new File(players, playerId+".properties");
         Properties playerData;
-        if(!playerFile.isFile() || (playerData = loadProperties(playerFile)) == null)
+        if((playerData = loadProperties(playerFile)) == null)
             playerData = new SortedProperties();
 
         if(!playerData.containsKey("version"))
@@ -100,15 +367,7 @@ public class PropertiesDB implements CardDataBase
 
     private void saveAccount(String account, Properties properties) throws DataStoreException
     {
-        File accountFile = new File(accounts, account+".properties");
-        try(FileWriter writer = new FileWriter(accountFile))
-        {
-            properties.store(writer, "Account: "+account);
-        }
-        catch (Exception e)
-        {
-            throw new DataStoreException(e);
-        }
+        store.save(getAccountFile(account), properties, "Account: "+account);
     }
 
     @Nonnull
@@ -183,9 +442,9 @@ public class PropertiesDB implements CardDataBase
             if(removedPrimary != null || removedAlternatives != null)
             {
                 incrementInt(properties, "version", Integer.MIN_VALUE);
-                try(FileWriter writer = new FileWriter(getPlayerFile(playerUID)))
+                try
                 {
-                    properties.store(writer, "Removed some accounts");
+                    store.save(getPlayerFile(playerUID), properties, "Removed some accounts");
                 }
                 catch (Exception e)
                 {
@@ -212,12 +471,6 @@ public class PropertiesDB implements CardDataBase
         properties.setProperty(key, val);
     }
 
-    private String generateAccountNumber()
-    {
-        String str = Long.toString((long) (Math.floor(Math.random() * 99999999999L) + 11111111111L));
-        return str.substring(0,3)+"."+str.substring(3,6)+"."+str.substring(6,9)+"-"+str.substring(9,11);
-    }
-
     @Nonnull
     @Override
     public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
@@ -233,10 +486,7 @@ public class PropertiesDB implements CardDataBase
 
             playerData.setProperty("version", Integer.toString(version + 1));
             playerData.setProperty("account", account.getNumber() + ";" + account.getName());
-            try (FileWriter writer = new FileWriter(new File(players, playerUID + ".properties")))
-            {
-                playerData.store(writer, "Primary account created");
-            }
+            store.save(getPlayerFile(playerUID), playerData, "Primary account created");
 
             return account;
         }
@@ -254,13 +504,8 @@ public class PropertiesDB implements CardDataBase
     {
         try
         {
-            String number;
-            File file;
-            do
-            {
-                number = generateAccountNumber();
-                file = new File(accounts, number+".properties");
-            } while (file.exists());
+            String number = accountNumbers.next();
+            File file = new File(accounts, number+".properties");
 
             Properties properties = new SortedProperties();
             properties.setProperty("version", Integer.toString(Integer.MIN_VALUE));
@@ -269,10 +514,7 @@ public class PropertiesDB implements CardDataBase
             properties.setProperty("balance", "0");
             properties.setProperty("name", name);
 
-            try(FileWriter writer = new FileWriter(file))
-            {
-                properties.store(writer, "Recently created");
-            }
+            store.save(file, properties, "Recently created");
 
             return new AccountAddress(number, name, playerUID);
         }
@@ -394,17 +636,8 @@ public class PropertiesDB implements CardDataBase
     {
         try
         {
-            File file = getCustomAccountFile(customAccountName);
-            if(!file.exists())
-                return null;
-
-            Properties properties = new Properties();
-            try(FileReader reader = new FileReader(file))
-            {
-                properties.load(reader);
-            }
-
-            if(properties.getProperty("removed", "false").equals("true"))
+            Properties properties = loadProperties(getCustomAccountFile(customAccountName));
+            if(properties == null || properties.getProperty("removed", "false").equals("true"))
                 return null;
 
             return new AccountAddress(properties.getProperty("number"), properties.getProperty("name"),
@@ -454,94 +687,82 @@ public class PropertiesDB implements CardDataBase
     private AccountAddress transferAccount(AccountAddress origin, String destiny, Machine machine, Operator operator, boolean primary)
             throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
     {
-        Properties originAccount = loadAccount(origin.getNumber().toString());
-        if(originAccount == null || originAccount.getProperty("removed","false").equals("true"))
-            throw new AccountNotFoundException(origin.getNumber());
-
-        Properties playerData = loadPlayer(origin.getOwner());
-        int playerVersion = readVersion(playerData);
-        int originVersion = readVersion(originAccount);
-
-        AccountAddress address = (primary)? createAccount(origin.getOwner(), destiny) : createCustomAccount(origin.getOwner(), destiny);
-
-        Properties destinyAccount = loadAccount(address.getNumber().toString());
-        destinyAccount.setProperty("balance", originAccount.getProperty("balance", "0"));
-        originAccount.setProperty("balance", "0");
-        originAccount.setProperty("removed", "true");
-        originAccount.setProperty("transferred.number", address.getNumber().toString());
-        originAccount.setProperty("transferred.name", address.getName());
-        if(primary)
-            playerData.setProperty("account", address.getNumber()+";"+address.getName());
-        else
-        {
-            String property = playerData.getProperty("alternative.accounts", "").replaceFirst("\\|?" + Pattern.quote(origin.getNumber() + ";" + origin.getName()), "").replaceFirst("^\\|", "");
-            if (property.isEmpty())
-                playerData.setProperty("alternative.accounts", address.getNumber() + ";" + address.getName());
+        try(AccountLocks.Hold hold = locks.lock(origin.getNumber().toString()))
+        {
+            Properties originAccount = loadAccount(origin.getNumber().toString());
+            if(originAccount == null || originAccount.getProperty("removed","false").equals("true"))
+                throw new AccountNotFoundException(origin.getNumber());
+
+            Properties playerData = loadPlayer(origin.getOwner());
+            int playerVersion = readVersion(playerData);
+            int originVersion = readVersion(originAccount);
+
+            AccountAddress address = (primary)? createAccount(origin.getOwner(), destiny) : createCustomAccount(origin.getOwner(), destiny);
+
+            Properties destinyAccount = loadAccount(address.getNumber().toString());
+            destinyAccount.setProperty("balance", originAccount.getProperty("balance", "0"));
+            originAccount.setProperty("balance", "0");
+            originAccount.setProperty("removed", "true");
+            originAccount.setProperty("transferred.number", address.getNumber().toString());
+            originAccount.setProperty("transferred.name", address.getName());
+            if(primary)
+                playerData.setProperty("account", address.getNumber()+";"+address.getName());
             else
-                playerData.setProperty("alternative.accounts", property + "|" + address.getNumber() + ";" + address.getName());
-        }
-
-        incrementInt(playerData, "version", 2, Integer.MIN_VALUE);
-        incrementInt(originAccount, "version", Integer.MIN_VALUE);
-        incrementInt(destinyAccount, "version", Integer.MIN_VALUE);
-
-        try
-        {
-            ItemStack oldCard = UniversalCoinsServerAPI.createCard(origin, !primary);
-            ItemStack newCard = UniversalCoinsServerAPI.createCard(address, !primary);
-            int balance = readInt(destinyAccount, "balance", 0);
-            Transaction transaction = new Transaction(machine, Transaction.Operation.TRANSFER_ACCOUNT, operator,
-                    new Transaction.CardCoinSource(oldCard, origin, balance, 0),
-                    new Transaction.CardCoinSource(newCard, address, 0, balance),
-                    null);
-
-            saveTransaction(transaction);
-
-
-            try (FileWriter writer = new FileWriter(getAccountFile(origin.getNumber().toString())))
             {
-                originAccount.store(writer, "Transferred to " + address.getNumber());
+                String property = playerData.getProperty("alternative.accounts", "").replaceFirst("\\|?" + Pattern.quote(origin.getNumber() + ";" + origin.getName()), "").replaceFirst("^\\|", "");
+                if (property.isEmpty())
+                    playerData.setProperty("alternative.accounts", address.getNumber() + ";" + address.getName());
+                else
+                    playerData.setProperty("alternative.accounts", property + "|" + address.getNumber() + ";" + address.getName());
             }
 
-            try(FileWriter writer = new FileWriter(getAccountFile(address.getNumber().toString())))
-            {
-                destinyAccount.store(writer, "Transferred from "+origin.getNumber());
-            }
+            incrementInt(playerData, "version", 2, Integer.MIN_VALUE);
+            incrementInt(originAccount, "version", Integer.MIN_VALUE);
+            incrementInt(destinyAccount, "version", Integer.MIN_VALUE);
 
-            try(FileWriter writer = new FileWriter(getPlayerFile(origin.getOwner())))
+            try
             {
-                playerData.store(writer, "Transferred "+origin.getNumber()+"("+origin.getName()+") to "+address.getNumber()+"("+address.getName()+")");
-            }
+                ItemStack oldCard = UniversalCoinsServerAPI.createCard(origin, !primary);
+                ItemStack newCard = UniversalCoinsServerAPI.createCard(address, !primary);
+                int balance = readInt(destinyAccount, "balance", 0);
+                Transaction transaction = new Transaction(machine, Transaction.Operation.TRANSFER_ACCOUNT, operator,
+                        new Transaction.CardCoinSource(oldCard, origin, balance, 0),
+                        new Transaction.CardCoinSource(newCard, address, 0, balance),
+                        null);
 
-            if(!primary) try
-            {
-                Properties properties = new SortedProperties();
-                File customAccount = getCustomAccountFile(origin.getName());
-                try(FileReader reader = new FileReader(customAccount))
+                saveTransaction(transaction);
+
+
+                store.save(getAccountFile(origin.getNumber().toString()), originAccount, "Transferred to " + address.getNumber());
+                store.save(getAccountFile(address.getNumber().toString()), destinyAccount, "Transferred from "+origin.getNumber());
+                store.save(getPlayerFile(origin.getOwner()), playerData,
+                        "Transferred "+origin.getNumber()+"("+origin.getName()+") to "+address.getNumber()+"("+address.getName()+")");
+
+                if(!primary) try
                 {
-                    properties.load(reader);
-                }
+                    File customAccount = getCustomAccountFile(origin.getName());
+                    Properties properties = loadProperties(customAccount);
+                    if(properties == null)
+                        throw new FileNotFoundException(customAccount.getPath());
 
-                properties.setProperty("removed", "true");
-                properties.setProperty("transferred.number", address.getNumber().toString());
-                properties.setProperty("transferred.name", address.getName());
-                incrementInt(properties, "version", Integer.MIN_VALUE);
+                    properties.setProperty("removed", "true");
+                    properties.setProperty("transferred.number", address.getNumber().toString());
+                    properties.setProperty("transferred.name", address.getName());
+                    incrementInt(properties, "version", Integer.MIN_VALUE);
 
-                try(FileWriter writer = new FileWriter(customAccount))
+                    store.save(customAccount, properties, "Transferred to " + address.getNumber());
+                }
+                catch (Exception e)
                 {
-                    properties.store(writer, "Transferred to " + address.getNumber());
+                    e.printStackTrace();
                 }
+
+                return address;
             }
             catch (Exception e)
             {
-                e.printStackTrace();
+                throw new DataStoreException(e);
             }
-
-            return address;
-        }
-        catch (Exception e)
-        {
-            throw new DataStoreException(e);
         }
     }
 
@@ -556,7 +777,7 @@ public class PropertiesDB implements CardDataBase
             int version = readVersion(playerProperties);
 
             File file = getCustomAccountFile(customAccountName);
-            if(file.exists() && getCustomAccountByName(customAccountName) != null)
+            if(store.exists(file) && getCustomAccountByName(customAccountName) != null)
                 throw new DataBaseException("Account " + customAccountName + " already exists");
 
             AccountAddress account = createAccount(playerUID, customAccountName);
@@ -575,15 +796,8 @@ public class PropertiesDB implements CardDataBase
             custom.setProperty("name", account.getName());
             custom.setProperty("owner",account.getOwner().toString());
             custom.setProperty("version",Integer.toString(Integer.MIN_VALUE));
-            try(FileWriter writer = new FileWriter(file))
-            {
-                custom.store(writer, "Account created");
-            }
-
-            try(FileWriter writer = new FileWriter(getPlayerFile(playerUID)))
-            {
-                playerProperties.store(writer, "Custom account '"+customAccountName+"' created");
-            }
+            store.save(file, custom, "Account created");
+            store.save(getPlayerFile(playerUID), playerProperties, "Custom account '"+customAccountName+"' created");
 
             return account;
         }
@@ -602,46 +816,75 @@ public class PropertiesDB implements CardDataBase
     {
         Transaction.CoinSource ownerCoinSource = transaction.getOwnerCoinSource();
         Transaction.CoinSource userCoinSource = transaction.getUserCoinSource();
+        String ownerNumber = ownerCoinSource instanceof Transaction.CardCoinSource?
+                ((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress().getNumber().toString() : null;
+        String userNumber = userCoinSource instanceof Transaction.CardCoinSource?
+                ((Transaction.CardCoinSource) userCoinSource).getAccountAddress().getNumber().toString() : null;
+        int ownerDifference = ownerNumber == null? 0 : ownerCoinSource.getBalanceAfter() - ownerCoinSource.getBalanceBefore();
+        int userDifference = userNumber == null? 0 : userCoinSource.getBalanceAfter() - userCoinSource.getBalanceBefore();
+
+        try(AccountLocks.Hold hold = locks.lock(ownerNumber, userNumber))
+        {
+            // Both accounts are locked, so checking the funds first prevents the trade from being applied partially
+            if(ownerDifference < 0)
+                checkFunds(ownerNumber, -ownerDifference);
+            if(userDifference < 0)
+                checkFunds(userNumber, -userDifference);
+
+            if(ownerNumber != null)
+            {
+                if(ownerDifference < 0)
+                    takeCoins(ownerNumber, -ownerDifference);
+                else
+                    deposit(ownerNumber, ownerDifference);
+            }
 
-        if(ownerCoinSource instanceof Transaction.CardCoinSource)
-        {
-            int difference = ownerCoinSource.getBalanceAfter() - ownerCoinSource.getBalanceBefore();
-            if(difference < 0)
-                takeCoins(((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress(), -difference);
-            else
-                deposit(((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress(), difference);
-        }
+            if(userNumber != null)
+            {
+                if(userDifference < 0)
+                    takeCoins(userNumber, -userDifference);
+                else
+                    deposit(userNumber, userDifference);
+            }
 
-        if(userCoinSource instanceof Transaction.CardCoinSource)
-        {
-            int difference = userCoinSource.getBalanceAfter() - userCoinSource.getBalanceBefore();
-            if(difference < 0)
-                takeCoins(((Transaction.CardCoinSource) userCoinSource).getAccountAddress(), -difference);
-            else
-                deposit(((Transaction.CardCoinSource) userCoinSource).getAccountAddress(), difference);
+            saveTransaction(transaction);
         }
+    }
 
-        saveTransaction(transaction);
+    private void checkFunds(String account, int amount) throws DataStoreException, OutOfCoinsException
+    {
+        int balance = getAccountBalance(account);
+        if(balance >= 0 && balance < amount)
+            throw new OutOfCoinsException(amount - balance);
     }
 
 
     @Override
     public int takeFromAccount(@Nonnull Object account, int amount, @Nonnull Transaction transaction) throws DataStoreException, OutOfCoinsException
     {
-        Object[] ret = takeCoins(account, amount);
-        if(Boolean.TRUE.equals(ret[0]))
+        try(AccountLocks.Hold hold = locks.lock(accountNumber(account)))
         {
-            try
-            {
-                saveTransaction(transaction);
-            }
-            catch (Exception e)
+            Object[] ret = takeCoins(account, amount);
+            if(Boolean.TRUE.equals(ret[0]))
             {
-                e.printStackTrace();
+                try
+                {
+                    saveTransaction(transaction);
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
             }
+
+            return (int) ret[1];
         }
+    }
 
-        return (int) ret[1];
+    private static String accountNumber(Object account)
+    {
+        if(account instanceof AccountAddress) account = ((AccountAddress) account).getNumber();
+        return account.toString();
     }
 
     private Object[] takeCoins(Object account, int amount)
@@ -661,10 +904,7 @@ public class PropertiesDB implements CardDataBase
                 throw new OutOfCoinsException(-newBalance);
             incrementInt(properties, "version", Integer.MIN_VALUE);
 
-            try(FileWriter writer = new FileWriter(getAccountFile(account.toString())))
-            {
-                properties.store(writer, "Took "+amount+" from balance");;
-            }
+            store.save(getAccountFile(account.toString()), properties, "Took "+amount+" from balance");
 
             return new Object[]{true,newBalance};
         }
@@ -681,13 +921,16 @@ public class PropertiesDB implements CardDataBase
     @Override
     public int depositToAccount(@Nonnull Object account, Collection<ItemStack> coinsStacks, @Nonnull Transaction transaction) throws DataStoreException
     {
-        if(account instanceof AccountAddress) account = ((AccountAddress) account).getNumber();
-        int value = UniversalCoinsServerAPI.stackValue(coinsStacks);
-        if(value == 0)
-            return 0;
+        try(AccountLocks.Hold hold = locks.lock(accountNumber(account)))
+        {
+            if(account instanceof AccountAddress) account = ((AccountAddress) account).getNumber();
+            int value = UniversalCoinsServerAPI.stackValue(coinsStacks);
+            if(value == 0)
+                return 0;
 
-        Properties properties = loadAccount(account.toString());
-        return deposit(properties, account.toString(), value, transaction);
+            Properties properties = loadAccount(account.toString());
+            return deposit(properties, account.toString(), value, transaction);
+        }
     }
 
     private int deposit(Object account, int value) throws DataStoreException
@@ -729,10 +972,7 @@ public class PropertiesDB implements CardDataBase
             properties.setProperty("balance", Integer.toString(balance+value));
             incrementInt(properties, "version", Integer.MIN_VALUE);
 
-            try(FileWriter writer = new FileWriter(getAccountFile(account)))
-            {
-                properties.store(writer, "Balance increased by "+value);
-            }
+            store.save(getAccountFile(account), properties, "Balance increased by "+value);
 
             return new Object[]{true, 0};
         }
@@ -745,9 +985,12 @@ public class PropertiesDB implements CardDataBase
     @Override
     public int depositToAccount(@Nonnull Object account, int value, @Nonnull Transaction transaction) throws DataStoreException
     {
-        if(account instanceof AccountAddress) account = ((AccountAddress) account).getNumber();
-        Properties properties = loadAccount(account.toString());
-        return deposit(properties, account.toString(), value, transaction);
+        try(AccountLocks.Hold hold = locks.lock(accountNumber(account)))
+        {
+            if(account instanceof AccountAddress) account = ((AccountAddress) account).getNumber();
+            Properties properties = loadAccount(account.toString());
+            return deposit(properties, account.toString(), value, transaction);
+        }
     }
 
     private File getMachineLogFile(Machine machine) throws IOException
@@ -794,33 +1037,33 @@ public class PropertiesDB implements CardDataBase
 
     private void incrementTransactions(Machine machine, int increment, UUID lastTransaction) throws DataBaseException
     {
-        try
+        synchronized (machineLock)
         {
-            File file = getMachineFile(machine);
-            Properties properties = loadMachineProperties(machine);
-            if(properties == null)
+            try
             {
-                saveMachine(machine);
-                properties = loadMachineProperties(machine);
+                File file = getMachineFile(machine);
+                Properties properties = loadMachineProperties(machine);
                 if(properties == null)
-                    throw new DataBaseException("Failed to load machine properties: "+machine.getMachineId());
-            }
+                {
+                    saveMachine(machine);
+                    properties = loadMachineProperties(machine);
+                    if(properties == null)
+                        throw new DataBaseException("Failed to load machine properties: "+machine.getMachineId());
+                }
 
-            storeMachine(properties, machine);
+                storeMachine(properties, machine);
 
-            int transactions = Integer.parseInt(properties.getProperty("transactions", "0"));
-            properties.setProperty("transactions", Integer.toString(transactions + increment));
-            properties.setProperty("transaction.last", lastTransaction.toString());
+                int transactions = Integer.parseInt(properties.getProperty("transactions", "0"));
+                properties.setProperty("transactions", Integer.toString(transactions + increment));
+                properties.setProperty("transaction.last", lastTransaction.toString());
 
-            try(FileWriter writer = new FileWriter(file))
-            {
                 normalize(properties);
-                properties.store(writer, "Last transaction: "+lastTransaction);
+                store.save(file, properties, "Last transaction: "+lastTransaction);
+            }
+            catch (Exception e)
+            {
+                throw new DataBaseException(e);
             }
-        }
-        catch (Exception e)
-        {
-            throw new DataBaseException(e);
         }
     }
 
@@ -843,121 +1086,428 @@ public class PropertiesDB implements CardDataBase
 
     public void saveMachine(Machine machine) throws DataStoreException
     {
-        try
+        synchronized (machineLock)
         {
-            File file = getMachineFile(machine);
-            Properties properties = loadMachineProperties(machine);
-            if(properties == null)
+            try
             {
-                properties = new SortedProperties();
-                properties.put("creation", System.currentTimeMillis());
-                properties.put("transactions", "0");
-            }
+                File file = getMachineFile(machine);
+                Properties properties = loadMachineProperties(machine);
+                if(properties == null)
+                {
+                    properties = new SortedProperties();
+                    properties.put("creation", System.currentTimeMillis());
+                    properties.put("transactions", "0");
+                }
 
-            storeMachine(properties, machine);
+                storeMachine(properties, machine);
 
-            try(FileWriter writer = new FileWriter(file))
-            {
                 normalize(properties);
-                properties.store(writer, "");
+                store.save(file, properties, "");
+            }
+            catch (Exception e)
+            {
+                throw new DataStoreException(e);
             }
         }
-        catch (Exception e)
+    }
+
+    @Override
+    public void saveNewMachine(@Nonnull Machine machine) throws DataStoreException
+    {
+        synchronized (machineLock)
         {
-            throw new DataStoreException(e);
+            File file;
+            try
+            {
+                file = getMachineLogFile(machine);
+            }
+            catch (IOException e)
+            {
+                throw new DataStoreException(e);
+            }
+
+            try(FileWriter writer = new FileWriter(file, true))
+            {
+                StringBuilder sb = new StringBuilder(dateTimeFormat.format(new Date()))
+                        .append("Machine created | MachineID:").append(machine.getMachineId());
+
+                addData(sb, machine);
+
+                sb.append("\n");
+                writer.write(sb.toString());
+            }
+            catch (Exception e)
+            {
+                throw new DataStoreException(e);
+            }
+
+            saveMachine(machine);
         }
     }
 
     @Override
-    public void saveNewMachine(@Nonnull Machine machine) throws DataStoreException
+    public void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException
     {
-        File file;
-        try
+        Machine machine = transaction.getMachine();
+        if(transactionLog != null)
         {
-            file = getMachineLogFile(machine);
+            try
+            {
+                TransactionRecord record = TransactionRecord.capture(transaction);
+                transactionLog.append(record);
+                if(salesRollups != null)
+                    salesRollups.record(record);
+                else if(machine != null)
+                    incrementTransactions(machine, 1, transaction.getId());
+                return;
+            }
+            catch (Exception e)
+            {
+                throw new DataStoreException(e);
+            }
         }
-        catch (IOException e)
+
+        if (machine == null)
+            return;
+
+        // The date formats and the machine log are shared by all transactions
+        synchronized (machineLock)
         {
-            throw new DataStoreException(e);
+            try
+            {
+                File file = getMachineLogFile(machine);
+
+                try (FileWriter writer = new FileWriter(file, true))
+                {
+                    StringBuilder sb = new StringBuilder(dateTimeFormat.format(new Date()))
+                            .append("Transaction processed")
+                            .append(" | TransactionID:").append(transaction.getId());
+
+                    addData(sb, machine);
+
+                    sb.append(" | TransactionData: ")
+                            .append(transaction)
+                            .append("\n");
+
+
+                    writer.write(sb.toString());
+                }
+
+                File dir = createDir(logs, "transactions");
+                Date date = new Date(transaction.getTime());
+                dir = createDir(dir, dateFormat.format(date));
+
+                file =  new File(dir, transaction.getId()+".properties");
+                Properties properties = new SortedProperties();
+                properties.put("id", transaction.getId());
+                properties.put("time", transaction.getTime());
+                properties.put("operation", transaction.getOperation());
+                properties.put("infinite", transaction.isInfiniteMachine());
+                properties.put("quantity", transaction.getQuantity());
+                properties.put("price", transaction.getPrice());
+                properties.put("price.total", transaction.getTotalPrice());
+                store(properties, "coins.user", transaction.getUserCoinSource());
+                store(properties, "coins.owner", transaction.getOwnerCoinSource());
+                store(properties, "operator", transaction.getOperator());
+                store(properties, "machine", transaction.getMachine());
+                store(properties, "product", transaction.getProduct());
+                store(properties, "trade", transaction.getTrade());
+
+                try(FileWriter writer = new FileWriter(file))
+                {
+                    normalize(properties);
+                    properties.store(writer, "Transaction on "+dateTimeFormat.format(date));
+                }
+
+                if(salesRollups != null)
+                    salesRollups.record(TransactionRecord.capture(transaction));
+                else
+                    incrementTransactions(machine, 1, transaction.getId());
+            }
+            catch (Exception e)
+            {
+                throw new DataStoreException(e);
+            }
+        }
+    }
+
+    /**
+     * Uses the index of the transaction log when it's enabled, otherwise the transaction files are read from the hour
+     * directories that overlap the time range of the query, which is slow on large histories.
+     */
+    @Nonnull
+    @Override
+    public HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException
+    {
+        if(transactionLog != null)
+        {
+            try
+            {
+                return transactionLog.history(query);
+            }
+            catch (IOException e)
+            {
+                throw new DataStoreException(e);
+            }
         }
 
-        try(FileWriter writer = new FileWriter(file, true))
+        HistoryCollector collector = new HistoryCollector(query);
+        File[] hours = new File(logs, "transactions").listFiles();
+        if(hours == null)
+            return HistoryPage.EMPTY;
+
+        SimpleDateFormat hourFormat = new SimpleDateFormat("yyyy.MM.dd-HH");
+        long to = Math.min(query.getTo(), collector.getBeforeTime() == Long.MAX_VALUE? Long.MAX_VALUE : collector.getBeforeTime() + 1);
+        try
         {
-            StringBuilder sb = new StringBuilder(dateTimeFormat.format(new Date()))
-                    .append("Machine created | MachineID:").append(machine.getMachineId());
+            for(File hour: hours)
+            {
+                if(!hour.isDirectory() || hour.getName().endsWith(".converted"))
+                    continue;
+
+                Date start = hourFormat.parse(hour.getName(), new ParsePosition(0));
+                if(start == null || start.getTime() >= to || start.getTime() + 3600000L <= query.getFrom())
+                    continue;
 
-            addData(sb, machine);
+                File[] files = hour.listFiles();
+                if(files == null)
+                    continue;
+
+                for(File file: files)
+                {
+                    if(!file.getName().endsWith(".properties"))
+                        continue;
 
-            sb.append("\n");
-            writer.write(sb.toString());
+                    Properties properties = new Properties();
+                    try(FileReader reader = new FileReader(file))
+                    {
+                        properties.load(reader);
+                    }
+                    collector.visit(readLegacyTransaction(properties));
+                }
+            }
         }
         catch (Exception e)
         {
             throw new DataStoreException(e);
         }
 
-        saveMachine(machine);
+        return collector.page();
     }
 
-    @Override
-    public void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException
+    /**
+     * Moves the transactions saved as one file per transaction on {@code logs/transactions} to the transaction log.
+     * Each hour directory is appended and synced before its files are deleted, a directory that was appended but not
+     * deleted yet is renamed to {@code .converted} so it's not appended again if the conversion is interrupted.
+     * Files that can't be read are moved to {@code logs/transactions-failed}.
+     * @return The amount of transactions converted
+     */
+    public int convertLegacyTransactions() throws DataStoreException
     {
-        Machine machine = transaction.getMachine();
-        if (machine == null)
-            return;
+        TransactionLog log = transactionLog;
+        if(log == null)
+            throw new IllegalStateException("The transaction log is not enabled");
 
+        File dir = new File(logs, "transactions");
+        File[] hours = dir.listFiles();
+        if(hours == null)
+            return 0;
+
+        Arrays.sort(hours);
+        Logger logger = UniversalCoinsServer.logger;
+        int converted = 0;
         try
         {
-            File file = getMachineLogFile(machine);
-
-            try (FileWriter writer = new FileWriter(file, true))
+            for(File hour: hours)
             {
-                StringBuilder sb = new StringBuilder(dateTimeFormat.format(new Date()))
-                        .append("Transaction processed")
-                        .append(" | TransactionID:").append(transaction.getId());
+                if(!hour.isDirectory())
+                    continue;
 
-                addData(sb, machine);
+                File done = hour;
+                if(!hour.getName().endsWith(".converted"))
+                {
+                    File[] files = hour.listFiles();
+                    if(files == null)
+                        throw new DataStoreException("Failed to list files on "+hour.getAbsolutePath());
 
-                sb.append(" | TransactionData: ")
-                        .append(transaction)
-                        .append("\n");
+                    List<TransactionRecord> records = new ArrayList<>(files.length);
+                    for(File file: files)
+                    {
+                        if(!file.getName().endsWith(".properties"))
+                            continue;
+
+                        try
+                        {
+                            Properties properties = new Properties();
+                            try(FileReader reader = new FileReader(file))
+                            {
+                                properties.load(reader);
+                            }
+                            records.add(readLegacyTransaction(properties));
+                        }
+                        catch (Exception e)
+                        {
+                            File failed = new File(createDir(logs, "transactions-failed"), hour.getName()+"-"+file.getName());
+                            logger.error("Failed to convert the transaction "+file+", moving it to "+failed, e);
+                            Files.move(file.toPath(), failed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    }
 
+                    Collections.sort(records, new Comparator<TransactionRecord>()
+                    {
+                        @Override
+                        public int compare(TransactionRecord o1, TransactionRecord o2)
+                        {
+                            return Long.compare(o1.time, o2.time);
+                        }
+                    });
+
+                    log.appendAll(records);
+                    converted += records.size();
+
+                    done = new File(dir, hour.getName()+".converted");
+                    Files.move(hour.toPath(), done.toPath());
+                    logger.info("Converted "+records.size()+" transactions from "+hour.getName());
+                }
 
-                writer.write(sb.toString());
+                File[] files = done.listFiles();
+                if(files != null)
+                    for(File file: files)
+                        Files.delete(file.toPath());
+                Files.delete(done.toPath());
             }
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
 
-            File dir = createDir(logs, "transactions");
-            Date date = new Date(transaction.getTime());
-            dir = createDir(dir, dateFormat.format(date));
+        return converted;
+    }
 
-            file =  new File(dir, transaction.getId()+".properties");
-            Properties properties = new SortedProperties();
-            properties.put("id", transaction.getId());
-            properties.put("time", transaction.getTime());
-            properties.put("operation", transaction.getOperation());
-            properties.put("infinite", transaction.isInfiniteMachine());
-            properties.put("quantity", transaction.getQuantity());
-            properties.put("price", transaction.getPrice());
-            properties.put("price.total", transaction.getTotalPrice());
-            store(properties, "coins.user", transaction.getUserCoinSource());
-            store(properties, "coins.owner", transaction.getOwnerCoinSource());
-            store(properties, "operator", transaction.getOperator());
-            store(properties, "machine", transaction.getMachine());
-            store(properties, "product", transaction.getProduct());
-            store(properties, "trade", transaction.getTrade());
-
-            try(FileWriter writer = new FileWriter(file))
-            {
-                normalize(properties);
-                properties.store(writer, "Transaction on "+dateTimeFormat.format(date));
-            }
+    @Nonnull
+    private static TransactionRecord readLegacyTransaction(Properties properties)
+    {
+        String playerOperator = null;
+        if("player".equals(properties.getProperty("operator.type")))
+            playerOperator = properties.getProperty("operator.player");
+
+        return new TransactionRecord(
+                UUID.fromString(properties.getProperty("id")).toString(), Long.parseLong(properties.getProperty("time")),
+                readLegacyMachine(properties, "machine"), playerOperator, readLegacyBlockOperator(properties, "operator"),
+                readLegacyItem(properties, "product"), readLegacyItem(properties, "trade"),
+                properties.getProperty("operation"), Boolean.parseBoolean(properties.getProperty("infinite")),
+                Integer.parseInt(properties.getProperty("quantity", "0")),
+                Integer.parseInt(properties.getProperty("price", "0")),
+                Integer.parseInt(properties.getProperty("price.total", "0")),
+                readLegacyCoinSource(properties, "coins.user"), readLegacyCoinSource(properties, "coins.owner")
+        );
+    }
+
+    @Nullable
+    private static Integer readLegacyInteger(Properties properties, String key)
+    {
+        String value = properties.getProperty(key);
+        if(value == null || value.equals("null") || value.equals("?"))
+            return null;
+        return Integer.valueOf(value);
+    }
+
+    @Nullable
+    private static String readLegacyString(Properties properties, String key)
+    {
+        String value = properties.getProperty(key);
+        return value == null || value.equals("null")? null : value;
+    }
+
+    /**
+     * The legacy files don't have the machine class, it's saved as {@code unknown}
+     */
+    @Nullable
+    private static TransactionRecord.MachineRow readLegacyMachine(Properties properties, String key)
+    {
+        String id = properties.getProperty(key+".id");
+        if(id == null)
+            return null;
+
+        Integer x = readLegacyInteger(properties, key+".tile.x");
+        Integer dim = readLegacyInteger(properties, key+".tile.dim");
+        Integer meta = readLegacyInteger(properties, key+".tile.block.meta");
+        return new TransactionRecord.MachineRow(id,
+                x == null? 0 : x,
+                x == null? 0 : Integer.parseInt(properties.getProperty(key+".tile.y")),
+                x == null? 0 : Integer.parseInt(properties.getProperty(key+".tile.z")),
+                dim != null, dim == null? 0 : dim, readLegacyString(properties, key+".tile.block"), meta == null? 0 : meta,
+                "unknown", readLegacyString(properties, key+".owner")
+        );
+    }
+
+    @Nullable
+    private static TransactionRecord.BlockOperatorRow readLegacyBlockOperator(Properties properties, String key)
+    {
+        String type = properties.getProperty(key+".type");
+        if(!"block".equals(type) && !"machine".equals(type))
+            return null;
+
+        return new TransactionRecord.BlockOperatorRow(
+                Integer.parseInt(properties.getProperty(key+".block.x")),
+                Integer.parseInt(properties.getProperty(key+".block.y")),
+                Integer.parseInt(properties.getProperty(key+".block.z")),
+                readLegacyInteger(properties, key+".block.dim"), readLegacyString(properties, key+".block.id"),
+                readLegacyInteger(properties, key+".block.meta"), readLegacyString(properties, key+".owner"),
+                readLegacyString(properties, key+".machine.id"), null
+        );
+    }
+
+    @Nullable
+    private static TransactionRecord.ItemRow readLegacyItem(Properties properties, String key)
+    {
+        String type = properties.getProperty(key+".type");
+        if(type == null)
+            return null;
+
+        return new TransactionRecord.ItemRow(type,
+                Integer.parseInt(properties.getProperty(key+".meta", "0")),
+                Integer.parseInt(properties.getProperty(key+".amount", "0")),
+                properties.getProperty(key+".tags")
+        );
+    }
 
-            incrementTransactions(machine, 1, transaction.getId());
+    @Nullable
+    private static TransactionRecord.CoinSourceRow readLegacyCoinSource(Properties properties, String key)
+    {
+        String before = properties.getProperty(key+".balance.before");
+        if(before == null)
+            return null;
+
+        String type = properties.getProperty(key+".type");
+        TransactionRecord.MachineRow machine = null;
+        String account = null, playerOperator = null;
+        TransactionRecord.ItemRow card = null;
+        TransactionRecord.BlockOperatorRow blockOperator = null;
+        if("machine".equals(type))
+        {
+            String machineId = properties.getProperty(key+".machine.id");
+            if(machineId != null)
+                machine = new TransactionRecord.MachineRow(machineId, 0, 0, 0, false, 0, null, 0, "unknown", null);
         }
-        catch (Exception e)
+        else if("card".equals(type))
         {
-            throw new DataStoreException(e);
+            account = properties.getProperty(key+".account.number");
+            card = readLegacyItem(properties, key+".card");
+        }
+        else if("inventory".equals(type))
+        {
+            if("player".equals(properties.getProperty(key+".holder.type")))
+                playerOperator = properties.getProperty(key+".holder.player");
+            else
+                blockOperator = readLegacyBlockOperator(properties, key+".holder");
         }
+
+        return new TransactionRecord.CoinSourceRow(type, Integer.parseInt(before),
+                Integer.parseInt(properties.getProperty(key+".balance.after", before)),
+                machine, account, card, playerOperator, blockOperator
+        );
     }
 
     private void normalize(Properties properties)
@@ -1080,58 +1630,77 @@ public class PropertiesDB implements CardDataBase
     @Override
     public Collection<PlayerData> getAllPlayerData() throws DataStoreException
     {
-        File[] playerFiles = players.listFiles();
-        if(playerFiles == null)
-            throw new DataStoreException("Failed to list files on "+players.getAbsolutePath());
+        final ArrayList<PlayerData> list = new ArrayList<>();
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                list.add(value);
+                return true;
+            }
+        });
+        return list;
+    }
 
-        ArrayList<PlayerData> list = new ArrayList<>(playerFiles.length);
-        for(File playerFile: playerFiles)
+    @Override
+    public void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException
+    {
+        for(String fileName: store.list(players))
         {
-            String fileName = playerFile.getName();
-            if(playerFile.isFile() && fileName.toLowerCase().endsWith(".properties"))
-                list.add(getPlayerData(UUID.fromString(fileName.substring(0, fileName.length()-".properties".length()))));
+            if(!visitor.visit(getPlayerData(UUID.fromString(fileName.substring(0, fileName.length()-".properties".length())))))
+                return;
         }
-        return list;
     }
 
     @Override
     public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
     {
-        File[] accountFiles = accounts.listFiles();
-        if(accountFiles == null)
-            throw new DataStoreException("Failed to list files on "+accounts.getAbsolutePath());
-
-        Map<AccountAddress, Integer> map = new HashMap<>(accountFiles.length);
-        for(File accountFile: accountFiles)
+        final Map<AccountAddress, Integer> map = new HashMap<>();
+        visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
         {
-            String fileName = accountFile.getName();
-            if(accountFile.isFile() && fileName.toLowerCase().endsWith(".properties"))
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
             {
-                String account = fileName.substring(0, fileName.length() - ".properties".length());
-                Properties properties = loadAccount(account);
-                if(properties.getProperty("removed", "false").equals("true"))
-                    continue;
-
-                int balance = Integer.parseInt(properties.getProperty("balance", "0"));
-                UUID owner = UUID.fromString(properties.getProperty("owner.id"));
-                String name = properties.getProperty("name", account);
-                map.put(new AccountAddress(account, name, owner), balance);
+                map.put(value.getKey(), value.getValue());
+                return true;
             }
-        }
+        });
         return map;
     }
 
+    @Override
+    public void visitAllAccountsBalance(@Nonnull Visitor<Map.Entry<AccountAddress, Integer>> visitor) throws DataStoreException
+    {
+        for(String fileName: store.list(accounts))
+        {
+            String account = fileName.substring(0, fileName.length() - ".properties".length());
+            Properties properties = loadAccount(account);
+            if(properties == null || properties.getProperty("removed", "false").equals("true"))
+                continue;
+
+            int balance = Integer.parseInt(properties.getProperty("balance", "0"));
+            UUID owner = UUID.fromString(properties.getProperty("owner.id"));
+            String name = properties.getProperty("name", account);
+            if(!visitor.visit(new AbstractMap.SimpleImmutableEntry<>(new AccountAddress(account, name, owner), balance)))
+                return;
+        }
+    }
+
     @Override
     public AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException
     {
-        Properties properties = loadAccount(primaryAccount.getNumber().toString());
-        if(properties == null) throw new AccountNotFoundException(primaryAccount);
+        try(AccountLocks.Hold hold = locks.lock(primaryAccount.getNumber().toString()))
+        {
+            Properties properties = loadAccount(primaryAccount.getNumber().toString());
+            if(properties == null) throw new AccountNotFoundException(primaryAccount);
 
-        incrementInt(properties, "version", 1, Integer.MIN_VALUE);
-        properties.setProperty("name", playerName);
-        saveAccount(primaryAccount.getNumber().toString(), properties);
+            incrementInt(properties, "version", 1, Integer.MIN_VALUE);
+            properties.setProperty("name", playerName);
+            saveAccount(primaryAccount.getNumber().toString(), properties);
 
-        return new AccountAddress(primaryAccount.getNumber(), playerName, primaryAccount.getOwner());
+            return new AccountAddress(primaryAccount.getNumber(), playerName, primaryAccount.getOwner());
+        }
     }
 
     @Override
@@ -1164,15 +1733,11 @@ public class PropertiesDB implements CardDataBase
         Properties properties = loadPlayer(persistentID);
         incrementInt(properties, "version", Integer.MIN_VALUE);
         String previous = properties.getProperty("name");
+        if(commandSenderName.equals(previous))
+            return;
+
         properties.setProperty("name", commandSenderName);
-        try(FileWriter writer=new FileWriter(playerFile))
-        {
-            properties.store(writer, "Updated player name");
-        }
-        catch (IOException e)
-        {
-            throw new DataStoreException(e);
-        }
+        store.save(playerFile, properties, "Updated player name");
 
         File namesDir = new File(players, "names");
 
@@ -1183,7 +1748,7 @@ public class PropertiesDB implements CardDataBase
         {
             previous = previous.toLowerCase();
             File dir = new File(namesDir, previous.substring(0, 2));
-            if(!dir.mkdirs())
+            if(!dir.isDirectory() && !dir.mkdirs())
                 throw new DataStoreException("Failed to create dir "+dir.getAbsolutePath());
 
             File file = new File(dir, previous + ".properties");
@@ -1193,7 +1758,7 @@ public class PropertiesDB implements CardDataBase
 
         String lowerCased = commandSenderName.toLowerCase();
         File dir = new File(namesDir, lowerCased.substring(0, 2));
-        if(!dir.mkdirs())
+        if(!dir.isDirectory() && !dir.mkdirs())
             throw new DataStoreException("Failed to create dir "+dir.getAbsolutePath());
 
 
@@ -1211,6 +1776,19 @@ public class PropertiesDB implements CardDataBase
         }
     }
 
+    @Override
+    public void visitPlayerNames(@Nonnull Visitor<Map.Entry<UUID, String>> visitor) throws DataStoreException
+    {
+        for(String fileName: store.list(players))
+        {
+            UUID playerId = UUID.fromString(fileName.substring(0, fileName.length()-".properties".length()));
+            Properties properties = loadProperties(new File(players, fileName));
+            String name = properties == null? null : properties.getProperty("name");
+            if(name != null && !name.isEmpty() && !visitor.visit(new AbstractMap.SimpleImmutableEntry<>(playerId, name)))
+                return;
+        }
+    }
+
     @Nullable
     @Override
     public UUID getPlayerIdByName(@Nonnull String name) throws DataStoreException
@@ -1297,125 +1875,120 @@ public class PropertiesDB implements CardDataBase
     @Override
     public boolean storePackage(@Nonnull ItemStack packageStack, ICommandSender sender, @Nonnull UUID targetId) throws DataStoreException
     {
-        File dir = new File(players, "deliveries");
-        dir = new File(dir, targetId.toString());
-        if(!dir.mkdirs())
-            throw new DataStoreException("Failed to create dir "+dir);
-
-        try
+        // The deliveries of a player share the stripes with the accounts, keeping the counter in sync with the files
+        try(AccountLocks.Hold hold = locks.lock(targetId.toString()))
         {
-            File file = File.createTempFile("delivery_", ".properties", dir);
-            SortedProperties properties = new SortedProperties();
-            NBTTagCompound nbt = new NBTTagCompound();
-            packageStack.writeToNBT(nbt);
-            properties.setProperty("item", nbt.toString());
-            properties.setProperty("sender.name", sender.getCommandSenderName());
-            if(sender instanceof Entity)
-                properties.setProperty("sender.id", ((Entity) sender).getPersistentID().toString());
-            properties.setProperty("target.id", targetId.toString());
-            try(FileWriter writer=new FileWriter(file))
+            File dir = new File(players, "deliveries");
+            dir = new File(dir, targetId.toString());
+            if(!dir.isDirectory() && !dir.mkdirs())
+                throw new DataStoreException("Failed to create dir "+dir);
+
+            try
+            {
+                File file = File.createTempFile("delivery_", ".properties", dir);
+                SortedProperties properties = new SortedProperties();
+                NBTTagCompound nbt = new NBTTagCompound();
+                packageStack.writeToNBT(nbt);
+                properties.setProperty("item", nbt.toString());
+                properties.setProperty("sender.name", sender.getCommandSenderName());
+                if(sender instanceof Entity)
+                    properties.setProperty("sender.id", ((Entity) sender).getPersistentID().toString());
+                properties.setProperty("target.id", targetId.toString());
+                try(FileWriter writer=new FileWriter(file))
+                {
+                    properties.store(writer, "");
+                }
+                deliveryCounters.increment(targetId, 1);
+                return true;
+            } catch (IOException e)
             {
-                properties.store(writer, "");
+                throw new DataStoreException(e);
             }
-            return true;
-        } catch (IOException e)
-        {
-            throw new DataStoreException(e);
         }
     }
 
     @Override
     public void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException
     {
-        int firstEmptyStack = player.inventory.getFirstEmptyStack();
-        if(firstEmptyStack == -1)
-        {
-            player.addChatComponentMessage(new ChatComponentTranslation("sign.warning.inventoryfull").setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
-            return;
-        }
+        PackageDeliveries.deliver(this, player);
+    }
 
-        File dir = new File(players, "deliveries"), deliveredDir = new File(dir, "delivered");
-        dir = new File(dir, player.getPersistentID().toString());
-        if(!dir.isDirectory())
-            return;
+    @Nonnull
+    @Override
+    public List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException
+    {
+        List<ItemStack> claimed = new ArrayList<>();
+        try(AccountLocks.Hold hold = locks.lock(persistentID.toString()))
+        {
+            File dir = new File(players, "deliveries"), deliveredDir = new File(dir, "delivered");
+            dir = new File(dir, persistentID.toString());
+            if(!dir.isDirectory())
+                return claimed;
 
-        File[] files = dir.listFiles();
-        if(files == null)
-            return;
+            File[] files = dir.listFiles();
+            if(files == null)
+                return claimed;
 
-        try
-        {
-            for(File file: files)
+            int remaining = countDeliveryFiles(files);
+            try
             {
-                String name = file.getName().toLowerCase();
-                if(name.startsWith("delivery_") && name.endsWith(".properties"))
+                if(!deliveredDir.isDirectory() && !deliveredDir.mkdirs())
+                    throw new IOException("Failed to create dir "+deliveredDir);
+
+                for(File file: files)
                 {
-                    if(firstEmptyStack == -1)
-                    {
-                        player.addChatComponentMessage(new ChatComponentTranslation("sign.warning.inventoryfull").setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
-                        return;
-                    }
+                    if(claimed.size() >= limit)
+                        break;
 
-                    Properties properties = new Properties();
-                    try(FileReader reader = new FileReader(file))
+                    if(isDeliveryFile(file))
                     {
-                        properties.load(reader);
+                        Properties properties = new Properties();
+                        try(FileReader reader = new FileReader(file))
+                        {
+                            properties.load(reader);
+                        }
+                        NBTTagCompound nbt = (NBTTagCompound) JsonToNBT.func_150315_a(properties.getProperty("item"));
+                        ItemStack stack = ItemStack.loadItemStackFromNBT(nbt);
+                        String sender = properties.getProperty("sender.name");
+
+                        long sent = Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+
+                        stack.stackTagCompound.setString("sender", sender);
+                        stack.stackTagCompound.setLong("sent", sent);
+                        long time = System.currentTimeMillis();
+                        stack.stackTagCompound.setLong("received", time);
+
+                        File destiny = new File(deliveredDir, file.getName());
+                        Files.move(file.toPath(), destiny.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                        remaining--;
+
+                        claimed.add(stack);
                     }
-                    NBTTagCompound nbt = (NBTTagCompound) JsonToNBT.func_150315_a(properties.getProperty("item"));
-                    ItemStack stack = ItemStack.loadItemStackFromNBT(nbt);
-                    String sender = properties.getProperty("sender.name");
-
-                    long sent = Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
-
-                    stack.stackTagCompound.setString("sender", sender);
-                    stack.stackTagCompound.setLong("sent", sent);
-                    long time = System.currentTimeMillis();
-                    stack.stackTagCompound.setLong("received", time);
-
-                    File destiny = new File(deliveredDir, file.getName());
-                    Files.move(file.toPath(), destiny.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-
-                    player.inventory.setInventorySlotContents(firstEmptyStack, stack);
-                    player.addChatComponentMessage(
-                            new ChatComponentText(sender)
-                                    .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.GREEN))
-                                    .appendSibling(new ChatComponentTranslation("packager.message.sent"))
-                    );
-
-                    firstEmptyStack = player.inventory.getFirstEmptyStack();
+                }
+            }
+            catch (Exception e)
+            {
+                throw new DataStoreException(e);
+            }
+            finally
+            {
+                try
+                {
+                    // The directory was listed anyway, so it also corrects the counter if it was out of sync
+                    deliveryCounters.set(persistentID, remaining);
+                }
+                catch (IOException e)
+                {
+                    UniversalCoinsServer.logger.error("Failed to save the pending delivery counters", e);
                 }
             }
         }
-        catch (Exception e)
-        {
-            throw new DataStoreException(e);
-        }
-        finally
-        {
-            player.inventoryContainer.detectAndSendChanges();
-        }
+        return claimed;
     }
 
     @Override
     public int getPendingDeliveries(@Nonnull UUID persistentID) throws DataStoreException
     {
-        File dir = new File(players, "deliveries");
-        dir = new File(dir, persistentID.toString());
-        if(!dir.isDirectory())
-            return 0;
-
-        File[] files = dir.listFiles();
-        if(files == null)
-            return 0;
-
-        int count = 0;
-        for(File file: files)
-        {
-            String name = file.getName().toLowerCase();
-            if(name.startsWith("delivery_") && name.endsWith(".properties"))
-                count++;
-        }
-
-        return count;
+        return deliveryCounters.get(persistentID);
     }
 }
@@ -0,0 +1,356 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Reads and writes the properties files used by {@link PropertiesDB}.
+ * <p>
+ * Without a flush interval every load reads the file and every save writes it immediately. With a flush interval the
+ * files of the preloaded directories are kept in memory, loads don't touch the disk and saves only mark the file as
+ * dirty. A background thread writes the dirty files after {@code flushInterval} milliseconds, a file saved many times
+ * in that period is written once with its last content. The pending files are written when the store is closed.
+ * <p>
+ * The loaded properties are copies, changes are only visible to other callers after they are saved.
+ */
+class PropertiesStore implements Closeable
+{
+    private static final String EXTENSION = ".properties";
+
+    private final long flushInterval;
+    private final Object lock = new Object();
+    private final Object writeLock = new Object();
+    private final Map<File, Map<String, Properties>> directories = new HashMap<>();
+    private final Map<File, String> dirty = new LinkedHashMap<>();
+    @Nullable
+    private final Thread writer;
+    private boolean closed;
+
+    private static final class Pending
+    {
+        final File file;
+        final Properties properties;
+        final String comment;
+
+        Pending(File file, Properties properties, String comment)
+        {
+            this.file = file;
+            this.properties = properties;
+            this.comment = comment;
+        }
+    }
+
+    /**
+     * Creates a store that reads and writes the files directly
+     */
+    PropertiesStore()
+    {
+        this.flushInterval = 0;
+        this.writer = null;
+    }
+
+    /**
+     * Creates a store that keeps the preloaded directories in memory
+     * @param flushInterval Milliseconds that a saved file waits before being written
+     */
+    PropertiesStore(long flushInterval)
+    {
+        if(flushInterval < 1)
+            throw new IllegalArgumentException("flushInterval: "+flushInterval);
+
+        this.flushInterval = flushInterval;
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "UniversalCoins Properties Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    boolean isCached()
+    {
+        return writer != null;
+    }
+
+    /**
+     * Loads all properties files in the directory to memory, does nothing if the store is not cached
+     * @return The amount of files loaded
+     */
+    int preload(@Nonnull File directory) throws DataStoreException
+    {
+        if(writer == null)
+            return 0;
+
+        Map<String, Properties> files = new HashMap<>();
+        for(String name: listFiles(directory))
+            files.put(name, read(new File(directory, name)));
+
+        synchronized (lock)
+        {
+            directories.put(directory, files);
+        }
+        return files.size();
+    }
+
+    @Nullable
+    private Map<String, Properties> directory(File file)
+    {
+        return writer == null? null : directories.get(file.getParentFile());
+    }
+
+    /**
+     * @return A copy of the file contents or {@code null} if the file doesn't exists
+     */
+    @Nullable
+    Properties load(@Nonnull File file) throws DataStoreException
+    {
+        synchronized (lock)
+        {
+            Map<String, Properties> files = directory(file);
+            if(files != null)
+            {
+                Properties properties = files.get(file.getName());
+                return properties == null? null : copy(properties);
+            }
+        }
+
+        if(!file.isFile())
+            return null;
+
+        return read(file);
+    }
+
+    boolean exists(@Nonnull File file)
+    {
+        synchronized (lock)
+        {
+            Map<String, Properties> files = directory(file);
+            if(files != null)
+                return files.containsKey(file.getName());
+        }
+
+        return file.exists();
+    }
+
+    /**
+     * The names of the properties files in the directory
+     */
+    @Nonnull
+    Collection<String> list(@Nonnull File directory) throws DataStoreException
+    {
+        synchronized (lock)
+        {
+            Map<String, Properties> files = writer == null? null : directories.get(directory);
+            if(files != null)
+                return new ArrayList<>(files.keySet());
+        }
+
+        return listFiles(directory);
+    }
+
+    void save(@Nonnull File file, @Nonnull Properties properties, @Nonnull String comment) throws DataStoreException
+    {
+        synchronized (lock)
+        {
+            Map<String, Properties> files = directory(file);
+            if(files != null)
+            {
+                if(closed)
+                    throw new DataStoreException("The properties store is closed");
+
+                files.put(file.getName(), copy(properties));
+                if(dirty.isEmpty())
+                    lock.notifyAll();
+                dirty.put(file, comment);
+                return;
+            }
+        }
+
+        try
+        {
+            write(file, properties, comment);
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    /**
+     * Writes all dirty files now
+     * @return The amount of files written
+     */
+    int flush()
+    {
+        synchronized (writeLock)
+        {
+            List<Pending> pending;
+            synchronized (lock)
+            {
+                if(dirty.isEmpty())
+                    return 0;
+
+                pending = new ArrayList<>(dirty.size());
+                for(Map.Entry<File, String> entry: dirty.entrySet())
+                {
+                    File file = entry.getKey();
+                    pending.add(new Pending(file, copy(directories.get(file.getParentFile()).get(file.getName())), entry.getValue()));
+                }
+                dirty.clear();
+            }
+
+            int written = 0;
+            for(Pending file: pending)
+            {
+                try
+                {
+                    write(file.file, file.properties, file.comment);
+                    written++;
+                }
+                catch (IOException|RuntimeException e)
+                {
+                    UniversalCoinsServer.logger.error("Failed to write "+file.file+", trying again on the next flush", e);
+                    synchronized (lock)
+                    {
+                        if(!dirty.containsKey(file.file))
+                            dirty.put(file.file, file.comment);
+                    }
+                }
+            }
+            return written;
+        }
+    }
+
+    public int getDirtyCount()
+    {
+        synchronized (lock)
+        {
+            return dirty.size();
+        }
+    }
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            synchronized (lock)
+            {
+                try
+                {
+                    while (!closed && dirty.isEmpty())
+                        lock.wait();
+
+                    // Gives some time to the other saves of the same files before writing them
+                    if(!closed)
+                        lock.wait(flushInterval);
+                }
+                catch (InterruptedException e)
+                {
+                    closed = true;
+                }
+
+                if(closed)
+                    return;
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes the dirty files
+     */
+    @Override
+    public void close()
+    {
+        if(writer == null)
+            return;
+
+        synchronized (lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            writer.join(60000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        int remaining = getDirtyCount();
+        if(remaining > 0)
+            UniversalCoinsServer.logger.error(remaining+" properties files could not be written");
+    }
+
+    @Nonnull
+    private static Collection<String> listFiles(File directory) throws DataStoreException
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            throw new DataStoreException("Failed to list files on "+directory.getAbsolutePath());
+
+        List<String> names = new ArrayList<>(files.length);
+        for(File file: files)
+        {
+            String name = file.getName();
+            if(name.toLowerCase().endsWith(EXTENSION) && file.isFile())
+                names.add(name);
+        }
+        return names;
+    }
+
+    @Nonnull
+    private static Properties read(File file) throws DataStoreException
+    {
+        Properties properties = new PropertiesDB.SortedProperties();
+        try(FileReader reader = new FileReader(file))
+        {
+            properties.load(reader);
+        }
+        catch (Exception e)
+        {
+            throw new DataStoreException(e);
+        }
+        return properties;
+    }
+
+    /**
+     * Writes to a temporary file that replaces the original, so a crash can't leave a truncated file behind
+     */
+    private static void write(File file, Properties properties, String comment) throws IOException
+    {
+        File temp = new File(file.getParentFile(), file.getName()+".tmp");
+        try(FileWriter writer = new FileWriter(temp))
+        {
+            properties.store(writer, comment);
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Nonnull
+    private static Properties copy(Properties properties)
+    {
+        Properties copy = new PropertiesDB.SortedProperties();
+        copy.putAll(properties);
+        return copy;
+    }
+}
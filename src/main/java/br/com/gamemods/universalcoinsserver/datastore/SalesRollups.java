@@ -0,0 +1,611 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Sales counters of each machine and of each machine owner, grouped by hour, by day and in total.
+ * <p>
+ * The counters are updated in memory when a transaction is stored, so they can be read without touching the storage.
+ * A background thread writes the changes after {@code flushInterval} milliseconds, all changes of that period are
+ * written at once. The hourly and daily counters are kept in memory only for the configured retention, the totals are
+ * always kept. The pending changes are written when the rollups are closed.
+ * <p>
+ * Only the operations that sell, buy or pay a prize are counted: the coins received by the machine are the coins in,
+ * the coins paid by the machine are the coins out. The hours and days are in UTC.
+ */
+public class SalesRollups implements Closeable
+{
+    private static final int MAGIC = 0x55435231;
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+
+    public enum Scope
+    {
+        MACHINE, OWNER
+    }
+
+    public enum Period
+    {
+        HOUR(SalesRollups.HOUR), DAY(SalesRollups.DAY), TOTAL(0);
+
+        private final long length;
+
+        Period(long length)
+        {
+            this.length = length;
+        }
+
+        /**
+         * @return The first millisecond of the bucket that contains the time, zero for {@link #TOTAL}
+         */
+        public long bucket(long time)
+        {
+            if(length == 0)
+                return 0;
+
+            long offset = time % length;
+            return time - (offset < 0? offset + length : offset);
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+    }
+
+    /**
+     * Persists the changes of the rollups
+     */
+    interface Store
+    {
+        /**
+         * Gives the stored totals and the hourly and daily counters that started after the given times
+         */
+        void load(long hoursSince, long daysSince, @Nonnull CardDataBase.Visitor<Row> visitor) throws DataStoreException;
+
+        /**
+         * Adds the increments to the stored counters atomically, either all of them are stored or none is
+         */
+        void add(@Nonnull List<Row> increments) throws DataStoreException;
+    }
+
+    /**
+     * The counters of a machine or an owner in a period
+     */
+    public static final class Stats
+    {
+        public static final Stats EMPTY = new Stats(0, 0, 0, 0);
+
+        private final long trades;
+        private final long coinsIn;
+        private final long coinsOut;
+        private final long items;
+
+        private Stats(long trades, long coinsIn, long coinsOut, long items)
+        {
+            this.trades = trades;
+            this.coinsIn = coinsIn;
+            this.coinsOut = coinsOut;
+            this.items = items;
+        }
+
+        public long getTrades()
+        {
+            return trades;
+        }
+
+        public long getCoinsIn()
+        {
+            return coinsIn;
+        }
+
+        public long getCoinsOut()
+        {
+            return coinsOut;
+        }
+
+        /**
+         * @return The amount of items sold and bought
+         */
+        public long getItems()
+        {
+            return items;
+        }
+
+        public long getNetCoins()
+        {
+            return coinsIn - coinsOut;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Stats{" +
+                    "trades=" + trades +
+                    ", coinsIn=" + coinsIn +
+                    ", coinsOut=" + coinsOut +
+                    ", items=" + items +
+                    '}';
+        }
+    }
+
+    /**
+     * The counters of a bucket as they are stored
+     */
+    static final class Row
+    {
+        @Nonnull
+        final Scope scope;
+        @Nonnull
+        final UUID id;
+        @Nonnull
+        final Period period;
+        final long bucket;
+        final long trades;
+        final long coinsIn;
+        final long coinsOut;
+        final long items;
+
+        Row(@Nonnull Scope scope, @Nonnull UUID id, @Nonnull Period period, long bucket, long trades, long coinsIn, long coinsOut, long items)
+        {
+            this.scope = scope;
+            this.id = id;
+            this.period = period;
+            this.bucket = bucket;
+            this.trades = trades;
+            this.coinsIn = coinsIn;
+            this.coinsOut = coinsOut;
+            this.items = items;
+        }
+    }
+
+    private static final class Key
+    {
+        final Scope scope;
+        final UUID id;
+        final Period period;
+        final long bucket;
+
+        Key(Scope scope, UUID id, Period period, long bucket)
+        {
+            this.scope = scope;
+            this.id = id;
+            this.period = period;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return bucket == key.bucket && scope == key.scope && period == key.period && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = scope.hashCode();
+            result = 31 * result + id.hashCode();
+            result = 31 * result + period.hashCode();
+            result = 31 * result + (int) (bucket ^ (bucket >>> 32));
+            return result;
+        }
+    }
+
+    private static final class Counters
+    {
+        long trades, coinsIn, coinsOut, items;
+
+        void add(long trades, long coinsIn, long coinsOut, long items)
+        {
+            this.trades += trades;
+            this.coinsIn += coinsIn;
+            this.coinsOut += coinsOut;
+            this.items += items;
+        }
+
+        Row toRow(Key key)
+        {
+            return new Row(key.scope, key.id, key.period, key.bucket, trades, coinsIn, coinsOut, items);
+        }
+    }
+
+    @Nullable
+    private final Store store;
+    @Nullable
+    private final File file;
+    private final long flushInterval;
+    private final long hourRetention;
+    private final long dayRetention;
+    private final Object lock = new Object();
+    private final Object writeLock = new Object();
+    private final Map<Key, Counters> counters = new HashMap<>();
+    private Map<Key, Counters> dirty = new HashMap<>();
+    private final Thread writer;
+    private boolean closed;
+
+    /**
+     * Creates rollups that are saved to a binary file, the whole file is written on each flush
+     * @param hourRetention Milliseconds that the hourly counters are kept
+     * @param dayRetention Milliseconds that the daily counters are kept
+     */
+    SalesRollups(@Nonnull File file, long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        this(null, file, flushInterval, hourRetention, dayRetention);
+    }
+
+    /**
+     * Creates rollups that write only the increments to the store
+     * @param hourRetention Milliseconds that the hourly counters are kept in memory
+     * @param dayRetention Milliseconds that the daily counters are kept in memory
+     */
+    SalesRollups(@Nonnull Store store, long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        this(store, null, flushInterval, hourRetention, dayRetention);
+    }
+
+    private SalesRollups(@Nullable Store store, @Nullable File file, long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        if(flushInterval < 1)
+            throw new IllegalArgumentException("flushInterval: "+flushInterval);
+
+        this.store = store;
+        this.file = file;
+        this.flushInterval = flushInterval;
+        this.hourRetention = hourRetention;
+        this.dayRetention = dayRetention;
+        load();
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "UniversalCoins Sales Rollups");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void load() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        final long hoursSince = Period.HOUR.bucket(now - hourRetention);
+        final long daysSince = Period.DAY.bucket(now - dayRetention);
+
+        if(store != null)
+        {
+            try
+            {
+                store.load(hoursSince, daysSince, new CardDataBase.Visitor<Row>()
+                {
+                    @Override
+                    public boolean visit(@Nonnull Row row)
+                    {
+                        put(row);
+                        return true;
+                    }
+                });
+            }
+            catch (DataStoreException e)
+            {
+                throw new IOException(e);
+            }
+            return;
+        }
+
+        assert file != null;
+        if(!file.isFile())
+            return;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a sales rollups file: "+file);
+
+            int size = in.readInt();
+            for(int i = 0; i < size; i++)
+            {
+                Row row = new Row(
+                        Scope.values()[in.readByte()], new UUID(in.readLong(), in.readLong()), Period.values()[in.readByte()],
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong()
+                );
+
+                if(row.period == Period.HOUR && row.bucket < hoursSince || row.period == Period.DAY && row.bucket < daysSince)
+                    continue;
+                put(row);
+            }
+        }
+    }
+
+    private void put(Row row)
+    {
+        Counters loaded = new Counters();
+        loaded.add(row.trades, row.coinsIn, row.coinsOut, row.items);
+        counters.put(new Key(row.scope, row.id, row.period, row.bucket), loaded);
+    }
+
+    /**
+     * Counts a stored transaction, the transactions without a machine are ignored
+     */
+    void record(@Nonnull TransactionRecord record)
+    {
+        if(record.machine == null)
+            return;
+
+        long trades = 1, coinsIn = 0, coinsOut = 0, items = 0;
+        Transaction.Operation operation;
+        try
+        {
+            operation = Transaction.Operation.valueOf(record.operation);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return;
+        }
+
+        switch (operation)
+        {
+            case BUY_FROM_MACHINE:
+                coinsIn = record.totalPrice;
+                break;
+            case SELL_TO_MACHINE:
+            case SLOTS_WIN_4_MATCH:
+            case SLOTS_WIN_5_MATCH:
+                coinsOut = record.totalPrice;
+                break;
+            default:
+                return;
+        }
+
+        if(operation != Transaction.Operation.SLOTS_WIN_4_MATCH && operation != Transaction.Operation.SLOTS_WIN_5_MATCH && record.product != null)
+            items = record.product.amount;
+
+        UUID machineId = UUID.fromString(record.machine.machineId);
+        UUID ownerId = record.machine.owner == null? null : UUID.fromString(record.machine.owner);
+        synchronized (lock)
+        {
+            for(Period period: Period.values())
+            {
+                long bucket = period.bucket(record.time);
+                increment(new Key(Scope.MACHINE, machineId, period, bucket), trades, coinsIn, coinsOut, items);
+                if(ownerId != null)
+                    increment(new Key(Scope.OWNER, ownerId, period, bucket), trades, coinsIn, coinsOut, items);
+            }
+        }
+    }
+
+    private void increment(Key key, long trades, long coinsIn, long coinsOut, long items)
+    {
+        Counters current = counters.get(key);
+        if(current == null)
+            counters.put(key, current = new Counters());
+        current.add(trades, coinsIn, coinsOut, items);
+
+        Counters changes = dirty.get(key);
+        if(changes == null)
+        {
+            if(dirty.isEmpty())
+                lock.notifyAll();
+            dirty.put(key, changes = new Counters());
+        }
+        changes.add(trades, coinsIn, coinsOut, items);
+    }
+
+    /**
+     * Reads the counters of a bucket from memory
+     * @param time Any time inside the bucket, ignored for {@link Period#TOTAL}
+     * @return {@link Stats#EMPTY} if nothing was counted in the bucket or if it's older than the retention
+     */
+    @Nonnull
+    public Stats get(@Nonnull Scope scope, @Nonnull UUID id, @Nonnull Period period, long time)
+    {
+        synchronized (lock)
+        {
+            Counters current = counters.get(new Key(scope, id, period, period.bucket(time)));
+            return current == null? Stats.EMPTY : new Stats(current.trades, current.coinsIn, current.coinsOut, current.items);
+        }
+    }
+
+    @Nonnull
+    public Stats getTotal(@Nonnull Scope scope, @Nonnull UUID id)
+    {
+        return get(scope, id, Period.TOTAL, 0);
+    }
+
+    /**
+     * Reads the counters of the last buckets, the current one first
+     * @param count The amount of buckets
+     */
+    @Nonnull
+    public Stats[] getRecent(@Nonnull Scope scope, @Nonnull UUID id, @Nonnull Period period, int count)
+    {
+        if(period == Period.TOTAL)
+            throw new IllegalArgumentException("The total has only one bucket");
+
+        Stats[] recent = new Stats[count];
+        long bucket = period.bucket(System.currentTimeMillis());
+        for(int i = 0; i < count; i++, bucket -= period.length)
+            recent[i] = get(scope, id, period, bucket);
+        return recent;
+    }
+
+    /**
+     * Writes the pending changes now
+     * @return The amount of buckets written
+     */
+    public int flush()
+    {
+        synchronized (writeLock)
+        {
+            Map<Key, Counters> changes;
+            List<Row> rows;
+            synchronized (lock)
+            {
+                if(dirty.isEmpty())
+                    return 0;
+
+                changes = dirty;
+                dirty = new HashMap<>();
+
+                // The file has the current value of all buckets, the store receives only the increments
+                Map<Key, Counters> source = store != null? changes : counters;
+                rows = new ArrayList<>(source.size());
+                for(Map.Entry<Key, Counters> entry: source.entrySet())
+                    rows.add(entry.getValue().toRow(entry.getKey()));
+            }
+
+            try
+            {
+                if(store != null)
+                    store.add(rows);
+                else
+                    write(rows);
+            }
+            catch (IOException|DataStoreException|RuntimeException e)
+            {
+                UniversalCoinsServer.logger.error("Failed to write the sales rollups, trying again on the next flush", e);
+                synchronized (lock)
+                {
+                    for(Map.Entry<Key, Counters> entry: changes.entrySet())
+                    {
+                        Counters pending = dirty.get(entry.getKey());
+                        if(pending == null)
+                            dirty.put(entry.getKey(), entry.getValue());
+                        else
+                        {
+                            Counters failed = entry.getValue();
+                            pending.add(failed.trades, failed.coinsIn, failed.coinsOut, failed.items);
+                        }
+                    }
+                }
+                return 0;
+            }
+
+            prune();
+            return changes.size();
+        }
+    }
+
+    /**
+     * Removes the expired hourly and daily counters from memory, the ones that are not written yet are kept
+     */
+    private void prune()
+    {
+        long now = System.currentTimeMillis();
+        long hoursSince = Period.HOUR.bucket(now - hourRetention);
+        long daysSince = Period.DAY.bucket(now - dayRetention);
+        synchronized (lock)
+        {
+            Iterator<Key> iterator = counters.keySet().iterator();
+            while (iterator.hasNext())
+            {
+                Key key = iterator.next();
+                if((key.period == Period.HOUR && key.bucket < hoursSince || key.period == Period.DAY && key.bucket < daysSince)
+                        && !dirty.containsKey(key))
+                    iterator.remove();
+            }
+        }
+    }
+
+    private void write(List<Row> rows) throws IOException
+    {
+        assert file != null;
+        File temp = new File(file.getParentFile(), file.getName()+".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(rows.size());
+            for(Row row: rows)
+            {
+                out.writeByte(row.scope.ordinal());
+                out.writeLong(row.id.getMostSignificantBits());
+                out.writeLong(row.id.getLeastSignificantBits());
+                out.writeByte(row.period.ordinal());
+                out.writeLong(row.bucket);
+                out.writeLong(row.trades);
+                out.writeLong(row.coinsIn);
+                out.writeLong(row.coinsOut);
+                out.writeLong(row.items);
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int getDirtyCount()
+    {
+        synchronized (lock)
+        {
+            return dirty.size();
+        }
+    }
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            synchronized (lock)
+            {
+                try
+                {
+                    while (!closed && dirty.isEmpty())
+                        lock.wait();
+
+                    // Collects the changes of the whole interval in the same write
+                    if(!closed)
+                        lock.wait(flushInterval);
+                }
+                catch (InterruptedException e)
+                {
+                    closed = true;
+                }
+
+                if(closed)
+                    return;
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes the pending changes
+     */
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            writer.join(60000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        int remaining = getDirtyCount();
+        if(remaining > 0)
+            UniversalCoinsServer.logger.error(remaining+" sales rollups could not be written");
+    }
+}
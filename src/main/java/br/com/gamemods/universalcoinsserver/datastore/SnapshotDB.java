@@ -0,0 +1,567 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import net.minecraft.command.ICommandSender;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.item.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A read-only view of a snapshot written by {@link SnapshotWriter}, used to restore a snapshot with
+ * {@link CardDataBase#importData(CardDataBase)}.
+ * <p>
+ * Only the position of each section is read when the snapshot is opened, the bulk readers inflate the section
+ * while it's visited so the snapshot is never loaded at once. The lookups of a single account or player scan the
+ * section, the snapshot is meant to be read in bulk. All operations that change data fail.
+ */
+public class SnapshotDB implements CardDataBase
+{
+    private final File file;
+    private final long createdAt;
+    private final Map<Byte, long[]> sections = new HashMap<>();
+
+    public SnapshotDB(@Nonnull File file) throws IOException
+    {
+        this.file = file;
+        try(RandomAccessFile in = new RandomAccessFile(file, "r"))
+        {
+            if(in.readInt() != SnapshotWriter.MAGIC)
+                throw new IOException(file+" is not a snapshot");
+
+            int format = in.readInt();
+            if(format > SnapshotWriter.FORMAT)
+                throw new IOException("The snapshot "+file+" was written by a newer format: "+format);
+
+            createdAt = in.readLong();
+            while (true)
+            {
+                byte type = in.readByte();
+                if(type == SnapshotWriter.END)
+                    break;
+
+                int count = in.readInt();
+                long length = in.readLong();
+                long offset = in.getFilePointer();
+                if(length < 0 || offset + length > in.length())
+                    throw new IOException("The snapshot "+file+" is truncated");
+
+                sections.put(type, new long[]{offset, length, count});
+                in.seek(offset + length);
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("The snapshot "+file+" is truncated", e);
+        }
+    }
+
+    @Nonnull
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The time in milliseconds that the snapshot represents
+     */
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    /**
+     * @return The amount of records stored on the section or zero if the section was not exported
+     */
+    int getCount(byte section)
+    {
+        long[] position = sections.get(section);
+        return position == null? 0 : (int) position[2];
+    }
+
+    private interface RecordReader<T>
+    {
+        T read(DataInput in) throws IOException;
+    }
+
+    private static final RecordReader<Map.Entry<AccountAddress, Integer>> ACCOUNT = new RecordReader<Map.Entry<AccountAddress, Integer>>()
+    {
+        @Override
+        public Map.Entry<AccountAddress, Integer> read(DataInput in) throws IOException
+        {
+            return new AbstractMap.SimpleImmutableEntry<>(readAddress(in), in.readInt());
+        }
+    };
+
+    private static final RecordReader<PlayerData> PLAYER = new RecordReader<PlayerData>()
+    {
+        @Override
+        public PlayerData read(DataInput in) throws IOException
+        {
+            UUID playerId = readUUID(in);
+            AccountAddress primary = in.readBoolean()? readAddress(in) : null;
+            int size = in.readInt();
+            List<AccountAddress> alternatives = new ArrayList<>(size);
+            for(int i = 0; i < size; i++)
+                alternatives.add(readAddress(in));
+            return new PlayerData(Integer.MIN_VALUE, playerId, primary, alternatives);
+        }
+    };
+
+    private static final RecordReader<Map.Entry<UUID, String>> PLAYER_NAME = new RecordReader<Map.Entry<UUID, String>>()
+    {
+        @Override
+        public Map.Entry<UUID, String> read(DataInput in) throws IOException
+        {
+            return new AbstractMap.SimpleImmutableEntry<>(readUUID(in), in.readUTF());
+        }
+    };
+
+    private static final RecordReader<PendingDelivery> DELIVERY = new RecordReader<PendingDelivery>()
+    {
+        @Override
+        public PendingDelivery read(DataInput in) throws IOException
+        {
+            UUID targetId = readUUID(in);
+            String sender = in.readUTF();
+            UUID senderId = in.readBoolean()? readUUID(in) : null;
+            long sent = in.readLong();
+            String item = TransactionRecord.readString(in);
+            if(item == null)
+                throw new IOException("The delivery to "+targetId+" has no item");
+            return new PendingDelivery(targetId, sender, senderId, sent, item);
+        }
+    };
+
+    private static final RecordReader<TransactionRecord> TRANSACTION = new RecordReader<TransactionRecord>()
+    {
+        @Override
+        public TransactionRecord read(DataInput in) throws IOException
+        {
+            return TransactionRecord.readFrom(in);
+        }
+    };
+
+    private static UUID readUUID(DataInput in) throws IOException
+    {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static AccountAddress readAddress(DataInput in) throws IOException
+    {
+        return new AccountAddress(in.readUTF(), in.readUTF(), readUUID(in));
+    }
+
+    private static int readVarInt(InputStream in) throws IOException
+    {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7)
+        {
+            int b = in.read();
+            if(b < 0)
+                throw new EOFException();
+
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed record length");
+    }
+
+    private <T> void visit(byte section, @Nonnull RecordReader<T> reader, @Nonnull Visitor<T> visitor) throws DataStoreException
+    {
+        long[] position = sections.get(section);
+        if(position == null)
+            return;
+
+        Inflater inflater = new Inflater();
+        try(FileInputStream fileIn = new FileInputStream(file))
+        {
+            fileIn.getChannel().position(position[0]);
+            InputStream in = new InflaterInputStream(new BufferedInputStream(fileIn, 64 * 1024), inflater, 64 * 1024);
+            byte[] bytes = new byte[256];
+            for(long remaining = position[2]; remaining > 0; remaining--)
+            {
+                int length = readVarInt(in);
+                if(length > bytes.length)
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+
+                int read = 0;
+                while (read < length)
+                {
+                    int count = in.read(bytes, read, length - read);
+                    if(count < 0)
+                        throw new EOFException("The snapshot section "+section+" is truncated");
+                    read += count;
+                }
+
+                // The record is read from its own stream so the fields added by newer formats are skipped
+                T value = reader.read(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)));
+                if(!visitor.visit(value))
+                    return;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException("Failed to read the snapshot "+file, e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    public void visitDeliveries(@Nonnull Visitor<PendingDelivery> visitor) throws DataStoreException
+    {
+        visit(SnapshotWriter.DELIVERIES, DELIVERY, visitor);
+    }
+
+    void visitTransactions(@Nonnull Visitor<TransactionRecord> visitor) throws DataStoreException
+    {
+        visit(SnapshotWriter.TRANSACTIONS, TRANSACTION, visitor);
+    }
+
+    @Nullable
+    private Map.Entry<AccountAddress, Integer> findAccount(@Nonnull Object account) throws DataStoreException
+    {
+        final String number;
+        if(account instanceof AccountAddress)
+            number = ((AccountAddress) account).getNumber().toString();
+        else if(account instanceof ItemStack)
+        {
+            ItemStack stack = (ItemStack) account;
+            if(stack.stackTagCompound == null)
+                return null;
+            number = stack.stackTagCompound.getString("Account");
+        }
+        else
+            number = account.toString();
+
+        final List<Map.Entry<AccountAddress, Integer>> found = new ArrayList<>(1);
+        visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+            {
+                if(!value.getKey().getNumber().toString().equals(number))
+                    return true;
+
+                found.add(value);
+                return false;
+            }
+        });
+        return found.isEmpty()? null : found.get(0);
+    }
+
+    private static DataStoreException readOnly()
+    {
+        return new DataStoreException(new UnsupportedOperationException("The snapshot is read-only"));
+    }
+
+    @Nullable
+    @Override
+    public UUID getAccountOwner(@Nonnull Object account) throws DataStoreException
+    {
+        Map.Entry<AccountAddress, Integer> entry = findAccount(account);
+        return entry == null? null : entry.getKey().getOwner();
+    }
+
+    @Override
+    public int getAccountBalance(@Nonnull Object account) throws DataStoreException, AccountNotFoundException
+    {
+        Map.Entry<AccountAddress, Integer> entry = findAccount(account);
+        if(entry == null) throw new AccountNotFoundException(account);
+        return entry.getValue();
+    }
+
+    @Override
+    public int canDeposit(@Nonnull Object account, @Nullable Collection<ItemStack> coins) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int canDeposit(@Nonnull Object account, @Nullable ItemStack coins) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int canDeposit(@Nonnull Object account, int coins) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int depositToAccount(@Nonnull Object account, @Nullable Collection<ItemStack> coins, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int depositToAccount(@Nonnull Object account, @Nullable ItemStack coins, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int depositToAccount(@Nonnull Object account, int coins, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException, IllegalArgumentException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void saveNewMachine(@Nonnull Machine machine) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    /**
+     * Scans all transactions of the snapshot, they are not indexed
+     */
+    @Nonnull
+    @Override
+    public HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException
+    {
+        HistoryCollector collector = new HistoryCollector(query);
+        visitTransactions(collector);
+        return collector.page();
+    }
+
+    @Nonnull
+    @Override
+    public PlayerData getPlayerData(@Nonnull final UUID playerUID) throws DataStoreException
+    {
+        final List<PlayerData> found = new ArrayList<>(1);
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                if(!value.getPlayerId().equals(playerUID))
+                    return true;
+
+                found.add(value);
+                return false;
+            }
+        });
+        return found.isEmpty()? new PlayerData(Integer.MIN_VALUE, playerUID, null, null) : found.get(0);
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int takeFromAccount(@Nonnull Object account, int amount, @Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException, OutOfCoinsException
+    {
+        throw readOnly();
+    }
+
+    @Nullable
+    @Override
+    public AccountAddress getCustomAccountByName(@Nonnull final String customAccountName) throws DataStoreException
+    {
+        final List<AccountAddress> found = new ArrayList<>(1);
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                for(AccountAddress address: value.getAlternativeAccounts())
+                {
+                    if(address.getName().equals(customAccountName))
+                    {
+                        found.add(address);
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        return found.isEmpty()? null : found.get(0);
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress createCustomAccount(@Nonnull UUID playerUID, @Nonnull String customAccountName) throws DataStoreException, DuplicatedKeyException
+    {
+        throw readOnly();
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferAccount(@Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
+    {
+        throw readOnly();
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferPrimaryAccount(@Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void processTrade(@Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException, OutOfCoinsException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public Collection<PlayerData> getAllPlayerData() throws DataStoreException
+    {
+        final List<PlayerData> list = new ArrayList<>(getCount(SnapshotWriter.PLAYERS));
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                list.add(value);
+                return true;
+            }
+        });
+        return list;
+    }
+
+    @Override
+    public void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException
+    {
+        visit(SnapshotWriter.PLAYERS, PLAYER, visitor);
+    }
+
+    @Override
+    public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
+    {
+        final Map<AccountAddress, Integer> map = new HashMap<>();
+        visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+            {
+                map.put(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+        return map;
+    }
+
+    @Override
+    public void visitAllAccountsBalance(@Nonnull Visitor<Map.Entry<AccountAddress, Integer>> visitor) throws DataStoreException
+    {
+        visit(SnapshotWriter.ACCOUNTS, ACCOUNT, visitor);
+    }
+
+    @Override
+    public void importData(CardDataBase original) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void updatePlayerName(@Nonnull UUID persistentID, @Nonnull String commandSenderName) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void visitPlayerNames(@Nonnull Visitor<Map.Entry<UUID, String>> visitor) throws DataStoreException
+    {
+        visit(SnapshotWriter.PLAYER_NAMES, PLAYER_NAME, visitor);
+    }
+
+    @Nullable
+    @Override
+    public UUID getPlayerIdByName(@Nonnull final String name) throws DataStoreException
+    {
+        final List<UUID> found = new ArrayList<>(1);
+        visitPlayerNames(new Visitor<Map.Entry<UUID, String>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<UUID, String> value)
+            {
+                if(!value.getValue().equalsIgnoreCase(name))
+                    return true;
+
+                found.add(value.getKey());
+                return false;
+            }
+        });
+        return found.isEmpty()? null : found.get(0);
+    }
+
+    @Nullable
+    @Override
+    public Map<UUID, String> findPlayerByName(@Nonnull String searchedName) throws DataStoreException
+    {
+        final String prefix = searchedName.toLowerCase();
+        final Map<UUID, String> matches = new HashMap<>();
+        visitPlayerNames(new Visitor<Map.Entry<UUID, String>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<UUID, String> value)
+            {
+                if(value.getValue().toLowerCase().startsWith(prefix))
+                    matches.put(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    @Override
+    public boolean storePackage(@Nonnull ItemStack packageStack, ICommandSender sender, @Nonnull UUID targetId) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Nonnull
+    @Override
+    public List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public int getPendingDeliveries(@Nonnull final UUID persistentID) throws DataStoreException
+    {
+        final int[] pending = new int[1];
+        visitDeliveries(new Visitor<PendingDelivery>()
+        {
+            @Override
+            public boolean visit(@Nonnull PendingDelivery value)
+            {
+                if(value.getTargetId().equals(persistentID))
+                    pending[0]++;
+                return true;
+            }
+        });
+        return pending[0];
+    }
+}
@@ -0,0 +1,189 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports snapshots of a {@link CardDataBase} to a directory while the server runs.
+ * <p>
+ * The databases that implement {@link SnapshotSource} write a point-in-time view of their data. The other databases
+ * are read with their bulk readers, the result is not a point-in-time view and doesn't include the pending
+ * deliveries and the transactions, a warning is logged when it happens.
+ */
+public class SnapshotExporter
+{
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".ucs";
+
+    private final CardDataBase db;
+    private final File directory;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public SnapshotExporter(@Nonnull CardDataBase db, @Nonnull File directory)
+    {
+        this.db = db;
+        this.directory = directory;
+    }
+
+    @Nonnull
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public boolean isRunning()
+    {
+        return running.get();
+    }
+
+    /**
+     * Exports a snapshot on a new thread
+     * @return The future snapshot file or {@code null} if an export is already running
+     */
+    @Nullable
+    public ListenableFuture<File> exportAsync(final boolean transactions)
+    {
+        if(!running.compareAndSet(false, true))
+            return null;
+
+        final SettableFuture<File> future = SettableFuture.create();
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    future.set(write(transactions));
+                }
+                catch (Throwable e)
+                {
+                    UniversalCoinsServer.logger.error("Failed to export the snapshot", e);
+                    future.setException(e);
+                }
+                finally
+                {
+                    running.set(false);
+                }
+            }
+        }, "UniversalCoins Snapshot");
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Exports a snapshot on the current thread
+     * @return The snapshot file
+     * @throws DataStoreException If an export is already running or if it fails
+     */
+    @Nonnull
+    public File export(boolean transactions) throws DataStoreException
+    {
+        if(!running.compareAndSet(false, true))
+            throw new DataStoreException("An export is already running");
+
+        try
+        {
+            return write(transactions);
+        }
+        finally
+        {
+            running.set(false);
+        }
+    }
+
+    private File write(boolean transactions) throws DataStoreException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new DataStoreException("Failed to create dir "+directory);
+
+        long time = System.currentTimeMillis();
+        File file = new File(directory, PREFIX+new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(time))+SUFFIX);
+        long start = System.nanoTime();
+        try(SnapshotWriter writer = new SnapshotWriter(file, time))
+        {
+            if(db instanceof SnapshotSource)
+                ((SnapshotSource) db).writeSnapshot(writer, transactions);
+            else
+                writeBulk(writer);
+
+            writer.finish();
+            UniversalCoinsServer.logger.info("Exported "+writer.getRecordCount()+" records to the snapshot "+file+" in "+
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+"ms");
+            return file;
+        }
+        catch (IOException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    private void writeBulk(final SnapshotWriter writer) throws DataStoreException
+    {
+        UniversalCoinsServer.logger.warn(db.getClass().getSimpleName()+" can't export a point-in-time snapshot, the balances "+
+                "may include trades that were being applied during the export. Pending deliveries and transactions are not exported");
+
+        db.visitAllAccountsBalance(new CardDataBase.Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value) throws DataStoreException
+            {
+                try
+                {
+                    writer.writeAccount(value.getKey(), value.getValue());
+                    return true;
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        });
+
+        db.visitAllPlayerData(new CardDataBase.Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value) throws DataStoreException
+            {
+                try
+                {
+                    writer.writePlayer(value);
+                    return true;
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        });
+
+        db.visitPlayerNames(new CardDataBase.Visitor<Map.Entry<UUID, String>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<UUID, String> value) throws DataStoreException
+            {
+                try
+                {
+                    writer.writePlayerName(value.getKey(), value.getValue());
+                    return true;
+                }
+                catch (IOException e)
+                {
+                    throw new DataStoreException(e);
+                }
+            }
+        });
+    }
+}
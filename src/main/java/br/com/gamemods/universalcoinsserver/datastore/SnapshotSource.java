@@ -0,0 +1,20 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link CardDataBase} that can export its data as it was at a single point in time while it keeps being changed.
+ * <p>
+ * Databases that don't implement it are exported by {@link SnapshotExporter} with the bulk readers of
+ * {@link CardDataBase}, which may see a trade applied to one account and not yet to the other.
+ */
+public interface SnapshotSource
+{
+    /**
+     * Writes the accounts, the players, the player names and the pending deliveries to the writer, in this order, as
+     * they were when the snapshot started. The operations done on the database must not wait for the whole export,
+     * at most for a short in-memory copy.
+     * @param transactions If the stored transactions must also be written
+     */
+    void writeSnapshot(@Nonnull SnapshotWriter writer, boolean transactions) throws DataStoreException;
+}
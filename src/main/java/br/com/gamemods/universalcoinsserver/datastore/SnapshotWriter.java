@@ -0,0 +1,275 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a snapshot of a {@link CardDataBase} to a compact binary file that can be read back by {@link SnapshotDB}.
+ * <p>
+ * The file starts with {@code [magic][format][creation time]} and is followed by sections in a fixed order: accounts,
+ * players, player names, pending deliveries and transactions. Each section is stored as
+ * {@code [type][record count][compressed length]} followed by its deflated records, so a reader can skip a section
+ * without inflating it. Every record is prefixed by its length, a reader ignores the fields that were appended to a
+ * record by a newer format. A section of type zero marks the end of the file.
+ * <p>
+ * The records are written to a temporary file that replaces the snapshot file only when {@link #finish()} is called,
+ * an interrupted export never leaves a partial snapshot behind.
+ */
+public final class SnapshotWriter implements Closeable
+{
+    static final int MAGIC = 0x55435353;
+    static final int FORMAT = 1;
+    static final int SECTION_HEADER_SIZE = 13;
+
+    static final byte END = 0;
+    static final byte ACCOUNTS = 1;
+    static final byte PLAYERS = 2;
+    static final byte PLAYER_NAMES = 3;
+    static final byte DELIVERIES = 4;
+    static final byte TRANSACTIONS = 5;
+
+    private final File file;
+    private final File temp;
+    private final FileChannel channel;
+    private final long createdAt;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private byte section = END;
+    private long sectionStart;
+    private int sectionCount;
+    private long totalCount;
+    private Deflater deflater;
+    private BufferedOutputStream sectionBuffer;
+    private DeflaterOutputStream sectionDeflater;
+    private DataOutputStream sectionOut;
+    private boolean finished;
+
+    /**
+     * @param createdAt The point in time that the snapshot represents
+     */
+    public SnapshotWriter(@Nonnull File file, long createdAt) throws IOException
+    {
+        this.file = file;
+        this.temp = new File(file.getParentFile(), file.getName()+".tmp");
+        this.createdAt = createdAt;
+        channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(MAGIC).putInt(FORMAT).putLong(createdAt).flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    @Nonnull
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    /**
+     * @return The amount of records written to all sections
+     */
+    public long getRecordCount()
+    {
+        return totalCount;
+    }
+
+    private void beginSection(byte type) throws IOException
+    {
+        if(finished)
+            throw new IllegalStateException("The snapshot is already finished");
+        if(type == section)
+            return;
+        if(type < section)
+            throw new IllegalStateException("The section "+type+" must be written before the section "+section);
+
+        endSection();
+
+        section = type;
+        sectionStart = channel.position();
+        sectionCount = 0;
+        channel.position(sectionStart + SECTION_HEADER_SIZE);
+
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        sectionBuffer = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+        sectionDeflater = new DeflaterOutputStream(sectionBuffer, deflater, 64 * 1024);
+        sectionOut = new DataOutputStream(sectionDeflater);
+    }
+
+    private void endSection() throws IOException
+    {
+        if(sectionOut == null)
+            return;
+
+        // Closing the streams would close the channel, the deflater is finished and the buffer flushed instead
+        sectionOut.flush();
+        sectionDeflater.finish();
+        sectionBuffer.flush();
+        deflater.end();
+
+        long end = channel.position();
+        ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_SIZE);
+        header.put(section).putInt(sectionCount).putLong(end - sectionStart - SECTION_HEADER_SIZE).flip();
+        long position = sectionStart;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+
+        sectionOut = null;
+        sectionDeflater = null;
+        sectionBuffer = null;
+        deflater = null;
+    }
+
+    private void writeRecord() throws IOException
+    {
+        writeVarInt(sectionOut, recordBytes.size());
+        recordBytes.writeTo(sectionOut);
+        recordBytes.reset();
+        sectionCount++;
+        totalCount++;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeUUID(DataOutput out, UUID id) throws IOException
+    {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private static void writeAddress(DataOutput out, AccountAddress address) throws IOException
+    {
+        out.writeUTF(address.getNumber().toString());
+        out.writeUTF(address.getName());
+        writeUUID(out, address.getOwner());
+    }
+
+    public void writeAccount(@Nonnull AccountAddress address, int balance) throws IOException
+    {
+        beginSection(ACCOUNTS);
+        writeAddress(record, address);
+        record.writeInt(balance);
+        writeRecord();
+    }
+
+    public void writePlayer(@Nonnull PlayerData playerData) throws IOException
+    {
+        beginSection(PLAYERS);
+        writeUUID(record, playerData.getPlayerId());
+        AccountAddress primary = playerData.getPrimaryAccount();
+        record.writeBoolean(primary != null);
+        if(primary != null)
+            writeAddress(record, primary);
+
+        Collection<AccountAddress> alternatives = playerData.getAlternativeAccounts();
+        record.writeInt(alternatives.size());
+        for(AccountAddress alternative: alternatives)
+            writeAddress(record, alternative);
+        writeRecord();
+    }
+
+    public void writePlayerName(@Nonnull UUID playerId, @Nonnull String name) throws IOException
+    {
+        beginSection(PLAYER_NAMES);
+        writeUUID(record, playerId);
+        record.writeUTF(name);
+        writeRecord();
+    }
+
+    public void writeDelivery(@Nonnull PendingDelivery delivery) throws IOException
+    {
+        beginSection(DELIVERIES);
+        writeUUID(record, delivery.getTargetId());
+        record.writeUTF(delivery.getSender());
+        UUID senderId = delivery.getSenderId();
+        record.writeBoolean(senderId != null);
+        if(senderId != null)
+            writeUUID(record, senderId);
+        record.writeLong(delivery.getSent());
+        TransactionRecord.writeString(record, delivery.getItem());
+        writeRecord();
+    }
+
+    void writeTransaction(@Nonnull TransactionRecord transaction) throws IOException
+    {
+        beginSection(TRANSACTIONS);
+        transaction.writeTo(record);
+        writeRecord();
+    }
+
+    /**
+     * Completes the file and moves it to the snapshot location
+     */
+    public void finish() throws IOException
+    {
+        if(finished)
+            return;
+
+        endSection();
+        section = END;
+        ByteBuffer end = ByteBuffer.allocate(1);
+        end.put(END).flip();
+        while (end.hasRemaining())
+            channel.write(end);
+
+        channel.force(true);
+        channel.close();
+        finished = true;
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Discards the temporary file if the snapshot was not finished
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(finished)
+            return;
+
+        finished = true;
+        try
+        {
+            if(deflater != null)
+                deflater.end();
+            channel.close();
+        }
+        finally
+        {
+            if(!temp.delete() && temp.exists())
+                throw new IOException("Failed to delete "+temp);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SnapshotWriter{" +
+                "file=" + file +
+                ", records=" + totalCount +
+                '}';
+    }
+}
@@ -1,37 +1,299 @@
 package br.com.gamemods.universalcoinsserver.datastore;
 
 import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
-import br.com.gamemods.universalcoinsserver.blocks.PlayerOwned;
-import cpw.mods.fml.common.registry.GameData;
+import br.com.gamemods.universalcoinsserver.datastore.TransactionRecord.BlockOperatorRow;
+import br.com.gamemods.universalcoinsserver.datastore.TransactionRecord.CoinSourceRow;
+import br.com.gamemods.universalcoinsserver.datastore.TransactionRecord.ItemRow;
+import br.com.gamemods.universalcoinsserver.datastore.TransactionRecord.MachineRow;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
 import net.minecraft.command.ICommandSender;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.JsonToNBT;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.tileentity.TileEntity;
-import net.minecraft.util.ChatComponentText;
-import net.minecraft.util.ChatComponentTranslation;
-import net.minecraft.util.ChatStyle;
-import net.minecraft.util.EnumChatFormatting;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
-
-public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount> implements SnapshotSource
 {
-    public SqlDB(Connection connection)
+    private static final String INSERT_COIN_SOURCE =
+            "INSERT INTO `coin_source`(`before`,`after`,`type`,`machine`,`account`,`card_item`,`card_damage`,`card_amount`," +
+                                      //   1   ,   2   ,   3  ,   4     ,    5    ,      6    ,    7        ,     8
+                    "`card_nbt`,`player_operator`,`block_operator`) " +
+                    //    9    ,        10       ,      11
+                "VALUES(?,?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String ARCHIVED_COIN_SOURCE_COLUMNS =
+            "`id`,`before`,`after`,`type`,`machine`,`account`,`card_item`,`card_damage`,`card_amount`,`card_nbt`,`player_operator`,`block_operator`";
+
+    private static final String ARCHIVED_TRANSACTION_COLUMNS =
+            "`transaction_id`,`time`,`machine`,`player_operator`,`block_operator`," +
+            "`product_item`,`product_damage`,`product_amount`,`product_nbt`,`trade_item`,`trade_damage`,`trade_amount`,`trade_nbt`," +
+            "`operation`,`infinite`,`quantity`,`price`,`total_price`,`user_coinsource`,`owner_coinsource`";
+
+    private static final String INSERT_TRANSACTION =
+            "INSERT INTO `transactions`(`transaction_id`,`time`,`machine`,`player_operator`,`block_operator`," +
+                                        //     1        ,   2  ,     3   ,         4       ,    5
+                    "`product_item`,`product_damage`,`product_amount`,`product_nbt`,`trade_item`,`trade_damage`,`trade_amount`,`trade_nbt`," +
+                    //     6       ,      7         ,        8       ,       9     ,      10    ,     11       ,      12      ,     13
+                    "`operation`,`infinite`,`quantity`,`price`,`total_price`,`user_coinsource`,`owner_coinsource`) " +
+                    //   14     ,     15   ,    16    ,   17  ,     18      ,     19          ,      20
+                    "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String SELECT_ACCOUNTS = "SELECT `number`, `owner`, `name`, `balance` FROM `accounts` WHERE `terminated` IS NULL";
+
+    /**
+     * All players with their accounts, one row per custom account, the rows of the same player are consecutive
+     */
+    private static final String SELECT_PLAYERS =
+            "SELECT ud.player_id, ud.primary_account, pa.name, pa.owner, ac.number, ac.name, ac.owner " +
+                "FROM `user_data` AS ud " +
+                "LEFT JOIN `accounts` AS pa ON pa.number=ud.primary_account " +
+                "LEFT JOIN (`custom_accounts` AS ca INNER JOIN `accounts` AS ac " +
+                    "ON ac.number=ca.account AND ac.terminated IS NULL AND ca.terminated IS NULL) " +
+                "ON ac.owner=ud.player_id " +
+                "ORDER BY ud.player_id";
+
+    private static final String SELECT_PLAYER_NAMES = "SELECT `player_id`, `player_name` FROM `user_data` WHERE `player_name` IS NOT NULL";
+
+    private static final String SELECT_DELIVERIES =
+            "SELECT `target_id`, `sender`, `sender_id`, `sent`, `item` FROM `deliveries` WHERE `delivered` IS NULL";
+
+    private static final String MACHINE_COLUMNS = "`machine_id`,`x`,`y`,`z`,`dim`,`block`,`metadata`,`tile`,`owner`";
+    private static final String BLOCK_OPERATOR_COLUMNS = "`operator_id`,`x`,`y`,`z`,`dim`,`block_id`,`block_meta`,`owner`,`machine_id`,`machine_type`";
+    private static final String COIN_SOURCE_COLUMNS = "`id`,`type`,`before`,`after`,`account`,`card_item`,`card_damage`,`card_amount`,`card_nbt`,`player_operator`";
+
+    /**
+     * The columns read by {@link #readTransaction(ResultSet)}, from the transactions as {@code t} and the {@link #TRANSACTION_JOINS}
+     */
+    private static final String TRANSACTION_COLUMNS =
+            "SELECT " +
+                columns("t", "`transaction_id`,`time`,`player_operator`," +
+                        "`product_item`,`product_damage`,`product_amount`,`product_nbt`," +
+                        "`trade_item`,`trade_damage`,`trade_amount`,`trade_nbt`," +
+                        "`operation`,`infinite`,`quantity`,`price`,`total_price`") + "," +
+                //   1..16
+                columns("tm", MACHINE_COLUMNS) + "," + columns("tb", BLOCK_OPERATOR_COLUMNS) + "," +
+                //   17..25                                 26..35
+                columns("us", COIN_SOURCE_COLUMNS) + "," + columns("usm", MACHINE_COLUMNS) + "," + columns("usb", BLOCK_OPERATOR_COLUMNS) + "," +
+                //   36..45                                    46..54                                   55..64
+                columns("os", COIN_SOURCE_COLUMNS) + "," + columns("osm", MACHINE_COLUMNS) + "," + columns("osb", BLOCK_OPERATOR_COLUMNS) + " ";
+                //   65..74                                    75..83                                   84..93
+
+    /**
+     * Joins the machines, the block operators and the coin sources of the transactions as {@code t}
+     */
+    private static final String TRANSACTION_JOINS =
+                "LEFT JOIN `machines` AS tm ON tm.machine_id=t.machine " +
+                "LEFT JOIN `block_operators` AS tb ON tb.operator_id=t.block_operator " +
+                "LEFT JOIN `coin_source` AS us ON us.id=t.user_coinsource " +
+                "LEFT JOIN `machines` AS usm ON usm.machine_id=us.machine " +
+                "LEFT JOIN `block_operators` AS usb ON usb.operator_id=us.block_operator " +
+                "LEFT JOIN `coin_source` AS os ON os.id=t.owner_coinsource " +
+                "LEFT JOIN `machines` AS osm ON osm.machine_id=os.machine " +
+                "LEFT JOIN `block_operators` AS osb ON osb.operator_id=os.block_operator ";
+
+    /**
+     * All transactions, read by {@link #readTransaction(ResultSet)}
+     */
+    private static final String SELECT_TRANSACTIONS = TRANSACTION_COLUMNS + "FROM `transactions` AS t " + TRANSACTION_JOINS;
+
+    @Nullable
+    private TransactionJournal journal;
+    private volatile boolean batchGeneratedKeys = true;
+    private volatile int fetchSize = 500;
+    private volatile int importChunkSize = 500;
+    /**
+     * The last row written for each machine that is known to exist in the {@code machines} table
+     */
+    private final Map<String, MachineRow> knownMachines = new ConcurrentHashMap<>();
+    /**
+     * The {@code operator_id} of the block operators that are known to be committed, guarded by itself
+     */
+    private final BiMap<BlockOperatorRow, Integer> blockOperatorIds = HashBiMap.create();
+    /**
+     * If the optional tables created by the schema migration exist, a table is missing from the map until it's checked
+     */
+    private final Map<String, Boolean> optionalTables = new ConcurrentHashMap<>();
+    @Nullable
+    private SalesRollups salesRollups;
+    @Nullable
+    private TransactionArchiver archiver;
+    private volatile boolean archiveMonthly;
+    /**
+     * The suffixes of the monthly archive tables that were already created
+     */
+    private final Set<String> monthlyArchives = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    @Nullable
+    private volatile LedgerReconciler reconciler;
+    private final AccountNumberAllocator accountNumbers;
+
+    public SqlDB(ConnectionPool pool)
+    {
+        super(pool);
+        accountNumbers = new AccountNumberAllocator(new AccountNumberAllocator.Sequence()
+        {
+            @Nonnull
+            @Override
+            public long[] reserve(int count) throws DataStoreException
+            {
+                return reserveAccountNumbers(count);
+            }
+        }, new AccountNumberAllocator.UsageCheck()
+        {
+            @Nonnull
+            @Override
+            public List<String> findUsed(@Nonnull List<String> numbers) throws DataStoreException
+            {
+                return findUsedAccountNumbers(numbers);
+            }
+        }, 100);
+    }
+
+    /**
+     * Makes the transactions be queued and written by a background thread in batches instead of being written
+     * on the thread that executes them. Balance changes are still written immediately.
+     * @param directory Where the queued transactions are also appended to survive a crash, {@code null} keeps them only in memory
+     */
+    public void enableJournal(int batchSize, long flushInterval, @Nullable File directory) throws IOException
+    {
+        if(journal != null)
+            throw new IllegalStateException("The journal is already enabled");
+
+        journal = new TransactionJournal(new TransactionJournal.Sink()
+        {
+            @Override
+            public void write(@Nonnull List<TransactionRecord> records, boolean recovered) throws DataStoreException
+            {
+                writeJournal(records, recovered);
+            }
+        }, batchSize, flushInterval, directory);
+    }
+
+    @Nullable
+    public TransactionJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Counts the sales of the machines and their owners in memory when the transactions are committed, a background
+     * thread adds the increments to the {@code sales_rollups} table so other servers sharing the table are not overwritten.
+     * @param hourRetention Milliseconds that the hourly counters are kept in memory, the table keeps all of them
+     * @param dayRetention Milliseconds that the daily counters are kept in memory, the table keeps all of them
+     */
+    @Nonnull
+    public SalesRollups enableSalesRollups(long flushInterval, long hourRetention, long dayRetention) throws IOException
+    {
+        if(salesRollups != null)
+            throw new IllegalStateException("The sales rollups are already enabled");
+
+        salesRollups = new SalesRollups(new SalesRollups.Store()
+        {
+            @Override
+            public void load(long hoursSince, long daysSince, @Nonnull Visitor<SalesRollups.Row> visitor) throws DataStoreException
+            {
+                loadSalesRollups(hoursSince, daysSince, visitor);
+            }
+
+            @Override
+            public void add(@Nonnull List<SalesRollups.Row> increments) throws DataStoreException
+            {
+                addSalesRollups(increments);
+            }
+        }, flushInterval, hourRetention, dayRetention);
+        return salesRollups;
+    }
+
+    @Nullable
+    public SalesRollups getSalesRollups()
+    {
+        return salesRollups;
+    }
+
+    /**
+     * Moves the transactions older than the retention and their coin sources to the archive tables on a background
+     * thread, each chunk is moved in its own database transaction.
+     * @param monthly If each month is archived to its own tables, named like {@code transactions_archive_201601}
+     * @see TransactionArchiver
+     */
+    @Nonnull
+    public TransactionArchiver enableTransactionArchive(long retention, int chunkSize, long chunkPause, long interval, boolean monthly)
+    {
+        if(archiver != null)
+            throw new IllegalStateException("The transaction archive is already enabled");
+
+        archiveMonthly = monthly;
+        archiver = new TransactionArchiver(new TransactionArchiver.Target()
+        {
+            @Override
+            public int archiveTransactions(long before, int limit) throws DataStoreException
+            {
+                return SqlDB.this.archiveTransactions(before, limit);
+            }
+        }, retention, chunkSize, chunkPause, interval);
+        return archiver;
+    }
+
+    /**
+     * Verifies the balance of the accounts against the coin sources on a background thread, reading the coin sources
+     * in the order of their ids. The coin sources of the last minute are left for the next pass, so a trade that
+     * is still being committed by another connection is not skipped.
+     * @param file Where the checkpoint is saved
+     * @see LedgerReconciler
+     */
+    @Nonnull
+    public LedgerReconciler enableReconciliation(@Nonnull File file, int chunkSize, int budget, long interval) throws IOException
+    {
+        if(reconciler != null)
+            throw new IllegalStateException("The ledger reconciliation is already enabled");
+
+        reconciler = new LedgerReconciler(new LedgerReconciler.Source()
+        {
+            @Nonnull
+            @Override
+            public String read(@Nonnull String checkpoint, int limit, @Nonnull List<LedgerReconciler.Movement> movements)
+                    throws DataStoreException
+            {
+                return readLedger(checkpoint, limit, movements);
+            }
+        }, this, file, chunkSize, budget, interval);
+        return reconciler;
+    }
+
+    @Override
+    public void close()
     {
-        super(connection);
+        if(reconciler != null)
+            reconciler.close();
+        if(archiver != null)
+            archiver.close();
+        if(journal != null)
+            journal.close();
+        if(salesRollups != null)
+            salesRollups.close();
+        super.close();
     }
 
     @Nullable
     @Override
-    protected SqlAccount getAccount(@Nonnull String number) throws DataStoreException
+    protected SqlAccount loadAccount(@Nonnull String number) throws DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement("SELECT `number`, `owner`, `balance`, `primary` FROM `accounts` WHERE `number`=? AND `terminated` IS NULL"))
+        try(Lease lease = lease();
+            PreparedStatement pst = prepare(lease.connection, "SELECT `number`, `owner`, `balance`, `primary` FROM `accounts` WHERE `number`=? AND `terminated` IS NULL"))
         {
             pst.setString(1, number);
             ResultSet result = pst.executeQuery();
@@ -50,7 +312,7 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
     @Override
     protected SqlAccount getCustomAccount(@Nonnull String name) throws DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
+        try(Lease lease = lease(); PreparedStatement pst = prepare(lease.connection,
                 "SELECT ac.number, ac.owner, ac.balance, ac.primary FROM `custom_accounts` AS ca INNER JOIN `accounts` ON `number`=`account` WHERE ca.name=? AND `terminated` IS NULL"
         ))
         {
@@ -67,93 +329,214 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
+    @Override
+    public void processTrade(@Nonnull Transaction transaction) throws DataStoreException, AccountNotFoundException, OutOfCoinsException
+    {
+        String ownerNumber = null, userNumber = null;
+        long ownerIncrement = 0, userIncrement = 0;
+
+        Transaction.CoinSource ownerCoinSource = transaction.getOwnerCoinSource();
+        if(ownerCoinSource instanceof Transaction.CardCoinSource)
+        {
+            ownerNumber = ((Transaction.CardCoinSource) ownerCoinSource).getAccountAddress().getNumber().toString();
+            ownerIncrement = ownerCoinSource.getBalanceAfter() - (long) ownerCoinSource.getBalanceBefore();
+        }
+
+        Transaction.CoinSource userCoinSource = transaction.getUserCoinSource();
+        if(userCoinSource instanceof Transaction.CardCoinSource)
+        {
+            userNumber = ((Transaction.CardCoinSource) userCoinSource).getAccountAddress().getNumber().toString();
+            userIncrement = userCoinSource.getBalanceAfter() - (long) userCoinSource.getBalanceBefore();
+        }
+
+        try(Lease lease = lease())
+        {
+            storeTrade(lease.connection, transaction, ownerNumber, ownerIncrement, userNumber, userIncrement);
+        }
+    }
+
     @Override
     protected void storeTrade(@Nonnull Transaction transaction, @Nullable AbstractSQL.SqlAccount ownerAccount, int ownerIncrement, @Nullable AbstractSQL.SqlAccount userAccount, int userIncrement)
             throws DataStoreException
     {
+        try(Lease lease = lease())
+        {
+            storeTrade(lease.connection, transaction,
+                    ownerAccount == null? null : ownerAccount.id, ownerIncrement,
+                    userAccount == null? null : userAccount.id, userIncrement
+            );
+        }
+        catch (AccountNotFoundException|OutOfCoinsException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    /**
+     * Changes the balances without reading them first, the limits are checked by the update itself so concurrent
+     * trades on the same account by other threads or servers can't bypass them
+     */
+    private void storeTrade(Connection connection, @Nonnull Transaction transaction,
+                            @Nullable final String ownerNumber, final long ownerIncrement,
+                            @Nullable final String userNumber, final long userIncrement)
+            throws DataStoreException, AccountNotFoundException, OutOfCoinsException
+    {
+        boolean inTransaction;
         try
         {
-            connection.setAutoCommit(false);
-            if(ownerAccount != null)
-                ownerAccount.incrementBalance(ownerIncrement, null);
+            inTransaction = !connection.getAutoCommit();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
 
-            if(userAccount != null)
-                userAccount.incrementBalance(userIncrement, null);
+        try
+        {
+            if(!inTransaction)
+                connection.setAutoCommit(false);
+
+            if(ownerNumber != null)
+                incrementBalance(connection, ownerNumber, ownerIncrement);
+
+            if(userNumber != null)
+                incrementBalance(connection, userNumber, userIncrement);
 
             saveTransaction(transaction);
-            connection.commit();
+
+            afterCommit(connection, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(ownerNumber != null)
+                        invalidateAccount(ownerNumber);
+                    if(userNumber != null)
+                        invalidateAccount(userNumber);
+                }
+            });
+
+            if(!inTransaction)
+                commit(connection);
+        }
+        catch (AccountNotFoundException|OutOfCoinsException e)
+        {
+            if(!inTransaction)
+                rollback(connection);
+            throw e;
         }
         catch (Throwable e)
         {
-            try
-            {
-                connection.rollback();
-            } catch (SQLException e1)
-            {
-                e1.printStackTrace();
-            }
+            if(!inTransaction)
+                rollback(connection);
             throw new DataStoreException(e);
         }
         finally
         {
-            try
+            if(!inTransaction)
+                try
+                {
+                    connection.setAutoCommit(true);
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Increments the balance of an active account only if the result stays between zero and {@link #maxAccountValue}.
+     * The account is read only when the update is refused, to tell why.
+     */
+    private void incrementBalance(Connection connection, @Nonnull String number, long increment)
+            throws SQLException, DataStoreException, AccountNotFoundException, OutOfCoinsException
+    {
+        // Retries when the account changes between the refused update and the check
+        for(int attempt = 0; attempt < 3; attempt++)
+        {
+            try(PreparedStatement pst = prepare(connection,
+                    "UPDATE `accounts` SET `balance`=`balance`+? WHERE `number`=? AND `terminated` IS NULL AND `balance`+? BETWEEN 0 AND ?"
+            ))
             {
-                connection.setAutoCommit(true);
+                pst.setLong(1, increment);
+                pst.setString(2, number);
+                pst.setLong(3, increment);
+                pst.setInt(4, maxAccountValue);
+                if(pst.executeUpdate() > 0)
+                    return;
             }
-            catch (SQLException e)
+
+            long balance;
+            try(PreparedStatement pst = prepare(connection,
+                    "SELECT `balance` FROM `accounts` WHERE `number`=? AND `terminated` IS NULL"
+            ))
             {
-                e.printStackTrace();
+                pst.setString(1, number);
+                ResultSet result = pst.executeQuery();
+                if(!result.next())
+                    throw new AccountNotFoundException(number);
+                balance = result.getInt(1);
             }
+
+            long after = balance + increment;
+            if(after < 0)
+                throw new OutOfCoinsException((int) -after);
+            if(after > maxAccountValue)
+                throw new DataStoreException("Final balance above the limit. Balance: "+balance+" Increment:"+increment+" Limit:"+maxAccountValue);
+
+            // Some drivers report zero affected rows when the value didn't change
+            if(increment == 0)
+                return;
         }
+
+        throw new DataStoreException("The balance of the account "+number+" is changing too fast to be updated");
     }
 
     @Override
     public void saveNewMachine(@Nonnull Machine machine) throws DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
+        try(Lease lease = lease())
+        {
+            saveNewMachine(lease.connection, MachineRow.capture(machine));
+        }
+    }
+
+    private void saveNewMachine(Connection connection, @Nonnull MachineRow machine) throws DataStoreException
+    {
+        // Machines that are not placed in a world are not registered
+        if(!machine.inWorld)
+            return;
+
+        try(PreparedStatement pst = prepare(connection,
                 "INSERT INTO `machines`(`machine_id`,`dim`,`x`,`y`,`z`,`block`,`metadata`,`tile`,`owner`) " +
                               "VALUES  (     ?      ,  ?  , ? , ? , ? ,   ?   ,    ?     ,   ?  ,   ?   )"))
                                         //   1         2    3   4   5     6        7         8      9
         {
-            pst.setString(1, machine.getMachineId().toString());
-            TileEntity machineEntity = machine.getMachineEntity();
-            pst.setInt(3, machineEntity.xCoord);
-            //noinspection SuspiciousNameCombination
-            pst.setInt(4, machineEntity.yCoord);
-            pst.setInt(5, machineEntity.zCoord);
-            if(!machineEntity.hasWorldObj())
-            {
-                pst.setNull(2, Types.INTEGER);
-                pst.setNull(6, Types.VARCHAR);
-                pst.setNull(7, Types.INTEGER);
-            }
-            else
-            {
-                pst.setInt(2, machineEntity.getWorldObj().provider.dimensionId);
-                String block = GameData.getBlockRegistry().getNameForObject(machineEntity.getBlockType());
-
-                if(block != null)
-                    pst.setString(6, block);
-                else
-                    pst.setNull(6, Types.VARCHAR);
+            pst.setString(1, machine.machineId);
+            pst.setInt(2, machine.dim);
+            pst.setInt(3, machine.x);
+            pst.setInt(4, machine.y);
+            pst.setInt(5, machine.z);
 
-                pst.setInt(7, machineEntity.getBlockMetadata());
-                pst.setString(8, machineEntity.getClass().getName());
+            if(machine.block != null)
+                pst.setString(6, machine.block);
+            else
+                pst.setNull(6, Types.VARCHAR);
 
-                if(machineEntity instanceof PlayerOwned)
-                {
-                    UUID ownerId = ((PlayerOwned) machineEntity).getOwnerId();
-                    registerUser(ownerId);
-                    if(ownerId != null)
-                        pst.setString(9, ownerId.toString());
-                    else
-                        pst.setNull(9, Types.VARCHAR);
-                }
-                else
-                    pst.setNull(9, Types.VARCHAR);
+            pst.setInt(7, machine.metadata);
+            pst.setString(8, machine.tile);
 
-                pst.executeUpdate();
+            if(machine.owner != null)
+            {
+                registerUser(connection, UUID.fromString(machine.owner));
+                pst.setString(9, machine.owner);
             }
+            else
+                pst.setNull(9, Types.VARCHAR);
+
+            pst.executeUpdate();
+            rememberMachine(connection, machine);
         }
         catch (SQLException e)
         {
@@ -161,63 +544,85 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    private void updateMachine(@Nullable Machine machine) throws DataStoreException
+    /**
+     * Registers the row as stored when the current transaction commits
+     */
+    private void rememberMachine(Connection connection, @Nonnull final MachineRow machine) throws SQLException
     {
-        if(machine == null) return;
-        boolean found;
-        try(PreparedStatement pst = connection.prepareStatement("SELECT `x` FROM `machines` WHERE `machine_id`=?"))
+        afterCommit(connection, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                knownMachines.put(machine.machineId, machine);
+            }
+        });
+    }
+
+    private boolean isMachineStored(Connection connection, String machineId) throws DataStoreException
+    {
+        try(PreparedStatement pst = prepare(connection, "SELECT `x` FROM `machines` WHERE `machine_id`=?"))
         {
-            pst.setString(1, machine.getMachineId().toString());
-            found = pst.executeQuery().next();
+            pst.setString(1, machineId);
+            return pst.executeQuery().next();
         }
         catch (SQLException e)
         {
             throw new DataStoreException(e);
         }
+    }
+
+    /**
+     * Inserts or updates the machine row, nothing is done when the row was already written with the same values
+     */
+    private void updateMachine(Connection connection, @Nullable MachineRow machine) throws DataStoreException
+    {
+        if(machine == null) return;
+        MachineRow known = knownMachines.get(machine.machineId);
+        if(known != null && machine.isStoredAs(known))
+            return;
 
-        if(!found)
-            saveNewMachine(machine);
+        if(known == null && !isMachineStored(connection, machine.machineId))
+            saveNewMachine(connection, machine);
         else
         {
-            TileEntity machineEntity = machine.getMachineEntity();
-            boolean worldObj = machineEntity.hasWorldObj();
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "UPDATE `machines` SET `x`=?,`y`=?,`z`=?"+(worldObj?",`dim`=?,`block`=?,`metadata`=?":"")+",`tile`=?,`owner`=? WHERE `machine_id`=?"))
+            try(PreparedStatement pst = prepare(connection,
+                    "UPDATE `machines` SET `x`=?,`y`=?,`z`=?"+(machine.inWorld?",`dim`=?,`block`=?,`metadata`=?":"")+",`tile`=?,`owner`=? WHERE `machine_id`=?"))
                                         //  1     2     3                       4         5            6           4/7      5/8                 6/9
             {
                 int field = 1;
-                pst.setNull(field++, machineEntity.xCoord);
-                pst.setNull(field++, machineEntity.yCoord);
-                pst.setNull(field++, machineEntity.zCoord);
-                if(worldObj)
+                pst.setInt(field++, machine.x);
+                pst.setInt(field++, machine.y);
+                pst.setInt(field++, machine.z);
+                if(machine.inWorld)
                 {
-                    pst.setInt(field++, machineEntity.getWorldObj().provider.dimensionId);
-                    String block = GameData.getBlockRegistry().getNameForObject(machineEntity.getBlockType());
+                    pst.setInt(field++, machine.dim);
 
-                    if (block != null)
-                        pst.setString(field++, block);
+                    if (machine.block != null)
+                        pst.setString(field++, machine.block);
                     else
                         pst.setNull(field++, Types.VARCHAR);
 
-                    pst.setInt(field++, machineEntity.getBlockMetadata());
+                    pst.setInt(field++, machine.metadata);
                 }
 
-                pst.setString(field++, machineEntity.getClass().getName());
+                pst.setString(field++, machine.tile);
 
-                if(machineEntity instanceof PlayerOwned)
-                {
-                    UUID ownerId = ((PlayerOwned) machineEntity).getOwnerId();
-                    if(ownerId != null)
-                        pst.setString(field++, ownerId.toString());
-                    else
-                        pst.setNull(field++, Types.VARCHAR);
-                }
+                if(machine.owner != null)
+                    pst.setString(field++, machine.owner);
                 else
                     pst.setNull(field++, Types.VARCHAR);
 
-                pst.setString(field, machine.getMachineId().toString());
+                pst.setString(field, machine.machineId);
 
-                pst.executeUpdate();
+                // The registry may be outdated if the row was deleted by someone else
+                if(pst.executeUpdate() == 0 && known != null && !isMachineStored(connection, machine.machineId))
+                {
+                    knownMachines.remove(machine.machineId);
+                    saveNewMachine(connection, machine);
+                }
+                else
+                    rememberMachine(connection, machine.storedOver(known));
             }
             catch (SQLException e)
             {
@@ -226,37 +631,52 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    private void addBlockOperatorData(PreparedStatement pst, BlockOperator blockOperator) throws SQLException
+    /**
+     * Updates every machine referenced by the records once, the last record has the most recent state of the machine
+     */
+    private void updateMachines(Connection connection, @Nonnull Collection<TransactionRecord> records) throws DataStoreException
+    {
+        Map<String, MachineRow> machines = new LinkedHashMap<>();
+        for(TransactionRecord record: records)
+        {
+            if(record.machine != null)
+                machines.put(record.machine.machineId, record.machine);
+            if(record.userCoinSource != null && record.userCoinSource.machine != null)
+                machines.put(record.userCoinSource.machine.machineId, record.userCoinSource.machine);
+            if(record.ownerCoinSource != null && record.ownerCoinSource.machine != null)
+                machines.put(record.ownerCoinSource.machine.machineId, record.ownerCoinSource.machine);
+        }
+
+        for(MachineRow machine: machines.values())
+            updateMachine(connection, machine);
+    }
+
+    private void addBlockOperatorData(PreparedStatement pst, BlockOperatorRow blockOperator) throws SQLException
     {
         int field = 1;
-        pst.setInt(field++, blockOperator.getX());
-        pst.setInt(field++, blockOperator.getY());
-        pst.setInt(field++, blockOperator.getZ());
-        Integer num = blockOperator.getDim();
-        if(num == null)
+        pst.setInt(field++, blockOperator.x);
+        pst.setInt(field++, blockOperator.y);
+        pst.setInt(field++, blockOperator.z);
+        if(blockOperator.dim == null)
             pst.setNull(field++, Types.INTEGER);
         else
-            pst.setInt(field++, num);
-        String blockId = blockOperator.getBlockId();
-        if(blockId == null)
+            pst.setInt(field++, blockOperator.dim);
+        if(blockOperator.blockId == null)
             pst.setNull(field++, Types.VARCHAR);
         else
-            pst.setString(field++, blockId);
-        num = blockOperator.getBlockMeta();
-        if(null == num)
+            pst.setString(field++, blockOperator.blockId);
+        if(null == blockOperator.blockMeta)
             pst.setNull(field++, Types.INTEGER);
         else
-            pst.setInt(field++, num);
-        UUID owner = blockOperator.getOwner();
-        if(owner == null)
+            pst.setInt(field++, blockOperator.blockMeta);
+        if(blockOperator.owner == null)
             pst.setNull(field++, Types.VARCHAR);
         else
-            pst.setString(field++, owner.toString());
-        if(blockOperator instanceof MachineOperator)
+            pst.setString(field++, blockOperator.owner);
+        if(blockOperator.machineId != null)
         {
-            MachineOperator machine = (MachineOperator) blockOperator;
-            pst.setString(field++, machine.getMachine().getMachineId().toString());
-            pst.setString(field, machine.getMachine().getMachineEntity().getClass().getName());
+            pst.setString(field++, blockOperator.machineId);
+            pst.setString(field, blockOperator.machineType);
         }
         else
         {
@@ -265,86 +685,60 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    private int registerCoinSource(Transaction.CoinSource coinSource) throws SQLException, DataStoreException
+    private void addCoinSourceData(Connection connection, PreparedStatement pst, CoinSourceRow coinSource) throws SQLException, DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
-                "INSERT INTO `coin_source`(`before`,`after`,`type`,`machine`,`account`,`card_item`,`card_damage`,`card_amount`," +
-                                          //   1   ,   2   ,   3  ,   4     ,    5    ,      6    ,    7        ,     8
-                        "`card_nbt`,`player_operator`,`block_operator`) " +
-                        //    9    ,        10       ,      11
-                    "VALUES(?,?,?,?,?,?,?,?,?,?,?)",
-                PreparedStatement.RETURN_GENERATED_KEYS
-        ))
-        {
-            pst.setInt(1, coinSource.getBalanceBefore());
-            pst.setInt(2, coinSource.getBalanceAfter());
-            if(coinSource instanceof Transaction.MachineCoinSource)
-            {
-                pst.setString(3, "machine");
-                Machine machine = ((Transaction.MachineCoinSource) coinSource).getMachine();
-                pst.setString(4, machine.getMachineId().toString());
-                updateMachine(machine);
-            }
-            else
-            {
-                pst.setNull(4, Types.CHAR);
-            }
+        pst.setInt(1, coinSource.before);
+        pst.setInt(2, coinSource.after);
+        if(coinSource.type != null)
+            pst.setString(3, coinSource.type);
+        else
+            pst.setNull(3, Types.VARCHAR);
 
-            if(coinSource instanceof Transaction.CardCoinSource)
-            {
-                pst.setString(3, "card");
-                Transaction.CardCoinSource card = (Transaction.CardCoinSource) coinSource;
-                pst.setString(5, card.getAccountAddress().getNumber().toString());
-                ItemStack stack = card.getCard();
-                if(stack != null)
-                {
-                    String type = GameData.getItemRegistry().getNameForObject(stack.getItem());
-                    if(type == null) type = stack.getItem().getClass().getName();
-                    pst.setString(6, type);
-                    pst.setInt(7, stack.getItemDamage());
-                    pst.setInt(8, stack.stackSize);
-                    if(stack.stackTagCompound != null)
-                        pst.setString(9, stack.stackTagCompound.toString());
-                    else
-                        pst.setNull(9, Types.VARCHAR);
-                }
-                else
-                {
-                    pst.setNull(6, Types.VARCHAR);
-                    pst.setNull(7, Types.INTEGER);
-                    pst.setNull(8, Types.INTEGER);
-                    pst.setNull(9, Types.VARCHAR);
-                }
-            }
+        if(coinSource.machine != null)
+            pst.setString(4, coinSource.machine.machineId);
+        else
+            pst.setNull(4, Types.CHAR);
+
+        if(coinSource.account != null)
+            pst.setString(5, coinSource.account);
+        else
+            pst.setNull(5, Types.VARCHAR);
+
+        ItemRow card = coinSource.card;
+        if(card != null)
+        {
+            pst.setString(6, card.item);
+            pst.setInt(7, card.damage);
+            pst.setInt(8, card.amount);
+            if(card.nbt != null)
+                pst.setString(9, card.nbt);
             else
-            {
-                pst.setNull(5, Types.VARCHAR);
-                pst.setNull(6, Types.VARCHAR);
-                pst.setNull(7, Types.INTEGER);
-                pst.setNull(8, Types.INTEGER);
                 pst.setNull(9, Types.VARCHAR);
-            }
+        }
+        else
+        {
+            pst.setNull(6, Types.VARCHAR);
+            pst.setNull(7, Types.INTEGER);
+            pst.setNull(8, Types.INTEGER);
+            pst.setNull(9, Types.VARCHAR);
+        }
 
-            if(coinSource instanceof Transaction.InventoryCoinSource)
-            {
-                pst.setString(3, "inventory");
-                Operator operator = ((Transaction.InventoryCoinSource) coinSource).getOperator();
-                if(operator instanceof PlayerOperator)
-                    pst.setString(10, ((PlayerOperator) operator).getPlayerId().toString());
-                else
-                    pst.setNull(10, Types.VARCHAR);
+        if(coinSource.playerOperator != null)
+            pst.setString(10, coinSource.playerOperator);
+        else
+            pst.setNull(10, Types.VARCHAR);
 
-                if(operator instanceof BlockOperator)
-                    pst.setInt(11, saveBlockOperator((BlockOperator) operator));
-                else
-                    pst.setNull(11, Types.INTEGER);
-            }
-            else
-            {
-                pst.setNull(10, Types.VARCHAR);
-                pst.setNull(11, Types.INTEGER);
-            }
+        if(coinSource.blockOperator != null)
+            pst.setInt(11, saveBlockOperator(connection, coinSource.blockOperator));
+        else
+            pst.setNull(11, Types.INTEGER);
+    }
 
+    private int registerCoinSource(Connection connection, CoinSourceRow coinSource) throws SQLException, DataStoreException
+    {
+        try(PreparedStatement pst = prepare(connection, INSERT_COIN_SOURCE, PreparedStatement.RETURN_GENERATED_KEYS))
+        {
+            addCoinSourceData(connection, pst, coinSource);
             pst.executeUpdate();
             ResultSet generatedKeys = pst.getGeneratedKeys();
             if(!generatedKeys.next())
@@ -353,37 +747,272 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    private int saveBlockOperator(BlockOperator blockOperator) throws SQLException, DataStoreException
+    /**
+     * Inserts the coin sources of multiple transactions with a single batch when the driver returns the generated keys
+     * of batches, falls back to one insert per row otherwise.
+     */
+    private int[] registerCoinSources(Connection connection, List<CoinSourceRow> coinSources) throws SQLException, DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
-                "SELECT `operator_id` FROM `block_operators` WHERE " +
-                        "`x`=? AND `y`=? AND `z`=? AND `dim`=? AND `block_id`=? AND `block_meta` =? " +
-                        "AND `owner`=? AND `machine_id`=? AND `machine_type`=?"
-        ))
+        int[] ids = new int[coinSources.size()];
+        if(ids.length == 0)
+            return ids;
+
+        if(batchGeneratedKeys && ids.length > 2)
         {
-            addBlockOperatorData(pst, blockOperator);
-            ResultSet result = pst.executeQuery();
-            if(result.next())
-                return result.getInt(1);
+            Savepoint savepoint = connection.setSavepoint();
+            try(PreparedStatement pst = prepare(connection, INSERT_COIN_SOURCE, PreparedStatement.RETURN_GENERATED_KEYS))
+            {
+                for(CoinSourceRow coinSource: coinSources)
+                {
+                    addCoinSourceData(connection, pst, coinSource);
+                    pst.addBatch();
+                }
+                pst.executeBatch();
+
+                int count = 0;
+                try(ResultSet generatedKeys = pst.getGeneratedKeys())
+                {
+                    while (count < ids.length && generatedKeys.next())
+                        ids[count++] = generatedKeys.getInt(1);
+                }
+
+                if(count == ids.length)
+                    return ids;
+            }
+
+            UniversalCoinsServer.logger.warn("The JDBC driver doesn't return all generated keys of batch inserts, the coin sources will be inserted one by one");
+            batchGeneratedKeys = false;
+            connection.rollback(savepoint);
         }
 
-        try(PreparedStatement pst = connection.prepareStatement(
-                "INSERT INTO `block_operators`(`x`,`y`,`z`,`dim`,`block_id`,`block_meta`,`owner`,`machine_id`,`machine_type`) " +
-                        "VALUES(?,?,?,?,?,?,?,?,?)",
-                PreparedStatement.RETURN_GENERATED_KEYS
-        ))
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = registerCoinSource(connection, coinSources.get(i));
+        return ids;
+    }
+
+    /**
+     * Loads all rows from the {@code block_operators} table so the block operators used by transactions never need
+     * to be looked up in the database.
+     * @return The amount of block operators that are known now
+     */
+    public int preloadBlockOperators() throws DataStoreException
+    {
+        Map<BlockOperatorRow, Integer> loaded = new HashMap<>();
+        try(Lease lease = lease(); Statement stm = lease.connection.createStatement())
         {
-            addBlockOperatorData(pst, blockOperator);
-            pst.executeUpdate();
-            ResultSet generatedKeys = pst.getGeneratedKeys();
-            if(!generatedKeys.next())
+            ResultSet result = stm.executeQuery(
+                    "SELECT `operator_id`,`x`,`y`,`z`,`dim`,`block_id`,`block_meta`,`owner`,`machine_id`,`machine_type` FROM `block_operators`"
+            );
+            while (result.next())
+            {
+                BlockOperatorRow row = new BlockOperatorRow(result.getInt(2), result.getInt(3), result.getInt(4),
+                        getInteger(result, 5), result.getString(6), getInteger(result, 7),
+                        result.getString(8), result.getString(9), result.getString(10));
+                loaded.put(row, result.getInt(1));
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        synchronized (blockOperatorIds)
+        {
+            for(Map.Entry<BlockOperatorRow, Integer> entry: loaded.entrySet())
+                blockOperatorIds.forcePut(entry.getKey(), entry.getValue());
+            return blockOperatorIds.size();
+        }
+    }
+
+    @Nullable
+    private static Integer getInteger(ResultSet result, int column) throws SQLException
+    {
+        int value = result.getInt(column);
+        return result.wasNull()? null : value;
+    }
+
+    /**
+     * Reverse lookup of the interned block operators
+     */
+    @Nullable
+    BlockOperatorRow getBlockOperator(int operatorId)
+    {
+        synchronized (blockOperatorIds)
+        {
+            return blockOperatorIds.inverse().get(operatorId);
+        }
+    }
+
+    private int saveBlockOperator(Connection connection, final BlockOperatorRow blockOperator) throws SQLException, DataStoreException
+    {
+        Integer known;
+        synchronized (blockOperatorIds)
+        {
+            known = blockOperatorIds.get(blockOperator);
+        }
+
+        if(known != null)
+            return known;
+
+        final int id = findOrInsertBlockOperator(connection, blockOperator);
+        afterCommit(connection, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (blockOperatorIds)
+                {
+                    blockOperatorIds.forcePut(blockOperator, id);
+                }
+            }
+        });
+        return id;
+    }
+
+    private int findOrInsertBlockOperator(Connection connection, BlockOperatorRow blockOperator) throws SQLException, DataStoreException
+    {
+        try(PreparedStatement pst = prepare(connection,
+                "SELECT `operator_id` FROM `block_operators` WHERE " +
+                        "`x`=? AND `y`=? AND `z`=? AND `dim`=? AND `block_id`=? AND `block_meta` =? " +
+                        "AND `owner`=? AND `machine_id`=? AND `machine_type`=?"
+        ))
+        {
+            addBlockOperatorData(pst, blockOperator);
+            ResultSet result = pst.executeQuery();
+            if(result.next())
+                return result.getInt(1);
+        }
+
+        try(PreparedStatement pst = prepare(connection,
+                "INSERT INTO `block_operators`(`x`,`y`,`z`,`dim`,`block_id`,`block_meta`,`owner`,`machine_id`,`machine_type`) " +
+                        "VALUES(?,?,?,?,?,?,?,?,?)",
+                PreparedStatement.RETURN_GENERATED_KEYS
+        ))
+        {
+            addBlockOperatorData(pst, blockOperator);
+            pst.executeUpdate();
+            ResultSet generatedKeys = pst.getGeneratedKeys();
+            if(!generatedKeys.next())
                 throw new DataStoreException("Failed to retrieve generated key for "+blockOperator);
             return generatedKeys.getInt(1);
         }
     }
 
+    private void addTransactionData(PreparedStatement pst, TransactionRecord transaction, int blockOperatorId, int userCoinSource, int ownerCoinSource)
+            throws SQLException
+    {
+        pst.setString(1, transaction.id);
+        pst.setTimestamp(2, new Timestamp(transaction.time));
+        if(transaction.machine != null)
+            pst.setString(3, transaction.machine.machineId);
+        else
+            pst.setNull(3, Types.CHAR);
+
+        if(transaction.playerOperator != null)
+            pst.setString(4, transaction.playerOperator);
+        else
+            pst.setNull(4, Types.CHAR);
+
+        if(blockOperatorId > -1)
+            pst.setInt(5, blockOperatorId);
+        else
+            pst.setNull(5, Types.INTEGER);
+
+        ItemRow stack = transaction.product;
+        if(stack != null)
+        {
+            pst.setString(6, stack.item);
+            pst.setInt(7, stack.damage);
+            pst.setInt(8, stack.amount);
+            if(stack.nbt != null)
+                pst.setString(9, stack.nbt);
+            else
+                pst.setNull(9, Types.VARCHAR);
+        }
+        else
+        {
+            pst.setNull(6, Types.VARCHAR);
+            pst.setNull(7, Types.INTEGER);
+            pst.setNull(8, Types.INTEGER);
+            pst.setNull(9, Types.VARCHAR);
+        }
+
+        stack = transaction.trade;
+        if(stack != null)
+        {
+            pst.setString(10, stack.item);
+            pst.setInt(11, stack.damage);
+            pst.setInt(12, stack.amount);
+            if(stack.nbt != null)
+                pst.setString(13, stack.nbt);
+            else
+                pst.setNull(13, Types.VARCHAR);
+        }
+        else
+        {
+            pst.setNull(10, Types.VARCHAR);
+            pst.setNull(11, Types.INTEGER);
+            pst.setNull(12, Types.INTEGER);
+            pst.setNull(13, Types.VARCHAR);
+        }
+
+        pst.setString(14, transaction.operation);
+        pst.setBoolean(15, transaction.infinite);
+        pst.setInt(16, transaction.quantity);
+        pst.setInt(17, transaction.price);
+        pst.setInt(18, transaction.totalPrice);
+        if(userCoinSource > -1)
+            pst.setInt(19, userCoinSource);
+        else
+            pst.setNull(19, Types.INTEGER);
+
+        if(ownerCoinSource > -1)
+            pst.setInt(20, ownerCoinSource);
+        else
+            pst.setNull(20, Types.INTEGER);
+    }
+
     @Override
     public void saveTransaction(@Nonnull Transaction transaction) throws DataStoreException
+    {
+        try(Lease lease = lease())
+        {
+            saveTransaction(lease.connection, transaction);
+        }
+    }
+
+    private void saveTransaction(Connection connection, @Nonnull Transaction transaction) throws DataStoreException
+    {
+        final TransactionRecord record = TransactionRecord.capture(transaction);
+        final TransactionJournal journal = this.journal;
+        final SalesRollups salesRollups = this.salesRollups;
+        if(journal == null)
+            insertTransactions(connection, Collections.singletonList(record));
+
+        if(journal == null && salesRollups == null)
+            return;
+
+        try
+        {
+            afterCommit(connection, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(journal != null)
+                        journal.add(record);
+                    if(salesRollups != null)
+                        salesRollups.record(record);
+                }
+            });
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    private void insertTransactions(Connection connection, @Nonnull List<TransactionRecord> records) throws DataStoreException
     {
         boolean inTransaction;
         try
@@ -394,135 +1023,58 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
             throw new DataStoreException(e);
         }
 
-        updateMachine(transaction.getMachine());
         try
         {
             if(!inTransaction)
                 connection.setAutoCommit(false);
 
-            Operator operator = transaction.getOperator();
-            int blockOperatorId;
-            if(operator instanceof BlockOperator)
-                blockOperatorId = saveBlockOperator((BlockOperator) operator);
-            else
-                blockOperatorId = -1;
-
-            Transaction.CoinSource coinSource = transaction.getUserCoinSource();
-            int userCoinSource=-1, ownerCoinSource=-1;
-            if(coinSource != null)
-                userCoinSource = registerCoinSource(coinSource);
-            coinSource = transaction.getOwnerCoinSource();
-            if(coinSource != null)
-                ownerCoinSource = registerCoinSource(coinSource);
-
-
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "INSERT INTO `transactions`(`transaction_id`,`time`,`machine`,`player_operator`,`block_operator`," +
-                                                //     1        ,   2  ,     3   ,         4       ,    5
-                            "`product_item`,`product_damage`,`product_amount`,`product_nbt`,`trade_item`,`trade_damage`,`trade_amount`,`trade_nbt`," +
-                            //     6       ,      7         ,        8       ,       9     ,      10    ,     11       ,      12      ,     13
-                            "`operation`,`infinite`,`quantity`,`price`,`total_price`,`user_coinsource`,`owner_coinsource`) " +
-                            //   14     ,     15   ,    16    ,   17  ,     18      ,     19          ,      20
-                            "VALUES(?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)"
-            ))
+            updateMachines(connection, records);
+
+            List<CoinSourceRow> coinSources = new ArrayList<>(records.size() * 2);
+            for(TransactionRecord record: records)
             {
-                pst.setString(1, transaction.getId().toString());
-                pst.setTimestamp(2, new Timestamp(transaction.getTime()));
-                Machine machine = transaction.getMachine();
-                if(machine != null)
-                    pst.setString(3, machine.getMachineId().toString());
-                else
-                    pst.setNull(3, Types.CHAR);
-                if(operator instanceof PlayerOperator)
-                {
-                    pst.setString(4, ((PlayerOperator) operator).getPlayerId().toString());
-                    pst.setNull(5, Types.INTEGER);
-                }
-                else if(operator instanceof BlockOperator)
-                {
-                    pst.setNull(4, Types.CHAR);
-                    pst.setInt(5, blockOperatorId);
-                }
-                else
-                {
-                    pst.setNull(4, Types.CHAR);
-                    pst.setNull(5, Types.INTEGER);
-                }
-                ItemStack stack = transaction.getProduct();
-                if(stack != null)
-                {
-                    String type = GameData.getItemRegistry().getNameForObject(stack.getItem());
-                    if(type == null) type = stack.getItem().getClass().getName();
-                    pst.setString(6, type);
-                    pst.setInt(7, stack.getItemDamage());
-                    pst.setInt(8, stack.stackSize);
-                    if(stack.stackTagCompound != null)
-                        pst.setString(9, stack.stackTagCompound.toString());
-                    else
-                        pst.setNull(9, Types.VARCHAR);
-                }
-                else
-                {
-                    pst.setNull(6, Types.VARCHAR);
-                    pst.setNull(7, Types.INTEGER);
-                    pst.setNull(8, Types.INTEGER);
-                    pst.setNull(9, Types.VARCHAR);
-                }
+                if(record.userCoinSource != null)
+                    coinSources.add(record.userCoinSource);
+                if(record.ownerCoinSource != null)
+                    coinSources.add(record.ownerCoinSource);
+            }
 
-                stack = transaction.getTrade();
-                if(stack != null)
+            int[] coinSourceIds = registerCoinSources(connection, coinSources);
+
+            try(PreparedStatement pst = prepare(connection, INSERT_TRANSACTION))
+            {
+                int index = 0;
+                for(TransactionRecord record: records)
                 {
-                    String type = GameData.getItemRegistry().getNameForObject(stack.getItem());
-                    if(type == null) type = stack.getItem().getClass().getName();
-                    pst.setString(10, type);
-                    pst.setInt(11, stack.getItemDamage());
-                    pst.setInt(12, stack.stackSize);
-                    if(stack.stackTagCompound != null)
-                        pst.setString(13, stack.stackTagCompound.toString());
+                    int blockOperatorId = -1, userCoinSource = -1, ownerCoinSource = -1;
+                    if(record.blockOperator != null)
+                        blockOperatorId = saveBlockOperator(connection, record.blockOperator);
+                    if(record.userCoinSource != null)
+                        userCoinSource = coinSourceIds[index++];
+                    if(record.ownerCoinSource != null)
+                        ownerCoinSource = coinSourceIds[index++];
+
+                    addTransactionData(pst, record, blockOperatorId, userCoinSource, ownerCoinSource);
+                    if(records.size() == 1)
+                        pst.executeUpdate();
                     else
-                        pst.setNull(13, Types.VARCHAR);
-                }
-                else
-                {
-                    pst.setNull(10, Types.VARCHAR);
-                    pst.setNull(11, Types.INTEGER);
-                    pst.setNull(12, Types.INTEGER);
-                    pst.setNull(13, Types.VARCHAR);
+                        pst.addBatch();
                 }
 
-                pst.setString(14, transaction.getOperation().name());
-                pst.setBoolean(15, transaction.isInfiniteMachine());
-                pst.setInt(16, transaction.getQuantity());
-                pst.setInt(17, transaction.getPrice());
-                pst.setInt(18, transaction.getTotalPrice());
-                if(userCoinSource > -1)
-                    pst.setInt(19, userCoinSource);
-                else
-                    pst.setNull(19, Types.INTEGER);
-
-                if(ownerCoinSource > -1)
-                    pst.setInt(20, ownerCoinSource);
-                else
-                    pst.setNull(20, Types.INTEGER);
-
-                pst.executeUpdate();
-
-                if(!inTransaction)
-                    connection.commit();
+                if(records.size() > 1)
+                    pst.executeBatch();
             }
 
+            if(hasAccountHistory(connection))
+                insertAccountHistory(connection, records);
+
+            if(!inTransaction)
+                commit(connection);
         }
         catch (Throwable e)
         {
             if(!inTransaction)
-                try
-                {
-                    connection.rollback();
-                }
-                catch (Exception e1)
-                {
-                    e1.printStackTrace();
-                }
+                rollback(connection);
 
             throw new DataStoreException(e);
         }
@@ -539,251 +1091,377 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    @Nonnull
-    @Override
-    public PlayerData getPlayerData(@Nonnull UUID playerUID) throws DataStoreException
+    /**
+     * Adds the transactions to the {@code account_transactions} index of each card account that they changed
+     */
+    private void insertAccountHistory(Connection connection, @Nonnull List<TransactionRecord> records) throws SQLException
     {
-        try
+        try(PreparedStatement pst = prepare(connection,
+                "INSERT INTO `account_transactions`(`account`,`time`,`transaction_id`) VALUES(?,?,?)"
+        ))
         {
-            AccountAddress primary;
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "SELECT `primary_account`, ac.name,ac.owner " +
-                        "FROM `user_data` LEFT JOIN `accounts` AS ac ON ac.number=`primary_account` " +
-                        "WHERE `player_id`=? AND `primary_account` IS NOT NULL"
-            ))
-            {
-                pst.setString(1, playerUID.toString());
-                ResultSet result = pst.executeQuery();
-                if(!result.next())
-                    primary = null;
-                else
-                    primary = new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3)));
-            }
-
-            ArrayList<AccountAddress> customAccounts = new ArrayList<>();
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "SELECT ac.number, ac.name, ac.owner " +
-                        "FROM `custom_accounts` AS ca INNER JOIN `accounts` AS ac ON ac.number=ca.account " +
-                        "WHERE ac.owner=? AND ac.terminated IS NULL AND ca.terminated IS NULL"
-            ))
+            int rows = 0;
+            for(TransactionRecord record: records)
             {
-                pst.setString(1, playerUID.toString());
-                ResultSet result = pst.executeQuery();
-                while (result.next())
-                    customAccounts.add(new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3))));
+                String user = record.userCoinSource == null? null : record.userCoinSource.account;
+                String owner = record.ownerCoinSource == null? null : record.ownerCoinSource.account;
+                for(String account: new String[]{user, owner == null || owner.equals(user)? null : owner})
+                {
+                    if(account == null)
+                        continue;
+
+                    pst.setString(1, account);
+                    pst.setTimestamp(2, new Timestamp(record.time));
+                    pst.setString(3, record.id);
+                    pst.addBatch();
+                    rows++;
+                }
             }
 
-            return new PlayerData(Integer.MIN_VALUE, playerUID, primary, customAccounts);
-        }
-        catch (SQLException|IllegalArgumentException e)
-        {
-            throw new DataStoreException(e);
+            if(rows > 0)
+                pst.executeBatch();
         }
     }
 
+    private boolean hasAccountHistory(Connection connection) throws SQLException
+    {
+        return requireTable(connection, "account_transactions", "read the history of an account without scanning the coin sources");
+    }
+
+    private boolean hasAccountSequence(Connection connection) throws SQLException
+    {
+        return requireTable(connection, "account_sequence", "create accounts without searching for a free number");
+    }
+
+    /**
+     * Gives a number that is not used by any account, from the {@link AccountNumberAllocator} when the
+     * {@code account_sequence} table exists
+     */
     @Nonnull
-    @Override
-    public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
+    private String newAccountNumber(Connection connection) throws SQLException, DataStoreException
     {
-        return createAccount(playerUID, name, true, false);
+        if(hasAccountSequence(connection))
+            return accountNumbers.next();
+
+        String number;
+        try(PreparedStatement pst = prepare(connection,
+                "SELECT `owner` FROM `accounts` WHERE `number`=?"
+        ))
+        {
+            do
+            {
+                number = generateAccountNumber();
+                pst.setString(1, number);
+            } while (pst.executeQuery().next());
+        }
+        return number;
     }
 
+    /**
+     * Advances the counter of the {@code account_sequence} table, the row is created with a random seed by the first
+     * server that needs it.
+     * <p>
+     * The counter is advanced on its own auto-commit connection instead of joining the transaction of the caller, so
+     * the retries see the rows committed by the other servers and the row is not kept locked until the account
+     * creation commits. A reserved block is never returned, the numbers that are not used are just skipped.
+     */
     @Nonnull
-    private AccountAddress createAccount(@Nonnull UUID playerUID, @Nonnull String name, boolean primary, boolean transference) throws DataStoreException, DuplicatedKeyException
+    private long[] reserveAccountNumbers(int count) throws DataStoreException
     {
-        boolean inTransaction;
-        boolean deleteOldReference = false;
-        String playerId = playerUID.toString();
+        Connection connection;
         try
         {
-            inTransaction = !connection.getAutoCommit();
+            connection = pool.borrow();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
 
-            if(primary)
+        try
+        {
+            // Other servers sharing the table may advance the counter at the same time
+            for(int attempt = 0; attempt < 10; attempt++)
             {
-                if(!transference)
+                long seed, next;
+                try(PreparedStatement pst = prepare(connection, "SELECT `seed`, `next` FROM `account_sequence` WHERE `name`='accounts'");
+                    ResultSet result = pst.executeQuery())
                 {
-                    try(PreparedStatement pst = connection.prepareStatement(
-                            "SELECT `primary_account`, `terminated` " +
-                                    "FROM `user_data` LEFT JOIN accounts ON `number`=`primary_account` " +
-                                    "WHERE `player_id`=?"
-                    ))
+                    if(result.next())
                     {
-                        pst.setString(1, playerId);
-                        ResultSet result = pst.executeQuery();
-                        if(result.next())
-                        {
-                            String account = result.getString(1);
-                            Timestamp terminated = result.getTimestamp(2);
-                            if(account != null)
-                            {
-                                if(terminated == null)
-                                    throw new DuplicatedKeyException(playerUID+" already have a primary account: "+account);
-                                else
-                                    deleteOldReference = true;
-                            }
-                        }
+                        seed = result.getLong(1);
+                        next = result.getLong(2);
+                    }
+                    else
+                    {
+                        seed = AccountNumberAllocator.newSeed();
+                        next = -1;
                     }
                 }
-            }
-            else
-            {
-                try(PreparedStatement pst = connection.prepareStatement(
-                        "SELECT ca.`account`, ac.`terminated` AS `account_terminated`, ca.`terminated` AS `name_terminated` " +
-                            "FROM `custom_accounts` AS ca LEFT JOIN `accounts` AS ac ON `number`=`account` " +
-                            "WHERE ca.name=?"
-                ))
+
+                if(next < 0)
                 {
-                    pst.setString(1, name);
-                    ResultSet resultSet = pst.executeQuery();
-                    if(resultSet.next())
+                    try(PreparedStatement pst = prepare(connection, "INSERT INTO `account_sequence`(`name`,`seed`,`next`) VALUES('accounts',?,?)"))
                     {
-                        String account = resultSet.getString(1);
-                        Timestamp terminated = resultSet.getTimestamp(2);
-                        if(account != null)
-                        {
-                            if(terminated == null)
-                                throw new DuplicatedKeyException(name + " is already registered for: " + account);
-                            else
-                                deleteOldReference = true;
-                        }
+                        pst.setLong(1, seed);
+                        pst.setLong(2, count);
+                        pst.executeUpdate();
+                        return new long[]{seed, 0};
+                    }
+                    catch (SQLException e)
+                    {
+                        // Created by another server
+                        continue;
                     }
                 }
+
+                try(PreparedStatement pst = prepare(connection, "UPDATE `account_sequence` SET `next`=? WHERE `name`='accounts' AND `next`=?"))
+                {
+                    pst.setLong(1, next + count);
+                    pst.setLong(2, next);
+                    if(pst.executeUpdate() > 0)
+                        return new long[]{seed, next};
+                }
             }
-        } catch (SQLException e)
+        }
+        catch (SQLException e)
         {
             throw new DataStoreException(e);
         }
-
-        try
+        finally
         {
-            if(!inTransaction)
-                connection.setAutoCommit(false);
+            pool.release(connection);
+        }
 
-            String number;
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "SELECT `owner` FROM `accounts` WHERE `number`=?"
+        throw new DataStoreException("Failed to reserve account numbers from the account_sequence table");
+    }
+
+    @Nonnull
+    private List<String> findUsedAccountNumbers(@Nonnull List<String> numbers) throws DataStoreException
+    {
+        List<String> used = new ArrayList<>();
+        try(Lease lease = lease();
+            PreparedStatement pst = lease.connection.prepareStatement(
+                    "SELECT `number` FROM `accounts` WHERE `number` IN ("+placeholders(numbers.size())+")"
             ))
+        {
+            for(int i = 0; i < numbers.size(); i++)
+                pst.setString(i + 1, numbers.get(i));
+            try(ResultSet result = pst.executeQuery())
             {
-                do
-                {
-                    number = generateAccountNumber();
-                    pst.setString(1, number);
-                } while (pst.executeQuery().next());
+                while (result.next())
+                    used.add(result.getString(1));
             }
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+        return used;
+    }
 
-            registerUser(playerUID);
+    private boolean hasArchiveTables(Connection connection) throws SQLException
+    {
+        return requireTable(connection, "transactions_archive", "archive the old transactions");
+    }
 
-            try (PreparedStatement pst = connection.prepareStatement(
-                    "INSERT INTO `accounts`(`number`,`owner`,`name`,`primary`) VALUES(?,?,?,?)"
-            ))
+    /**
+     * Moves the oldest transactions before the time to the archive tables in a single database transaction. With the
+     * monthly tables the chunk is limited to the month of the oldest transaction, so it's moved to a single table.
+     * When the reconciliation is enabled only the transactions whose coin sources are before its saved checkpoint are
+     * moved, the others are archived after the reconciler reads them.
+     * @return The amount of transactions archived
+     */
+    private int archiveTransactions(long before, int limit) throws DataStoreException
+    {
+        LedgerReconciler reconciler = this.reconciler;
+        String checkpoint = reconciler == null? null : reconciler.getSavedCheckpoint();
+        try(Lease lease = lease())
+        {
+            Connection connection = lease.connection;
+            SqlSchema.Dialect dialect = SqlSchema.Dialect.of(connection);
+            String suffix = "";
+            if(archiveMonthly)
             {
-                pst.setString(1, number);
-                pst.setString(2, playerId);
-                pst.setString(3, name);
-                pst.setBoolean(4, primary);
-                pst.executeUpdate();
-            }
+                Timestamp oldest = null;
+                try(PreparedStatement pst = prepare(connection, "SELECT MIN(`time`) FROM `transactions`");
+                    ResultSet result = pst.executeQuery())
+                {
+                    if(result.next())
+                        oldest = result.getTimestamp(1);
+                }
 
-            if(primary)
-            {
-                try(PreparedStatement pst = connection.prepareStatement(
-                        "UPDATE `user_data` SET `primary_account`=? WHERE `player_id`=?"
-                ))
+                if(oldest == null || oldest.getTime() >= before)
+                    return 0;
+
+                Calendar month = Calendar.getInstance();
+                month.setTime(oldest);
+                suffix = String.format("_%04d%02d", month.get(Calendar.YEAR), month.get(Calendar.MONTH) + 1);
+                month.set(month.get(Calendar.YEAR), month.get(Calendar.MONTH), 1, 0, 0, 0);
+                month.set(Calendar.MILLISECOND, 0);
+                month.add(Calendar.MONTH, 1);
+                before = Math.min(before, month.getTimeInMillis());
+
+                if(monthlyArchives.add(suffix))
                 {
-                    pst.setString(1, number);
-                    pst.setString(2, playerId);
-                    pst.executeUpdate();
+                    try(Statement stm = connection.createStatement())
+                    {
+                        for(String sql: SqlSchema.archiveTables(suffix))
+                            stm.executeUpdate(dialect.translate(sql));
+                    }
+                    catch (SQLException e)
+                    {
+                        monthlyArchives.remove(suffix);
+                        throw e;
+                    }
                 }
             }
-            else
+            else if(!hasArchiveTables(connection))
+                return 0;
+
+            String select = "SELECT `transaction_id`,`user_coinsource`,`owner_coinsource` FROM `transactions` WHERE `time`<? ";
+            if(checkpoint != null)
+                select += "AND (`user_coinsource` IS NULL OR `user_coinsource`<=?) AND (`owner_coinsource` IS NULL OR `owner_coinsource`<=?) ";
+            select += "ORDER BY `time`";
+            if(dialect == SqlSchema.Dialect.MYSQL || dialect == SqlSchema.Dialect.SQLITE)
+                select += " LIMIT "+limit;
+
+            List<String> transactions = new ArrayList<>(limit);
+            List<Integer> coinSources = new ArrayList<>(limit * 2);
+            try(PreparedStatement pst = prepare(connection, select))
             {
-                if(deleteOldReference)
-                    try(PreparedStatement pst = connection.prepareStatement(
-                            "DELETE FROM `custom_accounts` WHERE `name`=?"
-                    ))
+                pst.setTimestamp(1, new Timestamp(before));
+                if(checkpoint != null)
+                {
+                    int read = checkpoint.isEmpty()? 0 : Integer.parseInt(checkpoint);
+                    pst.setInt(2, read);
+                    pst.setInt(3, read);
+                }
+                pst.setMaxRows(limit);
+                try(ResultSet result = pst.executeQuery())
+                {
+                    while (result.next())
                     {
-                        pst.setString(1, name);
-                        pst.executeUpdate();
+                        transactions.add(result.getString(1));
+                        Integer userCoinSource = getInteger(result, 2);
+                        if(userCoinSource != null)
+                            coinSources.add(userCoinSource);
+                        Integer ownerCoinSource = getInteger(result, 3);
+                        if(ownerCoinSource != null)
+                            coinSources.add(ownerCoinSource);
                     }
-
-                try(PreparedStatement pst = connection.prepareStatement(
-                        "INSERT INTO `custom_accounts`(`name`,`account`) VALUES(?,?)"
-                ))
-                {
-                    pst.setString(1, name);
-                    pst.setString(2, number);
-                    pst.executeUpdate();
                 }
             }
 
-            if(!inTransaction)
-                connection.commit();
-            return new AccountAddress(number, name, playerUID);
-        }
-        catch (Throwable e)
-        {
+            if(transactions.isEmpty())
+                return 0;
+
+            String transactionIds = placeholders(transactions.size());
+            String coinSourceIds = placeholders(coinSources.size());
+            connection.setAutoCommit(false);
             try
             {
-                connection.rollback();
+                executeUpdate(connection,
+                        "INSERT INTO `transactions_archive"+suffix+"`("+ARCHIVED_TRANSACTION_COLUMNS+") " +
+                        "SELECT "+ARCHIVED_TRANSACTION_COLUMNS+" FROM `transactions` WHERE `transaction_id` IN ("+transactionIds+")",
+                        transactions
+                );
+
+                if(!coinSources.isEmpty())
+                {
+                    executeUpdate(connection,
+                            "INSERT INTO `coin_source_archive"+suffix+"`("+ARCHIVED_COIN_SOURCE_COLUMNS+") " +
+                            "SELECT "+ARCHIVED_COIN_SOURCE_COLUMNS+" FROM `coin_source` WHERE `id` IN ("+coinSourceIds+")",
+                            coinSources
+                    );
+                    executeUpdate(connection, "DELETE FROM `coin_source` WHERE `id` IN ("+coinSourceIds+")", coinSources);
+                }
+
+                if(hasAccountHistory(connection))
+                    executeUpdate(connection, "DELETE FROM `account_transactions` WHERE `transaction_id` IN ("+transactionIds+")", transactions);
+
+                executeUpdate(connection, "DELETE FROM `transactions` WHERE `transaction_id` IN ("+transactionIds+")", transactions);
+                commit(connection);
             }
-            catch (SQLException e1)
+            catch (Throwable e)
             {
-                e1.printStackTrace();
+                rollback(connection);
+                throw new DataStoreException(e);
             }
-            throw new DataStoreException(e);
+            finally
+            {
+                connection.setAutoCommit(true);
+            }
+
+            return transactions.size();
         }
-        finally
+        catch (SQLException e)
         {
-            if(!inTransaction)
-                try
-                {
-                    connection.setAutoCommit(true);
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                }
+            throw new DataStoreException(e);
         }
     }
 
-    private void registerUser(UUID playerUID) throws SQLException
+    @Nonnull
+    private static String placeholders(int count)
     {
-        boolean registerUser;
-        try(PreparedStatement pst = connection.prepareStatement(
-                "SELECT `primary_account` FROM `user_data` WHERE `player_id`=?"
-        ))
+        StringBuilder sb = new StringBuilder(count * 2);
+        for(int i = 0; i < count; i++)
         {
-            pst.setString(1, playerUID.toString());
-            ResultSet result = pst.executeQuery();
-            registerUser = !result.next();
+            if(i > 0) sb.append(',');
+            sb.append('?');
         }
-
-        if(registerUser)
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "INSERT INTO `user_data`(`player_id`) VALUES(?)"
-            ))
-            {
-                pst.setString(1, playerUID.toString());
-                pst.executeUpdate();
-            }
+        return sb.toString();
     }
 
-    @Nullable
-    @Override
-    public AccountAddress getCustomAccountByName(@Nonnull String customAccountName) throws DataStoreException
+    /**
+     * Reads the account coin sources after the coin source id of the checkpoint, stopping at the first one that belongs
+     * to a transaction of the last minute. The checkpoint never passes a coin source without a transaction unless a
+     * settled transaction comes after it, so the rows of transactions that are still being written are read again.
+     */
+    @Nonnull
+    private String readLedger(@Nonnull String checkpoint, int limit, @Nonnull List<LedgerReconciler.Movement> movements)
+            throws DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
-                "SELECT ac.number, ac.name, ac.owner " +
-                    "FROM `custom_accounts` AS ca " +
-                        "INNER JOIN `accounts` AS ac ON `number`=`account` AND ca.name=? " +
-                    "WHERE ca.`terminated` IS NULL AND ac.`terminated` IS NULL"
-        ))
-        {
-            pst.setString(1, customAccountName);
-            ResultSet result = pst.executeQuery();
-            if(!result.next())
-                return null;
-            return new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3)));
+        long settled = System.currentTimeMillis() - 60000;
+        try(Lease lease = lease())
+        {
+            Connection connection = lease.connection;
+            String sql =
+                    "SELECT cs.id, cs.account, cs.before, cs.after, ut.transaction_id, ut.time, ot.transaction_id, ot.time " +
+                        "FROM `coin_source` AS cs " +
+                        "LEFT JOIN `transactions` AS ut ON ut.user_coinsource=cs.id " +
+                        "LEFT JOIN `transactions` AS ot ON ot.owner_coinsource=cs.id " +
+                        "WHERE cs.id>? AND cs.account IS NOT NULL ORDER BY cs.id";
+            SqlSchema.Dialect dialect = SqlSchema.Dialect.of(connection);
+            if(dialect == SqlSchema.Dialect.MYSQL || dialect == SqlSchema.Dialect.SQLITE)
+                sql += " LIMIT "+limit;
+
+            int last = checkpoint.isEmpty()? 0 : Integer.parseInt(checkpoint);
+            try(PreparedStatement pst = prepare(connection, sql))
+            {
+                pst.setInt(1, last);
+                pst.setMaxRows(limit);
+                try(ResultSet result = pst.executeQuery())
+                {
+                    // The checkpoint only moves to settled transactions. A coin source without a transaction may belong
+                    // to one that is not visible yet, it's skipped only when a later transaction is already settled
+                    while (result.next())
+                    {
+                        boolean user = result.getString(5) != null;
+                        String transactionId = result.getString(user? 5 : 7);
+                        if(transactionId == null)
+                            continue;
+
+                        if(result.getTimestamp(user? 6 : 8).getTime() >= settled)
+                            break;
+
+                        movements.add(new LedgerReconciler.Movement(transactionId, result.getString(2),
+                                result.getInt(3), result.getInt(4)));
+                        last = result.getInt(1);
+                    }
+                }
+            }
+            return Integer.toString(last);
         }
         catch (SQLException|IllegalArgumentException e)
         {
@@ -791,170 +1469,362 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    @Nonnull
-    @Override
-    public AccountAddress createCustomAccount(@Nonnull UUID playerUID, @Nonnull String customAccountName) throws DataStoreException, DuplicatedKeyException
+    /**
+     * Runs a statement that has a variable amount of parameters, it's not cached
+     */
+    private static int executeUpdate(Connection connection, String sql, List<?> parameters) throws SQLException
     {
-        return createAccount(playerUID, customAccountName, false, false);
+        try(PreparedStatement pst = connection.prepareStatement(sql))
+        {
+            for(int i = 0; i < parameters.size(); i++)
+                pst.setObject(i + 1, parameters.get(i));
+            return pst.executeUpdate();
+        }
     }
 
-    @Nonnull
-    @Override
-    public AccountAddress transferAccount(@Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator)
-            throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
+    private boolean hasSalesRollups(Connection connection) throws SQLException
     {
-        AccountAddress customAccountByName = getCustomAccountByName(origin.getName());
-        if(customAccountByName == null)
-            throw new AccountNotFoundException(origin);
+        return requireTable(connection, "sales_rollups", "keep the sales rollups after a restart");
+    }
 
-        try
+    private void loadSalesRollups(long hoursSince, long daysSince, @Nonnull Visitor<SalesRollups.Row> visitor) throws DataStoreException
+    {
+        try(Lease lease = lease())
         {
-            connection.setAutoCommit(false);
+            Connection connection = lease.connection;
+            if(!hasSalesRollups(connection))
+                return;
 
-            AccountAddress newAccount = transfer(origin, destiny, machine, operator, false);
-
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "UPDATE `custom_accounts` SET `terminated`=?, `transferred`=?, `transferred_name`=? WHERE `name`=?"
-                                                        //     1                2                     3              4
+            try(PreparedStatement pst = prepare(connection,
+                    "SELECT `scope`,`id`,`period`,`bucket`,`trades`,`coins_in`,`coins_out`,`items` FROM `sales_rollups` " +
+                    "WHERE `period`='TOTAL' OR `period`='HOUR' AND `bucket`>=? OR `period`='DAY' AND `bucket`>=?"
             ))
             {
-                pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-                pst.setString(2, newAccount.getNumber().toString());
-                pst.setString(3, newAccount.getName());
-                pst.setString(4, origin.getName());
-                pst.executeUpdate();
+                pst.setLong(1, hoursSince);
+                pst.setLong(2, daysSince);
+                try(ResultSet result = pst.executeQuery())
+                {
+                    while (result.next())
+                    {
+                        SalesRollups.Row row = new SalesRollups.Row(
+                                SalesRollups.Scope.valueOf(result.getString(1)), UUID.fromString(result.getString(2)),
+                                SalesRollups.Period.valueOf(result.getString(3)), result.getLong(4),
+                                result.getLong(5), result.getLong(6), result.getLong(7), result.getLong(8)
+                        );
+                        if(!visitor.visit(row))
+                            break;
+                    }
+                }
             }
-
-            return newAccount;
         }
-        catch (Throwable e)
+        catch (SQLException|IllegalArgumentException e)
         {
-            try
-            {
-                connection.rollback();
-            } catch (SQLException e1)
-            {
-                e1.printStackTrace();
-            }
-
             throw new DataStoreException(e);
         }
-        finally
-        {
-            try
-            {
-                connection.setAutoCommit(true);
-            } catch (SQLException e)
-            {
-                e.printStackTrace();
-            }
-        }
     }
 
-    @Nonnull
-    @Override
-    public AccountAddress transferPrimaryAccount(@Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator)
-            throws DataStoreException, AccountNotFoundException
+    /**
+     * Adds the increments to the existing rows and inserts the missing ones in a single database transaction
+     */
+    private void addSalesRollups(@Nonnull List<SalesRollups.Row> increments) throws DataStoreException
     {
-        try
+        try(Lease lease = lease())
         {
-            connection.setAutoCommit(false);
-            AccountAddress newAccount = transfer(primaryAccount, newName, machine, operator, true);
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "UPDATE `user_data` SET `primary_account`=? WHERE `player_id`=?"
-            ))
-            {
-                pst.setString(1, newAccount.getNumber().toString());
-                pst.setString(2, newAccount.getOwner().toString());
-                pst.executeUpdate();
-            }
+            Connection connection = lease.connection;
+            if(!hasSalesRollups(connection))
+                return;
 
-            connection.commit();
-            return newAccount;
-        }
-        catch (Throwable e)
-        {
+            connection.setAutoCommit(false);
             try
             {
-                connection.rollback();
-            } catch (SQLException e1)
+                int[] updated;
+                try(PreparedStatement pst = prepare(connection,
+                        "UPDATE `sales_rollups` SET `trades`=`trades`+?, `coins_in`=`coins_in`+?, `coins_out`=`coins_out`+?, `items`=`items`+? " +
+                        "WHERE `scope`=? AND `id`=? AND `period`=? AND `bucket`=?"
+                ))
+                {
+                    for(SalesRollups.Row row: increments)
+                    {
+                        pst.setLong(1, row.trades);
+                        pst.setLong(2, row.coinsIn);
+                        pst.setLong(3, row.coinsOut);
+                        pst.setLong(4, row.items);
+                        pst.setString(5, row.scope.name());
+                        pst.setString(6, row.id.toString());
+                        pst.setString(7, row.period.name());
+                        pst.setLong(8, row.bucket);
+                        pst.addBatch();
+                    }
+                    updated = pst.executeBatch();
+                }
+
+                try(PreparedStatement pst = prepare(connection,
+                        "INSERT INTO `sales_rollups`(`scope`,`id`,`period`,`bucket`,`trades`,`coins_in`,`coins_out`,`items`) VALUES(?,?,?,?,?,?,?,?)"
+                ))
+                {
+                    int inserts = 0;
+                    for(int i = 0; i < updated.length; i++)
+                    {
+                        if(updated[i] != 0)
+                            continue;
+
+                        SalesRollups.Row row = increments.get(i);
+                        pst.setString(1, row.scope.name());
+                        pst.setString(2, row.id.toString());
+                        pst.setString(3, row.period.name());
+                        pst.setLong(4, row.bucket);
+                        pst.setLong(5, row.trades);
+                        pst.setLong(6, row.coinsIn);
+                        pst.setLong(7, row.coinsOut);
+                        pst.setLong(8, row.items);
+                        pst.addBatch();
+                        inserts++;
+                    }
+
+                    if(inserts > 0)
+                        pst.executeBatch();
+                }
+
+                commit(connection);
+            }
+            catch (Throwable e)
             {
-                e1.printStackTrace();
+                rollback(connection);
+                throw new DataStoreException(e);
             }
-            throw new DataStoreException(e);
-        }
-        finally
-        {
-            try
+            finally
             {
                 connection.setAutoCommit(true);
-            } catch (SQLException e)
-            {
-                e.printStackTrace();
             }
         }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
     }
 
-    @Nonnull
-    private AccountAddress transfer(@Nonnull AccountAddress oldAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator, boolean primary)
-            throws DataStoreException, AccountNotFoundException
+    /**
+     * Writes a batch of records queued by the journal in a single database transaction
+     */
+    private void writeJournal(@Nonnull List<TransactionRecord> records, boolean recovered) throws DataStoreException
     {
-        AbstractSQL.SqlAccount account = getAccount(oldAccount.getNumber());
-        if(account == null) throw new AccountNotFoundException(oldAccount);
-        int balance = account.getBalance();
+        try(Lease lease = lease())
+        {
+            Connection connection = lease.connection;
+            if(recovered)
+                records = removeStored(connection, records);
 
-        boolean inTransaction;
-        try
+            if(!records.isEmpty())
+                insertTransactions(connection, records);
+        }
+    }
+
+    /**
+     * Filters out the records that were already written before the server stopped
+     */
+    private List<TransactionRecord> removeStored(Connection connection, List<TransactionRecord> records) throws DataStoreException
+    {
+        List<TransactionRecord> missing = new ArrayList<>(records.size());
+        try(PreparedStatement pst = prepare(connection, "SELECT 1 FROM `transactions` WHERE `transaction_id`=?"))
         {
-            inTransaction = !connection.getAutoCommit();
-        } catch (SQLException e)
+            for(TransactionRecord record: records)
+            {
+                pst.setString(1, record.id);
+                try(ResultSet result = pst.executeQuery())
+                {
+                    if(!result.next())
+                        missing.add(record);
+                }
+            }
+        }
+        catch (SQLException e)
         {
             throw new DataStoreException(e);
         }
+        return missing;
+    }
 
-        try
+    @Nonnull
+    @Override
+    public PlayerData getPlayerData(@Nonnull UUID playerUID) throws DataStoreException
+    {
+        try(Lease lease = lease())
         {
-            if(!inTransaction)
-                connection.setAutoCommit(false);
-
-            AccountAddress newAddress = createAccount(oldAccount.getOwner(), newName, primary, true);
-            AbstractSQL.SqlAccount newAccount = getAccount(newAddress.getNumber());
-            assert newAccount != null;
-
-            try(PreparedStatement pst = connection.prepareStatement(
-                    "UPDATE `accounts` SET `balance`=0, `terminated`=?, `transferred`=? WHERE `number`=?"
+            Connection connection = lease.connection;
+            AccountAddress primary;
+            try(PreparedStatement pst = prepare(connection,
+                    "SELECT `primary_account`, ac.name,ac.owner " +
+                        "FROM `user_data` LEFT JOIN `accounts` AS ac ON ac.number=`primary_account` " +
+                        "WHERE `player_id`=? AND `primary_account` IS NOT NULL"
             ))
             {
-                pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-                pst.setString(2, newAddress.getNumber().toString());
-                pst.setString(3, account.id);
-                pst.executeUpdate();
+                pst.setString(1, playerUID.toString());
+                ResultSet result = pst.executeQuery();
+                if(!result.next())
+                    primary = null;
+                else
+                    primary = new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3)));
             }
 
-            newAccount.incrementBalance(balance, null);
+            ArrayList<AccountAddress> customAccounts = new ArrayList<>();
+            try(PreparedStatement pst = prepare(connection,
+                    "SELECT ac.number, ac.name, ac.owner " +
+                        "FROM `custom_accounts` AS ca INNER JOIN `accounts` AS ac ON ac.number=ca.account " +
+                        "WHERE ac.owner=? AND ac.terminated IS NULL AND ca.terminated IS NULL"
+            ))
+            {
+                pst.setString(1, playerUID.toString());
+                ResultSet result = pst.executeQuery();
+                while (result.next())
+                    customAccounts.add(new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3))));
+            }
 
+            return new PlayerData(Integer.MIN_VALUE, playerUID, primary, customAccounts);
+        }
+        catch (SQLException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
 
-            Transaction transaction = new Transaction(machine, Transaction.Operation.TRANSFER_ACCOUNT, operator,
-                    new Transaction.CardCoinSource(null, oldAccount, balance, 0),
-                    new Transaction.CardCoinSource(null, newAddress, 0, balance), null);
+    @Nonnull
+    @Override
+    public AccountAddress createPrimaryAccount(@Nonnull UUID playerUID, @Nonnull String name) throws DataStoreException, DuplicatedKeyException
+    {
+        try(Lease lease = lease())
+        {
+            return createAccount(lease.connection, playerUID, name, true, false);
+        }
+    }
 
+    @Nonnull
+    private AccountAddress createAccount(Connection connection, @Nonnull UUID playerUID, @Nonnull String name, boolean primary, boolean transference) throws DataStoreException, DuplicatedKeyException
+    {
+        boolean inTransaction;
+        boolean deleteOldReference = false;
+        String playerId = playerUID.toString();
+        String number;
+        try
+        {
+            inTransaction = !connection.getAutoCommit();
 
-            saveTransaction(transaction);
+            if(primary)
+            {
+                if(!transference)
+                {
+                    try(PreparedStatement pst = prepare(connection,
+                            "SELECT `primary_account`, `terminated` " +
+                                    "FROM `user_data` LEFT JOIN accounts ON `number`=`primary_account` " +
+                                    "WHERE `player_id`=?"
+                    ))
+                    {
+                        pst.setString(1, playerId);
+                        ResultSet result = pst.executeQuery();
+                        if(result.next())
+                        {
+                            String account = result.getString(1);
+                            Timestamp terminated = result.getTimestamp(2);
+                            if(account != null)
+                            {
+                                if(terminated == null)
+                                    throw new DuplicatedKeyException(playerUID+" already have a primary account: "+account);
+                                else
+                                    deleteOldReference = true;
+                            }
+                        }
+                    }
+                }
+            }
+            else
+            {
+                try(PreparedStatement pst = prepare(connection,
+                        "SELECT ca.`account`, ac.`terminated` AS `account_terminated`, ca.`terminated` AS `name_terminated` " +
+                            "FROM `custom_accounts` AS ca LEFT JOIN `accounts` AS ac ON `number`=`account` " +
+                            "WHERE ca.name=?"
+                ))
+                {
+                    pst.setString(1, name);
+                    ResultSet resultSet = pst.executeQuery();
+                    if(resultSet.next())
+                    {
+                        String account = resultSet.getString(1);
+                        Timestamp terminated = resultSet.getTimestamp(2);
+                        if(account != null)
+                        {
+                            if(terminated == null)
+                                throw new DuplicatedKeyException(name + " is already registered for: " + account);
+                            else
+                                deleteOldReference = true;
+                        }
+                    }
+                }
+            }
 
-            if(!inTransaction)
-                connection.commit();
-            return newAddress;
+            // Taken before the transaction begins, the block is reserved on a separate connection even when the caller
+            // already has a transaction open, so it doesn't depend on the outcome
+            number = newAccountNumber(connection);
+        } catch (SQLException e)
+        {
+            throw new DataStoreException(e);
         }
-        catch (Throwable e)
+
+        try
         {
             if(!inTransaction)
-                try
+                connection.setAutoCommit(false);
+
+            registerUser(connection, playerUID);
+
+            try (PreparedStatement pst = prepare(connection,
+                    "INSERT INTO `accounts`(`number`,`owner`,`name`,`primary`) VALUES(?,?,?,?)"
+            ))
+            {
+                pst.setString(1, number);
+                pst.setString(2, playerId);
+                pst.setString(3, name);
+                pst.setBoolean(4, primary);
+                pst.executeUpdate();
+            }
+
+            if(primary)
+            {
+                try(PreparedStatement pst = prepare(connection,
+                        "UPDATE `user_data` SET `primary_account`=? WHERE `player_id`=?"
+                ))
                 {
-                    connection.rollback();
-                } catch (SQLException e1)
+                    pst.setString(1, number);
+                    pst.setString(2, playerId);
+                    pst.executeUpdate();
+                }
+            }
+            else
+            {
+                if(deleteOldReference)
+                    try(PreparedStatement pst = prepare(connection,
+                            "DELETE FROM `custom_accounts` WHERE `name`=?"
+                    ))
+                    {
+                        pst.setString(1, name);
+                        pst.executeUpdate();
+                    }
+
+                try(PreparedStatement pst = prepare(connection,
+                        "INSERT INTO `custom_accounts`(`name`,`account`) VALUES(?,?)"
+                ))
                 {
-                    e1.printStackTrace();
+                    pst.setString(1, name);
+                    pst.setString(2, number);
+                    pst.executeUpdate();
                 }
+            }
+
+            if(!inTransaction)
+                commit(connection);
+            return new AccountAddress(number, name, playerUID);
+        }
+        catch (Throwable e)
+        {
+            rollback(connection);
             throw new DataStoreException(e);
         }
         finally
@@ -963,237 +1833,1550 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
                 try
                 {
                     connection.setAutoCommit(true);
-                } catch (SQLException e)
+                }
+                catch (Exception e)
                 {
                     e.printStackTrace();
                 }
-        }
-    }
+        }
+    }
+
+    private void registerUser(Connection connection, UUID playerUID) throws SQLException
+    {
+        boolean registerUser;
+        try(PreparedStatement pst = prepare(connection,
+                "SELECT `primary_account` FROM `user_data` WHERE `player_id`=?"
+        ))
+        {
+            pst.setString(1, playerUID.toString());
+            ResultSet result = pst.executeQuery();
+            registerUser = !result.next();
+        }
+
+        if(registerUser)
+            try(PreparedStatement pst = prepare(connection,
+                    "INSERT INTO `user_data`(`player_id`) VALUES(?)"
+            ))
+            {
+                pst.setString(1, playerUID.toString());
+                pst.executeUpdate();
+            }
+    }
+
+    @Nullable
+    @Override
+    public AccountAddress getCustomAccountByName(@Nonnull String customAccountName) throws DataStoreException
+    {
+        try(Lease lease = lease(); PreparedStatement pst = prepare(lease.connection,
+                "SELECT ac.number, ac.name, ac.owner " +
+                    "FROM `custom_accounts` AS ca " +
+                        "INNER JOIN `accounts` AS ac ON `number`=`account` AND ca.name=? " +
+                    "WHERE ca.`terminated` IS NULL AND ac.`terminated` IS NULL"
+        ))
+        {
+            pst.setString(1, customAccountName);
+            ResultSet result = pst.executeQuery();
+            if(!result.next())
+                return null;
+            return new AccountAddress(result.getString(1), result.getString(2), UUID.fromString(result.getString(3)));
+        }
+        catch (SQLException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress createCustomAccount(@Nonnull UUID playerUID, @Nonnull String customAccountName) throws DataStoreException, DuplicatedKeyException
+    {
+        try(Lease lease = lease())
+        {
+            return createAccount(lease.connection, playerUID, customAccountName, false, false);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferAccount(@Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator)
+            throws DataStoreException, AccountNotFoundException, DuplicatedKeyException
+    {
+        AccountAddress customAccountByName = getCustomAccountByName(origin.getName());
+        if(customAccountByName == null)
+            throw new AccountNotFoundException(origin);
+
+        try(Lease lease = lease())
+        {
+            return transferAccount(lease.connection, origin, destiny, machine, operator);
+        }
+    }
+
+    @Nonnull
+    private AccountAddress transferAccount(Connection connection, @Nonnull AccountAddress origin, @Nonnull String destiny, @Nullable Machine machine, @Nullable Operator operator)
+            throws DataStoreException
+    {
+        try
+        {
+            connection.setAutoCommit(false);
+
+            AccountAddress newAccount = transfer(connection, origin, destiny, machine, operator, false);
+
+            try(PreparedStatement pst = prepare(connection,
+                    "UPDATE `custom_accounts` SET `terminated`=?, `transferred`=?, `transferred_name`=? WHERE `name`=?"
+                                                        //     1                2                     3              4
+            ))
+            {
+                pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                pst.setString(2, newAccount.getNumber().toString());
+                pst.setString(3, newAccount.getName());
+                pst.setString(4, origin.getName());
+                pst.executeUpdate();
+            }
+
+            commit(connection);
+            return newAccount;
+        }
+        catch (Throwable e)
+        {
+            rollback(connection);
+
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            try
+            {
+                connection.setAutoCommit(true);
+            } catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Nonnull
+    @Override
+    public AccountAddress transferPrimaryAccount(@Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator)
+            throws DataStoreException, AccountNotFoundException
+    {
+        try(Lease lease = lease())
+        {
+            return transferPrimaryAccount(lease.connection, primaryAccount, newName, machine, operator);
+        }
+    }
+
+    @Nonnull
+    private AccountAddress transferPrimaryAccount(Connection connection, @Nonnull AccountAddress primaryAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator)
+            throws DataStoreException
+    {
+        try
+        {
+            connection.setAutoCommit(false);
+            AccountAddress newAccount = transfer(connection, primaryAccount, newName, machine, operator, true);
+            try(PreparedStatement pst = prepare(connection,
+                    "UPDATE `user_data` SET `primary_account`=? WHERE `player_id`=?"
+            ))
+            {
+                pst.setString(1, newAccount.getNumber().toString());
+                pst.setString(2, newAccount.getOwner().toString());
+                pst.executeUpdate();
+            }
+
+            commit(connection);
+            return newAccount;
+        }
+        catch (Throwable e)
+        {
+            rollback(connection);
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            try
+            {
+                connection.setAutoCommit(true);
+            } catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Nonnull
+    private AccountAddress transfer(Connection connection, @Nonnull AccountAddress oldAccount, @Nonnull String newName, @Nullable Machine machine, @Nullable Operator operator, boolean primary)
+            throws DataStoreException, AccountNotFoundException
+    {
+        AbstractSQL.SqlAccount account = getAccount(oldAccount.getNumber());
+        if(account == null) throw new AccountNotFoundException(oldAccount);
+
+        boolean inTransaction;
+        try
+        {
+            inTransaction = !connection.getAutoCommit();
+        } catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        try
+        {
+            if(!inTransaction)
+                connection.setAutoCommit(false);
+
+            // The cached balance may be behind a change made by another server, the copied balance must come from the locked row
+            Integer lockedBalance = selectBalanceForUpdate(connection, account.id);
+            if(lockedBalance == null) throw new AccountNotFoundException(oldAccount);
+            int balance = lockedBalance;
+
+            AccountAddress newAddress = createAccount(connection, oldAccount.getOwner(), newName, primary, true);
+            AbstractSQL.SqlAccount newAccount = getAccount(newAddress.getNumber());
+            assert newAccount != null;
+
+            try(PreparedStatement pst = prepare(connection,
+                    "UPDATE `accounts` SET `balance`=0, `terminated`=?, `transferred`=? WHERE `number`=?"
+            ))
+            {
+                pst.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                pst.setString(2, newAddress.getNumber().toString());
+                pst.setString(3, account.id);
+                pst.executeUpdate();
+            }
+            final String oldNumber = account.id;
+            invalidateAccount(oldNumber);
+            afterCommit(connection, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    invalidateAccount(oldNumber);
+                }
+            });
+
+            newAccount.incrementBalance(balance, null);
+
+
+            Transaction transaction = new Transaction(machine, Transaction.Operation.TRANSFER_ACCOUNT, operator,
+                    new Transaction.CardCoinSource(null, oldAccount, balance, 0),
+                    new Transaction.CardCoinSource(null, newAddress, 0, balance), null);
+
+
+            saveTransaction(transaction);
+
+            if(!inTransaction)
+                commit(connection);
+            return newAddress;
+        }
+        catch (Throwable e)
+        {
+            if(!inTransaction)
+                rollback(connection);
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            if(!inTransaction)
+                try
+                {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Reads the balance of an active account inside the transaction that is open on the connection, the row stays locked
+     * until the transaction ends
+     * @return {@code null} if the account doesn't exist or is terminated
+     */
+    @Nullable
+    private Integer selectBalanceForUpdate(@Nonnull Connection connection, @Nonnull String number) throws SQLException
+    {
+        // SQLite doesn't support FOR UPDATE, its transactions already hold the database write lock
+        String lock = SqlSchema.Dialect.of(connection) == SqlSchema.Dialect.SQLITE? "" : " FOR UPDATE";
+        try(PreparedStatement pst = prepare(connection, "SELECT `balance` FROM `accounts` WHERE `number`=? AND `terminated` IS NULL"+lock))
+        {
+            pst.setString(1, number);
+            try(ResultSet result = pst.executeQuery())
+            {
+                return result.next()? result.getInt(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of a query one by one using a forward-only cursor on a dedicated connection
+     */
+    private interface RowVisitor
+    {
+        /**
+         * @return {@code false} to stop reading
+         */
+        boolean visit(ResultSet result) throws SQLException, DataStoreException;
+    }
+
+    /**
+     * The amount of rows fetched at once by the bulk reads
+     */
+    public void setFetchSize(int fetchSize)
+    {
+        if(fetchSize < 1)
+            throw new IllegalArgumentException("fetchSize: "+fetchSize);
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    /**
+     * The amount of players committed at once by {@link #importData(CardDataBase)}
+     */
+    public void setImportChunkSize(int importChunkSize)
+    {
+        if(importChunkSize < 1)
+            throw new IllegalArgumentException("importChunkSize: "+importChunkSize);
+        this.importChunkSize = importChunkSize;
+    }
+
+    public int getImportChunkSize()
+    {
+        return importChunkSize;
+    }
+
+    /**
+     * Streams the result of a read-only query without loading it at once. A connection is borrowed exclusively for the
+     * cursor because some drivers can't execute other statements on a connection that is streaming a result, so the
+     * visitor is free to use this database while it runs.
+     */
+    private void stream(@Nonnull String sql, @Nonnull RowVisitor visitor) throws DataStoreException
+    {
+        Connection connection;
+        try
+        {
+            connection = pool.borrow();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        SqlSchema.Dialect dialect = null;
+        boolean begun = false;
+        try
+        {
+            dialect = SqlSchema.Dialect.of(connection);
+            if(dialect == SqlSchema.Dialect.SQLITE)
+            {
+                // The embedded pool begins immediate transactions, a deferred one keeps the scan from holding the write lock
+                try(Statement stm = connection.createStatement())
+                {
+                    stm.execute("BEGIN DEFERRED");
+                }
+            }
+            else
+            {
+                // Some drivers only use cursors inside transactions
+                connection.setAutoCommit(false);
+            }
+            begun = true;
+            query(connection, sql, visitor);
+        }
+        catch (SQLException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            // Nothing to undo if the dialect couldn't be detected or the transaction couldn't be started
+            if(begun)
+            {
+                try
+                {
+                    if(dialect == SqlSchema.Dialect.SQLITE)
+                    {
+                        try(Statement stm = connection.createStatement())
+                        {
+                            stm.execute("ROLLBACK");
+                        }
+                    }
+                    else
+                    {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Reads the result of a query with a forward-only cursor on a connection that is already prepared to stream
+     */
+    private void query(Connection connection, @Nonnull String sql, @Nonnull RowVisitor visitor) throws SQLException, DataStoreException
+    {
+        // MySQL ignores the fetch size and loads everything unless it's MIN_VALUE or the cursor fetch is enabled on the URL
+        int fetchSize = this.fetchSize;
+        if(SqlSchema.Dialect.of(connection) == SqlSchema.Dialect.MYSQL && !connection.getMetaData().getURL().contains("useCursorFetch=true"))
+            fetchSize = Integer.MIN_VALUE;
+
+        try(PreparedStatement pst = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+        {
+            pst.setFetchSize(fetchSize);
+            ResultSet result = pst.executeQuery();
+            while (result.next())
+                if(!visitor.visit(result))
+                    break;
+        }
+    }
+
+    @Override
+    public Collection<PlayerData> getAllPlayerData() throws DataStoreException
+    {
+        final ArrayList<PlayerData> list = new ArrayList<>();
+        visitAllPlayerData(new Visitor<PlayerData>()
+        {
+            @Override
+            public boolean visit(@Nonnull PlayerData value)
+            {
+                list.add(value);
+                return true;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Reads the players and their accounts with a single query, the rows of the same player are consecutive so
+     * only one player is kept in memory at a time
+     */
+    @Override
+    public void visitAllPlayerData(@Nonnull Visitor<PlayerData> visitor) throws DataStoreException
+    {
+        PlayerCursor cursor = new PlayerCursor(visitor);
+        stream(SELECT_PLAYERS, cursor);
+        cursor.finish();
+    }
+
+    /**
+     * Groups the consecutive rows of {@link #SELECT_PLAYERS} by player
+     */
+    private static final class PlayerCursor implements RowVisitor
+    {
+        private final Visitor<PlayerData> visitor;
+        private UUID playerId;
+        private AccountAddress primary;
+        private ArrayList<AccountAddress> customAccounts = new ArrayList<>();
+        private boolean stopped;
+
+        private PlayerCursor(Visitor<PlayerData> visitor)
+        {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public boolean visit(ResultSet result) throws SQLException, DataStoreException
+        {
+            UUID rowPlayer = UUID.fromString(result.getString(1));
+            if(!rowPlayer.equals(playerId))
+            {
+                if(!flush())
+                    return false;
+
+                playerId = rowPlayer;
+                String primaryNumber = result.getString(2);
+                if(primaryNumber == null)
+                    primary = null;
+                else
+                {
+                    String owner = result.getString(4);
+                    primary = new AccountAddress(primaryNumber, result.getString(3), owner == null? rowPlayer : UUID.fromString(owner));
+                }
+            }
+
+            String customNumber = result.getString(5);
+            if(customNumber != null)
+                customAccounts.add(new AccountAddress(customNumber, result.getString(6), UUID.fromString(result.getString(7))));
+            return true;
+        }
+
+        private boolean flush() throws DataStoreException
+        {
+            if(playerId == null)
+                return true;
+
+            PlayerData playerData = new PlayerData(Integer.MIN_VALUE, playerId, primary, customAccounts);
+            playerId = null;
+            customAccounts = new ArrayList<>();
+            stopped = !visitor.visit(playerData);
+            return !stopped;
+        }
+
+        /**
+         * Visits the last player after the query ends
+         */
+        private void finish() throws DataStoreException
+        {
+            if(!stopped)
+                flush();
+        }
+    }
+
+    @Override
+    public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
+    {
+        final Map<AccountAddress, Integer> map = new HashMap<>();
+        visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+        {
+            @Override
+            public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+            {
+                map.put(value.getKey(), value.getValue());
+                return true;
+            }
+        });
+        return map;
+    }
+
+    @Override
+    public void visitAllAccountsBalance(@Nonnull final Visitor<Map.Entry<AccountAddress, Integer>> visitor) throws DataStoreException
+    {
+        stream(SELECT_ACCOUNTS, new RowVisitor()
+        {
+            @Override
+            public boolean visit(ResultSet result) throws SQLException, DataStoreException
+            {
+                AccountAddress address = new AccountAddress(result.getString(1), result.getString(3), UUID.fromString(result.getString(2)));
+                return visitor.visit(new AbstractMap.SimpleImmutableEntry<>(address, result.getInt(4)));
+            }
+        });
+    }
+
+    /**
+     * Writes all sections with a single read transaction, so the snapshot is the state of the database when the
+     * transaction started. The journal is asked to flush first, the transactions that are still queued when the
+     * read transaction starts are not exported, their balances are. SQLite uses a deferred transaction because
+     * the connections begin immediate transactions, which would block the writers during the whole export, and
+     * the WAL mode lets the writers continue while it's read.
+     */
+    @Override
+    public void writeSnapshot(@Nonnull final SnapshotWriter writer, boolean transactions) throws DataStoreException
+    {
+        TransactionJournal journal = this.journal;
+        if(journal != null)
+            journal.flush();
+
+        Connection connection;
+        try
+        {
+            connection = pool.borrow();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        SqlSchema.Dialect dialect = null;
+        int isolation = Connection.TRANSACTION_NONE;
+        try
+        {
+            dialect = SqlSchema.Dialect.of(connection);
+            if(dialect == SqlSchema.Dialect.SQLITE)
+            {
+                try(Statement stm = connection.createStatement())
+                {
+                    stm.execute("BEGIN DEFERRED");
+                }
+            }
+            else
+            {
+                isolation = connection.getTransactionIsolation();
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                connection.setAutoCommit(false);
+                if(dialect == SqlSchema.Dialect.MYSQL)
+                    try(Statement stm = connection.createStatement())
+                    {
+                        stm.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                    }
+            }
+
+            query(connection, SELECT_ACCOUNTS, new RowVisitor()
+            {
+                @Override
+                public boolean visit(ResultSet result) throws SQLException, DataStoreException
+                {
+                    AccountAddress address = new AccountAddress(result.getString(1), result.getString(3), UUID.fromString(result.getString(2)));
+                    try
+                    {
+                        writer.writeAccount(address, result.getInt(4));
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+            });
+
+            PlayerCursor players = new PlayerCursor(new Visitor<PlayerData>()
+            {
+                @Override
+                public boolean visit(@Nonnull PlayerData value) throws DataStoreException
+                {
+                    try
+                    {
+                        writer.writePlayer(value);
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+            });
+            query(connection, SELECT_PLAYERS, players);
+            players.finish();
+
+            query(connection, SELECT_PLAYER_NAMES, new RowVisitor()
+            {
+                @Override
+                public boolean visit(ResultSet result) throws SQLException, DataStoreException
+                {
+                    try
+                    {
+                        writer.writePlayerName(UUID.fromString(result.getString(1)), result.getString(2));
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+            });
+
+            query(connection, SELECT_DELIVERIES, new RowVisitor()
+            {
+                @Override
+                public boolean visit(ResultSet result) throws SQLException, DataStoreException
+                {
+                    String senderId = result.getString(3);
+                    try
+                    {
+                        writer.writeDelivery(new PendingDelivery(UUID.fromString(result.getString(1)), result.getString(2),
+                                senderId == null? null : UUID.fromString(senderId), result.getTimestamp(4).getTime(),
+                                result.getString(5)
+                        ));
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+                }
+            });
+
+            if(transactions)
+                query(connection, SELECT_TRANSACTIONS, new RowVisitor()
+                {
+                    @Override
+                    public boolean visit(ResultSet result) throws SQLException, DataStoreException
+                    {
+                        try
+                        {
+                            writer.writeTransaction(readTransaction(result));
+                            return true;
+                        }
+                        catch (IOException e)
+                        {
+                            throw new DataStoreException(e);
+                        }
+                    }
+                });
+        }
+        catch (SQLException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            try
+            {
+                if(dialect == SqlSchema.Dialect.SQLITE)
+                {
+                    try(Statement stm = connection.createStatement())
+                    {
+                        stm.execute("ROLLBACK");
+                    }
+                }
+                else
+                {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                    if(isolation != Connection.TRANSACTION_NONE)
+                        connection.setTransactionIsolation(isolation);
+                }
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Selects the page with the keyset {@code (time, transaction_id)}, the indexes on the machine, the player operator
+     * and the time of the transactions and the {@code account_transactions} table give the rows in that order, so only
+     * the rows of the page are read. The transactions that are still queued in the journal appear after it's flushed.
+     */
+    @Nonnull
+    @Override
+    public HistoryPage getTransactionHistory(@Nonnull HistoryQuery query) throws DataStoreException
+    {
+        HistoryCollector position = new HistoryCollector(query);
+        try(Lease lease = lease())
+        {
+            Connection connection = lease.connection;
+            boolean accountTable = query.getFilter() == HistoryQuery.Filter.ACCOUNT && hasAccountHistory(connection);
+            String k = accountTable? "ah" : "t";
+
+            StringBuilder sql = new StringBuilder(TRANSACTION_COLUMNS);
+            if(accountTable)
+                sql.append("FROM `account_transactions` AS ah INNER JOIN `transactions` AS t ON t.transaction_id=ah.transaction_id ");
+            else
+                sql.append("FROM `transactions` AS t ");
+            sql.append(TRANSACTION_JOINS).append("WHERE 1=1");
+
+            switch (query.getFilter())
+            {
+                case ACCOUNT:
+                    sql.append(accountTable? " AND ah.account=?" : " AND (us.account=? OR os.account=?)");
+                    break;
+                case MACHINE:
+                    sql.append(" AND t.machine=?");
+                    break;
+                case PLAYER:
+                    sql.append(" AND t.player_operator=?");
+                    break;
+            }
+
+            if(query.getFrom() > 0)
+                sql.append(" AND ").append(k).append(".time>=?");
+            if(query.getTo() < Long.MAX_VALUE)
+                sql.append(" AND ").append(k).append(".time<?");
+            if(position.getBeforeId() != null)
+                sql.append(" AND (").append(k).append(".time<? OR ").append(k).append(".time=? AND ").append(k).append(".transaction_id<?)");
+            sql.append(" ORDER BY ").append(k).append(".time DESC, ").append(k).append(".transaction_id DESC");
+
+            int limit = query.getLimit();
+            SqlSchema.Dialect dialect = SqlSchema.Dialect.of(connection);
+            if(dialect == SqlSchema.Dialect.MYSQL || dialect == SqlSchema.Dialect.SQLITE)
+                sql.append(" LIMIT ").append(limit + 1);
+
+            List<TransactionRecord> records = new ArrayList<>(limit + 1);
+            try(PreparedStatement pst = prepare(connection, sql.toString()))
+            {
+                int field = 1;
+                String key = query.getKey();
+                if(key != null)
+                {
+                    pst.setString(field++, key);
+                    if(query.getFilter() == HistoryQuery.Filter.ACCOUNT && !accountTable)
+                        pst.setString(field++, key);
+                }
+                if(query.getFrom() > 0)
+                    pst.setTimestamp(field++, new Timestamp(query.getFrom()));
+                if(query.getTo() < Long.MAX_VALUE)
+                    pst.setTimestamp(field++, new Timestamp(query.getTo()));
+                if(position.getBeforeId() != null)
+                {
+                    Timestamp before = new Timestamp(position.getBeforeTime());
+                    pst.setTimestamp(field++, before);
+                    pst.setTimestamp(field++, before);
+                    pst.setString(field, position.getBeforeId());
+                }
+
+                pst.setMaxRows(limit + 1);
+                try(ResultSet result = pst.executeQuery())
+                {
+                    while (result.next())
+                        records.add(readTransaction(result));
+                }
+            }
+
+            String next = null;
+            if(records.size() > limit)
+            {
+                records = records.subList(0, limit);
+                TransactionRecord last = records.get(limit - 1);
+                next = HistoryCollector.cursor(last.time, last.id);
+            }
+
+            List<HistoryEntry> entries = new ArrayList<>(records.size());
+            for(TransactionRecord record: records)
+                entries.add(HistoryEntry.of(record));
+            return new HistoryPage(entries, next);
+        }
+        catch (SQLException|IllegalArgumentException e)
+        {
+            throw new DataStoreException(e);
+        }
+    }
+
+    /**
+     * Prefixes the comma separated columns with a table alias
+     */
+    private static String columns(String alias, String columns)
+    {
+        return alias+"."+columns.replace(",", ","+alias+".");
+    }
+
+    /**
+     * Reads a row of {@link #SELECT_TRANSACTIONS}
+     */
+    @Nonnull
+    private static TransactionRecord readTransaction(ResultSet result) throws SQLException
+    {
+        return new TransactionRecord(result.getString(1), result.getTimestamp(2).getTime(), readMachine(result, 17),
+                result.getString(3), readBlockOperator(result, 26), readItem(result, 4), readItem(result, 8),
+                result.getString(12), result.getBoolean(13), result.getInt(14), result.getInt(15), result.getInt(16),
+                readCoinSource(result, 36), readCoinSource(result, 65)
+        );
+    }
+
+    /**
+     * Reads the {@link #MACHINE_COLUMNS} starting at the given column, the machines that were never stored in a world
+     * don't have a block
+     */
+    @Nullable
+    private static MachineRow readMachine(ResultSet result, int column) throws SQLException
+    {
+        String machineId = result.getString(column);
+        if(machineId == null)
+            return null;
+
+        String block = result.getString(column + 5);
+        return new MachineRow(machineId, result.getInt(column + 1), result.getInt(column + 2), result.getInt(column + 3),
+                block != null, result.getInt(column + 4), block, result.getInt(column + 6), result.getString(column + 7),
+                result.getString(column + 8));
+    }
+
+    /**
+     * Reads the {@link #BLOCK_OPERATOR_COLUMNS} starting at the given column
+     */
+    @Nullable
+    private static BlockOperatorRow readBlockOperator(ResultSet result, int column) throws SQLException
+    {
+        if(getInteger(result, column) == null)
+            return null;
+
+        return new BlockOperatorRow(result.getInt(column + 1), result.getInt(column + 2), result.getInt(column + 3),
+                getInteger(result, column + 4), result.getString(column + 5), getInteger(result, column + 6),
+                result.getString(column + 7), result.getString(column + 8), result.getString(column + 9));
+    }
+
+    /**
+     * Reads the item, damage, amount and NBT columns starting at the given column
+     */
+    @Nullable
+    private static ItemRow readItem(ResultSet result, int column) throws SQLException
+    {
+        String item = result.getString(column);
+        if(item == null)
+            return null;
+
+        return new ItemRow(item, result.getInt(column + 1), result.getInt(column + 2), result.getString(column + 3));
+    }
+
+    /**
+     * Reads the {@link #COIN_SOURCE_COLUMNS} starting at the given column followed by its machine and block operator
+     */
+    @Nullable
+    private static CoinSourceRow readCoinSource(ResultSet result, int column) throws SQLException
+    {
+        if(getInteger(result, column) == null)
+            return null;
+
+        return new CoinSourceRow(result.getString(column + 1), result.getInt(column + 2), result.getInt(column + 3),
+                readMachine(result, column + 10), result.getString(column + 4), readItem(result, column + 5),
+                result.getString(column + 9), readBlockOperator(result, column + 19));
+    }
+
+    @Override
+    public AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException
+    {
+        AbstractSQL.SqlAccount account = getAccount(primaryAccount);
+        if(account == null) throw new AccountNotFoundException(primaryAccount);
+
+        try(Lease lease = lease(); PreparedStatement pst = prepare(lease.connection,
+                "UPDATE `accounts` SET `name`=? WHERE `number`=? AND `primary`=1 AND `terminated` IS NULL"
+        ))
+        {
+            pst.setString(1, playerName);
+            pst.setString(2, primaryAccount.getNumber().toString());
+            pst.executeUpdate();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        return new AccountAddress(primaryAccount.getNumber(), playerName, primaryAccount.getOwner());
+    }
+
+    @Override
+    public void importData(CardDataBase original) throws DataStoreException
+    {
+        try(Lease lease = lease())
+        {
+            importData(lease.connection, original);
+        }
+    }
+
+    /**
+     * Imports the players in chunks, each chunk is committed together with the ids of the players that it imported on
+     * {@code import_progress}, so an interrupted import skips the players that were already imported when it's started
+     * again. The players are read from the source by another thread while the chunks are written.
+     */
+    private void importData(final Connection connection, final CardDataBase original) throws DataStoreException
+    {
+        final Logger logger = UniversalCoinsServer.logger;
+        final String source = original.getClass().getSimpleName();
+        final int chunkSize = importChunkSize;
+        final BlockingQueue<PlayerData> queue = new ArrayBlockingQueue<>(chunkSize * 2);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicReference<Throwable> readFailure = new AtomicReference<>();
+
+        Thread reader = new Thread("UniversalCoins Import Reader")
+        {
+            private boolean offer(PlayerData playerData) throws InterruptedException
+            {
+                while (!queue.offer(playerData, 1, TimeUnit.SECONDS))
+                    if(cancelled.get())
+                        return false;
+                return true;
+            }
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    original.visitAllPlayerData(new Visitor<PlayerData>()
+                    {
+                        @Override
+                        public boolean visit(@Nonnull PlayerData value) throws DataStoreException
+                        {
+                            try
+                            {
+                                return offer(value) && !cancelled.get();
+                            }
+                            catch (InterruptedException e)
+                            {
+                                throw new DataStoreException(e);
+                            }
+                        }
+                    });
+                }
+                catch (Throwable e)
+                {
+                    readFailure.set(e);
+                }
+                finally
+                {
+                    try
+                    {
+                        offer(END_OF_IMPORT);
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                    }
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        try
+        {
+            // Only the balances are kept in memory, the players are read one by one
+            final Map<String, Integer> balances = new HashMap<>();
+            original.visitAllAccountsBalance(new Visitor<Map.Entry<AccountAddress, Integer>>()
+            {
+                @Override
+                public boolean visit(@Nonnull Map.Entry<AccountAddress, Integer> value)
+                {
+                    balances.put(value.getKey().getNumber().toString(), value.getValue());
+                    return true;
+                }
+            });
+            logger.info("Read "+balances.size()+" account balances from "+source);
+
+            boolean checkpoints = requireTable(connection, "import_progress", "make interrupted imports resumable");
+            Set<String> imported = checkpoints? loadImportedPlayers(connection, source) : Collections.<String>emptySet();
+            if(!imported.isEmpty())
+                logger.info("Resuming the import, "+imported.size()+" players were already imported from "+source+" and will be skipped");
+
+            long start = System.nanoTime();
+            int players = 0, skipped = 0, accounts = 0;
+            List<PlayerData> chunk = new ArrayList<>(chunkSize);
+            while (true)
+            {
+                PlayerData playerData = queue.take();
+                boolean end = playerData == END_OF_IMPORT;
+                if(!end)
+                {
+                    if(imported.contains(playerData.getPlayerId().toString()))
+                        skipped++;
+                    else
+                        chunk.add(playerData);
+                }
+
+                if(chunk.size() >= chunkSize || end && !chunk.isEmpty())
+                {
+                    accounts += importChunk(connection, chunk, balances, checkpoints? source : null);
+                    players += chunk.size();
+                    chunk.clear();
+
+                    double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+                    logger.info(String.format("Imported %d players and %d accounts in %.1fs, %.0f players/s",
+                            players, accounts, seconds, players / seconds));
+                }
+
+                if(end)
+                    break;
+            }
+
+            Throwable failure = readFailure.get();
+            if(failure != null)
+                throw new DataStoreException("Failed to read the players from "+source+" after "+players+" players were imported, " +
+                        "start the import again to continue", failure);
+
+            int names = importPlayerNames(connection, original);
+
+            int deliveries = 0;
+            if(original instanceof SnapshotDB)
+            {
+                if(imported.contains(DELIVERIES_IMPORTED))
+                    logger.info("The pending deliveries were already imported from "+source);
+                else
+                    deliveries = importDeliveries(connection, (SnapshotDB) original, checkpoints? source : null);
+            }
+
+            logger.info("");
+            logger.info(String.format("Import finished: %d players, %d accounts, %d player names and %d pending deliveries imported, %d players skipped, %.1fs",
+                    players, accounts, names, deliveries, skipped, (System.nanoTime() - start) / 1e9));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DataStoreException(e);
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            cancelled.set(true);
+        }
+    }
+
+    private static final PlayerData END_OF_IMPORT = new PlayerData(Integer.MIN_VALUE, new UUID(0, 0), null, null);
+
+    /**
+     * Stored on {@code import_progress} in place of a player id when the deliveries of a snapshot are imported
+     */
+    private static final String DELIVERIES_IMPORTED = "deliveries";
+
+    /**
+     * Inserts the pending deliveries of a snapshot in a single transaction, so they are never imported twice
+     * @param source The source recorded on {@code import_progress} or {@code null} if it doesn't exist
+     * @return The amount of deliveries that were imported
+     */
+    private int importDeliveries(final Connection connection, SnapshotDB snapshot, @Nullable String source) throws SQLException, DataStoreException
+    {
+        boolean counters = hasDeliveryCounters(connection);
+        final Map<String, Integer> pending = new HashMap<>();
+        final int chunkSize = importChunkSize;
+        final int[] count = new int[1];
+
+        connection.setAutoCommit(false);
+        try(final PreparedStatement pst = prepare(connection,
+                "INSERT INTO `deliveries`(`item`,`sender`,`sender_id`,`target_id`,`sent`) VALUES(?,?,?,?,?)"
+        ))
+        {
+            snapshot.visitDeliveries(new Visitor<PendingDelivery>()
+            {
+                @Override
+                public boolean visit(@Nonnull PendingDelivery value) throws DataStoreException
+                {
+                    String target = value.getTargetId().toString();
+                    UUID senderId = value.getSenderId();
+                    try
+                    {
+                        pst.setString(1, value.getItem());
+                        pst.setString(2, value.getSender());
+                        if(senderId != null)
+                            pst.setString(3, senderId.toString());
+                        else
+                            pst.setNull(3, Types.CHAR);
+                        pst.setString(4, target);
+                        pst.setTimestamp(5, new Timestamp(value.getSent()));
+                        pst.addBatch();
+                        if(++count[0] % chunkSize == 0)
+                            pst.executeBatch();
+                    }
+                    catch (SQLException e)
+                    {
+                        throw new DataStoreException(e);
+                    }
+
+                    Integer current = pending.get(target);
+                    pending.put(target, current == null? 1 : current + 1);
+                    return true;
+                }
+            });
+            pst.executeBatch();
+
+            if(counters)
+                for(Map.Entry<String, Integer> entry: pending.entrySet())
+                    incrementPendingDeliveries(connection, entry.getKey(), entry.getValue());
+
+            if(source != null)
+                try(PreparedStatement progress = prepare(connection, "INSERT INTO `import_progress`(`source`,`player_id`) VALUES(?,?)"))
+                {
+                    progress.setString(1, source);
+                    progress.setString(2, DELIVERIES_IMPORTED);
+                    progress.executeUpdate();
+                }
+
+            commit(connection);
+        }
+        catch (SQLException|DataStoreException e)
+        {
+            rollback(connection);
+            throw e;
+        }
+        finally
+        {
+            connection.setAutoCommit(true);
+        }
+
+        return count[0];
+    }
+
+    private Set<String> loadImportedPlayers(Connection connection, String source) throws SQLException
+    {
+        Set<String> imported = new HashSet<>();
+        try(PreparedStatement pst = prepare(connection, "SELECT `player_id` FROM `import_progress` WHERE `source`=?"))
+        {
+            pst.setString(1, source);
+            pst.setFetchSize(fetchSize);
+            try(ResultSet result = pst.executeQuery())
+            {
+                while (result.next())
+                    imported.add(result.getString(1));
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Runs {@code sql} followed by an {@code IN} list with the values, in groups of up to 500 values
+     * @return The values of the first column that were returned
+     */
+    private Set<String> selectExisting(Connection connection, String sql, Collection<String> values) throws SQLException
+    {
+        Set<String> found = new HashSet<>();
+        List<String> list = new ArrayList<>(values);
+        for(int from = 0; from < list.size(); from += 500)
+        {
+            List<String> group = list.subList(from, Math.min(list.size(), from + 500));
+            StringBuilder sb = new StringBuilder(sql).append('(');
+            for(int i = 0; i < group.size(); i++)
+                sb.append(i == 0? "?" : ",?");
+            sb.append(')');
+
+            // The statement changes with the size of the group, it's not worth caching
+            try(PreparedStatement pst = connection.prepareStatement(sb.toString()))
+            {
+                for(int i = 0; i < group.size(); i++)
+                    pst.setString(i + 1, group.get(i));
+                try(ResultSet result = pst.executeQuery())
+                {
+                    while (result.next())
+                        found.add(result.getString(1));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Imports the players in a single transaction. The players that are not registered and don't have custom account
+     * names in conflict are written with batches, the others are merged one by one by
+     * {@link #importPlayer(Connection, PlayerData, Map, Set)}.
+     * @param source The name saved on {@code import_progress}, {@code null} if the progress is not saved
+     * @return The amount of accounts that were created
+     */
+    private int importChunk(Connection connection, List<PlayerData> chunk, Map<String, Integer> balances, @Nullable String source)
+            throws DataStoreException
+    {
+        try
+        {
+            connection.setAutoCommit(false);
+
+            Set<String> playerIds = new HashSet<>(chunk.size());
+            Set<String> numbers = new HashSet<>();
+            Set<String> names = new HashSet<>();
+            for(PlayerData playerData: chunk)
+            {
+                playerIds.add(playerData.getPlayerId().toString());
+                AccountAddress primary = playerData.getPrimaryAccount();
+                if(primary != null)
+                    numbers.add(primary.getNumber().toString());
+                for(AccountAddress custom: playerData.getAlternativeAccounts())
+                {
+                    numbers.add(custom.getNumber().toString());
+                    names.add(custom.getName());
+                }
+            }
+
+            Set<String> registeredPlayers = selectExisting(connection, "SELECT `player_id` FROM `user_data` WHERE `player_id` IN ", playerIds);
+            Set<String> usedNumbers = selectExisting(connection, "SELECT `number` FROM `accounts` WHERE `number` IN ", numbers);
+            Set<String> usedNames = selectExisting(connection, "SELECT `name` FROM `custom_accounts` WHERE `name` IN ", names);
+
+            int accounts = 0;
+            List<PlayerData> merges = new ArrayList<>();
+            try(PreparedStatement users = prepare(connection, "INSERT INTO `user_data`(`player_id`,`primary_account`) VALUES(?,?)");
+                PreparedStatement accountInsert = prepare(connection, "INSERT INTO `accounts`(`number`,`owner`,`name`,`balance`,`primary`) VALUES(?,?,?,?,?)");
+                PreparedStatement customs = prepare(connection, "INSERT INTO `custom_accounts`(`name`,`account`) VALUES(?,?)"))
+            {
+                players:
+                for(PlayerData playerData: chunk)
+                {
+                    String playerId = playerData.getPlayerId().toString();
+                    if(registeredPlayers.contains(playerId))
+                    {
+                        merges.add(playerData);
+                        continue;
+                    }
+
+                    for(AccountAddress custom: playerData.getAlternativeAccounts())
+                        if(importBalance(balances, custom) > 0 && usedNames.contains(custom.getName()))
+                        {
+                            merges.add(playerData);
+                            continue players;
+                        }
+
+                    String primaryNumber = null;
+                    AccountAddress primary = playerData.getPrimaryAccount();
+                    int primaryBalance = primary == null? 0 : importBalance(balances, primary);
+                    if(primaryBalance > 0)
+                    {
+                        primaryNumber = importNumber(connection, primary, usedNumbers);
+                        addAccount(accountInsert, primaryNumber, playerId, primary.getName(), primaryBalance, true);
+                        accounts++;
+                    }
+
+                    boolean registered = primaryNumber != null;
+                    for(AccountAddress custom: playerData.getAlternativeAccounts())
+                    {
+                        int balance = importBalance(balances, custom);
+                        if(balance <= 0)
+                            continue;
+
+                        String number = importNumber(connection, custom, usedNumbers);
+                        addAccount(accountInsert, number, playerId, custom.getName(), balance, false);
+                        customs.setString(1, custom.getName());
+                        customs.setString(2, number);
+                        customs.addBatch();
+                        usedNames.add(custom.getName());
+                        registered = true;
+                        accounts++;
+                    }
+
+                    if(registered)
+                    {
+                        users.setString(1, playerId);
+                        users.setString(2, primaryNumber);
+                        users.addBatch();
+                    }
+                }
 
-    @Override
-    public Collection<PlayerData> getAllPlayerData() throws DataStoreException
-    {
-        try(Statement stm = connection.createStatement())
-        {
-            ResultSet result = stm.executeQuery("SELECT COUNT(*) FROM `user_data`");
-            result.next();
-            ArrayList<PlayerData> list = new ArrayList<>(result.getInt(1));
+                users.executeBatch();
+                accountInsert.executeBatch();
+                customs.executeBatch();
+            }
 
-            result = stm.executeQuery("SELECT `player_id` FROM `user_data`");
-            while (result.next())
-                list.add(getPlayerData(UUID.fromString(result.getString(1))));
+            for(PlayerData playerData: merges)
+                accounts += importPlayer(connection, playerData, balances, usedNumbers);
+
+            if(source != null)
+                try(PreparedStatement pst = prepare(connection, "INSERT INTO `import_progress`(`source`,`player_id`) VALUES(?,?)"))
+                {
+                    for(String playerId: playerIds)
+                    {
+                        pst.setString(1, source);
+                        pst.setString(2, playerId);
+                        pst.addBatch();
+                    }
+                    pst.executeBatch();
+                }
 
-            return list;
+            commit(connection);
+            return accounts;
         }
-        catch (SQLException e)
+        catch (Throwable e)
         {
+            rollback(connection);
             throw new DataStoreException(e);
         }
+        finally
+        {
+            try
+            {
+                connection.setAutoCommit(true);
+            } catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
     }
 
-    @Override
-    public Map<AccountAddress, Integer> getAllAccountsBalance() throws DataStoreException
+    private static int importBalance(Map<String, Integer> balances, AccountAddress address)
     {
-        try(Statement stm = connection.createStatement())
-        {
-            ResultSet result = stm.executeQuery("SELECT COUNT(*) FROM `accounts` WHERE `terminated` IS NULL");
-            result.next();
-            Map<AccountAddress, Integer> map = new HashMap<>(result.getInt(1));
-
-            result = stm.executeQuery("SELECT `number`, `owner`, `name`, `balance` FROM `accounts` WHERE `terminated` IS NULL");
-            while (result.next())
-                map.put(new AccountAddress(result.getString(1), result.getString(3), UUID.fromString(result.getString(2))), result.getInt(4));
+        Integer balance = balances.get(address.getNumber().toString());
+        return balance == null? 0 : balance;
+    }
 
-            return map;
-        }
-        catch (SQLException e)
+    /**
+     * @return The original number of the account if it's not used yet, or a new number
+     */
+    private String importNumber(Connection connection, AccountAddress address, Set<String> usedNumbers) throws SQLException, DataStoreException
+    {
+        String number = address.getNumber().toString();
+        if(number.isEmpty() || number.length() > 20 || usedNumbers.contains(number))
         {
-            throw new DataStoreException(e);
+            do
+            {
+                number = newAccountNumber(connection);
+            } while (usedNumbers.contains(number));
+            UniversalCoinsServer.logger.info("The account number "+address.getNumber()+" is not available, "+address.getName()+" will be imported as "+number);
         }
+
+        usedNumbers.add(number);
+        return number;
     }
 
-    @Override
-    public AccountAddress renamePrimaryAccount(AccountAddress primaryAccount, String playerName) throws DataStoreException, AccountNotFoundException
+    /**
+     * Sets the balance of an account created by the import and changes it to the original number when it's available
+     */
+    private void setImportedAccount(Connection connection, String createdNumber, AccountAddress original, int balance, Set<String> usedNumbers)
+            throws SQLException
     {
-        AbstractSQL.SqlAccount account = getAccount(primaryAccount);
-        if(account == null) throw new AccountNotFoundException(primaryAccount);
+        String number = original.getNumber().toString();
+        if(number.isEmpty() || number.length() > 20 || !usedNumbers.add(number))
+        {
+            UniversalCoinsServer.logger.info("The account number "+number+" is not available, keeping "+createdNumber);
+            number = createdNumber;
+        }
+        else
+            UniversalCoinsServer.logger.info("Changing balance to "+balance+" and number to "+number);
 
-        try(PreparedStatement pst = connection.prepareStatement(
-                "UPDATE `accounts` SET `name`=? WHERE `number`=? AND `primary`=1 AND `terminated` IS NULL"
+        try(PreparedStatement pst = prepare(connection,
+                "UPDATE `accounts` SET `number`=?, `balance`=? WHERE `number`=?"
         ))
         {
-            pst.setString(1, playerName);
-            pst.setString(2, primaryAccount.getNumber().toString());
+            pst.setString(1, number);
+            pst.setInt(2, balance);
+            pst.setString(3, createdNumber);
             pst.executeUpdate();
         }
-        catch (SQLException e)
-        {
-            throw new DataStoreException(e);
-        }
-
-        return new AccountAddress(primaryAccount.getNumber(), playerName, primaryAccount.getOwner());
     }
 
-    @Override
-    public void importData(CardDataBase original) throws DataStoreException
+    private static void addAccount(PreparedStatement pst, String number, String owner, String name, int balance, boolean primary) throws SQLException
     {
-        try
-        {
-            connection.setAutoCommit(false);
+        pst.setString(1, number);
+        pst.setString(2, owner);
+        pst.setString(3, name);
+        pst.setInt(4, balance);
+        pst.setBoolean(5, primary);
+        pst.addBatch();
+    }
 
-            Collection<PlayerData> allPlayerData = original.getAllPlayerData();
-            Map<AccountAddress, Integer> allAccountsBalance = original.getAllAccountsBalance();
-            Map<String, Map.Entry<AccountAddress, Integer>> accountMap = new HashMap<>(allAccountsBalance.size());
-            for(Map.Entry<AccountAddress, Integer> entry: allAccountsBalance.entrySet())
-                accountMap.put(entry.getKey().getNumber().toString(), entry);
+    /**
+     * Copies the player names in batches of one chunk, only the players that are registered are updated
+     * @return The amount of names that were read
+     */
+    private int importPlayerNames(Connection connection, CardDataBase original) throws DataStoreException
+    {
+        PlayerNameImport visitor = new PlayerNameImport(connection, importChunkSize);
+        original.visitPlayerNames(visitor);
+        visitor.flush();
+        return visitor.count;
+    }
 
-            Logger logger = UniversalCoinsServer.logger;
+    private class PlayerNameImport implements Visitor<Map.Entry<UUID, String>>
+    {
+        private final Connection connection;
+        private final int chunkSize;
+        private final List<Map.Entry<UUID, String>> chunk;
+        private int count;
 
+        private PlayerNameImport(Connection connection, int chunkSize)
+        {
+            this.connection = connection;
+            this.chunkSize = chunkSize;
+            this.chunk = new ArrayList<>(chunkSize);
+        }
 
-            for(PlayerData otherPlayerData: allPlayerData)
-            {
-                PlayerData localPlayerData = getPlayerData(otherPlayerData.getPlayerId());
-                AccountAddress otherPrimaryAccount = otherPlayerData.getPrimaryAccount();
+        @Override
+        public boolean visit(@Nonnull Map.Entry<UUID, String> value) throws DataStoreException
+        {
+            chunk.add(value);
+            count++;
+            if(chunk.size() >= chunkSize)
+                flush();
+            return true;
+        }
 
-                logger.info("");
-                logger.info("Processing player "+localPlayerData.getPlayerId());
+        private void flush() throws DataStoreException
+        {
+            if(chunk.isEmpty())
+                return;
 
-                if(otherPrimaryAccount != null)
+            try(PreparedStatement pst = prepare(connection, "UPDATE `user_data` SET `player_name`=? WHERE `player_id`=?"))
+            {
+                for(Map.Entry<UUID, String> entry: chunk)
                 {
-                    int otherBalance = accountMap.get(otherPrimaryAccount.getNumber().toString()).getValue();
-                    if(otherBalance > 0)
-                    {
-                        if (localPlayerData.getPrimaryAccount() == null)
-                        {
-                            logger.info("Creating primary account for "+localPlayerData.getPlayerId()+" with name "+otherPrimaryAccount.getName());
-
-                            AccountAddress localAddress = createPrimaryAccount(localPlayerData.getPlayerId(), otherPrimaryAccount.getName());
-                            logger.info("Account created: "+localAddress);
-                            try(PreparedStatement pst = connection.prepareStatement(
-                                    "UPDATE `accounts` SET `number`=?, `balance`=? WHERE `number`=?"
-                            ))
-                            {
-                                logger.info("Changing balance to "+otherBalance+" and number to "+otherPrimaryAccount.getNumber());
-
-                                pst.setString(1, otherPrimaryAccount.getNumber().toString());
-                                pst.setInt(2, otherBalance);
-                                pst.setString(3, localAddress.getNumber().toString());
-                                pst.executeUpdate();
-                            }
-                        }
-                        else
-                        {
-                            AbstractSQL.SqlAccount account = getAccount(localPlayerData.getPrimaryAccount());
-                            logger.info("Adding "+otherBalance+" to the account "+account.id);
-                            account.incrementBalance(otherBalance, null);
-                        }
-                    }
+                    pst.setString(1, entry.getValue());
+                    pst.setString(2, entry.getKey().toString());
+                    pst.addBatch();
                 }
+                pst.executeBatch();
+            }
+            catch (SQLException e)
+            {
+                throw new DataStoreException(e);
+            }
+            chunk.clear();
+        }
+    }
 
-                if(otherPlayerData.getAlternativeAccounts().isEmpty())
-                    continue;
+    /**
+     * @return The amount of accounts that were created
+     */
+    private int importPlayer(Connection connection, PlayerData otherPlayerData, Map<String, Integer> balances, Set<String> usedNumbers) throws SQLException, DataBaseException
+    {
+        Logger logger = UniversalCoinsServer.logger;
+        int created = 0;
+        PlayerData localPlayerData = getPlayerData(otherPlayerData.getPlayerId());
+        AccountAddress otherPrimaryAccount = otherPlayerData.getPrimaryAccount();
 
-                if(localPlayerData.getAlternativeAccounts().isEmpty())
-                {
-                    logger.info("The player doesn't have any alternative account, creating "+otherPlayerData.getAlternativeAccounts().size()+"...");
-                    for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
-                    {
-                        int balance = accountMap.get(otherAccountAddress.getNumber().toString()).getValue();
-                        if(balance <= 0) continue;
-                        logger.info("Creating account "+otherAccountAddress.getName());
-                        AccountAddress customAccount = createCustomAccount(localPlayerData.getPlayerId(), otherAccountAddress.getName());
-                        logger.info("Account created with number "+customAccount.getNumber()+", changing to "+otherAccountAddress.getNumber()+" and setting balance to "+balance);
-                        try(PreparedStatement pst = connection.prepareStatement(
-                                "UPDATE `accounts` SET `number`=?, `balance`=? WHERE `number`=?"
-                        ))
-                        {
-                            pst.setString(1, otherAccountAddress.getNumber().toString());
-                            pst.setInt(2, balance);
-                            pst.setString(3, customAccount.getNumber().toString());
-                            pst.executeUpdate();
-                        }
-                    }
-                }
-                else if(localPlayerData.getAlternativeAccounts().size() == 1)
+        logger.info("");
+        logger.info("Processing player "+localPlayerData.getPlayerId());
+
+        if(otherPrimaryAccount != null)
+        {
+            int otherBalance = importBalance(balances, otherPrimaryAccount);
+            if(otherBalance > 0)
+            {
+                if (localPlayerData.getPrimaryAccount() == null)
                 {
-                    logger.info("The player has one alternative account, merging "+otherPlayerData.getAlternativeAccounts().size()+" accounts...");
-                    AbstractSQL.SqlAccount account = getAccount(localPlayerData.getAlternativeAccounts().iterator().next());
-                    for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
-                    {
-                        int balance = accountMap.get(otherAccountAddress.getNumber().toString()).getValue();
-                        if(balance <= 0) continue;
-                        logger.info("Adding "+balance+" to the balance that came from "+otherAccountAddress);
-                        account.incrementBalance(balance, null);
-                    }
+                    logger.info("Creating primary account for "+localPlayerData.getPlayerId()+" with name "+otherPrimaryAccount.getName());
+
+                    created++;
+                    AccountAddress localAddress = createPrimaryAccount(localPlayerData.getPlayerId(), otherPrimaryAccount.getName());
+                    logger.info("Account created: "+localAddress);
+                    setImportedAccount(connection, localAddress.getNumber().toString(), otherPrimaryAccount, otherBalance, usedNumbers);
+                    invalidateAccount(localAddress.getNumber().toString());
                 }
                 else
                 {
-                    logger.info("The player has multiple custom accounts, creating/merging "+otherPlayerData.getAlternativeAccounts().size()+" accounts...");
-                    for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
-                    {
-                        int balance = accountMap.get(otherAccountAddress.getNumber().toString()).getValue();
-                        if(balance <= 0) continue;
-
-                        SqlAccount customAccount = getCustomAccount(otherAccountAddress.getName());
-                        if(customAccount != null)
-                        {
-                            logger.info("Adding "+balance+" to the balance that came from "+otherAccountAddress);
-                            customAccount.incrementBalance(balance, null);
-                        }
-                        else
-                        {
-                            logger.info("Creating account "+otherAccountAddress.getName());
-                            AccountAddress createdAccount = createCustomAccount(localPlayerData.getPlayerId(), otherAccountAddress.getName());
-                            logger.info("Account created with number "+createdAccount.getNumber()+", changing to "+otherAccountAddress.getNumber()+" and setting balance to "+balance);
-                            try(PreparedStatement pst = connection.prepareStatement(
-                                    "UPDATE `accounts` SET `number`=?, `balance`=? WHERE `number`=?"
-                            ))
-                            {
-                                pst.setString(1, otherAccountAddress.getNumber().toString());
-                                pst.setInt(2, balance);
-                                pst.setString(3, createdAccount.getNumber().toString());
-                                pst.executeUpdate();
-                            }
-                        }
-                    }
+                    AbstractSQL.SqlAccount account = getAccount(localPlayerData.getPrimaryAccount());
+                    logger.info("Adding "+otherBalance+" to the account "+account.id);
+                    account.incrementBalance(otherBalance, null);
                 }
             }
-
-            logger.info("");
-            logger.info("Import finished, committing");
-            connection.commit();
         }
-        catch (Throwable e)
+
+        if(otherPlayerData.getAlternativeAccounts().isEmpty())
+            return created;
+
+        if(localPlayerData.getAlternativeAccounts().isEmpty())
         {
-            try
-            {
-                connection.rollback();
-            } catch (SQLException e1)
+            logger.info("The player doesn't have any alternative account, creating "+otherPlayerData.getAlternativeAccounts().size()+"...");
+            for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
             {
-                e1.printStackTrace();
+                int balance = importBalance(balances, otherAccountAddress);
+                if(balance <= 0) continue;
+                logger.info("Creating account "+otherAccountAddress.getName());
+                created++;
+                AccountAddress customAccount = createCustomAccount(localPlayerData.getPlayerId(), otherAccountAddress.getName());
+                logger.info("Account created with number "+customAccount.getNumber()+", changing to "+otherAccountAddress.getNumber()+" and setting balance to "+balance);
+                setImportedAccount(connection, customAccount.getNumber().toString(), otherAccountAddress, balance, usedNumbers);
+                invalidateAccount(customAccount.getNumber().toString());
             }
-            throw new DataStoreException(e);
         }
-        finally
+        else if(localPlayerData.getAlternativeAccounts().size() == 1)
         {
-            try
+            logger.info("The player has one alternative account, merging "+otherPlayerData.getAlternativeAccounts().size()+" accounts...");
+            AbstractSQL.SqlAccount account = getAccount(localPlayerData.getAlternativeAccounts().iterator().next());
+            for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
             {
-                connection.setAutoCommit(true);
-            } catch (SQLException e)
+                int balance = importBalance(balances, otherAccountAddress);
+                if(balance <= 0) continue;
+                logger.info("Adding "+balance+" to the balance that came from "+otherAccountAddress);
+                account.incrementBalance(balance, null);
+            }
+        }
+        else
+        {
+            logger.info("The player has multiple custom accounts, creating/merging "+otherPlayerData.getAlternativeAccounts().size()+" accounts...");
+            for(AccountAddress otherAccountAddress: otherPlayerData.getAlternativeAccounts())
             {
-                e.printStackTrace();
+                int balance = importBalance(balances, otherAccountAddress);
+                if(balance <= 0) continue;
+
+                SqlAccount customAccount = getCustomAccount(otherAccountAddress.getName());
+                if(customAccount != null)
+                {
+                    logger.info("Adding "+balance+" to the balance that came from "+otherAccountAddress);
+                    customAccount.incrementBalance(balance, null);
+                }
+                else
+                {
+                    logger.info("Creating account "+otherAccountAddress.getName());
+                    created++;
+                    AccountAddress createdAccount = createCustomAccount(localPlayerData.getPlayerId(), otherAccountAddress.getName());
+                    logger.info("Account created with number "+createdAccount.getNumber()+", changing to "+otherAccountAddress.getNumber()+" and setting balance to "+balance);
+                    setImportedAccount(connection, createdAccount.getNumber().toString(), otherAccountAddress, balance, usedNumbers);
+                    invalidateAccount(createdAccount.getNumber().toString());
+                }
             }
         }
+
+        return created;
     }
 
     @Override
     public void updatePlayerName(@Nonnull UUID playerUUID, @Nonnull String commandSenderName) throws DataStoreException
     {
-        try
+        try(Lease lease = lease())
         {
+            Connection connection = lease.connection;
             String playerId = playerUUID.toString();
             boolean userRegistered;
-            try(PreparedStatement pst = connection.prepareStatement(
+            try(PreparedStatement pst = prepare(connection,
                     "SELECT `player_name` FROM `user_data` WHERE `player_id`=?"
             ))
             {
@@ -1204,7 +3387,7 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
             }
 
             if(!userRegistered)
-                try(PreparedStatement pst = connection.prepareStatement(
+                try(PreparedStatement pst = prepare(connection,
                         "INSERT INTO `user_data`(`player_id`,`player_name`) VALUES(?,?)"
                 ))
                 {
@@ -1213,7 +3396,7 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
                     pst.executeUpdate();
                 }
             else
-                try(PreparedStatement pst = connection.prepareStatement(
+                try(PreparedStatement pst = prepare(connection,
                         "UPDATE `user_data` SET `player_name`=? WHERE `player_id`=?"
                 ))
                 {
@@ -1228,6 +3411,19 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
+    @Override
+    public void visitPlayerNames(@Nonnull final Visitor<Map.Entry<UUID, String>> visitor) throws DataStoreException
+    {
+        stream(SELECT_PLAYER_NAMES, new RowVisitor()
+        {
+            @Override
+            public boolean visit(ResultSet result) throws SQLException, DataStoreException
+            {
+                return visitor.visit(new AbstractMap.SimpleImmutableEntry<>(UUID.fromString(result.getString(1)), result.getString(2)));
+            }
+        });
+    }
+
     @Nullable
     @Override
     public UUID getPlayerIdByName(@Nonnull String name) throws DataStoreException
@@ -1235,7 +3431,7 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         if(!name.matches("^[a-zA-Z0-9_]+$"))
             return null;
 
-        try(PreparedStatement pst = connection.prepareStatement(
+        try(Lease lease = lease(); PreparedStatement pst = prepare(lease.connection,
                 "SELECT `player_id` FROM `user_data` WHERE `player_name`=?"
         ))
         {
@@ -1259,7 +3455,7 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
             return null;
 
         Map<UUID, String> map = new HashMap<>();
-        try(PreparedStatement pst = connection.prepareStatement(
+        try(Lease lease = lease(); PreparedStatement pst = prepare(lease.connection,
                 "SELECT `player_id`, `player_name` FROM `user_data` WHERE `player_name` LIKE ?"
         ))
         {
@@ -1278,112 +3474,288 @@ public class SqlDB extends AbstractSQL<AbstractSQL.SqlAccount>
         }
     }
 
-    @Override
-    public boolean storePackage(@Nonnull ItemStack packageStack, ICommandSender sender, @Nonnull UUID targetId) throws DataStoreException
+    /**
+     * Checks once if a table created by the schema migration exists, a warning tells what is lost without it
+     * @param feature What the table is used for, completes "enable the SQL schema migration to"
+     */
+    private boolean requireTable(Connection connection, String table, String feature) throws SQLException
+    {
+        Boolean available = optionalTables.get(table);
+        if(available != null)
+            return available;
+
+        available = hasTable(connection, table);
+        if(!available)
+            UniversalCoinsServer.logger.warn("The "+table+" table doesn't exist, enable the SQL schema migration to "+feature);
+        optionalTables.put(table, available);
+        return available;
+    }
+
+    private static boolean hasTable(Connection connection, String table) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for(String name: new String[]{table, table.toUpperCase(Locale.ENGLISH)})
+        {
+            try(ResultSet result = metaData.getTables(connection.getCatalog(), null, name, null))
+            {
+                if(result.next())
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The pending deliveries are counted on the {@code delivery_counters} table when it exists, it's created by the
+     * schema migration. Without it the deliveries are counted on each query.
+     */
+    private boolean hasDeliveryCounters(Connection connection) throws SQLException
+    {
+        return requireTable(connection, "delivery_counters", "avoid counting the deliveries on every query");
+    }
+
+    /**
+     * Changes the counter with a single upsert on MySQL and SQLite, so two servers delivering to the same player for
+     * the first time can't both insert the counter. A decrement never creates the counter.
+     */
+    private void incrementPendingDeliveries(Connection connection, @Nonnull String playerId, int increment) throws SQLException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
-                "INSERT INTO `deliveries`(`item`,`sender`,`sender_id`,`target_id`) VALUES(?,?,?,?)"
+        SqlSchema.Dialect dialect = SqlSchema.Dialect.of(connection);
+        if(increment > 0 && dialect != SqlSchema.Dialect.GENERIC)
+        {
+            try(PreparedStatement pst = prepare(connection, dialect == SqlSchema.Dialect.MYSQL?
+                    "INSERT INTO `delivery_counters`(`player_id`,`pending`) VALUES(?,?) " +
+                            "ON DUPLICATE KEY UPDATE `pending`=`pending`+VALUES(`pending`)" :
+                    "INSERT INTO `delivery_counters`(`player_id`,`pending`) VALUES(?,?) " +
+                            "ON CONFLICT(`player_id`) DO UPDATE SET `pending`=`pending`+excluded.`pending`"
+            ))
+            {
+                pst.setString(1, playerId);
+                pst.setInt(2, increment);
+                pst.executeUpdate();
+            }
+            return;
+        }
+
+        try(PreparedStatement pst = prepare(connection,
+                "UPDATE `delivery_counters` SET `pending`=`pending`+? WHERE `player_id`=?"
         ))
         {
-            NBTTagCompound nbt = new NBTTagCompound();
-            packageStack.writeToNBT(nbt);
-            pst.setString(1, nbt.toString());
-            pst.setString(2, sender.getCommandSenderName());
-            if(sender instanceof EntityPlayer)
-                pst.setString(3, ((EntityPlayer) sender).getPersistentID().toString());
-            else
-                pst.setNull(3, Types.CHAR);
-            pst.setString(4, targetId.toString());
-            pst.executeUpdate();
-            return true;
+            pst.setInt(1, increment);
+            pst.setString(2, playerId);
+            if(pst.executeUpdate() > 0 || increment < 0)
+                return;
         }
-        catch (Exception e)
+
+        try(PreparedStatement pst = prepare(connection,
+                "INSERT INTO `delivery_counters`(`player_id`,`pending`) VALUES(?,?)"
+        ))
         {
-            throw new DataStoreException(e);
+            pst.setString(1, playerId);
+            pst.setInt(2, increment);
+            pst.executeUpdate();
         }
     }
 
     @Override
-    public void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException
+    public boolean storePackage(@Nonnull ItemStack packageStack, ICommandSender sender, @Nonnull UUID targetId) throws DataStoreException
     {
-        int firstEmptyStack = player.inventory.getFirstEmptyStack();
-        if(firstEmptyStack == -1)
+        try(Lease lease = lease())
         {
-            player.addChatComponentMessage(new ChatComponentTranslation("sign.warning.inventoryfull").setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
-            return;
+            Connection connection = lease.connection;
+            boolean counters;
+            boolean inTransaction;
+            try
+            {
+                counters = hasDeliveryCounters(connection);
+                inTransaction = !connection.getAutoCommit();
+            }
+            catch (SQLException e)
+            {
+                throw new DataStoreException(e);
+            }
+
+            try
+            {
+                if(counters && !inTransaction)
+                    connection.setAutoCommit(false);
+
+                try(PreparedStatement pst = prepare(connection,
+                        "INSERT INTO `deliveries`(`item`,`sender`,`sender_id`,`target_id`,`sent`) VALUES(?,?,?,?,?)"
+                ))
+                {
+                    NBTTagCompound nbt = new NBTTagCompound();
+                    packageStack.writeToNBT(nbt);
+                    pst.setString(1, nbt.toString());
+                    pst.setString(2, sender.getCommandSenderName());
+                    if(sender instanceof EntityPlayer)
+                        pst.setString(3, ((EntityPlayer) sender).getPersistentID().toString());
+                    else
+                        pst.setNull(3, Types.CHAR);
+                    pst.setString(4, targetId.toString());
+                    // The column default would be stored as text by SQLite, which getTimestamp() can't read back
+                    pst.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                    pst.executeUpdate();
+                }
+
+                if(counters)
+                    incrementPendingDeliveries(connection, targetId.toString(), 1);
+
+                if(counters && !inTransaction)
+                    commit(connection);
+                return true;
+            }
+            catch (Throwable e)
+            {
+                if(counters && !inTransaction)
+                    rollback(connection);
+                throw new DataStoreException(e);
+            }
+            finally
+            {
+                if(counters && !inTransaction)
+                    try
+                    {
+                        connection.setAutoCommit(true);
+                    }
+                    catch (SQLException e)
+                    {
+                        e.printStackTrace();
+                    }
+            }
         }
+    }
 
-        try(PreparedStatement pst = connection.prepareStatement(
-                "SELECT `id`, `item`, `sender`, `sent` FROM `deliveries` WHERE `target_id`=? AND `delivered` IS NULL"
-        ); PreparedStatement update = connection.prepareStatement(
-                "UPDATE `deliveries` SET `delivered`=? WHERE `id`=?"
-        ))
+    @Override
+    public void deliveryPackages(@Nonnull EntityPlayer player) throws DataStoreException
+    {
+        PackageDeliveries.deliver(this, player);
+    }
+
+    @Nonnull
+    @Override
+    public List<ItemStack> claimPackages(@Nonnull UUID persistentID, int limit) throws DataStoreException
+    {
+        List<ItemStack> claimed = new ArrayList<>();
+        String playerId = persistentID.toString();
+        try(Lease lease = lease())
         {
-            pst.setString(1, player.getPersistentID().toString());
-            ResultSet result = pst.executeQuery();
-            while (result.next())
+            Connection connection = lease.connection;
+
+            // Read before delivering because some drivers close the open results when the deliveries are committed
+            List<Object[]> pending = new ArrayList<>();
+            try(PreparedStatement pst = prepare(connection,
+                    "SELECT `id`, `item`, `sender`, `sent` FROM `deliveries` WHERE `target_id`=? AND `delivered` IS NULL"
+            ))
+            {
+                pst.setString(1, playerId);
+                ResultSet result = pst.executeQuery();
+                while (result.next())
+                    pending.add(new Object[]{result.getInt(1), result.getString(2), result.getString(3), result.getTimestamp(4)});
+            }
+
+            boolean counters = hasDeliveryCounters(connection);
+            boolean inTransaction = !connection.getAutoCommit();
+            try
             {
-                if(firstEmptyStack == -1)
+                if(counters && !inTransaction)
+                    connection.setAutoCommit(false);
+
+                for(Object[] row: pending)
                 {
-                    player.addChatComponentMessage(new ChatComponentTranslation("sign.warning.inventoryfull").setChatStyle(new ChatStyle().setColor(EnumChatFormatting.RED)));
-                    return;
-                }
+                    if(claimed.size() >= limit)
+                        break;
+
+                    int id = (int) row[0];
+                    String json = (String) row[1];
+                    String sender = (String) row[2];
+                    Timestamp sent = (Timestamp) row[3];
+
+                    NBTTagCompound nbt = (NBTTagCompound) JsonToNBT.func_150315_a(json);
+                    ItemStack stack = ItemStack.loadItemStackFromNBT(nbt);
+
+                    /*
+                    NBTTagList list = new NBTTagList();
+                    list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+ StatCollector.translateToLocal("item.package.by")+" "+sender));
+                    list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+StatCollector.translateToLocal("item.package.on")+" "+ DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(sent.getTime())));
+                    list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+StatCollector.translateToLocal("item.package.received")+" "+ DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(System.currentTimeMillis())));
+                    NBTTagCompound display = new NBTTagCompound();
+                    display.setTag("Lore", list);
+                    stack.stackTagCompound.setTag("display", display);
+                    */
+                    stack.stackTagCompound.setString("sender", sender);
+                    stack.stackTagCompound.setLong("sent", sent.getTime());
+                    long time = System.currentTimeMillis();
+                    stack.stackTagCompound.setLong("received", time);
+
+                    int updated;
+                    try(PreparedStatement update = prepare(connection,
+                            "UPDATE `deliveries` SET `delivered`=? WHERE `id`=? AND `delivered` IS NULL"
+                    ))
+                    {
+                        update.setTimestamp(1, new Timestamp(time));
+                        update.setInt(2, id);
+                        updated = update.executeUpdate();
+                    }
 
-                int id = result.getInt(1);
-                String json = result.getString(2);
-                String sender = result.getString(3);
-                Timestamp sent = result.getTimestamp(4);
-                
-                NBTTagCompound nbt = (NBTTagCompound) JsonToNBT.func_150315_a(json);
-                ItemStack stack = ItemStack.loadItemStackFromNBT(nbt);
-
-                /*
-                NBTTagList list = new NBTTagList();
-                list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+ StatCollector.translateToLocal("item.package.by")+" "+sender));
-                list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+StatCollector.translateToLocal("item.package.on")+" "+ DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(sent.getTime())));
-                list.appendTag(new NBTTagString(EnumChatFormatting.BLUE+StatCollector.translateToLocal("item.package.received")+" "+ DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(System.currentTimeMillis())));
-                NBTTagCompound display = new NBTTagCompound();
-                display.setTag("Lore", list);
-                stack.stackTagCompound.setTag("display", display);
-                */
-                stack.stackTagCompound.setString("sender", sender);
-                stack.stackTagCompound.setLong("sent", sent.getTime());
-                long time = System.currentTimeMillis();
-                stack.stackTagCompound.setLong("received", time);
-
-                update.setTimestamp(1, new Timestamp(time));
-                update.setInt(2, id);
-                update.executeUpdate();
-
-                player.inventory.setInventorySlotContents(firstEmptyStack, stack);
-                player.addChatComponentMessage(
-                        new ChatComponentText(sender)
-                                .setChatStyle(new ChatStyle().setColor(EnumChatFormatting.GREEN))
-                                .appendSibling(new ChatComponentTranslation("packager.message.sent"))
-                );
+                    // Delivered by an other server sharing the database
+                    if(updated == 0)
+                        continue;
+
+                    if(counters)
+                    {
+                        incrementPendingDeliveries(connection, playerId, -1);
+                        if(!inTransaction)
+                            commit(connection);
+                    }
 
-                firstEmptyStack = player.inventory.getFirstEmptyStack();
+                    claimed.add(stack);
+                }
+            }
+            catch (Throwable e)
+            {
+                if(counters && !inTransaction)
+                    rollback(connection);
+                throw e;
+            }
+            finally
+            {
+                if(counters && !inTransaction)
+                    try
+                    {
+                        connection.setAutoCommit(true);
+                    }
+                    catch (SQLException e)
+                    {
+                        e.printStackTrace();
+                    }
             }
         }
         catch (Exception e)
         {
             throw new DataStoreException(e);
         }
+        return claimed;
     }
 
     @Override
     public int getPendingDeliveries(@Nonnull UUID persistentID) throws DataStoreException
     {
-        try(PreparedStatement pst = connection.prepareStatement(
-                "SELECT COUNT(*) FROM `deliveries` WHERE `target_id`=? AND `delivered` IS NULL"
-        ))
+        try(Lease lease = lease())
         {
-            pst.setString(1, persistentID.toString());
-            ResultSet results = pst.executeQuery();
-            if(results.next())
-                return results.getInt(1);
-            else
-                return 0;
+            String sql = hasDeliveryCounters(lease.connection)?
+                    "SELECT `pending` FROM `delivery_counters` WHERE `player_id`=?" :
+                    "SELECT COUNT(*) FROM `deliveries` WHERE `target_id`=? AND `delivered` IS NULL";
+
+            try(PreparedStatement pst = prepare(lease.connection, sql))
+            {
+                pst.setString(1, persistentID.toString());
+                ResultSet results = pst.executeQuery();
+                if(results.next())
+                    return results.getInt(1);
+                else
+                    return 0;
+            }
         }
         catch (Exception e)
         {
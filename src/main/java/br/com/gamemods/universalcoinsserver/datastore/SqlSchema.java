@@ -0,0 +1,509 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Creates and upgrades the tables used by {@link SqlDB}.
+ * <p>
+ * The applied versions are recorded on the {@code schema_version} table, each migration runs only once. Databases that
+ * were created manually before the migrations existed are upgraded too, the tables are only created when they are
+ * missing and the indexes are skipped when an index with the same leading columns already exists.
+ */
+public class SqlSchema
+{
+    /**
+     * The SQL differences between the supported database products
+     */
+    enum Dialect
+    {
+        MYSQL("INT NOT NULL AUTO_INCREMENT PRIMARY KEY", " ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"),
+        SQLITE("INTEGER PRIMARY KEY AUTOINCREMENT", ""),
+        GENERIC("INT AUTO_INCREMENT PRIMARY KEY", "");
+
+        final String serial;
+        final String tableOptions;
+
+        Dialect(String serial, String tableOptions)
+        {
+            this.serial = serial;
+            this.tableOptions = tableOptions;
+        }
+
+        @Nonnull
+        static Dialect of(@Nonnull Connection connection) throws SQLException
+        {
+            String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+            if(product.contains("mysql") || product.contains("mariadb"))
+                return MYSQL;
+            if(product.contains("sqlite"))
+                return SQLITE;
+            return GENERIC;
+        }
+
+        /**
+         * Replaces {@code {serial}} by an auto-incremented primary key column type and appends the table options
+         * to {@code CREATE TABLE} statements
+         */
+        String translate(String sql)
+        {
+            sql = sql.replace("{serial}", serial);
+            if(sql.startsWith("CREATE TABLE"))
+                sql += tableOptions;
+            return sql;
+        }
+    }
+
+    private static abstract class Migration
+    {
+        final int version;
+        final String description;
+
+        Migration(int version, String description)
+        {
+            this.version = version;
+            this.description = description;
+        }
+
+        abstract void apply(Connection connection, Dialect dialect) throws SQLException;
+    }
+
+    private static final class Tables extends Migration
+    {
+        private final String[] statements;
+
+        Tables(int version, String description, String... statements)
+        {
+            super(version, description);
+            this.statements = statements;
+        }
+
+        @Override
+        void apply(Connection connection, Dialect dialect) throws SQLException
+        {
+            try(Statement stm = connection.createStatement())
+            {
+                for(String sql: statements)
+                    stm.executeUpdate(dialect.translate(sql));
+            }
+        }
+    }
+
+    private static final class Index extends Migration
+    {
+        private final String name;
+        private final String table;
+        private final String[] columns;
+
+        Index(int version, String name, String table, String... columns)
+        {
+            super(version, "Index "+name+" on "+table+Arrays.toString(columns));
+            this.name = name;
+            this.table = table;
+            this.columns = columns;
+        }
+
+        @Override
+        void apply(Connection connection, Dialect dialect) throws SQLException
+        {
+            if(hasIndex(connection, table, columns))
+            {
+                UniversalCoinsServer.logger.info("The table "+table+" already has an index starting with "+Arrays.toString(columns)+", "+name+" won't be created");
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder("CREATE INDEX `").append(name).append("` ON `").append(table).append("`(");
+            for(int i = 0; i < columns.length; i++)
+            {
+                if(i > 0) sb.append(',');
+                sb.append('`').append(columns[i]).append('`');
+            }
+            sb.append(')');
+
+            try(Statement stm = connection.createStatement())
+            {
+                stm.executeUpdate(sb.toString());
+            }
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Tables(1, "Initial tables",
+                    "CREATE TABLE IF NOT EXISTS `user_data`(" +
+                            "`player_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                            "`player_name` VARCHAR(32) NULL," +
+                            "`primary_account` VARCHAR(20) NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `accounts`(" +
+                            "`number` VARCHAR(20) NOT NULL PRIMARY KEY," +
+                            "`owner` CHAR(36) NOT NULL," +
+                            "`name` VARCHAR(64) NOT NULL," +
+                            "`balance` INT NOT NULL DEFAULT 0," +
+                            "`primary` BOOLEAN NOT NULL DEFAULT 0," +
+                            "`terminated` DATETIME NULL," +
+                            "`transferred` VARCHAR(20) NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `custom_accounts`(" +
+                            "`name` VARCHAR(64) NOT NULL PRIMARY KEY," +
+                            "`account` VARCHAR(20) NOT NULL," +
+                            "`terminated` DATETIME NULL," +
+                            "`transferred` VARCHAR(20) NULL," +
+                            "`transferred_name` VARCHAR(64) NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `machines`(" +
+                            "`machine_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                            "`dim` INT NOT NULL," +
+                            "`x` INT NOT NULL," +
+                            "`y` INT NOT NULL," +
+                            "`z` INT NOT NULL," +
+                            "`block` VARCHAR(128) NULL," +
+                            "`metadata` INT NOT NULL DEFAULT 0," +
+                            "`tile` VARCHAR(255) NOT NULL," +
+                            "`owner` CHAR(36) NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `block_operators`(" +
+                            "`operator_id` {serial}," +
+                            "`x` INT NOT NULL," +
+                            "`y` INT NOT NULL," +
+                            "`z` INT NOT NULL," +
+                            "`dim` INT NULL," +
+                            "`block_id` VARCHAR(128) NULL," +
+                            "`block_meta` INT NULL," +
+                            "`owner` CHAR(36) NULL," +
+                            "`machine_id` CHAR(36) NULL," +
+                            "`machine_type` VARCHAR(255) NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `coin_source`(" +
+                            "`id` {serial}," +
+                            "`before` INT NOT NULL," +
+                            "`after` INT NOT NULL," +
+                            "`type` VARCHAR(16) NULL," +
+                            "`machine` CHAR(36) NULL," +
+                            "`account` VARCHAR(20) NULL," +
+                            "`card_item` VARCHAR(128) NULL," +
+                            "`card_damage` INT NULL," +
+                            "`card_amount` INT NULL," +
+                            "`card_nbt` TEXT NULL," +
+                            "`player_operator` CHAR(36) NULL," +
+                            "`block_operator` INT NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `transactions`(" +
+                            "`transaction_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                            "`time` DATETIME NOT NULL," +
+                            "`machine` CHAR(36) NULL," +
+                            "`player_operator` CHAR(36) NULL," +
+                            "`block_operator` INT NULL," +
+                            "`product_item` VARCHAR(128) NULL," +
+                            "`product_damage` INT NULL," +
+                            "`product_amount` INT NULL," +
+                            "`product_nbt` TEXT NULL," +
+                            "`trade_item` VARCHAR(128) NULL," +
+                            "`trade_damage` INT NULL," +
+                            "`trade_amount` INT NULL," +
+                            "`trade_nbt` TEXT NULL," +
+                            "`operation` VARCHAR(32) NOT NULL," +
+                            "`infinite` BOOLEAN NOT NULL DEFAULT 0," +
+                            "`quantity` INT NOT NULL DEFAULT 0," +
+                            "`price` INT NOT NULL DEFAULT 0," +
+                            "`total_price` INT NOT NULL DEFAULT 0," +
+                            "`user_coinsource` INT NULL," +
+                            "`owner_coinsource` INT NULL" +
+                    ")",
+                    "CREATE TABLE IF NOT EXISTS `deliveries`(" +
+                            "`id` {serial}," +
+                            "`item` TEXT NOT NULL," +
+                            "`sender` VARCHAR(64) NOT NULL," +
+                            "`sender_id` CHAR(36) NULL," +
+                            "`target_id` CHAR(36) NOT NULL," +
+                            "`sent` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP," +
+                            "`delivered` DATETIME NULL" +
+                    ")"
+            ),
+            new Index(2, "idx_accounts_number_terminated", "accounts", "number", "terminated"),
+            new Index(3, "idx_accounts_owner", "accounts", "owner"),
+            new Index(4, "idx_custom_accounts_account", "custom_accounts", "account"),
+            new Index(5, "idx_user_data_player_name", "user_data", "player_name"),
+            new Index(6, "idx_deliveries_target_delivered", "deliveries", "target_id", "delivered"),
+            new Index(7, "idx_block_operators_position", "block_operators", "x", "z", "y", "dim", "block_id"),
+            new Index(8, "idx_transactions_machine_time", "transactions", "machine", "time"),
+            new Tables(9, "Pending delivery counters",
+                    "CREATE TABLE IF NOT EXISTS `delivery_counters`(" +
+                            "`player_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                            "`pending` INT NOT NULL DEFAULT 0" +
+                    ")",
+                    "DELETE FROM `delivery_counters`",
+                    "INSERT INTO `delivery_counters`(`player_id`,`pending`) " +
+                            "SELECT `target_id`, COUNT(*) FROM `deliveries` WHERE `delivered` IS NULL GROUP BY `target_id`"
+            ),
+            new Tables(10, "Import progress",
+                    "CREATE TABLE IF NOT EXISTS `import_progress`(" +
+                            "`source` VARCHAR(64) NOT NULL," +
+                            "`player_id` CHAR(36) NOT NULL," +
+                            "PRIMARY KEY(`source`,`player_id`)" +
+                    ")"
+            ),
+            new Tables(11, "Account transaction history",
+                    "CREATE TABLE IF NOT EXISTS `account_transactions`(" +
+                            "`account` VARCHAR(20) NOT NULL," +
+                            "`time` DATETIME NOT NULL," +
+                            "`transaction_id` CHAR(36) NOT NULL," +
+                            "PRIMARY KEY(`account`,`time`,`transaction_id`)" +
+                    ")",
+                    "DELETE FROM `account_transactions`",
+                    "INSERT INTO `account_transactions`(`account`,`time`,`transaction_id`) " +
+                            "SELECT cs.account, t.time, t.transaction_id FROM `transactions` AS t " +
+                                "INNER JOIN `coin_source` AS cs ON cs.id=t.user_coinsource WHERE cs.account IS NOT NULL " +
+                            "UNION " +
+                            "SELECT cs.account, t.time, t.transaction_id FROM `transactions` AS t " +
+                                "INNER JOIN `coin_source` AS cs ON cs.id=t.owner_coinsource WHERE cs.account IS NOT NULL"
+            ),
+            new Index(12, "idx_transactions_time", "transactions", "time", "transaction_id"),
+            new Index(13, "idx_transactions_player_time", "transactions", "player_operator", "time"),
+            new Tables(14, "Sales rollups",
+                    "CREATE TABLE IF NOT EXISTS `sales_rollups`(" +
+                            "`scope` VARCHAR(10) NOT NULL," +
+                            "`id` CHAR(36) NOT NULL," +
+                            "`period` VARCHAR(10) NOT NULL," +
+                            "`bucket` BIGINT NOT NULL," +
+                            "`trades` BIGINT NOT NULL," +
+                            "`coins_in` BIGINT NOT NULL," +
+                            "`coins_out` BIGINT NOT NULL," +
+                            "`items` BIGINT NOT NULL," +
+                            "PRIMARY KEY(`scope`,`id`,`period`,`bucket`)" +
+                    ")"
+            ),
+            new Tables(15, "Transaction archive", archiveTables("")),
+            new Index(16, "idx_transactions_user_coinsource", "transactions", "user_coinsource"),
+            new Index(17, "idx_transactions_owner_coinsource", "transactions", "owner_coinsource"),
+            new Tables(18, "Account number sequence",
+                    "CREATE TABLE IF NOT EXISTS `account_sequence`(" +
+                            "`name` VARCHAR(32) NOT NULL PRIMARY KEY," +
+                            "`seed` BIGINT NOT NULL," +
+                            "`next` BIGINT NOT NULL" +
+                    ")"
+            )
+    );
+
+    /**
+     * The tables that receive the archived transactions and their coin sources, they have the same columns as the
+     * main tables but the coin source ids are not generated
+     * @param suffix Appended to the table names, used by the monthly archive tables
+     */
+    @Nonnull
+    static String[] archiveTables(@Nonnull String suffix)
+    {
+        return new String[]{
+                "CREATE TABLE IF NOT EXISTS `coin_source_archive"+suffix+"`(" +
+                        "`id` INT NOT NULL PRIMARY KEY," +
+                        "`before` INT NOT NULL," +
+                        "`after` INT NOT NULL," +
+                        "`type` VARCHAR(16) NULL," +
+                        "`machine` CHAR(36) NULL," +
+                        "`account` VARCHAR(20) NULL," +
+                        "`card_item` VARCHAR(128) NULL," +
+                        "`card_damage` INT NULL," +
+                        "`card_amount` INT NULL," +
+                        "`card_nbt` TEXT NULL," +
+                        "`player_operator` CHAR(36) NULL," +
+                        "`block_operator` INT NULL" +
+                ")",
+                "CREATE TABLE IF NOT EXISTS `transactions_archive"+suffix+"`(" +
+                        "`transaction_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                        "`time` DATETIME NOT NULL," +
+                        "`machine` CHAR(36) NULL," +
+                        "`player_operator` CHAR(36) NULL," +
+                        "`block_operator` INT NULL," +
+                        "`product_item` VARCHAR(128) NULL," +
+                        "`product_damage` INT NULL," +
+                        "`product_amount` INT NULL," +
+                        "`product_nbt` TEXT NULL," +
+                        "`trade_item` VARCHAR(128) NULL," +
+                        "`trade_damage` INT NULL," +
+                        "`trade_amount` INT NULL," +
+                        "`trade_nbt` TEXT NULL," +
+                        "`operation` VARCHAR(32) NOT NULL," +
+                        "`infinite` BOOLEAN NOT NULL DEFAULT 0," +
+                        "`quantity` INT NOT NULL DEFAULT 0," +
+                        "`price` INT NOT NULL DEFAULT 0," +
+                        "`total_price` INT NOT NULL DEFAULT 0," +
+                        "`user_coinsource` INT NULL," +
+                        "`owner_coinsource` INT NULL" +
+                ")"
+        };
+    }
+
+    private final ConnectionPool pool;
+
+    public SqlSchema(@Nonnull ConnectionPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * The version that the schema will have after {@link #migrate()}
+     */
+    public static int getLatestVersion()
+    {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    /**
+     * Applies all migrations that were not applied yet
+     * @return The amount of migrations that were applied
+     */
+    public int migrate() throws DataStoreException
+    {
+        Logger logger = UniversalCoinsServer.logger;
+        Connection connection;
+        try
+        {
+            connection = pool.borrow();
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+
+        try
+        {
+            Dialect dialect = Dialect.of(connection);
+            int current = readVersion(connection, dialect);
+            int applied = 0;
+            for(Migration migration: MIGRATIONS)
+            {
+                if(migration.version <= current)
+                    continue;
+
+                logger.info("Applying database migration "+migration.version+": "+migration.description);
+                migration.apply(connection, dialect);
+
+                try(PreparedStatement pst = connection.prepareStatement(
+                        "INSERT INTO `schema_version`(`version`,`description`,`applied`) VALUES(?,?,?)"
+                ))
+                {
+                    pst.setInt(1, migration.version);
+                    pst.setString(2, migration.description);
+                    pst.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                    pst.executeUpdate();
+                }
+                applied++;
+            }
+
+            if(applied > 0)
+                logger.info("The database schema was upgraded from version "+current+" to "+getLatestVersion());
+
+            checkDeliveryCounters(connection, dialect);
+            return applied;
+        }
+        catch (SQLException e)
+        {
+            throw new DataStoreException(e);
+        }
+        finally
+        {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * The pending delivery counters are only filled by the migration 9, if the table was dropped or truncated later
+     * every player would see no pending packages until a new one arrives. This recomputes them from the deliveries
+     * when the table is missing or empty but there are undelivered packages.
+     */
+    private static void checkDeliveryCounters(Connection connection, Dialect dialect) throws SQLException
+    {
+        try(Statement stm = connection.createStatement())
+        {
+            stm.executeUpdate(dialect.translate(
+                    "CREATE TABLE IF NOT EXISTS `delivery_counters`(" +
+                            "`player_id` CHAR(36) NOT NULL PRIMARY KEY," +
+                            "`pending` INT NOT NULL DEFAULT 0" +
+                    ")"
+            ));
+
+            try(ResultSet result = stm.executeQuery("SELECT 1 FROM `delivery_counters` LIMIT 1"))
+            {
+                if(result.next())
+                    return;
+            }
+
+            try(ResultSet result = stm.executeQuery("SELECT 1 FROM `deliveries` WHERE `delivered` IS NULL LIMIT 1"))
+            {
+                if(!result.next())
+                    return;
+            }
+
+            UniversalCoinsServer.logger.warn("The delivery_counters table is empty but there are pending deliveries, recomputing the counters");
+            stm.executeUpdate(
+                    "INSERT INTO `delivery_counters`(`player_id`,`pending`) " +
+                            "SELECT `target_id`, COUNT(*) FROM `deliveries` WHERE `delivered` IS NULL GROUP BY `target_id`"
+            );
+        }
+    }
+
+    private static int readVersion(Connection connection, Dialect dialect) throws SQLException
+    {
+        try(Statement stm = connection.createStatement())
+        {
+            stm.executeUpdate(dialect.translate(
+                    "CREATE TABLE IF NOT EXISTS `schema_version`(" +
+                            "`version` INT NOT NULL PRIMARY KEY," +
+                            "`description` VARCHAR(255) NOT NULL," +
+                            "`applied` DATETIME NOT NULL" +
+                    ")"
+            ));
+
+            try(ResultSet result = stm.executeQuery("SELECT MAX(`version`) FROM `schema_version`"))
+            {
+                return result.next()? result.getInt(1) : 0;
+            }
+        }
+    }
+
+    private static boolean hasIndex(Connection connection, String table, String[] columns) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map<String, SortedMap<Integer, String>> indexes = new HashMap<>();
+        for(String name: new String[]{table, table.toUpperCase(Locale.ENGLISH)})
+        {
+            try(ResultSet result = metaData.getIndexInfo(connection.getCatalog(), null, name, false, false))
+            {
+                while (result.next())
+                {
+                    String index = result.getString("INDEX_NAME");
+                    String column = result.getString("COLUMN_NAME");
+                    if(index == null || column == null)
+                        continue;
+
+                    SortedMap<Integer, String> indexColumns = indexes.get(index);
+                    if(indexColumns == null)
+                        indexes.put(index, indexColumns = new TreeMap<>());
+                    indexColumns.put((int) result.getShort("ORDINAL_POSITION"), column.toLowerCase(Locale.ENGLISH));
+                }
+            }
+
+            if(!indexes.isEmpty())
+                break;
+        }
+
+        search:
+        for(SortedMap<Integer, String> indexColumns: indexes.values())
+        {
+            if(indexColumns.size() < columns.length)
+                continue;
+
+            Iterator<String> iterator = indexColumns.values().iterator();
+            for(String column: columns)
+                if(!iterator.next().equals(column))
+                    continue search;
+
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,199 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the prepared statements of each pooled connection open so the same SQL is parsed only once per connection.
+ * <p>
+ * The statements returned by {@link #prepare(Connection, String, int)} are borrowed, closing them gives them back to
+ * the cache with their results closed and their parameters cleared. If the same SQL is prepared again while its
+ * statement is still borrowed, a new statement that is really closed is returned instead. The statements of a
+ * connection are dropped when the pool discards the connection.
+ */
+public class StatementCache
+{
+    private final Map<Connection, Map<String, Entry>> connections = Collections.synchronizedMap(new IdentityHashMap<Connection, Map<String, Entry>>());
+    private final ConcurrentHashMap<String, AtomicLong> executions = new ConcurrentHashMap<>();
+    private final AtomicLong prepared = new AtomicLong();
+
+    private final class Entry implements InvocationHandler
+    {
+        final String sql;
+        final PreparedStatement statement;
+        final PreparedStatement proxy;
+        final boolean cached;
+        final AtomicLong counter;
+        boolean borrowed;
+
+        Entry(String sql, PreparedStatement statement, boolean cached)
+        {
+            this.sql = sql;
+            this.statement = statement;
+            this.cached = cached;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+
+            AtomicLong counter = executions.get(sql);
+            if(counter == null)
+            {
+                AtomicLong created = new AtomicLong();
+                counter = executions.putIfAbsent(sql, created);
+                if(counter == null)
+                    counter = created;
+            }
+            this.counter = counter;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if(name.equals("close") && method.getParameterTypes().length == 0)
+            {
+                if(!cached)
+                {
+                    statement.close();
+                    return null;
+                }
+
+                try
+                {
+                    closeResults();
+                    statement.clearParameters();
+                    borrowed = false;
+                }
+                catch (SQLException e)
+                {
+                    remove(this);
+                    statement.close();
+                }
+                return null;
+            }
+
+            if(name.startsWith("execute"))
+                counter.incrementAndGet();
+
+            try
+            {
+                return method.invoke(statement, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Closes the results that the caller left open, including the additional ones of statements that return
+         * more than one, an open cursor would keep its locks until the statement is executed again
+         */
+        private void closeResults() throws SQLException
+        {
+            ResultSet result = statement.getResultSet();
+            if(result != null)
+                result.close();
+
+            // Bounded because some drivers keep reporting the same update count
+            for(int i = 0; i < 64 && (statement.getMoreResults() || statement.getUpdateCount() != -1); i++)
+            {
+                result = statement.getResultSet();
+                if(result != null)
+                    result.close();
+            }
+        }
+    }
+
+    /**
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or {@link Statement#NO_GENERATED_KEYS}
+     */
+    @Nonnull
+    PreparedStatement prepare(@Nonnull Connection connection, @Nonnull String sql, int autoGeneratedKeys) throws SQLException
+    {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS? "+"+sql : sql;
+        Map<String, Entry> statements;
+        synchronized (connections)
+        {
+            statements = connections.get(connection);
+            if(statements == null)
+                connections.put(connection, statements = new HashMap<>());
+        }
+
+        // The connection is confined to the thread that borrowed it, so its statements are not shared
+        Entry entry = statements.get(key);
+        if(entry != null && entry.borrowed)
+            return new Entry(sql, connection.prepareStatement(sql, autoGeneratedKeys), false).proxy;
+
+        if(entry == null || entry.statement.isClosed())
+        {
+            entry = new Entry(sql, connection.prepareStatement(sql, autoGeneratedKeys), true);
+            statements.put(key, entry);
+            prepared.incrementAndGet();
+        }
+        else
+            entry.statement.clearBatch();
+
+        entry.borrowed = true;
+        return entry.proxy;
+    }
+
+    private void remove(Entry entry)
+    {
+        synchronized (connections)
+        {
+            for(Map<String, Entry> statements: connections.values())
+                statements.values().remove(entry);
+        }
+    }
+
+    /**
+     * Closes and forgets the statements of a connection that will no longer be used
+     */
+    void discard(@Nonnull Connection connection)
+    {
+        Map<String, Entry> statements = connections.remove(connection);
+        if(statements == null)
+            return;
+
+        for(Entry entry: statements.values())
+            try
+            {
+                entry.statement.close();
+            }
+            catch (SQLException ignored)
+            {
+            }
+    }
+
+    /**
+     * How many times each SQL was executed since the server started
+     */
+    @Nonnull
+    public Map<String, Long> getExecutionCounts()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        for(Map.Entry<String, AtomicLong> entry: executions.entrySet())
+            counts.put(entry.getKey(), entry.getValue().get());
+        return counts;
+    }
+
+    /**
+     * How many statements were prepared to be cached, a value close to the amount of distinct SQLs multiplied by the
+     * amount of connections means that the cache is working
+     */
+    public long getPreparedCount()
+    {
+        return prepared.get();
+    }
+}
@@ -0,0 +1,98 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import java.util.Date;
+
+/**
+ * Moves the transactions older than the retention out of the main storage on a background thread.
+ * <p>
+ * The transactions are moved in small chunks, each chunk is a short operation of its own and the thread pauses between
+ * the chunks, so the transactions being stored at the same time are never blocked for long. The old transactions are
+ * checked again after {@code interval} milliseconds. The sales rollups are not affected by the archive.
+ */
+public class TransactionArchiver extends BackgroundWorker
+{
+    /**
+     * The storage that is archived
+     */
+    interface Target
+    {
+        /**
+         * Archives the oldest transactions that happened before the time
+         * @param limit The maximum amount of transactions archived by this call, a storage that archives whole files may exceed it
+         * @return The amount of transactions archived, zero when there's nothing left to archive
+         */
+        int archiveTransactions(long before, int limit) throws DataStoreException;
+    }
+
+    private final Target target;
+    private final long retention;
+    private final int chunkSize;
+    private final long chunkPause;
+    private final long interval;
+    private volatile long archived;
+
+    /**
+     * @param retention Milliseconds that the transactions are kept in the main storage
+     * @param chunkSize The maximum amount of transactions archived at once
+     * @param chunkPause Milliseconds waited after each chunk
+     * @param interval Milliseconds waited before looking for old transactions again
+     */
+    TransactionArchiver(@Nonnull Target target, long retention, int chunkSize, long chunkPause, long interval)
+    {
+        super("UniversalCoins Transaction Archiver");
+        if(retention < 1)
+            throw new IllegalArgumentException("retention: "+retention);
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize: "+chunkSize);
+
+        this.target = target;
+        this.retention = retention;
+        this.chunkSize = chunkSize;
+        this.chunkPause = chunkPause;
+        this.interval = interval;
+
+        start();
+    }
+
+    /**
+     * @return The amount of transactions archived since the server started
+     */
+    public long getArchivedCount()
+    {
+        return archived;
+    }
+
+    @Override
+    void work()
+    {
+        while (true)
+        {
+            long before = System.currentTimeMillis() - retention;
+            int total = 0;
+            try
+            {
+                int count;
+                while ((count = target.archiveTransactions(before, chunkSize)) > 0)
+                {
+                    total += count;
+                    archived += count;
+                    if(!pause(chunkPause))
+                        break;
+                }
+            }
+            catch (DataStoreException|RuntimeException e)
+            {
+                UniversalCoinsServer.logger.error("Failed to archive the old transactions, trying again later", e);
+            }
+
+            if(total > 0)
+                UniversalCoinsServer.logger.info("Archived "+total+" transactions older than "+new Date(before));
+
+            if(!pause(interval))
+                return;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind queue for transaction records.
+ * <p>
+ * Records are queued in memory and written by a background thread when {@code batchSize} records are pending or
+ * when the oldest pending record waited for {@code flushInterval} milliseconds, whichever comes first.
+ * <p>
+ * When a directory is given, every queued record is also appended to a local segment file before the call returns,
+ * the segments are deleted after their records are written and the ones left behind by a crash are written again
+ * when the journal is opened. Each record is stored as {@code [length][crc32][record]}, the recovery stops at the
+ * first record that is incomplete or doesn't match its checksum.
+ */
+public class TransactionJournal implements Closeable
+{
+    private static final int MAGIC = 0x55434A31;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    interface Sink
+    {
+        /**
+         * Writes the records atomically, either all of them are stored or none is.
+         * @param recovered If the records were loaded from a segment file and may have been written before
+         */
+        void write(@Nonnull List<TransactionRecord> records, boolean recovered) throws DataStoreException;
+    }
+
+    private final Sink sink;
+    private final int batchSize;
+    private final long flushInterval;
+    @Nullable
+    private final File directory;
+    private final Object lock = new Object();
+    private final Thread writer;
+    private List<TransactionRecord> pending = new ArrayList<>();
+    private long oldestPending;
+    private boolean flushRequested;
+    private boolean closed;
+    private List<TransactionRecord> recovered = Collections.emptyList();
+    private final List<File> recoveredSegments = new ArrayList<>();
+    private int segmentNumber;
+    @Nullable
+    private File segmentFile;
+    @Nullable
+    private DataOutputStream segment;
+    private volatile long written;
+
+    TransactionJournal(@Nonnull Sink sink, int batchSize, long flushInterval, @Nullable File directory) throws IOException
+    {
+        if(batchSize < 1)
+            throw new IllegalArgumentException("batchSize: "+batchSize);
+
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.directory = directory;
+
+        if(directory != null)
+            recover(directory);
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "UniversalCoins Transaction Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void recover(@Nonnull File directory) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create the directory "+directory);
+
+        File[] files = directory.listFiles();
+        if(files == null)
+            throw new IOException("Failed to list the files in "+directory);
+
+        TreeMap<Integer, File> segments = new TreeMap<>();
+        for(File file: files)
+        {
+            String name = file.getName();
+            if(name.startsWith("journal-") && name.endsWith(".dat"))
+            {
+                try
+                {
+                    segments.put(Integer.parseInt(name.substring(8, name.length() - 4)), file);
+                }
+                catch (NumberFormatException ignored)
+                {
+                }
+            }
+        }
+
+        if(segments.isEmpty())
+            return;
+
+        Logger logger = UniversalCoinsServer.logger;
+        List<TransactionRecord> records = new ArrayList<>();
+        for(File file: segments.values())
+        {
+            int count = 0;
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+            {
+                if(in.readInt() != MAGIC)
+                    throw new IOException("Not a transaction journal: "+file);
+
+                while (true)
+                {
+                    int length;
+                    try
+                    {
+                        length = in.readInt();
+                    }
+                    catch (EOFException e)
+                    {
+                        break;
+                    }
+
+                    int checksum = in.readInt();
+                    if(length < 0 || length > MAX_RECORD_SIZE)
+                    {
+                        logger.warn("The transaction journal "+file+" has an invalid record length "+length+" after "+count+" records, the rest of the file will be ignored");
+                        break;
+                    }
+
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    if(crc(bytes) != checksum)
+                    {
+                        logger.warn("The transaction journal "+file+" has a corrupted record after "+count+" records, the rest of the file will be ignored");
+                        break;
+                    }
+
+                    records.add(TransactionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes))));
+                    count++;
+                }
+            }
+            catch (EOFException e)
+            {
+                logger.warn("The transaction journal "+file+" ends with an incomplete record, it will be ignored");
+            }
+
+            logger.info("Recovered "+count+" transactions from "+file);
+            recoveredSegments.add(file);
+        }
+
+        recovered = records;
+        segmentNumber = segments.lastKey() + 1;
+    }
+
+    /**
+     * Queues a record to be written by the background thread.
+     * Failures are logged instead of thrown because the balances related to the record were already committed.
+     */
+    public void add(@Nonnull TransactionRecord record)
+    {
+        synchronized (lock)
+        {
+            if(closed)
+            {
+                UniversalCoinsServer.logger.error("The transaction journal is closed, the transaction was not stored: "+record);
+                return;
+            }
+
+            if(directory != null)
+            {
+                try
+                {
+                    append(record);
+                }
+                catch (IOException e)
+                {
+                    UniversalCoinsServer.logger.error("Failed to append the transaction "+record.id+" to the journal file, it's being kept only in memory", e);
+                }
+            }
+
+            if(pending.isEmpty())
+                oldestPending = System.currentTimeMillis();
+            pending.add(record);
+            if(pending.size() >= batchSize)
+                lock.notifyAll();
+        }
+    }
+
+    private void append(TransactionRecord record) throws IOException
+    {
+        assert directory != null;
+        if(segment == null)
+        {
+            segmentFile = new File(directory, "journal-"+(segmentNumber++)+".dat");
+            segment = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile)));
+            segment.writeInt(MAGIC);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        record.writeTo(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+        segment.writeInt(payload.length);
+        segment.writeInt(crc(payload));
+        segment.write(payload);
+        segment.flush();
+    }
+
+    private static int crc(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Asks the background thread to write all pending records now, without waiting for it.
+     */
+    public void flush()
+    {
+        synchronized (lock)
+        {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    public int getPendingCount()
+    {
+        synchronized (lock)
+        {
+            return pending.size() + recovered.size();
+        }
+    }
+
+    public long getWrittenCount()
+    {
+        return written;
+    }
+
+    private void writeLoop()
+    {
+        Logger logger = UniversalCoinsServer.logger;
+        while (true)
+        {
+            List<TransactionRecord> batch;
+            List<File> segments = new ArrayList<>(1);
+            boolean recoveredBatch;
+            synchronized (lock)
+            {
+                if(!recovered.isEmpty())
+                {
+                    batch = recovered;
+                    recovered = Collections.emptyList();
+                    segments.addAll(recoveredSegments);
+                    recoveredSegments.clear();
+                    recoveredBatch = true;
+                }
+                else
+                {
+                    try
+                    {
+                        while (!closed && !flushRequested && pending.size() < batchSize)
+                        {
+                            if(pending.isEmpty())
+                                lock.wait();
+                            else
+                            {
+                                long remaining = oldestPending + flushInterval - System.currentTimeMillis();
+                                if(remaining <= 0)
+                                    break;
+                                lock.wait(remaining);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        closed = true;
+                    }
+
+                    flushRequested = false;
+                    if(pending.isEmpty())
+                    {
+                        if(closed)
+                            return;
+                        continue;
+                    }
+
+                    batch = pending;
+                    pending = new ArrayList<>();
+                    recoveredBatch = false;
+                    if(segment != null)
+                    {
+                        closeSegment();
+                        segments.add(segmentFile);
+                        segmentFile = null;
+                    }
+                }
+            }
+
+            if(write(batch, recoveredBatch))
+            {
+                for(File file: segments)
+                    if(!file.delete())
+                        logger.warn("Failed to delete the transaction journal "+file);
+            }
+            else if(directory == null)
+                logger.error(batch.size()+" transactions were lost because the transaction journal was closed before they could be written");
+            else
+                logger.error(batch.size()+" transactions could not be written, they will be written again when the server starts");
+        }
+    }
+
+    private boolean write(List<TransactionRecord> batch, boolean recoveredBatch)
+    {
+        for(int from = 0; from < batch.size(); from += batchSize)
+        {
+            List<TransactionRecord> records = batch.subList(from, Math.min(batch.size(), from + batchSize));
+            long delay = 1000;
+            while (true)
+            {
+                try
+                {
+                    sink.write(records, recoveredBatch);
+                    written += records.size();
+                    break;
+                }
+                catch (DataStoreException|RuntimeException e)
+                {
+                    synchronized (lock)
+                    {
+                        if(closed)
+                        {
+                            UniversalCoinsServer.logger.error("Failed to write "+records.size()+" transactions from the journal", e);
+                            return false;
+                        }
+
+                        UniversalCoinsServer.logger.error("Failed to write "+records.size()+" transactions from the journal, trying again in "+(delay/1000)+" seconds", e);
+                        try
+                        {
+                            lock.wait(delay);
+                        }
+                        catch (InterruptedException e1)
+                        {
+                            closed = true;
+                        }
+                    }
+                    delay = Math.min(delay * 2, 60000);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void closeSegment()
+    {
+        if(segment == null)
+            return;
+
+        try
+        {
+            segment.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        segment = null;
+    }
+
+    /**
+     * Writes the pending records and stops the background thread.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            writer.join(60000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock)
+        {
+            closeSegment();
+            if(writer.isAlive())
+                UniversalCoinsServer.logger.error("The transaction journal took too long to write the pending transactions");
+        }
+    }
+}
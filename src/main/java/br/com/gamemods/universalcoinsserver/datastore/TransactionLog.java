@@ -0,0 +1,870 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.UniversalCoinsServer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An append-only log of transaction records split in segments of a fixed maximum size.
+ * <p>
+ * Each record is stored as {@code [length][crc32][record]} using the encoding of {@link TransactionRecord}. Every
+ * segment has an index file with a fixed-size entry per record containing the transaction id, the machine id, the
+ * position of the record, its time, the player operator and a hash of the accounts, so the records of a transaction,
+ * a machine, a player or an account can be found without reading the segments.
+ * <p>
+ * When the log is synchronized, {@link #append(TransactionRecord)} returns only after the record reaches the disk.
+ * Threads appending at the same time share the same {@link FileChannel#force(boolean)} call.
+ * <p>
+ * The last segment is verified when the log is opened, a record that was partially written by a crash is discarded
+ * and the index of the segment is rebuilt.
+ * <p>
+ * The oldest segments can be archived as gzip files, the readers hold {@link #archiveLock} so the files of a segment
+ * are not removed while they are read. Appends are not affected by the archive.
+ */
+public class TransactionLog implements Closeable
+{
+    private static final int MAGIC = 0x55434C31;
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 80;
+    private static final int INDEX_BLOCK_ENTRIES = 1024;
+
+    private final File directory;
+    private final long segmentSize;
+    private final boolean sync;
+    private final Object lock = new Object();
+    private final Object syncLock = new Object();
+    private final ReadWriteLock archiveLock = new ReentrantReadWriteLock();
+    private int segmentNumber;
+    private FileChannel segment;
+    private FileChannel index;
+    private long position;
+    private long appended;
+    private long synced;
+    private boolean closed;
+    /**
+     * The oldest and the newest time of the closed segments, read from their indexes when a history query needs them
+     */
+    private final Map<Integer, long[]> segmentTimes = new ConcurrentHashMap<>();
+
+    /**
+     * @param segmentSize The size in bytes that makes the log start a new segment
+     * @param sync If the appended records must be written to the disk before {@link #append(TransactionRecord)} returns
+     */
+    public TransactionLog(@Nonnull File directory, long segmentSize, boolean sync) throws IOException
+    {
+        if(segmentSize < 1024)
+            throw new IllegalArgumentException("segmentSize: "+segmentSize);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create the directory "+directory);
+
+        SortedMap<Integer, File> segments = listSegments();
+        if(segments.isEmpty())
+            openSegment(1);
+        else
+            recover(segments.lastKey());
+    }
+
+    @Nonnull
+    private SortedMap<Integer, File> listSegments() throws IOException
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            throw new IOException("Failed to list the files in "+directory);
+
+        TreeMap<Integer, File> segments = new TreeMap<>();
+        for(File file: files)
+        {
+            String name = file.getName();
+            if(name.startsWith("segment-") && name.endsWith(".log"))
+            {
+                try
+                {
+                    segments.put(Integer.parseInt(name.substring(8, name.length() - 4)), file);
+                }
+                catch (NumberFormatException ignored)
+                {
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(int number)
+    {
+        return new File(directory, String.format("segment-%06d.log", number));
+    }
+
+    private File indexFile(int number)
+    {
+        return new File(directory, String.format("segment-%06d.ix2", number));
+    }
+
+    private void openSegment(int number) throws IOException
+    {
+        segmentNumber = number;
+        segment = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).flip();
+        writeFully(segment, header);
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Scans the last segment, truncates it after the last complete record and rebuilds its index
+     */
+    private void recover(int number) throws IOException
+    {
+        File file = segmentFile(number);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        long[] scan = scan(file, new DataOutputStream(entries));
+        long valid = scan[0];
+
+        if(valid < file.length())
+            UniversalCoinsServer.logger.warn("The transaction log segment "+file+" ends with an incomplete record, "+(file.length() - valid)+" bytes will be discarded");
+
+        segmentNumber = number;
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        segment.truncate(valid);
+        segment.position(valid);
+        position = valid;
+
+        index = FileChannel.open(indexFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(index, ByteBuffer.wrap(entries.toByteArray()));
+
+        UniversalCoinsServer.logger.info("Opened the transaction log segment "+file+" with "+scan[1]+" records");
+    }
+
+    /**
+     * Reads the complete records of a segment and writes their index entries
+     * @return The position after the last complete record and the amount of records
+     */
+    private long[] scan(File file, DataOutput indexOut) throws IOException
+    {
+        long valid = HEADER_SIZE;
+        int records = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a transaction log segment: "+file);
+
+            while (true)
+            {
+                TransactionRecord record;
+                int length;
+                try
+                {
+                    length = in.readInt();
+                    int crc = in.readInt();
+                    if(length < 0 || length > segmentSize)
+                        break;
+
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    if(crc(bytes) != crc)
+                        break;
+
+                    record = TransactionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                writeIndexEntry(indexOut, record, valid);
+                valid += FRAME_HEADER_SIZE + length;
+                records++;
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("Not a transaction log segment: "+file, e);
+        }
+
+        return new long[]{valid, records};
+    }
+
+    private static void writeIndexEntry(DataOutput out, TransactionRecord record, long position) throws IOException
+    {
+        UUID id = UUID.fromString(record.id);
+        UUID machine = record.machine == null? null : UUID.fromString(record.machine.machineId);
+        UUID player = record.playerOperator == null? null : UUID.fromString(record.playerOperator);
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+        out.writeLong(machine == null? 0 : machine.getMostSignificantBits());
+        out.writeLong(machine == null? 0 : machine.getLeastSignificantBits());
+        out.writeLong(position);
+        out.writeLong(record.time);
+        out.writeLong(player == null? 0 : player.getMostSignificantBits());
+        out.writeLong(player == null? 0 : player.getLeastSignificantBits());
+        out.writeLong(record.userCoinSource == null? 0 : accountKey(record.userCoinSource.account));
+        out.writeLong(record.ownerCoinSource == null? 0 : accountKey(record.ownerCoinSource.account));
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the account number, zero when there's no account. Different accounts may have the
+     * same key, the records found by it are checked again.
+     */
+    private static long accountKey(@Nullable String account)
+    {
+        if(account == null)
+            return 0;
+
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < account.length(); i++)
+        {
+            hash ^= account.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0? 1 : hash;
+    }
+
+    private static int crc(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Appends the record to the current segment, starting a new one if it's full
+     */
+    void append(@Nonnull TransactionRecord record) throws IOException
+    {
+        long ticket = write(record);
+        if(sync)
+            sync(ticket);
+    }
+
+    /**
+     * Appends the records in order and writes them to the disk at once, regardless of the sync option
+     */
+    void appendAll(@Nonnull Collection<TransactionRecord> records) throws IOException
+    {
+        long ticket = 0;
+        for(TransactionRecord record: records)
+            ticket = write(record);
+        sync(ticket);
+    }
+
+    private long write(TransactionRecord record) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        record.writeTo(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+        synchronized (lock)
+        {
+            if(closed)
+                throw new IOException("The transaction log is closed");
+
+            if(position > HEADER_SIZE && position + frame.remaining() > segmentSize)
+                roll();
+
+            writeIndexEntry(new DataOutputStream(entry), record, position);
+            writeFully(segment, frame);
+            writeFully(index, ByteBuffer.wrap(entry.toByteArray()));
+            position += FRAME_HEADER_SIZE + payload.length;
+            return ++appended;
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        // The records of the previous segment must be on the disk before a syncing thread sees the new one
+        segment.force(false);
+        segment.close();
+        index.close();
+        openSegment(segmentNumber + 1);
+    }
+
+    /**
+     * Waits until the appended records up to the ticket reach the disk. A single thread forces the segment
+     * while the others wait, the ones that appended before the force started don't need to force it again.
+     */
+    private void sync(long ticket) throws IOException
+    {
+        synchronized (syncLock)
+        {
+            if(synced >= ticket)
+                return;
+
+            FileChannel channel;
+            long target;
+            synchronized (lock)
+            {
+                channel = segment;
+                target = appended;
+            }
+
+            try
+            {
+                channel.force(false);
+            }
+            catch (ClosedChannelException e)
+            {
+                // Closed by a rollover or by close(), both force the segment first
+            }
+
+            synced = target;
+        }
+    }
+
+    /**
+     * Writes all appended records to the disk
+     */
+    public void sync() throws IOException
+    {
+        long ticket;
+        synchronized (lock)
+        {
+            ticket = appended;
+        }
+        sync(ticket);
+    }
+
+    /**
+     * Finds a record by the transaction id, the newest segments are searched first
+     */
+    @Nullable
+    TransactionRecord find(@Nonnull UUID transactionId) throws IOException
+    {
+        archiveLock.readLock().lock();
+        try
+        {
+            int current;
+            synchronized (lock)
+            {
+                current = segmentNumber;
+            }
+
+            SortedMap<Integer, File> segments = listSegments().headMap(current + 1);
+            List<Integer> numbers = new ArrayList<>(segments.keySet());
+            Collections.reverse(numbers);
+            for(int number: numbers)
+            {
+                long position = searchIndex(number, transactionId.getMostSignificantBits(), transactionId.getLeastSignificantBits());
+                if(position >= 0)
+                    return read(number, position);
+            }
+            return null;
+        }
+        finally
+        {
+            archiveLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the records of a machine from the oldest to the newest
+     */
+    void visitMachine(@Nonnull UUID machineId, @Nonnull CardDataBase.Visitor<TransactionRecord> visitor) throws IOException, DataStoreException
+    {
+        archiveLock.readLock().lock();
+        try
+        {
+            int current;
+            synchronized (lock)
+            {
+                current = segmentNumber;
+            }
+
+            long most = machineId.getMostSignificantBits(), least = machineId.getLeastSignificantBits();
+            for(int number: listSegments().headMap(current + 1).keySet())
+            {
+                List<Long> positions = new ArrayList<>();
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile(number)))))
+                {
+                    while (true)
+                    {
+                        in.readLong();
+                        in.readLong();
+                        long machineMost = in.readLong();
+                        long machineLeast = in.readLong();
+                        long position = in.readLong();
+                        in.skipBytes(INDEX_ENTRY_SIZE - 40);
+                        if(machineMost == most && machineLeast == least)
+                            positions.add(position);
+                    }
+                }
+                catch (EOFException ignored)
+                {
+                }
+
+                if(positions.isEmpty())
+                    continue;
+
+                try(RandomAccessFile file = new RandomAccessFile(segmentFile(number), "r"))
+                {
+                    for(long position: positions)
+                        if(!visitor.visit(read(file, position)))
+                            return;
+                }
+            }
+        }
+        finally
+        {
+            archiveLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits all records from the oldest to the newest, the records appended after this method is called are not visited
+     */
+    void visitAll(@Nonnull CardDataBase.Visitor<TransactionRecord> visitor) throws IOException, DataStoreException
+    {
+        archiveLock.readLock().lock();
+        try
+        {
+            int current;
+            long end;
+            synchronized (lock)
+            {
+                current = segmentNumber;
+                end = position;
+            }
+
+            for(Map.Entry<Integer, File> entry: listSegments().headMap(current + 1).entrySet())
+            {
+                File file = entry.getValue();
+                long limit = entry.getKey() == current? end : file.length();
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+                {
+                    if(in.readInt() != MAGIC)
+                        throw new IOException("Not a transaction log segment: "+file);
+
+                    long read = HEADER_SIZE;
+                    while (read < limit)
+                    {
+                        int length = in.readInt();
+                        int crc = in.readInt();
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        if(crc(bytes) != crc)
+                            throw new IOException("Corrupted transaction log record at the position "+read+" of "+file);
+
+                        if(!visitor.visit(TransactionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)))))
+                            return;
+                        read += FRAME_HEADER_SIZE + length;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            archiveLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the records appended after the cursor, from the oldest to the newest. The cursor is the segment and the
+     * index entry of the next record, the archived segments are skipped.
+     * @param cursor The value returned by the previous call, empty to start from the oldest record
+     * @param visitor Receives the records, the reading stops when it returns {@code false}
+     * @return The cursor of the record after the last one read
+     */
+    @Nonnull
+    String readAfter(@Nonnull String cursor, @Nonnull CardDataBase.Visitor<TransactionRecord> visitor) throws IOException, DataStoreException
+    {
+        archiveLock.readLock().lock();
+        try
+        {
+            int current;
+            long currentEntries;
+            synchronized (lock)
+            {
+                current = segmentNumber;
+                currentEntries = index.position() / INDEX_ENTRY_SIZE;
+            }
+
+            int startSegment = 0;
+            long startEntry = 0;
+            if(!cursor.isEmpty())
+            {
+                int separator = cursor.indexOf(':');
+                if(separator < 0)
+                    throw new IllegalArgumentException("Invalid cursor: "+cursor);
+                startSegment = Integer.parseInt(cursor.substring(0, separator));
+                startEntry = Long.parseLong(cursor.substring(separator + 1));
+            }
+
+            String next = cursor;
+            for(int number: listSegments().subMap(Math.min(startSegment, current), current + 1).keySet())
+            {
+                long entry = number == startSegment? startEntry : 0;
+                long end = number == current? currentEntries : indexFile(number).length() / INDEX_ENTRY_SIZE;
+                next = number+":"+Math.max(entry, end);
+                if(entry >= end)
+                    continue;
+
+                try(FileInputStream indexIn = new FileInputStream(indexFile(number));
+                    RandomAccessFile file = new RandomAccessFile(segmentFile(number), "r"))
+                {
+                    indexIn.getChannel().position(entry * INDEX_ENTRY_SIZE);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(indexIn));
+                    for(; entry < end; entry++)
+                    {
+                        in.skipBytes(32);
+                        long position = in.readLong();
+                        in.skipBytes(INDEX_ENTRY_SIZE - 40);
+                        if(!visitor.visit(read(file, position)))
+                            return number+":"+(entry + 1);
+                    }
+                }
+            }
+            return next;
+        }
+        finally
+        {
+            archiveLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a page of the history from the newest record to the oldest in the order that they were appended. The
+     * index entries are read backwards in blocks and only the records of the page are read from the segments, the
+     * segments outside of the time range of the query are skipped. The cursor is the segment and the index entry
+     * where the next page starts.
+     */
+    @Nonnull
+    HistoryPage history(@Nonnull HistoryQuery query) throws IOException
+    {
+        archiveLock.readLock().lock();
+        try
+        {
+            int current;
+            long currentEntries;
+            synchronized (lock)
+            {
+                current = segmentNumber;
+                currentEntries = index.position() / INDEX_ENTRY_SIZE;
+            }
+
+            int startSegment = current;
+            long startEntry = currentEntries;
+            String cursor = query.getCursor();
+            if(cursor != null)
+            {
+                int separator = cursor.indexOf(':');
+                if(separator < 0)
+                    throw new IllegalArgumentException("Invalid cursor: "+cursor);
+                startSegment = Integer.parseInt(cursor.substring(0, separator));
+                startEntry = Long.parseLong(cursor.substring(separator + 1));
+            }
+
+            long from = query.getFrom(), to = query.getTo();
+            boolean timeBounded = from > 0 || to < Long.MAX_VALUE;
+            HistoryQuery.Filter filter = query.getFilter();
+            String key = query.getKey();
+            long keyMost = 0, keyLeast = 0;
+            if(filter == HistoryQuery.Filter.MACHINE || filter == HistoryQuery.Filter.PLAYER)
+            {
+                UUID id = UUID.fromString(key);
+                keyMost = id.getMostSignificantBits();
+                keyLeast = id.getLeastSignificantBits();
+            }
+            else if(filter == HistoryQuery.Filter.ACCOUNT)
+                keyMost = accountKey(key);
+
+            int limit = query.getLimit();
+            List<HistoryEntry> entries = new ArrayList<>(limit);
+            List<Integer> numbers = new ArrayList<>(listSegments().headMap(startSegment + 1).keySet());
+            Collections.reverse(numbers);
+            ByteBuffer block = ByteBuffer.allocate(INDEX_BLOCK_ENTRIES * INDEX_ENTRY_SIZE);
+            for(int number: numbers)
+            {
+                long end;
+                if(number == startSegment)
+                    end = startEntry;
+                else if(number == current)
+                    end = currentEntries;
+                else
+                    end = indexFile(number).length() / INDEX_ENTRY_SIZE;
+
+                if(end <= 0)
+                    continue;
+
+                if(timeBounded && number < current)
+                {
+                    long[] range = timeRange(number);
+                    if(range[1] < from || range[0] >= to)
+                        continue;
+                }
+
+                RandomAccessFile segmentFile = null;
+                try(FileChannel indexChannel = FileChannel.open(indexFile(number).toPath(), StandardOpenOption.READ))
+                {
+                    for(long entry = end; entry > 0;)
+                    {
+                        long first = Math.max(0, entry - INDEX_BLOCK_ENTRIES);
+                        block.clear();
+                        block.limit((int) ((entry - first) * INDEX_ENTRY_SIZE));
+                        long offset = first * INDEX_ENTRY_SIZE;
+                        while (block.hasRemaining())
+                            if(indexChannel.read(block, offset + block.position()) < 0)
+                                throw new EOFException("The index of the segment "+number+" is shorter than expected");
+
+                        for(long i = entry - 1; i >= first; i--)
+                        {
+                            int base = (int) ((i - first) * INDEX_ENTRY_SIZE);
+                            long time = block.getLong(base + 40);
+                            if(time < from || time >= to)
+                                continue;
+
+                            boolean matches;
+                            switch (filter)
+                            {
+                                case MACHINE:
+                                    matches = block.getLong(base + 16) == keyMost && block.getLong(base + 24) == keyLeast;
+                                    break;
+                                case PLAYER:
+                                    matches = block.getLong(base + 48) == keyMost && block.getLong(base + 56) == keyLeast;
+                                    break;
+                                case ACCOUNT:
+                                    matches = block.getLong(base + 64) == keyMost || block.getLong(base + 72) == keyMost;
+                                    break;
+                                default:
+                                    matches = true;
+                            }
+
+                            if(!matches)
+                                continue;
+
+                            if(entries.size() == limit)
+                                return new HistoryPage(entries, number+":"+(i + 1));
+
+                            if(segmentFile == null)
+                                segmentFile = new RandomAccessFile(segmentFile(number), "r");
+
+                            TransactionRecord record = read(segmentFile, block.getLong(base + 32));
+                            if(filter != HistoryQuery.Filter.ACCOUNT || query.matches(record))
+                                entries.add(HistoryEntry.of(record));
+                        }
+                        entry = first;
+                    }
+                }
+                finally
+                {
+                    if(segmentFile != null)
+                        segmentFile.close();
+                }
+            }
+
+            return new HistoryPage(entries, null);
+        }
+        finally
+        {
+            archiveLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compresses the oldest segment to the archive directory and removes it from the log when all its records happened
+     * before the time, the current segment is never archived. The archived file has the same format as the segment.
+     * @param readerCursor A cursor of {@link #readAfter(String, CardDataBase.Visitor)} that must still be readable,
+     *                     the segment of the cursor and the next ones are not archived. {@code null} if there's no reader.
+     * @return The amount of records archived, zero if the oldest segment can't be archived yet
+     */
+    int archiveOldest(long before, @Nullable String readerCursor, @Nonnull File archiveDirectory) throws IOException
+    {
+        int current;
+        synchronized (lock)
+        {
+            current = segmentNumber;
+        }
+
+        if(readerCursor != null)
+        {
+            int separator = readerCursor.indexOf(':');
+            current = Math.min(current, separator < 0? 0 : Integer.parseInt(readerCursor.substring(0, separator)));
+        }
+
+        SortedMap<Integer, File> segments = listSegments().headMap(current);
+        if(segments.isEmpty())
+            return 0;
+
+        int number = segments.firstKey();
+        if(timeRange(number)[1] >= before)
+            return 0;
+
+        if(!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs())
+            throw new IOException("Failed to create the directory "+archiveDirectory);
+
+        File file = segmentFile(number);
+        File archive = new File(archiveDirectory, file.getName()+".gz");
+        File temp = new File(archiveDirectory, archive.getName()+".tmp");
+        try(FileOutputStream out = new FileOutputStream(temp))
+        {
+            GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(out, 65536));
+            Files.copy(file.toPath(), gzip);
+            gzip.finish();
+            gzip.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        long records = indexFile(number).length() / INDEX_ENTRY_SIZE;
+        archiveLock.writeLock().lock();
+        try
+        {
+            Files.delete(file.toPath());
+            Files.deleteIfExists(indexFile(number).toPath());
+            segmentTimes.remove(number);
+        }
+        finally
+        {
+            archiveLock.writeLock().unlock();
+        }
+
+        // An empty segment still counts so the archiver moves to the next one
+        return (int) Math.max(records, 1);
+    }
+
+    /**
+     * @return The oldest and the newest time of the records of a closed segment
+     */
+    private long[] timeRange(int number) throws IOException
+    {
+        long[] range = segmentTimes.get(number);
+        if(range != null)
+            return range;
+
+        range = new long[]{Long.MAX_VALUE, Long.MIN_VALUE};
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile(number)))))
+        {
+            while (true)
+            {
+                in.skipBytes(40);
+                long time = in.readLong();
+                in.skipBytes(INDEX_ENTRY_SIZE - 48);
+                range[0] = Math.min(range[0], time);
+                range[1] = Math.max(range[1], time);
+            }
+        }
+        catch (EOFException ignored)
+        {
+        }
+
+        segmentTimes.put(number, range);
+        return range;
+    }
+
+    /**
+     * @return The position of the record or {@code -1} if the transaction is not in the segment
+     */
+    private long searchIndex(int number, long most, long least) throws IOException
+    {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile(number)))))
+        {
+            while (true)
+            {
+                long idMost = in.readLong();
+                long idLeast = in.readLong();
+                in.readLong();
+                in.readLong();
+                long position = in.readLong();
+                in.skipBytes(INDEX_ENTRY_SIZE - 40);
+                if(idMost == most && idLeast == least)
+                    return position;
+            }
+        }
+        catch (EOFException|FileNotFoundException e)
+        {
+            return -1;
+        }
+    }
+
+    @Nonnull
+    private TransactionRecord read(int number, long position) throws IOException
+    {
+        try(RandomAccessFile file = new RandomAccessFile(segmentFile(number), "r"))
+        {
+            return read(file, position);
+        }
+    }
+
+    @Nonnull
+    private static TransactionRecord read(RandomAccessFile file, long position) throws IOException
+    {
+        file.seek(position);
+        int length = file.readInt();
+        int crc = file.readInt();
+        byte[] bytes = new byte[length];
+        file.readFully(bytes);
+        if(crc(bytes) != crc)
+            throw new IOException("Corrupted transaction log record at the position "+position);
+        return TransactionRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * The amount of records appended since the log was opened
+     */
+    public long getAppendedCount()
+    {
+        synchronized (lock)
+        {
+            return appended;
+        }
+    }
+
+    public int getSegmentNumber()
+    {
+        synchronized (lock)
+        {
+            return segmentNumber;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+
+            try
+            {
+                segment.force(false);
+                segment.close();
+                index.close();
+            }
+            catch (IOException e)
+            {
+                UniversalCoinsServer.logger.error("Failed to close the transaction log", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import br.com.gamemods.universalcoinsserver.blocks.PlayerOwned;
+import cpw.mods.fml.common.registry.GameData;
+import net.minecraft.item.ItemStack;
+import net.minecraft.tileentity.TileEntity;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A flat copy of the columns that are written for a {@link Transaction}.
+ * <p>
+ * The copy is taken on the thread that created the transaction, so the tile entities and item stacks referenced by it
+ * can keep changing while the record waits to be written by a background thread.
+ */
+final class TransactionRecord
+{
+    final String id;
+    final long time;
+    @Nullable
+    final MachineRow machine;
+    @Nullable
+    final String playerOperator;
+    @Nullable
+    final BlockOperatorRow blockOperator;
+    @Nullable
+    final ItemRow product;
+    @Nullable
+    final ItemRow trade;
+    final String operation;
+    final boolean infinite;
+    final int quantity;
+    final int price;
+    final int totalPrice;
+    @Nullable
+    final CoinSourceRow userCoinSource;
+    @Nullable
+    final CoinSourceRow ownerCoinSource;
+
+    TransactionRecord(String id, long time, @Nullable MachineRow machine, @Nullable String playerOperator,
+                              @Nullable BlockOperatorRow blockOperator, @Nullable ItemRow product, @Nullable ItemRow trade,
+                              String operation, boolean infinite, int quantity, int price, int totalPrice,
+                              @Nullable CoinSourceRow userCoinSource, @Nullable CoinSourceRow ownerCoinSource)
+    {
+        this.id = id;
+        this.time = time;
+        this.machine = machine;
+        this.playerOperator = playerOperator;
+        this.blockOperator = blockOperator;
+        this.product = product;
+        this.trade = trade;
+        this.operation = operation;
+        this.infinite = infinite;
+        this.quantity = quantity;
+        this.price = price;
+        this.totalPrice = totalPrice;
+        this.userCoinSource = userCoinSource;
+        this.ownerCoinSource = ownerCoinSource;
+    }
+
+    @Nonnull
+    static TransactionRecord capture(@Nonnull Transaction transaction)
+    {
+        Operator operator = transaction.getOperator();
+        return new TransactionRecord(
+                transaction.getId().toString(), transaction.getTime(), MachineRow.capture(transaction.getMachine()),
+                operator instanceof PlayerOperator? ((PlayerOperator) operator).getPlayerId().toString() : null,
+                operator instanceof BlockOperator? BlockOperatorRow.capture((BlockOperator) operator) : null,
+                ItemRow.capture(transaction.getProduct()), ItemRow.capture(transaction.getTrade()),
+                transaction.getOperation().name(), transaction.isInfiniteMachine(),
+                transaction.getQuantity(), transaction.getPrice(), transaction.getTotalPrice(),
+                CoinSourceRow.capture(transaction.getUserCoinSource()), CoinSourceRow.capture(transaction.getOwnerCoinSource())
+        );
+    }
+
+    void writeTo(DataOutput out) throws IOException
+    {
+        out.writeUTF(id);
+        out.writeLong(time);
+        MachineRow.write(out, machine);
+        writeString(out, playerOperator);
+        BlockOperatorRow.write(out, blockOperator);
+        ItemRow.write(out, product);
+        ItemRow.write(out, trade);
+        out.writeUTF(operation);
+        out.writeBoolean(infinite);
+        out.writeInt(quantity);
+        out.writeInt(price);
+        out.writeInt(totalPrice);
+        CoinSourceRow.write(out, userCoinSource);
+        CoinSourceRow.write(out, ownerCoinSource);
+    }
+
+    @Nonnull
+    static TransactionRecord readFrom(DataInput in) throws IOException
+    {
+        return new TransactionRecord(
+                in.readUTF(), in.readLong(), MachineRow.read(in), readString(in), BlockOperatorRow.read(in),
+                ItemRow.read(in), ItemRow.read(in), in.readUTF(), in.readBoolean(), in.readInt(), in.readInt(), in.readInt(),
+                CoinSourceRow.read(in), CoinSourceRow.read(in)
+        );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TransactionRecord{" +
+                "id='" + id + '\'' +
+                ", time=" + time +
+                ", operation='" + operation + '\'' +
+                ", machine=" + (machine == null? null : machine.machineId) +
+                ", totalPrice=" + totalPrice +
+                '}';
+    }
+
+    /**
+     * NBT tags can be bigger than the 64KB limit of {@link DataOutput#writeUTF(String)}
+     */
+    static void writeString(DataOutput out, @Nullable String str) throws IOException
+    {
+        if(str == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if(length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeInteger(DataOutput out, @Nullable Integer num) throws IOException
+    {
+        out.writeBoolean(num != null);
+        if(num != null)
+            out.writeInt(num);
+    }
+
+    @Nullable
+    static Integer readInteger(DataInput in) throws IOException
+    {
+        return in.readBoolean()? in.readInt() : null;
+    }
+
+    static final class MachineRow
+    {
+        final String machineId;
+        final int x, y, z;
+        final boolean inWorld;
+        final int dim;
+        @Nullable
+        final String block;
+        final int metadata;
+        final String tile;
+        @Nullable
+        final String owner;
+
+        MachineRow(String machineId, int x, int y, int z, boolean inWorld, int dim, @Nullable String block, int metadata,
+                   String tile, @Nullable String owner)
+        {
+            this.machineId = machineId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.inWorld = inWorld;
+            this.dim = dim;
+            this.block = block;
+            this.metadata = metadata;
+            this.tile = tile;
+            this.owner = owner;
+        }
+
+        @Nullable
+        static MachineRow capture(@Nullable Machine machine)
+        {
+            if(machine == null)
+                return null;
+
+            TileEntity machineEntity = machine.getMachineEntity();
+            boolean inWorld = machineEntity.hasWorldObj();
+            UUID owner = machineEntity instanceof PlayerOwned? ((PlayerOwned) machineEntity).getOwnerId() : null;
+            return new MachineRow(
+                    machine.getMachineId().toString(), machineEntity.xCoord, machineEntity.yCoord, machineEntity.zCoord,
+                    inWorld, inWorld? machineEntity.getWorldObj().provider.dimensionId : 0,
+                    inWorld? GameData.getBlockRegistry().getNameForObject(machineEntity.getBlockType()) : null,
+                    inWorld? machineEntity.getBlockMetadata() : 0,
+                    machineEntity.getClass().getName(), owner == null? null : owner.toString()
+            );
+        }
+
+        static void write(DataOutput out, @Nullable MachineRow row) throws IOException
+        {
+            out.writeBoolean(row != null);
+            if(row == null)
+                return;
+
+            out.writeUTF(row.machineId);
+            out.writeInt(row.x);
+            out.writeInt(row.y);
+            out.writeInt(row.z);
+            out.writeBoolean(row.inWorld);
+            out.writeInt(row.dim);
+            writeString(out, row.block);
+            out.writeInt(row.metadata);
+            out.writeUTF(row.tile);
+            writeString(out, row.owner);
+        }
+
+        @Nullable
+        static MachineRow read(DataInput in) throws IOException
+        {
+            if(!in.readBoolean())
+                return null;
+
+            return new MachineRow(in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readBoolean(), in.readInt(),
+                    readString(in), in.readInt(), in.readUTF(), readString(in));
+        }
+
+        /**
+         * Checks if writing this row over the stored one would change nothing. The world columns are only compared
+         * when this row is in a world because they are not written otherwise.
+         */
+        boolean isStoredAs(@Nonnull MachineRow stored)
+        {
+            if(x != stored.x || y != stored.y || z != stored.z || !tile.equals(stored.tile) || !Objects.equals(owner, stored.owner))
+                return false;
+
+            return !inWorld || (stored.inWorld && dim == stored.dim && Objects.equals(block, stored.block) && metadata == stored.metadata);
+        }
+
+        /**
+         * The row that is stored after writing this row over the given one
+         */
+        @Nonnull
+        MachineRow storedOver(@Nullable MachineRow stored)
+        {
+            if(inWorld || stored == null || !stored.inWorld)
+                return this;
+
+            return new MachineRow(machineId, x, y, z, true, stored.dim, stored.block, stored.metadata, tile, owner);
+        }
+    }
+
+    /**
+     * The identity of a row in the {@code block_operators} table, two rows with equal values refer to the same operator.
+     */
+    static final class BlockOperatorRow
+    {
+        final int x, y, z;
+        @Nullable
+        final Integer dim;
+        @Nullable
+        final String blockId;
+        @Nullable
+        final Integer blockMeta;
+        @Nullable
+        final String owner;
+        @Nullable
+        final String machineId;
+        @Nullable
+        final String machineType;
+
+        BlockOperatorRow(int x, int y, int z, @Nullable Integer dim, @Nullable String blockId, @Nullable Integer blockMeta,
+                         @Nullable String owner, @Nullable String machineId, @Nullable String machineType)
+        {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.dim = dim;
+            this.blockId = blockId;
+            this.blockMeta = blockMeta;
+            this.owner = owner;
+            this.machineId = machineId;
+            this.machineType = machineType;
+        }
+
+        @Nonnull
+        static BlockOperatorRow capture(@Nonnull BlockOperator blockOperator)
+        {
+            UUID owner = blockOperator.getOwner();
+            String machineId = null, machineType = null;
+            if(blockOperator instanceof MachineOperator)
+            {
+                Machine machine = ((MachineOperator) blockOperator).getMachine();
+                machineId = machine.getMachineId().toString();
+                machineType = machine.getMachineEntity().getClass().getName();
+            }
+
+            return new BlockOperatorRow(blockOperator.getX(), blockOperator.getY(), blockOperator.getZ(),
+                    blockOperator.getDim(), blockOperator.getBlockId(), blockOperator.getBlockMeta(),
+                    owner == null? null : owner.toString(), machineId, machineType);
+        }
+
+        static void write(DataOutput out, @Nullable BlockOperatorRow row) throws IOException
+        {
+            out.writeBoolean(row != null);
+            if(row == null)
+                return;
+
+            out.writeInt(row.x);
+            out.writeInt(row.y);
+            out.writeInt(row.z);
+            writeInteger(out, row.dim);
+            writeString(out, row.blockId);
+            writeInteger(out, row.blockMeta);
+            writeString(out, row.owner);
+            writeString(out, row.machineId);
+            writeString(out, row.machineType);
+        }
+
+        @Nullable
+        static BlockOperatorRow read(DataInput in) throws IOException
+        {
+            if(!in.readBoolean())
+                return null;
+
+            return new BlockOperatorRow(in.readInt(), in.readInt(), in.readInt(), readInteger(in), readString(in),
+                    readInteger(in), readString(in), readString(in), readString(in));
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) return true;
+            if(o == null || getClass() != o.getClass()) return false;
+
+            BlockOperatorRow that = (BlockOperatorRow) o;
+            return x == that.x && y == that.y && z == that.z
+                    && Objects.equals(dim, that.dim) && Objects.equals(blockId, that.blockId)
+                    && Objects.equals(blockMeta, that.blockMeta) && Objects.equals(owner, that.owner)
+                    && Objects.equals(machineId, that.machineId) && Objects.equals(machineType, that.machineType);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = x;
+            result = 31 * result + y;
+            result = 31 * result + z;
+            result = 31 * result + Objects.hashCode(dim);
+            result = 31 * result + Objects.hashCode(blockId);
+            result = 31 * result + Objects.hashCode(blockMeta);
+            result = 31 * result + Objects.hashCode(owner);
+            result = 31 * result + Objects.hashCode(machineId);
+            result = 31 * result + Objects.hashCode(machineType);
+            return result;
+        }
+    }
+
+    static final class ItemRow
+    {
+        final String item;
+        final int damage;
+        final int amount;
+        @Nullable
+        final String nbt;
+
+        ItemRow(String item, int damage, int amount, @Nullable String nbt)
+        {
+            this.item = item;
+            this.damage = damage;
+            this.amount = amount;
+            this.nbt = nbt;
+        }
+
+        @Nullable
+        static ItemRow capture(@Nullable ItemStack stack)
+        {
+            if(stack == null)
+                return null;
+
+            String type = GameData.getItemRegistry().getNameForObject(stack.getItem());
+            if(type == null) type = stack.getItem().getClass().getName();
+            return new ItemRow(type, stack.getItemDamage(), stack.stackSize,
+                    stack.stackTagCompound != null? stack.stackTagCompound.toString() : null);
+        }
+
+        static void write(DataOutput out, @Nullable ItemRow row) throws IOException
+        {
+            out.writeBoolean(row != null);
+            if(row == null)
+                return;
+
+            out.writeUTF(row.item);
+            out.writeInt(row.damage);
+            out.writeInt(row.amount);
+            writeString(out, row.nbt);
+        }
+
+        @Nullable
+        static ItemRow read(DataInput in) throws IOException
+        {
+            if(!in.readBoolean())
+                return null;
+
+            return new ItemRow(in.readUTF(), in.readInt(), in.readInt(), readString(in));
+        }
+    }
+
+    static final class CoinSourceRow
+    {
+        @Nullable
+        final String type;
+        final int before;
+        final int after;
+        @Nullable
+        final MachineRow machine;
+        @Nullable
+        final String account;
+        @Nullable
+        final ItemRow card;
+        @Nullable
+        final String playerOperator;
+        @Nullable
+        final BlockOperatorRow blockOperator;
+
+        CoinSourceRow(@Nullable String type, int before, int after, @Nullable MachineRow machine, @Nullable String account,
+                      @Nullable ItemRow card, @Nullable String playerOperator, @Nullable BlockOperatorRow blockOperator)
+        {
+            this.type = type;
+            this.before = before;
+            this.after = after;
+            this.machine = machine;
+            this.account = account;
+            this.card = card;
+            this.playerOperator = playerOperator;
+            this.blockOperator = blockOperator;
+        }
+
+        @Nullable
+        static CoinSourceRow capture(@Nullable Transaction.CoinSource coinSource)
+        {
+            if(coinSource == null)
+                return null;
+
+            String type = null, account = null, playerOperator = null;
+            MachineRow machine = null;
+            ItemRow card = null;
+            BlockOperatorRow blockOperator = null;
+            if(coinSource instanceof Transaction.MachineCoinSource)
+            {
+                type = "machine";
+                machine = MachineRow.capture(((Transaction.MachineCoinSource) coinSource).getMachine());
+            }
+            else if(coinSource instanceof Transaction.CardCoinSource)
+            {
+                type = "card";
+                Transaction.CardCoinSource cardSource = (Transaction.CardCoinSource) coinSource;
+                account = cardSource.getAccountAddress().getNumber().toString();
+                card = ItemRow.capture(cardSource.getCard());
+            }
+            else if(coinSource instanceof Transaction.InventoryCoinSource)
+            {
+                type = "inventory";
+                Operator operator = ((Transaction.InventoryCoinSource) coinSource).getOperator();
+                if(operator instanceof PlayerOperator)
+                    playerOperator = ((PlayerOperator) operator).getPlayerId().toString();
+                else if(operator instanceof BlockOperator)
+                    blockOperator = BlockOperatorRow.capture((BlockOperator) operator);
+            }
+
+            return new CoinSourceRow(type, coinSource.getBalanceBefore(), coinSource.getBalanceAfter(), machine, account,
+                    card, playerOperator, blockOperator);
+        }
+
+        static void write(DataOutput out, @Nullable CoinSourceRow row) throws IOException
+        {
+            out.writeBoolean(row != null);
+            if(row == null)
+                return;
+
+            writeString(out, row.type);
+            out.writeInt(row.before);
+            out.writeInt(row.after);
+            MachineRow.write(out, row.machine);
+            writeString(out, row.account);
+            ItemRow.write(out, row.card);
+            writeString(out, row.playerOperator);
+            BlockOperatorRow.write(out, row.blockOperator);
+        }
+
+        @Nullable
+        static CoinSourceRow read(DataInput in) throws IOException
+        {
+            if(!in.readBoolean())
+                return null;
+
+            return new CoinSourceRow(readString(in), in.readInt(), in.readInt(), MachineRow.read(in), readString(in),
+                    ItemRow.read(in), readString(in), BlockOperatorRow.read(in));
+        }
+    }
+}
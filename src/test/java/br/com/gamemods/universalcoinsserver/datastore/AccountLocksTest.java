@@ -0,0 +1,153 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AccountLocksTest
+{
+    @Test
+    public void oppositeOrderDoesNotDeadlock() throws InterruptedException
+    {
+        final AccountLocks locks = new AccountLocks(64);
+        // Numbers that differ only on the last char are spread to different stripes
+        final String[] accounts = {"acc-1", "acc-2"};
+        final int rounds = 10000;
+        final AtomicInteger balance = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread forward = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                await(start);
+                for(int i = 0; i < rounds; i++)
+                    try(AccountLocks.Hold ignored = locks.lock(accounts[0], accounts[1]))
+                    {
+                        balance.incrementAndGet();
+                    }
+            }
+        });
+        Thread backward = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                await(start);
+                for(int i = 0; i < rounds; i++)
+                    try(AccountLocks.Hold ignored = locks.lock(accounts[1], accounts[0]))
+                    {
+                        balance.decrementAndGet();
+                    }
+            }
+        });
+
+        forward.setDaemon(true);
+        backward.setDaemon(true);
+        forward.start();
+        backward.start();
+        start.countDown();
+        forward.join(TimeUnit.SECONDS.toMillis(30));
+        backward.join(TimeUnit.SECONDS.toMillis(30));
+
+        assertFalse("The transfers in opposite directions deadlocked", forward.isAlive() || backward.isAlive());
+        assertEquals(0, balance.get());
+    }
+
+    @Test
+    public void holdExcludesOtherThreads() throws InterruptedException
+    {
+        final AccountLocks locks = new AccountLocks(16);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try(AccountLocks.Hold ignored = locks.lock("acc-1", "acc-2"))
+                {
+                    acquired.countDown();
+                }
+            }
+        });
+
+        try(AccountLocks.Hold ignored = locks.lock("acc-2"))
+        {
+            other.start();
+            assertFalse("The account was locked by two threads", acquired.await(200, TimeUnit.MILLISECONDS));
+        }
+
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        other.join();
+    }
+
+    @Test
+    public void sameOrNullAccountsLockOnce()
+    {
+        AccountLocks locks = new AccountLocks(1);
+        assertSame(AccountLocks.Hold.NONE, locks.lock(null));
+        assertSame(AccountLocks.Hold.NONE, locks.lock(null, null));
+
+        // Every account shares the single stripe, it must be taken only once to be fully released by the hold
+        try(AccountLocks.Hold ignored = locks.lock("acc-1", "acc-1"))
+        {
+            assertNotSame(AccountLocks.Hold.NONE, ignored);
+        }
+        try(AccountLocks.Hold ignored = locks.lock(null, "acc-1"))
+        {
+            assertNotSame(AccountLocks.Hold.NONE, ignored);
+        }
+        assertNoStripeHeld(locks, "acc-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoStripes()
+    {
+        new AccountLocks(0);
+    }
+
+    private static void assertNoStripeHeld(final AccountLocks locks, final String number)
+    {
+        final AtomicReference<Boolean> acquired = new AtomicReference<>(false);
+        Thread other = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try(AccountLocks.Hold ignored = locks.lock(number))
+                {
+                    acquired.set(true);
+                }
+            }
+        });
+        other.setDaemon(true);
+        other.start();
+        try
+        {
+            other.join(10000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        assertTrue("The stripe was not released", acquired.get());
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AccountNumberAllocatorTest
+{
+    private static final AccountNumberAllocator.UsageCheck NOTHING_USED = new AccountNumberAllocator.UsageCheck()
+    {
+        @Nonnull
+        @Override
+        public List<String> findUsed(@Nonnull List<String> numbers)
+        {
+            return Collections.emptyList();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A counter kept only in memory
+     */
+    private static final class MemorySequence implements AccountNumberAllocator.Sequence
+    {
+        final long seed;
+        long next;
+
+        MemorySequence(long seed)
+        {
+            this.seed = seed;
+        }
+
+        @Nonnull
+        @Override
+        public long[] reserve(int count)
+        {
+            long first = next;
+            next += count;
+            return new long[]{seed, first};
+        }
+    }
+
+    @Test
+    public void permutationIsOneToOne()
+    {
+        long seed = AccountNumberAllocator.newSeed();
+        Set<Long> values = new HashSet<>();
+        for(long position = 0; position < 100000; position++)
+        {
+            long value = AccountNumberAllocator.permute(position, seed);
+            assertTrue(value >= 0 && value < AccountNumberAllocator.SPACE);
+            assertTrue("The position "+position+" repeated the value "+value, values.add(value));
+        }
+    }
+
+    @Test
+    public void permutationDependsOnTheSeed()
+    {
+        int equal = 0;
+        for(long position = 0; position < 1000; position++)
+            if(AccountNumberAllocator.permute(position, 1) == AccountNumberAllocator.permute(position, 2))
+                equal++;
+        assertTrue(equal < 10);
+    }
+
+    @Test
+    public void format()
+    {
+        assertEquals("000.000.000-00", AccountNumberAllocator.format(0));
+        assertEquals("000.000.000-07", AccountNumberAllocator.format(7));
+        assertEquals("123.456.789-01", AccountNumberAllocator.format(12345678901L));
+        assertEquals("999.999.999-99", AccountNumberAllocator.format(AccountNumberAllocator.SPACE - 1));
+    }
+
+    @Test
+    public void numbersAreNotRepeatedAfterARestart() throws DataStoreException
+    {
+        File file = new File(folder.getRoot(), "account-sequence.dat");
+        Set<String> numbers = new HashSet<>();
+        List<String> beforeRestart = new ArrayList<>();
+
+        AccountNumberAllocator allocator = new AccountNumberAllocator(AccountNumberAllocator.fileSequence(file), NOTHING_USED, 10);
+        for(int i = 0; i < 25; i++)
+        {
+            String number = allocator.next();
+            beforeRestart.add(number);
+            assertTrue(numbers.add(number));
+        }
+
+        // The 5 numbers left on the last block are lost, the next server continues after the block
+        allocator = new AccountNumberAllocator(AccountNumberAllocator.fileSequence(file), NOTHING_USED, 10);
+        for(int i = 0; i < 25; i++)
+            assertTrue(numbers.add(allocator.next()));
+
+        long[] block = AccountNumberAllocator.fileSequence(file).reserve(1);
+        assertEquals(60, block[1]);
+        for(int i = 0; i < beforeRestart.size(); i++)
+            assertEquals(AccountNumberAllocator.format(AccountNumberAllocator.permute(i, block[0])), beforeRestart.get(i));
+    }
+
+    @Test
+    public void usedNumbersAreSkipped() throws DataStoreException
+    {
+        final Set<String> used = new HashSet<>();
+        for(long position = 0; position < 20; position += 2)
+            used.add(AccountNumberAllocator.format(AccountNumberAllocator.permute(position, 42)));
+
+        AccountNumberAllocator allocator = new AccountNumberAllocator(new MemorySequence(42), new AccountNumberAllocator.UsageCheck()
+        {
+            @Nonnull
+            @Override
+            public List<String> findUsed(@Nonnull List<String> numbers)
+            {
+                List<String> found = new ArrayList<>();
+                for(String number: numbers)
+                    if(used.contains(number))
+                        found.add(number);
+                return found;
+            }
+        }, 4);
+
+        for(long position = 1; position < 20; position += 2)
+            assertEquals(AccountNumberAllocator.format(AccountNumberAllocator.permute(position, 42)), allocator.next());
+    }
+
+    @Test
+    public void clearDropsTheReservedBlock() throws DataStoreException
+    {
+        MemorySequence sequence = new MemorySequence(7);
+        AccountNumberAllocator allocator = new AccountNumberAllocator(sequence, NOTHING_USED, 5);
+        assertEquals(AccountNumberAllocator.format(AccountNumberAllocator.permute(0, 7)), allocator.next());
+        allocator.clear();
+        assertEquals(AccountNumberAllocator.format(AccountNumberAllocator.permute(5, 7)), allocator.next());
+        assertEquals(10, sequence.next);
+    }
+}
@@ -0,0 +1,224 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest
+{
+    private static final String URL = "jdbc:uctest:pool";
+
+    /**
+     * The state of a fake connection, only what the pool touches is simulated
+     */
+    private static final class FakeConnection implements InvocationHandler
+    {
+        boolean autoCommit = true;
+        boolean closed;
+        boolean valid = true;
+        int rollbacks;
+        final Connection proxy = (Connection) Proxy.newProxyInstance(ConnectionPoolTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, this);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "rollback":
+                    rollbacks++;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isValid":
+                    return valid;
+                case "close":
+                    closed = true;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "FakeConnection@"+Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    throw new SQLFeatureNotSupportedException(method.getName());
+            }
+        }
+    }
+
+    private static FakeConnection fake(Connection connection)
+    {
+        return (FakeConnection) Proxy.getInvocationHandler(connection);
+    }
+
+    @BeforeClass
+    public static void registerDriver() throws SQLException
+    {
+        DriverManager.registerDriver(new Driver()
+        {
+            @Override
+            public Connection connect(String url, Properties info)
+            {
+                return acceptsURL(url)? new FakeConnection().proxy : null;
+            }
+
+            @Override
+            public boolean acceptsURL(String url)
+            {
+                return url.startsWith("jdbc:uctest:");
+            }
+
+            @Override
+            public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+            {
+                return new DriverPropertyInfo[0];
+            }
+
+            @Override
+            public int getMajorVersion()
+            {
+                return 1;
+            }
+
+            @Override
+            public int getMinorVersion()
+            {
+                return 0;
+            }
+
+            @Override
+            public boolean jdbcCompliant()
+            {
+                return false;
+            }
+
+            @Override
+            public Logger getParentLogger() throws SQLFeatureNotSupportedException
+            {
+                throw new SQLFeatureNotSupportedException();
+            }
+        });
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws SQLException
+    {
+        try(ConnectionPool pool = new ConnectionPool(URL, null, null, 2))
+        {
+            Connection connection = pool.borrow();
+            assertEquals(1, pool.getActiveCount());
+            pool.release(connection);
+            assertEquals(0, pool.getActiveCount());
+            assertEquals(1, pool.getIdleCount());
+
+            assertSame(connection, pool.borrow());
+            assertEquals(0, pool.getIdleCount());
+        }
+    }
+
+    @Test
+    public void releaseRollsBackAnOpenTransaction() throws SQLException
+    {
+        try(ConnectionPool pool = new ConnectionPool(URL, null, null, 1))
+        {
+            Connection connection = pool.borrow();
+            connection.setAutoCommit(false);
+            pool.release(connection);
+
+            FakeConnection state = fake(connection);
+            assertEquals(1, state.rollbacks);
+            assertTrue(state.autoCommit);
+            assertFalse(state.closed);
+
+            Connection again = pool.borrow();
+            assertSame(connection, again);
+            assertTrue(again.getAutoCommit());
+        }
+    }
+
+    @Test
+    public void releaseWithoutTransactionDoesNotRollBack() throws SQLException
+    {
+        try(ConnectionPool pool = new ConnectionPool(URL, null, null, 1))
+        {
+            Connection connection = pool.borrow();
+            pool.release(connection);
+            assertEquals(0, fake(connection).rollbacks);
+        }
+    }
+
+    @Test
+    public void exhaustedPoolTimesOut() throws SQLException
+    {
+        try(ConnectionPool pool = new ConnectionPool(URL, null, null, 1, 5, 50))
+        {
+            Connection connection = pool.borrow();
+            try
+            {
+                pool.borrow();
+                fail("The second connection was borrowed from a pool of one");
+            }
+            catch (SQLException expected)
+            {
+            }
+
+            pool.release(connection);
+            pool.release(pool.borrow());
+            assertEquals(0, pool.getActiveCount());
+        }
+    }
+
+    @Test
+    public void invalidIdleConnectionIsReplaced() throws SQLException
+    {
+        try(ConnectionPool pool = new ConnectionPool(URL, null, null, 1))
+        {
+            Connection connection = pool.borrow();
+            pool.release(connection);
+            fake(connection).valid = false;
+
+            Connection replacement = pool.borrow();
+            assertNotSame(connection, replacement);
+            assertTrue(fake(connection).closed);
+            assertEquals(1, pool.getActiveCount());
+        }
+    }
+
+    @Test
+    public void closedPoolClosesConnections() throws SQLException
+    {
+        ConnectionPool pool = new ConnectionPool(URL, null, null, 2);
+        Connection idle = pool.borrow();
+        Connection active = pool.borrow();
+        pool.release(idle);
+        pool.close();
+        assertTrue(fake(idle).closed);
+
+        pool.release(active);
+        assertTrue(fake(active).closed);
+        assertEquals(0, pool.getIdleCount());
+
+        try
+        {
+            pool.borrow();
+            fail("A connection was borrowed from a closed pool");
+        }
+        catch (SQLException expected)
+        {
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class LedgerFileTest
+{
+    /**
+     * The amount of records that fills half of the initial table, the next insertion makes it grow
+     */
+    private static final int HALF_CAPACITY = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final UUID owner = UUID.randomUUID();
+
+    private LedgerFile fill() throws IOException
+    {
+        LedgerFile ledger = new LedgerFile(folder.getRoot(), "accounts", false);
+        for(int i = 0; i < HALF_CAPACITY; i++)
+            ledger.write(new LedgerFile.Record("acc-"+i, owner, i, 0));
+        return ledger;
+    }
+
+    private void assertTransferred(LedgerFile ledger, String from, String to, int balance)
+    {
+        LedgerFile.Record old = ledger.find(from);
+        assertNotNull(old);
+        assertTrue(old.isTerminated());
+        assertEquals(0, old.balance);
+
+        LedgerFile.Record created = ledger.find(to);
+        assertNotNull(created);
+        assertFalse(created.isTerminated());
+        assertEquals(balance, created.balance);
+
+        for(int i = 0; i < HALF_CAPACITY; i++)
+        {
+            String number = "acc-"+i;
+            if(number.equals(from))
+                continue;
+            LedgerFile.Record record = ledger.find(number);
+            assertNotNull(number, record);
+            assertFalse(number, record.isTerminated());
+            assertEquals(number, i, record.balance);
+        }
+        assertEquals(HALF_CAPACITY + 1, ledger.size());
+    }
+
+    @Test
+    public void transferThatGrowsTheTable() throws IOException
+    {
+        LedgerFile ledger = fill();
+
+        LedgerFile.Record old = ledger.find("acc-7");
+        assertNotNull(old);
+        LedgerFile.Record created = new LedgerFile.Record("transferred", owner, old.balance, 0);
+        old.balance = 0;
+        old.flags |= LedgerFile.TERMINATED;
+        ledger.write(old, created);
+        assertTransferred(ledger, "acc-7", "transferred", 7);
+
+        ledger.close();
+        ledger = new LedgerFile(folder.getRoot(), "accounts", false);
+        assertTransferred(ledger, "acc-7", "transferred", 7);
+        ledger.close();
+    }
+
+    @Test
+    public void recordFoundBeforeTheTableGrew() throws IOException
+    {
+        LedgerFile ledger = fill();
+
+        LedgerFile.Record old = ledger.find("acc-300");
+        assertNotNull(old);
+
+        // Another account creation grows the table between the read and the write
+        ledger.write(new LedgerFile.Record("transferred", owner, 300, 0));
+
+        old.balance = 0;
+        old.flags |= LedgerFile.TERMINATED;
+        ledger.write(old);
+        assertTransferred(ledger, "acc-300", "transferred", 300);
+        ledger.close();
+    }
+
+    /**
+     * Copies the files as they are now, like the disk would have them if the server crashed at this point
+     */
+    private static void copyFiles(File from, File to) throws IOException
+    {
+        File[] files = from.listFiles();
+        assertNotNull(files);
+        for(File file: files)
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void copyRedo(File from, File to, long length) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(new File(from, "accounts.redo").toPath());
+        try(FileOutputStream out = new FileOutputStream(new File(to, "accounts.redo")))
+        {
+            out.write(bytes, 0, (int) Math.min(length, bytes.length));
+        }
+    }
+
+    @Test
+    public void redoLogIsAppliedAfterACrash() throws IOException
+    {
+        File live = folder.newFolder("live");
+        File crashed = folder.newFolder("crashed");
+        LedgerFile ledger = new LedgerFile(live, "accounts", false);
+
+        // The table as it was on the last checkpoint, none of the writes below reached it
+        copyFiles(live, crashed);
+
+        ledger.write(new LedgerFile.Record("acc-1", owner, 10, LedgerFile.PRIMARY));
+        ledger.write(new LedgerFile.Record("acc-2", owner, 20, 0));
+        LedgerFile.Record record = ledger.find("acc-1");
+        assertNotNull(record);
+        record.balance = 15;
+        ledger.write(record);
+        copyRedo(live, crashed, Long.MAX_VALUE);
+        ledger.close();
+
+        LedgerFile recovered = new LedgerFile(crashed, "accounts", false);
+        LedgerFile.Record first = recovered.find("acc-1");
+        assertNotNull(first);
+        assertEquals(15, first.balance);
+        assertTrue(first.isPrimary());
+        LedgerFile.Record second = recovered.find("acc-2");
+        assertNotNull(second);
+        assertEquals(20, second.balance);
+        assertEquals(owner, second.owner);
+        assertEquals(2, recovered.size());
+        recovered.close();
+
+        // The replayed changes were checkpointed, opening again doesn't depend on the redo log
+        assertEquals(0, new File(crashed, "accounts.redo").length());
+        recovered = new LedgerFile(crashed, "accounts", false);
+        assertEquals(2, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void tornRedoEntryIsIgnored() throws IOException
+    {
+        File live = folder.newFolder("live");
+        File crashed = folder.newFolder("crashed");
+        LedgerFile ledger = new LedgerFile(live, "accounts", false);
+        copyFiles(live, crashed);
+
+        ledger.write(new LedgerFile.Record("acc-1", owner, 10, 0));
+        long complete;
+        try(RandomAccessFile redo = new RandomAccessFile(new File(live, "accounts.redo"), "r"))
+        {
+            complete = redo.length();
+        }
+        ledger.write(new LedgerFile.Record("acc-2", owner, 20, 0));
+
+        // Only part of the second entry reached the disk
+        copyRedo(live, crashed, complete + 10);
+        ledger.close();
+
+        LedgerFile recovered = new LedgerFile(crashed, "accounts", false);
+        LedgerFile.Record first = recovered.find("acc-1");
+        assertNotNull(first);
+        assertEquals(10, first.balance);
+        assertNull(recovered.find("acc-2"));
+        assertEquals(1, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void corruptedRedoEntryIsIgnored() throws IOException
+    {
+        File live = folder.newFolder("live");
+        File crashed = folder.newFolder("crashed");
+        LedgerFile ledger = new LedgerFile(live, "accounts", false);
+        copyFiles(live, crashed);
+
+        ledger.write(new LedgerFile.Record("acc-1", owner, 10, 0));
+        ledger.write(new LedgerFile.Record("acc-2", owner, 20, 0));
+        copyRedo(live, crashed, Long.MAX_VALUE);
+        ledger.close();
+
+        // Flips the last byte of the second entry so its checksum doesn't match anymore
+        try(RandomAccessFile redo = new RandomAccessFile(new File(crashed, "accounts.redo"), "rw"))
+        {
+            redo.seek(redo.length() - 1);
+            int last = redo.read();
+            redo.seek(redo.length() - 1);
+            redo.write(last ^ 0xFF);
+        }
+
+        LedgerFile recovered = new LedgerFile(crashed, "accounts", false);
+        assertNotNull(recovered.find("acc-1"));
+        assertNull(recovered.find("acc-2"));
+        recovered.close();
+    }
+}
@@ -0,0 +1,163 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SnapshotRoundTripTest
+{
+    /**
+     * Enough accounts to make the accounts section span several deflate blocks
+     */
+    private static final int ACCOUNTS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Keeps every visited value
+     */
+    private static final class Collector<T> implements CardDataBase.Visitor<T>
+    {
+        final List<T> values = new ArrayList<>();
+
+        @Override
+        public boolean visit(@Nonnull T value)
+        {
+            values.add(value);
+            return true;
+        }
+    }
+
+    @Test
+    public void everySectionIsReadBack() throws IOException, DataStoreException
+    {
+        File file = new File(folder.getRoot(), "export.snapshot");
+        UUID owner = UUID.randomUUID();
+        UUID sender = UUID.randomUUID();
+
+        List<AccountAddress> accounts = new ArrayList<>(ACCOUNTS);
+        for(int i = 0; i < ACCOUNTS; i++)
+            accounts.add(new AccountAddress(String.format("%03d.%03d.%03d-00", i / 1000000, i / 1000 % 1000, i % 1000), i == 0? owner.toString() : "custom-"+i, owner));
+
+        PlayerData player = new PlayerData(1, owner, accounts.get(0), accounts.subList(1, 3));
+        PlayerData withoutAccounts = new PlayerData(1, sender, null, null);
+        PendingDelivery fromPlayer = new PendingDelivery(owner, "Sender", sender, 1000, "{id:\"minecraft:stone\"}");
+        PendingDelivery fromServer = new PendingDelivery(owner, "Server", null, 2000, "{id:\"minecraft:dirt\"}");
+        List<TransactionRecord> transactions = new ArrayList<>();
+        for(int i = 0; i < 2; i++)
+        {
+            TransactionRecord.CoinSourceRow card = new TransactionRecord.CoinSourceRow("card", 50, 40 - i * 10, null,
+                    accounts.get(i).getNumber().toString(), null, owner.toString(), null);
+            transactions.add(new TransactionRecord(UUID.randomUUID().toString(), 1000 + i, null, owner.toString(), null,
+                    null, null, "WITHDRAW_FROM_ACCOUNT_BY_API", false, 10 + i * 10, 1, 10 + i * 10, card, null));
+        }
+
+        try(SnapshotWriter writer = new SnapshotWriter(file, 123456789L))
+        {
+            for(int i = 0; i < ACCOUNTS; i++)
+                writer.writeAccount(accounts.get(i), i * 3);
+            writer.writePlayer(player);
+            writer.writePlayer(withoutAccounts);
+            writer.writePlayerName(owner, "Owner");
+            writer.writePlayerName(sender, "Sender");
+            writer.writeDelivery(fromPlayer);
+            writer.writeDelivery(fromServer);
+            for(TransactionRecord transaction: transactions)
+                writer.writeTransaction(transaction);
+            writer.finish();
+            assertEquals(ACCOUNTS + 8, writer.getRecordCount());
+        }
+        assertTrue(file.isFile());
+        assertFalse(new File(folder.getRoot(), "export.snapshot.tmp").exists());
+
+        SnapshotDB snapshot = new SnapshotDB(file);
+        assertEquals(123456789L, snapshot.getCreatedAt());
+
+        Collector<Map.Entry<AccountAddress, Integer>> balances = new Collector<>();
+        snapshot.visitAllAccountsBalance(balances);
+        assertEquals(ACCOUNTS, balances.values.size());
+        for(int i = 0; i < ACCOUNTS; i++)
+        {
+            assertEquals(accounts.get(i), balances.values.get(i).getKey());
+            assertEquals(i * 3, balances.values.get(i).getValue().intValue());
+        }
+        assertEquals((ACCOUNTS - 1) * 3, snapshot.getAccountBalance(accounts.get(ACCOUNTS - 1).getNumber()));
+
+        Collector<PlayerData> players = new Collector<>();
+        snapshot.visitAllPlayerData(players);
+        assertEquals(2, players.values.size());
+        PlayerData read = players.values.get(0);
+        assertEquals(owner, read.getPlayerId());
+        assertEquals(accounts.get(0), read.getPrimaryAccount());
+        assertEquals(new ArrayList<>(accounts.subList(1, 3)), new ArrayList<>(read.getAlternativeAccounts()));
+        assertNull(players.values.get(1).getPrimaryAccount());
+        assertTrue(players.values.get(1).getAlternativeAccounts().isEmpty());
+
+        Collector<Map.Entry<UUID, String>> names = new Collector<>();
+        snapshot.visitPlayerNames(names);
+        assertEquals(2, names.values.size());
+        assertEquals(sender, snapshot.getPlayerIdByName("Sender"));
+
+        Collector<PendingDelivery> deliveries = new Collector<>();
+        snapshot.visitDeliveries(deliveries);
+        assertEquals(2, deliveries.values.size());
+        assertDelivery(fromPlayer, deliveries.values.get(0));
+        assertDelivery(fromServer, deliveries.values.get(1));
+
+        Collector<TransactionRecord> records = new Collector<>();
+        snapshot.visitTransactions(records);
+        assertEquals(2, records.values.size());
+        for(int i = 0; i < 2; i++)
+        {
+            assertEquals(transactions.get(i).id, records.values.get(i).id);
+            assertEquals(transactions.get(i).totalPrice, records.values.get(i).totalPrice);
+        }
+        TransactionRecord.CoinSourceRow source = records.values.get(0).userCoinSource;
+        assertNotNull(source);
+        assertEquals(accounts.get(0).getNumber(), source.account);
+        assertEquals(50, source.before);
+        assertEquals(40, source.after);
+    }
+
+    private static void assertDelivery(PendingDelivery expected, PendingDelivery actual)
+    {
+        assertEquals(expected.getTargetId(), actual.getTargetId());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getSenderId(), actual.getSenderId());
+        assertEquals(expected.getSent(), actual.getSent());
+        assertEquals(expected.getItem(), actual.getItem());
+    }
+
+    @Test
+    public void unfinishedSnapshotLeavesNoFile() throws IOException
+    {
+        File file = new File(folder.getRoot(), "export.snapshot");
+        try(SnapshotWriter writer = new SnapshotWriter(file, System.currentTimeMillis()))
+        {
+            writer.writeAccount(new AccountAddress("000.000.001-00", "custom", UUID.randomUUID()), 10);
+        }
+
+        String[] files = folder.getRoot().list();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sectionsMustBeWrittenInOrder() throws IOException
+    {
+        File file = new File(folder.getRoot(), "export.snapshot");
+        try(SnapshotWriter writer = new SnapshotWriter(file, System.currentTimeMillis()))
+        {
+            writer.writePlayerName(UUID.randomUUID(), "Late");
+            writer.writeAccount(new AccountAddress("000.000.001-00", "custom", UUID.randomUUID()), 10);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import net.minecraft.command.ICommandSender;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.init.Items;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.ChunkCoordinates;
+import net.minecraft.util.IChatComponent;
+import net.minecraft.world.World;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SqlDeliveriesTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void bootstrap() throws ClassNotFoundException
+    {
+        Class.forName("org.sqlite.JDBC");
+        Bootstrap.func_151354_b();
+    }
+
+    @Test
+    public void storedPackageIsClaimedOnSQLite() throws Exception
+    {
+        File file = new File(folder.getRoot(), "deliveries.db");
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:"+file.getPath(), null, null, 1);
+        try
+        {
+            new SqlSchema(pool).migrate();
+            SqlDB db = new SqlDB(pool);
+
+            UUID target = UUID.randomUUID();
+            long before = System.currentTimeMillis() / 1000 * 1000;
+            ItemStack stack = new ItemStack(Items.diamond, 3);
+            stack.setTagCompound(new NBTTagCompound());
+            stack.stackTagCompound.setString("note", "round trip");
+            assertTrue(db.storePackage(stack, new Sender(), target));
+            assertEquals(1, db.getPendingDeliveries(target));
+
+            List<ItemStack> claimed = db.claimPackages(target, 10);
+            assertEquals(1, claimed.size());
+            ItemStack received = claimed.get(0);
+            assertSame(Items.diamond, received.getItem());
+            assertEquals(3, received.stackSize);
+            assertEquals("round trip", received.stackTagCompound.getString("note"));
+            assertEquals("Tester", received.stackTagCompound.getString("sender"));
+            assertTrue(received.stackTagCompound.getLong("sent") >= before);
+            assertEquals(0, db.getPendingDeliveries(target));
+            assertTrue(db.claimPackages(target, 10).isEmpty());
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
+    private static class Sender implements ICommandSender
+    {
+        @Override
+        public String getCommandSenderName()
+        {
+            return "Tester";
+        }
+
+        @Override
+        public IChatComponent func_145748_c_()
+        {
+            return new ChatComponentText(getCommandSenderName());
+        }
+
+        @Override
+        public void addChatMessage(IChatComponent component)
+        {
+        }
+
+        @Override
+        public boolean canCommandSenderUseCommand(int level, String command)
+        {
+            return false;
+        }
+
+        @Override
+        public ChunkCoordinates getPlayerCoordinates()
+        {
+            return new ChunkCoordinates();
+        }
+
+        @Override
+        public World getEntityWorld()
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TransactionJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Keeps the records that were written and if they came from a segment file
+     */
+    private static final class RecordingSink implements TransactionJournal.Sink
+    {
+        final List<TransactionRecord> written = Collections.synchronizedList(new ArrayList<TransactionRecord>());
+        volatile boolean recovered;
+
+        @Override
+        public void write(@Nonnull List<TransactionRecord> records, boolean recovered)
+        {
+            written.addAll(records);
+            this.recovered |= recovered;
+        }
+    }
+
+    /**
+     * A database that is down until the server stops, the queued records stay on the segment files
+     */
+    private static final TransactionJournal.Sink FAILING_SINK = new TransactionJournal.Sink()
+    {
+        @Override
+        public void write(@Nonnull List<TransactionRecord> records, boolean recovered) throws DataStoreException
+        {
+            throw new DataStoreException("The database is down");
+        }
+    };
+
+    private static TransactionRecord deposit(int amount)
+    {
+        TransactionRecord.CoinSourceRow card = new TransactionRecord.CoinSourceRow("card", 0, amount, null, "000.000.001-00", null, null, null);
+        return new TransactionRecord(UUID.randomUUID().toString(), System.currentTimeMillis(), null, null, null, null, null,
+                "DEPOSIT_TO_ACCOUNT_BY_API", false, amount, 1, amount, card, null);
+    }
+
+    private static void assertSameRecords(List<TransactionRecord> expected, List<TransactionRecord> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).id, actual.get(i).id);
+    }
+
+    private static File[] segments(File directory)
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith("journal-") && name.endsWith(".dat");
+            }
+        });
+        assertNotNull(files);
+        return files;
+    }
+
+    private List<TransactionRecord> queueUnwritten(File directory, int count) throws IOException
+    {
+        List<TransactionRecord> records = new ArrayList<>();
+        TransactionJournal journal = new TransactionJournal(FAILING_SINK, 100, 60000, directory);
+        for(int i = 0; i < count; i++)
+        {
+            TransactionRecord record = deposit(i + 1);
+            records.add(record);
+            journal.add(record);
+        }
+        journal.close();
+        return records;
+    }
+
+    @Test
+    public void recordsLeftOnTheSegmentsAreWrittenOnTheNextStart() throws IOException
+    {
+        File directory = folder.newFolder("journal");
+        List<TransactionRecord> records = queueUnwritten(directory, 3);
+        assertEquals(1, segments(directory).length);
+
+        RecordingSink sink = new RecordingSink();
+        TransactionJournal journal = new TransactionJournal(sink, 100, 60000, directory);
+        journal.close();
+
+        assertSameRecords(records, sink.written);
+        assertTrue(sink.recovered);
+        assertEquals(3, journal.getWrittenCount());
+        assertEquals(0, segments(directory).length);
+    }
+
+    @Test
+    public void incompleteRecordIsIgnored() throws IOException
+    {
+        File directory = folder.newFolder("journal");
+        List<TransactionRecord> records = queueUnwritten(directory, 2);
+
+        File[] segments = segments(directory);
+        assertEquals(1, segments.length);
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(segments[0], true)))
+        {
+            out.writeInt(200);
+            out.write(new byte[20]);
+        }
+
+        RecordingSink sink = new RecordingSink();
+        TransactionJournal journal = new TransactionJournal(sink, 100, 60000, directory);
+        journal.close();
+
+        assertSameRecords(records, sink.written);
+        assertEquals(0, segments(directory).length);
+    }
+
+    @Test
+    public void invalidLengthStopsTheRecovery() throws IOException
+    {
+        File directory = folder.newFolder("journal");
+        List<TransactionRecord> records = queueUnwritten(directory, 1);
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(segments(directory)[0], true)))
+        {
+            out.writeInt(-7);
+            out.writeInt(0);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        RecordingSink sink = new RecordingSink();
+        new TransactionJournal(sink, 100, 60000, directory).close();
+        assertSameRecords(records, sink.written);
+    }
+
+    @Test
+    public void corruptedRecordStopsTheRecovery() throws IOException
+    {
+        File directory = folder.newFolder("journal");
+        List<TransactionRecord> records = queueUnwritten(directory, 3);
+
+        // Damages the last byte of the last record
+        try(RandomAccessFile segment = new RandomAccessFile(segments(directory)[0], "rw"))
+        {
+            segment.seek(segment.length() - 1);
+            int last = segment.read();
+            segment.seek(segment.length() - 1);
+            segment.write(last ^ 0x5A);
+        }
+
+        RecordingSink sink = new RecordingSink();
+        new TransactionJournal(sink, 100, 60000, directory).close();
+        assertSameRecords(records.subList(0, 2), sink.written);
+        assertEquals(0, segments(directory).length);
+    }
+
+    @Test
+    public void queuedRecordsAreWrittenInBatches() throws IOException
+    {
+        RecordingSink sink = new RecordingSink();
+        TransactionJournal journal = new TransactionJournal(sink, 2, 60000, null);
+        List<TransactionRecord> records = new ArrayList<>();
+        for(int i = 0; i < 5; i++)
+        {
+            records.add(deposit(10));
+            journal.add(records.get(i));
+        }
+        journal.close();
+
+        assertSameRecords(records, sink.written);
+        assertFalse(sink.recovered);
+        assertEquals(0, journal.getPendingCount());
+    }
+}
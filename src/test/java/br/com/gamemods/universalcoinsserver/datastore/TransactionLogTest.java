@@ -0,0 +1,141 @@
+package br.com.gamemods.universalcoinsserver.datastore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TransactionLogTest
+{
+    private static final long SMALL_SEGMENT = 1024;
+    private static final long LARGE_SEGMENT = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final UUID machineId = UUID.randomUUID();
+
+    private List<String> appendSales(TransactionLog log, int count) throws IOException
+    {
+        TransactionRecord.MachineRow machine = new TransactionRecord.MachineRow(machineId.toString(), 10, 64, -3, true, 0,
+                "universalcoins:blockVendor", 0, "TileVendor", null);
+
+        List<String> ids = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+        {
+            String id = UUID.randomUUID().toString();
+            log.append(new TransactionRecord(id, i, machine, null, null, null, null, "BUY_FROM_MACHINE", false, 1, i, i, null, null));
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private List<String> readMachine(TransactionLog log) throws IOException, DataStoreException
+    {
+        final List<String> ids = new ArrayList<>();
+        log.visitMachine(machineId, new CardDataBase.Visitor<TransactionRecord>()
+        {
+            @Override
+            public boolean visit(@Nonnull TransactionRecord value)
+            {
+                ids.add(value.id);
+                return true;
+            }
+        });
+        return ids;
+    }
+
+    private File lastSegment()
+    {
+        File[] files = folder.getRoot().listFiles();
+        assertNotNull(files);
+        File last = null;
+        for(File file: files)
+            if(file.getName().endsWith(".log") && (last == null || file.getName().compareTo(last.getName()) > 0))
+                last = file;
+        assertNotNull(last);
+        return last;
+    }
+
+    @Test
+    public void incompleteRecordIsDiscardedOnOpen() throws IOException, DataStoreException
+    {
+        TransactionLog log = new TransactionLog(folder.getRoot(), LARGE_SEGMENT, false);
+        List<String> ids = appendSales(log, 5);
+        log.close();
+
+        File segment = lastSegment();
+        long valid = segment.length();
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true)))
+        {
+            out.writeInt(300);
+            out.writeInt(0);
+            out.write(new byte[40]);
+        }
+
+        log = new TransactionLog(folder.getRoot(), LARGE_SEGMENT, false);
+        assertEquals(valid, segment.length());
+        assertEquals(ids, readMachine(log));
+
+        // The next record is appended right after the last complete one
+        ids.addAll(appendSales(log, 1));
+        log.close();
+
+        log = new TransactionLog(folder.getRoot(), LARGE_SEGMENT, false);
+        assertEquals(ids, readMachine(log));
+        String last = ids.get(ids.size() - 1);
+        TransactionRecord found = log.find(UUID.fromString(last));
+        assertNotNull(found);
+        assertEquals(5, found.price);
+        log.close();
+    }
+
+    @Test
+    public void recordCutInTheMiddleIsDiscarded() throws IOException, DataStoreException
+    {
+        TransactionLog log = new TransactionLog(folder.getRoot(), LARGE_SEGMENT, false);
+        List<String> ids = appendSales(log, 3);
+        log.close();
+
+        try(RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw"))
+        {
+            file.setLength(file.length() - 5);
+        }
+
+        log = new TransactionLog(folder.getRoot(), LARGE_SEGMENT, false);
+        assertEquals(ids.subList(0, 2), readMachine(log));
+        assertNull(log.find(UUID.fromString(ids.get(2))));
+        log.close();
+    }
+
+    @Test
+    public void recordsAreFoundAcrossSegments() throws IOException, DataStoreException
+    {
+        TransactionLog log = new TransactionLog(folder.getRoot(), SMALL_SEGMENT, false);
+        List<String> ids = appendSales(log, 40);
+        assertTrue(log.getSegmentNumber() > 1);
+        log.close();
+
+        log = new TransactionLog(folder.getRoot(), SMALL_SEGMENT, false);
+        assertEquals(ids, readMachine(log));
+        for(int i = 0; i < ids.size(); i++)
+        {
+            TransactionRecord found = log.find(UUID.fromString(ids.get(i)));
+            assertNotNull(ids.get(i), found);
+            assertEquals(i, found.time);
+        }
+        assertNull(log.find(UUID.randomUUID()));
+        log.close();
+    }
+}